@@ -0,0 +1,144 @@
+// =====================================================
+// VNF Dictionary Startup Benchmark (JMH)
+// Package: org.apache.cloudstack.network.vnf.benchmark
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.benchmark;
+
+import org.apache.cloudstack.network.vnf.*;
+import org.apache.cloudstack.network.vnf.impl.*;
+import com.cloud.exception.CloudException;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start of the dictionary cache: a fresh parser and cache load every
+ * stored dictionary once, as the first requests after a management-server
+ * restart do.
+ *
+ * - yaml: rows without compiled_snapshot, each YAML goes through SnakeYAML
+ * - snapshot: rows with a current compiled_snapshot
+ *
+ * Rows cycle through the shipped dictionaries with a per-row comment, so
+ * every row has its own content hash and nothing is shared in the cache.
+ * Single-shot, one fresh JVM per fork, reported in milliseconds. Source-only
+ * like VnfFrameworkBenchmarks; build it the same way:
+ *
+ *   java -jar benchmarks.jar VnfDictionaryStartupBenchmark
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 5, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class VnfDictionaryStartupBenchmark {
+
+    private static final String[] VENDORS = {"pfsense", "fortigate", "paloalto", "vyos"};
+
+    @Param({"2000", "5000"})
+    public int dictionaries;
+
+    @Param({"yaml", "snapshot"})
+    public String source;
+
+    private StoredRows dao;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, CloudException {
+        Path dir = Path.of(System.getProperty("vnf.dictionaries", "dictionaries"));
+        String[] yamls = new String[VENDORS.length];
+        for (int i = 0; i < VENDORS.length; i++) {
+            yamls[i] = Files.readString(dir.resolve(VENDORS[i] + "-dictionary.yaml"), StandardCharsets.UTF_8);
+        }
+
+        dao = new StoredRows();
+        VnfDictionaryParserImpl store = new VnfDictionaryParserImpl(dao, new VnfDictionaryCache(dictionaries));
+        for (int i = 0; i < dictionaries; i++) {
+            VnfDictionary row = new VnfDictionary();
+            row.setUuid("dict-" + i);
+            row.setYamlContent(yamls[i % yamls.length] + "\n# template " + i + "\n");
+            store.storeDictionary(row, (long) i, null);
+            if (source.equals("yaml")) {
+                row.setCompiledSnapshot(null);
+            }
+        }
+    }
+
+    @Benchmark
+    public int coldStart() {
+        VnfDictionaryParserImpl parser = new VnfDictionaryParserImpl(dao, new VnfDictionaryCache(dictionaries));
+        int operations = 0;
+        for (long templateId = 0; templateId < dictionaries; templateId++) {
+            operations += parser.getDictionary(templateId, null).getServices().size();
+        }
+        return operations;
+    }
+
+    /**
+     * vnf_dictionaries rows by template id
+     */
+    private static final class StoredRows implements VnfDictionaryDao {
+        private final Map<Long, VnfDictionary> byTemplate = new HashMap<>();
+
+        @Override
+        public VnfDictionary findByTemplateId(long templateId) {
+            VnfDictionary stored = byTemplate.get(templateId);
+            if (stored == null) {
+                return null;
+            }
+            // A fresh row per load, like the DAO
+            VnfDictionary row = new VnfDictionary();
+            row.setUuid(stored.getUuid());
+            row.setTemplateId(stored.getTemplateId());
+            row.setYamlContent(stored.getYamlContent());
+            row.setCompiledSnapshot(stored.getCompiledSnapshot());
+            return row;
+        }
+
+        @Override
+        public VnfDictionary findByNetworkId(long networkId) {
+            return null;
+        }
+
+        @Override
+        public VnfDictionary findByUuid(String uuid) {
+            return null;
+        }
+
+        @Override
+        public VnfDictionary persist(VnfDictionary dictionary) {
+            byTemplate.put(dictionary.getTemplateId(), dictionary);
+            return dictionary;
+        }
+
+        @Override
+        public boolean remove(String uuid) {
+            return false;
+        }
+
+        /**
+         * Ignored, so the yaml rows fall back on every invocation
+         */
+        @Override
+        public void updateCompiledSnapshot(String uuid, byte[] snapshot) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(VnfDictionaryStartupBenchmark.class.getSimpleName())
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,226 @@
+// =====================================================
+// VNF Framework Benchmarks (JMH)
+// Package: org.apache.cloudstack.network.vnf.benchmark
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.benchmark;
+
+import org.apache.cloudstack.network.vnf.*;
+import org.apache.cloudstack.network.vnf.impl.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and allocation of the dictionary hot paths, once per shipped
+ * dictionary (pfsense, fortigate, paloalto, vyos):
+ *
+ * - parseDictionary: YAML to VnfDictionary, including template compilation
+ * - validateDictionary: structure and template checks of a parsed dictionary;
+ *   runs on an unfrozen copy, since a frozen dictionary memoizes the result
+ * - renderFirewallCreate: Firewall.create endpoint and body with
+ *   VnfTemplateRenderer and the operation's escaping
+ * - extractCreateResult: isSuccess plus idPath extraction on a typical
+ *   Firewall.create response of the vendor
+ * - parseFirewallList: success check plus Firewall.list mapping over a
+ *   200-rule response in the vendor's own format (JSON for pfSense and
+ *   FortiGate, a PAN-OS XML rulebase, VyOS "show configuration commands"
+ *   output). PAN-OS and VyOS declare no item mapping for list, so their
+ *   figure is the success check over the full body plus the unmapped path.
+ *
+ * The benchmarks are source-only: the repository has no build module for
+ * them. Compile them against the plugin jar with jmh-core and
+ * jmh-generator-annprocess (1.37), then run from the repository root so
+ * dictionaries/ resolves (or pass -Dvnf.dictionaries=<dir>):
+ *
+ *   java -jar benchmarks.jar VnfFrameworkBenchmarks -prof gc
+ *
+ * -prof gc adds gc.alloc.rate.norm (bytes allocated per operation), the
+ * figure to compare between builds; main() runs with it enabled.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class VnfFrameworkBenchmarks {
+
+    private static final int LIST_SIZE = 200;
+
+    @Param({"pfsense", "fortigate", "paloalto", "vyos"})
+    public String vendor;
+
+    private VnfDictionaryParserImpl parser;
+    private String yaml;
+    private VnfDictionary dictionary;
+    private VnfDictionary unfrozen;
+    private OperationDefinition create;
+    private TemplateContext context;
+    private VnfResponseParserImpl responseParser;
+    private VnfResponse createResponse;
+    private VnfResponse listResponse;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, DictionaryParseException {
+        Path dir = Path.of(System.getProperty("vnf.dictionaries", "dictionaries"));
+        yaml = Files.readString(dir.resolve(vendor + "-dictionary.yaml"), StandardCharsets.UTF_8);
+        parser = new VnfDictionaryParserImpl();
+        dictionary = parser.parseDictionary(yaml);
+        create = dictionary.getService("Firewall").getOperation("create");
+        unfrozen = unfrozenCopy(dictionary);
+
+        context = new TemplateContext();
+        context.set("ruleId", 1042L);
+        context.set("networkId", 204L);
+        context.set("protocol", "tcp");
+        context.set("sourceCidr", "10.1.1.0/24");
+        context.set("startPort", 443);
+        context.set("endPort", 443);
+        context.set("publicIp", "203.0.113.10");
+
+        responseParser = new VnfResponseParserImpl();
+        createResponse = createResponse(vendor);
+        listResponse = new VnfResponse();
+        listResponse.setStatusCode("vyos".equals(vendor) ? 0 : 200);
+        listResponse.setBody(listBody(vendor));
+    }
+
+    @Benchmark
+    public VnfDictionary parseDictionary() throws DictionaryParseException {
+        return parser.parseDictionary(yaml);
+    }
+
+    @Benchmark
+    public DictionaryValidationResult validateDictionary() {
+        return parser.validateDictionary(unfrozen);
+    }
+
+    @Benchmark
+    public void renderFirewallCreate(Blackhole bh) {
+        bh.consume(VnfTemplateRenderer.render(create.getCompiledEndpoint(), context,
+                                              create.getEndpointEscaping()));
+        bh.consume(VnfTemplateRenderer.render(create.getCompiledBody(), context, create.getBodyEscaping()));
+    }
+
+    @Benchmark
+    public void extractCreateResult(Blackhole bh) {
+        bh.consume(responseParser.isSuccess(createResponse, dictionary, "Firewall.create"));
+        bh.consume(responseParser.extractExternalId(createResponse, dictionary, "Firewall.create"));
+    }
+
+    @Benchmark
+    public int parseFirewallList() {
+        if (!responseParser.isSuccess(listResponse, dictionary, "Firewall.list")) {
+            return -1;
+        }
+        return responseParser.parseListResponse(listResponse, dictionary, "Firewall").size();
+    }
+
+    /**
+     * Same services, access and transaction definitions without the frozen
+     * flag, so validateDictionary does the full walk on every call
+     */
+    private static VnfDictionary unfrozenCopy(VnfDictionary frozen) {
+        VnfDictionary copy = new VnfDictionary();
+        copy.setSchemaVersion(frozen.getSchemaVersion());
+        copy.setVendor(frozen.getVendor());
+        copy.setProduct(frozen.getProduct());
+        copy.setAccessConfig(frozen.getAccessConfig());
+        copy.setServices(frozen.getServices());
+        copy.setTransaction(frozen.getTransaction());
+        copy.setRevision(frozen.getRevision());
+        return copy;
+    }
+
+    private static VnfResponse createResponse(String vendor) {
+        VnfResponse response = new VnfResponse();
+        switch (vendor) {
+            case "pfsense" -> {
+                response.setStatusCode(201);
+                response.setBody("{\"status\":\"created\",\"code\":201,\"data\":{\"id\":1042,\"type\":\"pass\"," +
+                                 "\"protocol\":\"tcp\",\"src\":\"10.1.1.0/24\",\"dstport\":\"443\"}}");
+            }
+            case "fortigate" -> {
+                response.setStatusCode(200);
+                response.setBody("{\"http_method\":\"POST\",\"revision\":\"8a1f\",\"results\":" +
+                                 "{\"mkey\":\"1042\",\"policyid\":1042},\"vdom\":\"root\",\"status\":\"success\"}");
+            }
+            case "paloalto" -> {
+                response.setStatusCode(200);
+                response.setBody("<response status=\"success\" code=\"20\"><msg>command succeeded</msg></response>");
+            }
+            default -> {
+                response.setStatusCode(0);
+                response.setBody("Saving configuration to '/config/config.boot'...\nDone\n");
+            }
+        }
+        return response;
+    }
+
+    private static String listBody(String vendor) {
+        StringBuilder sb = new StringBuilder();
+        switch (vendor) {
+            case "pfsense" -> {
+                sb.append("{\"status\":\"ok\",\"data\":[");
+                for (int i = 0; i < LIST_SIZE; i++) {
+                    sb.append(i == 0 ? "" : ",").append("{\"id\":").append(i)
+                      .append(",\"type\":\"pass\",\"src\":\"10.").append(i / 250).append('.').append(i % 250)
+                      .append(".0/24\",\"dstport\":\"").append(1000 + i).append("\",\"protocol\":\"tcp\"}");
+                }
+                sb.append("]}");
+            }
+            case "fortigate" -> {
+                sb.append("{\"http_method\":\"GET\",\"results\":[");
+                for (int i = 0; i < LIST_SIZE; i++) {
+                    sb.append(i == 0 ? "" : ",").append("{\"policyid\":").append(i)
+                      .append(",\"name\":\"CloudStack_").append(i).append("\",\"action\":\"accept\"}");
+                }
+                sb.append("],\"status\":\"success\"}");
+            }
+            case "paloalto" -> {
+                sb.append("<response status=\"success\" code=\"19\"><result total-count=\"").append(LIST_SIZE)
+                  .append("\" count=\"").append(LIST_SIZE).append("\"><rules>");
+                for (int i = 0; i < LIST_SIZE; i++) {
+                    sb.append("<entry name=\"CloudStack_").append(i).append("\"><source><member>10.")
+                      .append(i / 250).append('.').append(i % 250).append(".0/24</member></source>")
+                      .append("<destination><member>any</member></destination>")
+                      .append("<service><member>application-default</member></service>")
+                      .append("<application><member>any</member></application><action>allow</action>")
+                      .append("<description>CloudStack rule ").append(i).append("</description></entry>");
+                }
+                sb.append("</rules></result></response>");
+            }
+            default -> {
+                for (int i = 0; i < LIST_SIZE; i++) {
+                    String rule = "set firewall name WAN_LOCAL rule " + (1000 + i);
+                    sb.append(rule).append(" action 'accept'\n")
+                      .append(rule).append(" description 'CloudStack rule ").append(i).append("'\n")
+                      .append(rule).append(" destination port '").append(1000 + i).append("'\n")
+                      .append(rule).append(" protocol 'tcp'\n")
+                      .append(rule).append(" source address '10.").append(i / 250).append('.')
+                      .append(i % 250).append(".0/24'\n");
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(VnfFrameworkBenchmarks.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -14,6 +14,7 @@ CREATE TABLE IF NOT EXISTS `vnf_dictionaries` (
   `network_id` bigint unsigned DEFAULT NULL COMMENT 'Network ID for override dictionaries (mutually exclusive with template_id)',
   `name` varchar(255) NOT NULL COMMENT 'Human-readable name for the dictionary',
   `yaml_content` MEDIUMTEXT NOT NULL COMMENT 'The YAML dictionary content',
+  `compiled_snapshot` MEDIUMBLOB COMMENT 'Binary parsed form of yaml_content, rebuilt from the YAML when stale',
   `schema_version` varchar(10) NOT NULL DEFAULT '1.0' COMMENT 'Dictionary schema version',
   `vendor` varchar(100) COMMENT 'Vendor name (extracted from YAML)',
   `product` varchar(100) COMMENT 'Product name (extracted from YAML)',
@@ -49,6 +50,8 @@ CREATE TABLE IF NOT EXISTS `vnf_appliances` (
   `state` varchar(32) NOT NULL DEFAULT 'Deploying' COMMENT 'State: Deploying, Running, Stopped, Error, Destroyed',
   `last_contact` datetime COMMENT 'Last successful communication with VNF',
   `health_status` varchar(32) DEFAULT 'Unknown' COMMENT 'Health: Healthy, Unhealthy, Unknown',
+  `rate_limit_per_minute` int COMMENT 'Overrides the dictionary rate limit (requests/minute)',
+  `rate_limit_burst` int COMMENT 'Overrides the dictionary burst allowance',
   `created` datetime NOT NULL COMMENT 'Date created',
   `removed` datetime COMMENT 'Date removed',
   PRIMARY KEY (`id`),
@@ -72,22 +75,29 @@ CREATE TABLE IF NOT EXISTS `vnf_appliances` (
 -- Extend firewall_rules table
 ALTER TABLE `firewall_rules` 
 ADD COLUMN `external_id` varchar(255) COMMENT 'Vendor-specific rule ID on VNF device',
+ADD COLUMN `fingerprint` varchar(64) COMMENT 'Canonical rule fingerprint for drift detection (mask:hash)',
 ADD COLUMN `external_metadata` TEXT COMMENT 'Additional vendor-specific metadata (JSON)';
 
 -- Extend port_forwarding_rules table
 ALTER TABLE `port_forwarding_rules`
 ADD COLUMN `external_id` varchar(255) COMMENT 'Vendor-specific rule ID on VNF device',
+ADD COLUMN `fingerprint` varchar(64) COMMENT 'Canonical rule fingerprint for drift detection (mask:hash)',
 ADD COLUMN `external_metadata` TEXT COMMENT 'Additional vendor-specific metadata (JSON)';
 
 -- Extend load_balancing_rules table (if VNF supports LB)
 ALTER TABLE `load_balancing_rules`
 ADD COLUMN `external_id` varchar(255) COMMENT 'Vendor-specific rule ID on VNF device',
+ADD COLUMN `fingerprint` varchar(64) COMMENT 'Canonical rule fingerprint for drift detection (mask:hash)',
 ADD COLUMN `external_metadata` TEXT COMMENT 'Additional vendor-specific metadata (JSON)';
 
 -- =====================================================
 -- 4. Reconciliation History
 -- =====================================================
--- Tracks reconciliation runs and detected drift
+-- Tracks reconciliation runs and detected drift. The revision and digest of
+-- the latest Success row without drift let the next run skip listing:
+--   SELECT device_revision, rules_digest FROM vnf_reconciliation_log
+--   WHERE vnf_appliance_id = ? AND status = 'Success' AND drift_detected = 0
+--   ORDER BY id DESC LIMIT 1
 CREATE TABLE IF NOT EXISTS `vnf_reconciliation_log` (
   `id` bigint unsigned NOT NULL AUTO_INCREMENT,
   `uuid` varchar(40) UNIQUE,
@@ -104,9 +114,13 @@ CREATE TABLE IF NOT EXISTS `vnf_reconciliation_log` (
   `drift_detected` tinyint(1) DEFAULT 0 COMMENT 'Whether drift was detected',
   `error_message` TEXT COMMENT 'Error message if failed',
   `details` MEDIUMTEXT COMMENT 'Detailed reconciliation results (JSON)',
+  `device_revision` varchar(128) COMMENT 'Device config revision/ETag read before listing',
+  `rules_digest` varchar(40) COMMENT 'Digest of the CloudStack rules compared',
+  `unchanged` tinyint(1) DEFAULT 0 COMMENT 'Listing skipped: revision and rules as last clean run',
   PRIMARY KEY (`id`),
   KEY `idx_reconciliation_network` (`network_id`),
   KEY `idx_reconciliation_timestamp` (`started`),
+  KEY `idx_reconciliation_vnf_clean` (`vnf_appliance_id`, `status`, `drift_detected`, `id`),
   CONSTRAINT `fk_reconciliation_network_id` FOREIGN KEY (`network_id`) REFERENCES `networks` (`id`) ON DELETE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
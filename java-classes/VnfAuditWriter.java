@@ -0,0 +1,313 @@
+// =====================================================
+// VNF Audit Writer - Batched vnf_broker_audit Inserts
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Takes broker audit rows off the request path (VNF_BROKER_AUDIT_*).
+ *
+ * submit() puts a record in a fixed-size ring buffer and returns; one
+ * writer task drains the ring and inserts up to batchSize rows at a time
+ * with VnfBrokerAuditDao, as soon as a batch is full or flushMillis after
+ * the last insert, whichever comes first.
+ *
+ * When the ring is full the overflow policy decides:
+ * - BLOCK: the caller waits up to blockMillis for room, then the record is
+ *   dropped. The only policy that can delay a request.
+ * - DROP_OLDEST: the oldest queued record makes room.
+ * - SAMPLE: from half full on, only one in sampleRate successful calls is
+ *   kept (failures always are); a full ring drops its oldest record.
+ *
+ * When a batch insert fails its rows are inserted one at a time, so one
+ * bad row does not take the rest of the batch with it; only the rows that
+ * fail again are counted as lost. The DAO is expected to retry transient
+ * errors itself.
+ */
+public class VnfAuditWriter implements AutoCloseable {
+
+    public enum OverflowPolicy { BLOCK, DROP_OLDEST, SAMPLE }
+
+    public static final int DEFAULT_CAPACITY = 65_536;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_FLUSH_MILLIS = 1000;
+    public static final long DEFAULT_BLOCK_MILLIS = 50;
+    public static final int DEFAULT_SAMPLE_RATE = 10;
+
+    private final VnfBrokerAuditDao dao;
+    private final Executor executor;
+    private final OverflowPolicy policy;
+    private final int batchSize;
+    private final long flushNanos;
+    private long blockNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BLOCK_MILLIS);
+    private int sampleRate = DEFAULT_SAMPLE_RATE;
+
+    // Ring, guarded by lock
+    private final VnfAuditRecord[] ring;
+    private int head;
+    private int count;
+    private long sampleSequence;
+    private boolean closed;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchReady = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private boolean started;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+
+    /**
+     * @param executor   runs the writer task, which lives until close()
+     * @param capacity   VNF_BROKER_AUDIT_QUEUE_CAPACITY
+     * @param batchSize  VNF_BROKER_AUDIT_BATCH_SIZE
+     * @param flushMillis VNF_BROKER_AUDIT_FLUSH_MS
+     * @param policy     VNF_BROKER_AUDIT_OVERFLOW_POLICY
+     */
+    public VnfAuditWriter(VnfBrokerAuditDao dao, Executor executor, int capacity, int batchSize,
+                          long flushMillis, OverflowPolicy policy) {
+        if (capacity <= 0 || batchSize <= 0 || batchSize > capacity || flushMillis <= 0) {
+            throw new IllegalArgumentException("Invalid audit writer: capacity=" + capacity + " batch=" +
+                                               batchSize + " flush=" + flushMillis);
+        }
+        this.dao = dao;
+        this.executor = executor;
+        this.policy = policy;
+        this.ring = new VnfAuditRecord[capacity];
+        this.batchSize = batchSize;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+    }
+
+    // Settings; apply before start()
+
+    /**
+     * VNF_BROKER_AUDIT_BLOCK_MS: longest a caller waits under BLOCK
+     */
+    public void setBlockMillis(long blockMillis) {
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+    }
+
+    /**
+     * VNF_BROKER_AUDIT_SAMPLE_RATE: one in sampleRate successes kept under SAMPLE
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sampleRate must be positive: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Starts the writer task
+     */
+    public synchronized void start() {
+        if (!started) {
+            started = true;
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Queues a record; false if it was dropped or sampled out
+     */
+    public boolean submit(VnfAuditRecord record) {
+        submitted.increment();
+        lock.lock();
+        try {
+            if (closed) {
+                dropped.increment();
+                return false;
+            }
+            if (policy == OverflowPolicy.SAMPLE && record.isSuccess() && count >= ring.length / 2 &&
+                sampleSequence++ % sampleRate != 0) {
+                sampledOut.increment();
+                return false;
+            }
+            if (count == ring.length && !makeRoom()) {
+                dropped.increment();
+                return false;
+            }
+            ring[(head + count) % ring.length] = record;
+            count++;
+            if (count == batchSize) {
+                batchReady.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting records and waits for the queued ones to be written
+     *
+     * @return false if the writer did not finish within timeoutMillis
+     */
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        boolean wasStarted;
+        synchronized (this) {
+            wasStarted = started;
+            started = true;
+        }
+        lock.lock();
+        try {
+            closed = true;
+            batchReady.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (!wasStarted) {
+            drain();
+        }
+        return drained.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        close(TimeUnit.NANOSECONDS.toMillis(flushNanos) + 30_000);
+    }
+
+    public Map<String, Long> getStats() {
+        long queued;
+        lock.lock();
+        try {
+            queued = count;
+        } finally {
+            lock.unlock();
+        }
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("queued", queued);
+        stats.put("capacity", (long) ring.length);
+        stats.put("submitted", submitted.sum());
+        stats.put("written", written.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("sampledOut", sampledOut.sum());
+        stats.put("blocked", blocked.sum());
+        stats.put("batches", batches.sum());
+        stats.put("writeErrors", writeErrors.sum());
+        stats.put("lost", lost.sum());
+        return stats;
+    }
+
+    /**
+     * Called with the lock held and the ring full
+     */
+    private boolean makeRoom() {
+        if (policy != OverflowPolicy.BLOCK) {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+            dropped.increment();
+            return true;
+        }
+        blocked.increment();
+        long remaining = blockNanos;
+        try {
+            while (count == ring.length && !closed) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !closed;
+    }
+
+    private void drain() {
+        try {
+            List<VnfAuditRecord> batch;
+            while (!(batch = take()).isEmpty() || !isClosed()) {
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+            }
+        } finally {
+            drained.countDown();
+        }
+    }
+
+    /**
+     * Waits for a full batch, the flush interval or close; empty only when
+     * the interval passed with nothing queued or the ring is closed and empty
+     */
+    private List<VnfAuditRecord> take() {
+        lock.lock();
+        try {
+            long remaining = flushNanos;
+            while (count < batchSize && !closed && remaining > 0) {
+                try {
+                    remaining = batchReady.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    // Only close() ends the writer
+                }
+            }
+            int n = Math.min(count, batchSize);
+            List<VnfAuditRecord> batch = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                batch.add(ring[head]);
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+            }
+            count -= n;
+            if (n > 0) {
+                notFull.signalAll();
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(List<VnfAuditRecord> batch) {
+        try {
+            dao.insertBatch(batch);
+            batches.increment();
+            written.add(batch.size());
+            return;
+        } catch (RuntimeException e) {
+            writeErrors.increment();
+        }
+        if (batch.size() == 1) {
+            lost.increment();
+            return;
+        }
+        for (VnfAuditRecord record : batch) {
+            try {
+                dao.insertBatch(Collections.singletonList(record));
+                written.increment();
+            } catch (RuntimeException e) {
+                writeErrors.increment();
+                lost.increment();
+            }
+        }
+    }
+}
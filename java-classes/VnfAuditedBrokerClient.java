@@ -0,0 +1,115 @@
+// =====================================================
+// VNF Audited Broker Client
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Records every device call in vnf_broker_audit (VNF_BROKER_AUDIT_ENABLED)
+ * through a VnfAuditWriter, so the insert never runs on the request path.
+ *
+ * Place it directly above the transport client (VnfHttpBrokerClient):
+ * each attempt the decorators above make is then one row. Transactions
+ * run their steps through this client, one row per step. Health probes
+ * (isReachable) are not audited.
+ */
+public class VnfAuditedBrokerClient implements VnfBrokerClient {
+
+    private final VnfBrokerClient delegate;
+    private final VnfAuditWriter writer;
+
+    public VnfAuditedBrokerClient(VnfBrokerClient delegate, VnfAuditWriter writer) {
+        this.delegate = delegate;
+        this.writer = writer;
+    }
+
+    @Override
+    public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            VnfResponse response = delegate.sendRequest(appliance, request);
+            audit(appliance, request, startMillis, start, response, null);
+            return response;
+        } catch (CommunicationException | RuntimeException e) {
+            audit(appliance, request, startMillis, start, null, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+            throws CommunicationException {
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            VnfResponse response = delegate.sendRequestWithRetry(appliance, request, maxRetries);
+            audit(appliance, request, startMillis, start, response, null);
+            return response;
+        } catch (CommunicationException | RuntimeException e) {
+            audit(appliance, request, startMillis, start, null, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        CompletableFuture<VnfResponse> future = delegate.sendRequestAsync(appliance, request);
+        future.whenComplete((response, error) -> audit(appliance, request, startMillis, start, response, error));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestWithRetryAsync(VnfAppliance appliance, VnfRequest request,
+                                                                    int maxRetries) {
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        CompletableFuture<VnfResponse> future = delegate.sendRequestWithRetryAsync(appliance, request, maxRetries);
+        future.whenComplete((response, error) -> audit(appliance, request, startMillis, start, response, error));
+        return future;
+    }
+
+    /**
+     * Steps go through sendRequest so each one is audited
+     */
+    @Override
+    public VnfTransactionResult executeTransaction(VnfAppliance appliance, VnfTransaction transaction,
+                                                   VnfResponseParser responseParser) {
+        return VnfBrokerClient.super.executeTransaction(appliance, transaction, responseParser);
+    }
+
+    @Override
+    public boolean isReachable(VnfAppliance appliance) {
+        return delegate.isReachable(appliance);
+    }
+
+    @Override
+    public BrokerType getBrokerType() {
+        return delegate.getBrokerType();
+    }
+
+    private void audit(VnfAppliance appliance, VnfRequest request, long startMillis, long start,
+                       VnfResponse response, Throwable error) {
+        long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int status = response != null ? response.getStatusCode() : 0;
+        boolean success = error == null && (response.isSuccess() || (status >= 200 && status < 300));
+        String message = null;
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ?
+                error.getCause() : error;
+            message = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+        }
+        String operation = request.getOperation() != null ? request.getOperation() : request.getMethod();
+        writer.submit(new VnfAuditRecord(appliance.getId(), operation, request.getMethod(), request.getUri(),
+                                         new Date(startMillis), new Date(startMillis + durationMs), status,
+                                         success, message, durationMs));
+    }
+}
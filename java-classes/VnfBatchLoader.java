@@ -0,0 +1,184 @@
+// =====================================================
+// VNF Batch Loader - Set-based Appliance and Rule Loading
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+import com.cloud.network.Network;
+import com.cloud.vm.VirtualMachine;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads appliances with their associations, and the CloudStack rules a
+ * reconciliation compares against, for many networks at once.
+ *
+ * For a chunk of appliances (VNF_RECONCILIATION_BATCH_SIZE during a sweep,
+ * one page for listVnfAppliances) this issues:
+ * - one findActive query for the dictionaries not yet cached
+ * - one query each for the networks and appliance VMs not yet attached
+ * - for rules, one network_id IN (...) query per service
+ * instead of dictionary, network and VM lookups per appliance plus a rule
+ * query per appliance and service.
+ */
+public class VnfBatchLoader {
+
+    private final VnfApplianceDao applianceDao;
+    private final VnfDictionaryManager dictionaryManager;
+    private final VnfRuleInventory inventory;
+    private VnfApplianceAssociationDao associationDao;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder ruleQueries = new LongAdder();
+
+    public VnfBatchLoader(VnfApplianceDao applianceDao, VnfDictionaryManager dictionaryManager,
+                          VnfRuleInventory inventory) {
+        this.applianceDao = applianceDao;
+        this.dictionaryManager = dictionaryManager;
+        this.inventory = inventory;
+    }
+
+    /**
+     * Also attach networks and VMs; without it only dictionaries are attached
+     */
+    public void setAssociationDao(VnfApplianceAssociationDao associationDao) {
+        this.associationDao = associationDao;
+    }
+
+    // Appliances
+
+    /**
+     * One page of listVnfAppliances with associations attached
+     */
+    public List<VnfAppliance> listAppliances(Long networkId, VnfState state, long offset, long limit) {
+        List<VnfAppliance> appliances = applianceDao.search(networkId, state, offset, limit);
+        attach(appliances);
+        return appliances;
+    }
+
+    /**
+     * Appliances of many networks (reconcileVnfNetwork over a set of
+     * networks) with associations attached
+     */
+    public List<VnfAppliance> loadByNetworks(Collection<Long> networkIds) {
+        if (networkIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<VnfAppliance> appliances = applianceDao.listByNetworkIds(networkIds);
+        attach(appliances);
+        return appliances;
+    }
+
+    /**
+     * Attach dictionaries, networks and VMs that are not attached yet
+     */
+    public void attach(List<VnfAppliance> appliances) {
+        List<VnfAppliance> withoutDictionary = new ArrayList<>();
+        Set<Long> networkIds = new HashSet<>();
+        Set<Long> vmIds = new HashSet<>();
+        for (VnfAppliance appliance : appliances) {
+            if (appliance.getDictionary() == null) {
+                withoutDictionary.add(appliance);
+            }
+            if (appliance.getNetwork() == null && appliance.getNetworkId() != null) {
+                networkIds.add(appliance.getNetworkId());
+            }
+            if (appliance.getVmInstance() == null && appliance.getVmInstanceId() != null) {
+                vmIds.add(appliance.getVmInstanceId());
+            }
+        }
+
+        if (!withoutDictionary.isEmpty()) {
+            dictionaryManager.prefetchDictionaries(withoutDictionary);
+            for (VnfAppliance appliance : withoutDictionary) {
+                try {
+                    appliance.setDictionary(dictionaryManager.getDictionary(appliance.getTemplateId(),
+                                                                            appliance.getNetworkId()));
+                } catch (RuntimeException e) {
+                    // Left without a dictionary; the reconciler reports it per appliance
+                }
+            }
+        }
+
+        if (associationDao == null) {
+            return;
+        }
+        Map<Long, Network> networks = networkIds.isEmpty() ?
+            Collections.emptyMap() : associationDao.findNetworks(networkIds);
+        Map<Long, VirtualMachine> vms = vmIds.isEmpty() ?
+            Collections.emptyMap() : associationDao.findVirtualMachines(vmIds);
+        for (VnfAppliance appliance : appliances) {
+            if (appliance.getNetwork() == null && appliance.getNetworkId() != null) {
+                appliance.setNetwork(networks.get(appliance.getNetworkId()));
+            }
+            if (appliance.getVmInstance() == null && appliance.getVmInstanceId() != null) {
+                appliance.setVmInstance(vms.get(appliance.getVmInstanceId()));
+            }
+        }
+    }
+
+    // Reconciliation
+
+    /**
+     * Attach the chunk's associations and load the CloudStack rules of
+     * every service its dictionaries can list
+     */
+    public Batch load(List<VnfAppliance> chunk) {
+        attach(chunk);
+        batches.increment();
+
+        Map<String, Set<Long>> networksByService = new LinkedHashMap<>();
+        for (VnfAppliance appliance : chunk) {
+            VnfDictionary dictionary = appliance.getDictionary();
+            if (dictionary == null || dictionary.getServices() == null || appliance.getNetworkId() == null) {
+                continue;
+            }
+            for (Map.Entry<String, ServiceDefinition> service : dictionary.getServices().entrySet()) {
+                if (service.getValue().getOperation("list") != null) {
+                    networksByService.computeIfAbsent(service.getKey(), k -> new HashSet<>())
+                                     .add(appliance.getNetworkId());
+                }
+            }
+        }
+
+        Batch batch = new Batch();
+        for (Map.Entry<String, Set<Long>> service : networksByService.entrySet()) {
+            Map<Long, List<VnfRuleRecord>> rules = inventory.findRules(service.getKey(), service.getValue());
+            ruleQueries.increment();
+            for (Long networkId : service.getValue()) {
+                List<VnfRuleRecord> records = rules.get(networkId);
+                batch.rules.computeIfAbsent(networkId, k -> new HashMap<>())
+                           .put(service.getKey(), records != null ? records : new ArrayList<>());
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Chunks loaded by load()
+     */
+    public long getBatchCount() { return batches.sum(); }
+
+    /**
+     * Rule queries issued by load(), one per service and chunk
+     */
+    public long getRuleQueryCount() { return ruleQueries.sum(); }
+
+    /**
+     * CloudStack rules of one chunk
+     */
+    public static final class Batch {
+        private final Map<Long, Map<String, List<VnfRuleRecord>>> rules = new HashMap<>();
+
+        /**
+         * Rules of a network by service, or null if the network was not
+         * part of the chunk
+         */
+        public Map<String, List<VnfRuleRecord>> getRules(Long networkId) {
+            return networkId != null ? rules.get(networkId) : null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+// =====================================================
+// VNF Bounded Broker Client
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs the calls of a blocking broker client on a VnfIoExecutor.
+ *
+ * Each send, health probe (isReachable) and transaction counts against the
+ * executor's per-appliance and global limits. Async sends run on their own
+ * (virtual) thread; blocking sends run on the caller's thread, which only
+ * waits for permits. Typically wrapped by VnfPipelinedBrokerClient, which
+ * adds ordering and retries on top.
+ */
+public class VnfBoundedBrokerClient implements VnfBrokerClient {
+
+    private final VnfBrokerClient delegate;
+    private final VnfIoExecutor io;
+
+    public VnfBoundedBrokerClient(VnfBrokerClient delegate, VnfIoExecutor io) {
+        this.delegate = delegate;
+        this.io = io;
+    }
+
+    @Override
+    public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+        return bounded(appliance, () -> delegate.sendRequest(appliance, request));
+    }
+
+    @Override
+    public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+            throws CommunicationException {
+        return bounded(appliance, () -> delegate.sendRequestWithRetry(appliance, request, maxRetries));
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+        return io.submit(appliance, () -> delegate.sendRequest(appliance, request));
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestWithRetryAsync(VnfAppliance appliance, VnfRequest request,
+                                                                    int maxRetries) {
+        return io.submit(appliance, () -> delegate.sendRequestWithRetry(appliance, request, maxRetries));
+    }
+
+    /**
+     * The whole transaction holds one permit, so its steps are not starved
+     * between begin and commit
+     */
+    @Override
+    public VnfTransactionResult executeTransaction(VnfAppliance appliance, VnfTransaction transaction,
+                                                   VnfResponseParser responseParser) {
+        try {
+            return io.call(appliance, () -> delegate.executeTransaction(appliance, transaction, responseParser));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            VnfTransactionResult result = new VnfTransactionResult();
+            result.setFailure(null, "Interrupted while waiting for a device slot");
+            return result;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<VnfTransactionResult> executeTransactionAsync(VnfAppliance appliance,
+                                                                          VnfTransaction transaction,
+                                                                          VnfResponseParser responseParser) {
+        return io.submit(appliance, () -> delegate.executeTransaction(appliance, transaction, responseParser));
+    }
+
+    /**
+     * Health probe within the appliance's limits; a probe that cannot get a
+     * slot because the thread is interrupted reports unreachable
+     */
+    @Override
+    public boolean isReachable(VnfAppliance appliance) {
+        try {
+            return io.call(appliance, () -> delegate.isReachable(appliance));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Override
+    public BrokerType getBrokerType() {
+        return delegate.getBrokerType();
+    }
+
+    private VnfResponse bounded(VnfAppliance appliance, Callable<VnfResponse> call) throws CommunicationException {
+        try {
+            return io.call(appliance, call);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommunicationException("Interrupted while waiting for a device slot", false);
+        } catch (CommunicationException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CommunicationException("Broker request failed: " + e, false);
+        }
+    }
+}
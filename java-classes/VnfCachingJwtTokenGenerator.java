@@ -0,0 +1,213 @@
+// =====================================================
+// VNF Caching JWT Token Generator - Token Reuse per Scope
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reuses broker tokens instead of signing one per request.
+ *
+ * A token is cached per appliance and scope: the operation, the management
+ * IP it is bound to (allowed_target) and the requested lifetime. It is
+ * handed out again until refreshMargin before it expires, so a token that
+ * reaches the broker always has at least that much life left; for short
+ * lifetimes the margin shrinks to half the lifetime. Concurrent misses on
+ * one scope sign once.
+ *
+ * Counters (getStats) show the signing the cache saves: reused tokens, and
+ * signNanosSaved, the reused count times the delegate's mean signing time
+ * when the delegate is a VnfJwtTokenGenerator.
+ *
+ * Validation is passed through to the delegate.
+ */
+public class VnfCachingJwtTokenGenerator implements JwtTokenGenerator {
+
+    public static final int DEFAULT_REFRESH_MARGIN_SECONDS = 30;
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final class Scope {
+        private final String operation;
+        private final String target;
+        private final int expirySeconds;
+
+        Scope(String operation, String target, int expirySeconds) {
+            this.operation = operation;
+            this.target = target;
+            this.expirySeconds = expirySeconds;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Scope)) return false;
+            Scope other = (Scope) o;
+            return expirySeconds == other.expirySeconds && Objects.equals(operation, other.operation) &&
+                   Objects.equals(target, other.target);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(operation, target, expirySeconds);
+        }
+    }
+
+    private static final class Entry {
+        private final String token;
+        private final long refreshAtMillis;
+        private final long expiresAtMillis;
+
+        Entry(String token, long refreshAtMillis, long expiresAtMillis) {
+            this.token = token;
+            this.refreshAtMillis = refreshAtMillis;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final JwtTokenGenerator delegate;
+    private final Clock clock;
+    private final long refreshMarginMillis;
+    private final int maxEntries;
+    private final ConcurrentHashMap<Object, ConcurrentHashMap<Scope, Entry>> tokens = new ConcurrentHashMap<>();
+
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder refreshed = new LongAdder();
+    private final LongAdder uncached = new LongAdder();
+
+    /**
+     * @param refreshMarginSeconds VNF_JWT_CACHE_REFRESH_MARGIN_SECONDS
+     * @param maxEntries VNF_JWT_CACHE_MAX_ENTRIES; past it, expired tokens are
+     *                   purged and new scopes are signed without caching
+     */
+    public VnfCachingJwtTokenGenerator(JwtTokenGenerator delegate, int refreshMarginSeconds, int maxEntries) {
+        this(delegate, refreshMarginSeconds, maxEntries, Clock.systemUTC());
+    }
+
+    public VnfCachingJwtTokenGenerator(JwtTokenGenerator delegate, int refreshMarginSeconds, int maxEntries,
+                                       Clock clock) {
+        if (refreshMarginSeconds < 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException("Invalid JWT cache settings: margin=" + refreshMarginSeconds +
+                                               " maxEntries=" + maxEntries);
+        }
+        this.delegate = delegate;
+        this.clock = clock;
+        this.refreshMarginMillis = refreshMarginSeconds * 1000L;
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public String generateToken(VnfAppliance appliance, String operation, int expirySeconds) {
+        Scope scope = new Scope(operation, appliance.getManagementIp(), expirySeconds);
+        ConcurrentHashMap<Scope, Entry> scopes = tokens.computeIfAbsent(key(appliance), k -> new ConcurrentHashMap<>());
+        long now = clock.millis();
+
+        Entry cached = scopes.get(scope);
+        if (cached != null && now < cached.refreshAtMillis) {
+            reused.increment();
+            return cached.token;
+        }
+        if (cached == null && entries.sum() >= maxEntries && purgeExpired(now) == 0) {
+            uncached.increment();
+            issued.increment();
+            return delegate.generateToken(appliance, operation, expirySeconds);
+        }
+
+        boolean[] signedHere = new boolean[1];
+        Entry entry = scopes.compute(scope, (s, current) -> {
+            if (current != null && now < current.refreshAtMillis) {
+                return current;
+            }
+            if (current == null) {
+                entries.increment();
+            } else {
+                refreshed.increment();
+            }
+            signedHere[0] = true;
+            return sign(appliance, operation, expirySeconds, now);
+        });
+        if (signedHere[0]) {
+            issued.increment();
+        } else {
+            reused.increment();
+        }
+        return entry.token;
+    }
+
+    @Override
+    public boolean validateToken(String token) {
+        return delegate.validateToken(token);
+    }
+
+    /**
+     * Drops an appliance's tokens, e.g. when it is destroyed or its secret rotates
+     */
+    public void removeAppliance(VnfAppliance appliance) {
+        ConcurrentHashMap<Scope, Entry> scopes = tokens.remove(key(appliance));
+        if (scopes != null) {
+            entries.add(-scopes.size());
+        }
+    }
+
+    /**
+     * Drops every cached token, e.g. after the signing secret rotates
+     */
+    public void clear() {
+        for (Object key : tokens.keySet()) {
+            ConcurrentHashMap<Scope, Entry> scopes = tokens.remove(key);
+            if (scopes != null) {
+                entries.add(-scopes.size());
+            }
+        }
+    }
+
+    public Map<String, Long> getStats() {
+        long reuses = reused.sum();
+        long saved = 0;
+        if (delegate instanceof VnfJwtTokenGenerator) {
+            Map<String, Long> signer = ((VnfJwtTokenGenerator) delegate).getStats();
+            long count = signer.get("signed");
+            saved = count == 0 ? 0 : signer.get("signNanos") / count * reuses;
+        }
+        return Map.of(
+            "entries", entries.sum(),
+            "issued", issued.sum(),
+            "reused", reuses,
+            "refreshed", refreshed.sum(),
+            "uncached", uncached.sum(),
+            "signNanosSaved", saved);
+    }
+
+    private Entry sign(VnfAppliance appliance, String operation, int expirySeconds, long now) {
+        String token = delegate.generateToken(appliance, operation, expirySeconds);
+        // The signer truncates iat to whole seconds, so exp is never earlier than this
+        long expiresAt = (now / 1000 + expirySeconds) * 1000L;
+        long margin = Math.min(refreshMarginMillis, expirySeconds * 500L);
+        return new Entry(token, expiresAt - margin, expiresAt);
+    }
+
+    private int purgeExpired(long now) {
+        int purged = 0;
+        for (ConcurrentHashMap<Scope, Entry> scopes : tokens.values()) {
+            for (Map.Entry<Scope, Entry> cached : scopes.entrySet()) {
+                if (cached.getValue().expiresAtMillis <= now && scopes.remove(cached.getKey(), cached.getValue())) {
+                    entries.decrement();
+                    purged++;
+                }
+            }
+        }
+        return purged;
+    }
+
+    private static Object key(VnfAppliance appliance) {
+        return appliance.getId() != null ? appliance.getId() : appliance.getManagementIp();
+    }
+}
@@ -0,0 +1,335 @@
+// =====================================================
+// VNF Dictionary Cache
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+/**
+ * Bounded, concurrent cache of parsed dictionaries.
+ *
+ * Two levels:
+ *   (templateId, networkId) -> dictionary view carrying the row identity
+ *   SHA-256(yaml_content)   -> parsed dictionary structure
+ *
+ * Views for different templates/networks with identical YAML share one
+ * parsed structure, so a dictionary used by hundreds of networks is parsed
+ * once. Both levels are ConcurrentHashMaps: lookups take no lock and only
+ * stamp the entry with an access tick. Inserts beyond the bound evict the
+ * entry with the oldest tick, found by a scan under the level's monitor;
+ * inserts follow a database load and a parse, so the scan is not on the
+ * read path. Ticks written by concurrent lookups during the scan make the
+ * order approximate.
+ *
+ * Every invalidation advances a generation. A loader reads generation()
+ * before querying vnf_dictionaries and passes it to put(), which does not
+ * cache the row if an invalidation happened in between, so a load racing
+ * storeDictionary cannot put the old dictionary back.
+ */
+public class VnfDictionaryCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 2048;
+
+    /**
+     * Parse function used on a content-hash miss
+     */
+    @FunctionalInterface
+    public interface Parser {
+        VnfDictionary parse(String yaml) throws DictionaryParseException;
+    }
+
+    private final Lru<DictionaryKey> byKey;
+    private final Lru<String> byHash;
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder sharedParses = new LongAdder();
+    private final LongAdder stalePuts = new LongAdder();
+
+    public VnfDictionaryCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public VnfDictionaryCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.byKey = new Lru<>(maxEntries);
+        this.byHash = new Lru<>(maxEntries);
+    }
+
+    /**
+     * Cached dictionary for a template/network pair, or null on miss
+     */
+    public VnfDictionary get(Long templateId, Long networkId) {
+        VnfDictionary dictionary = byKey.lookup(new DictionaryKey(templateId, networkId));
+        if (dictionary == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return dictionary;
+    }
+
+    /**
+     * Whether a dictionary is cached for the pair, without counting a hit
+     * or miss or refreshing its recency; for callers that only decide what
+     * to load, like prefetchDictionaries
+     */
+    public boolean contains(Long templateId, Long networkId) {
+        return byKey.containsKey(new DictionaryKey(templateId, networkId));
+    }
+
+    /**
+     * Current invalidation generation; read it before loading a row to put
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * put() for a row loaded after the last invalidation
+     */
+    public VnfDictionary put(Long templateId, Long networkId, VnfDictionary row, Parser parser)
+            throws DictionaryParseException {
+        return put(templateId, networkId, row, generation(), parser);
+    }
+
+    /**
+     * Cache a dictionary row loaded from vnf_dictionaries under the given key.
+     * The YAML is parsed only if no cached dictionary has the same content hash.
+     *
+     * @param loadedAt generation() read before the row was queried; if the
+     *                 cache was invalidated since, the row is returned but
+     *                 not cached
+     * @return a view of the row sharing the parsed structure
+     */
+    public VnfDictionary put(Long templateId, Long networkId, VnfDictionary row, long loadedAt, Parser parser)
+            throws DictionaryParseException {
+
+        String hash = contentHash(row.getYamlContent());
+
+        VnfDictionary parsed = byHash.lookup(hash);
+        if (parsed == null) {
+            VnfDictionary dictionary = parser.parse(row.getYamlContent());
+            parses.increment();
+            parsed = byHash.putIfAbsent(hash, dictionary);
+        } else {
+            sharedParses.increment();
+        }
+
+        row.shareParsedStructure(parsed);
+
+        DictionaryKey key = new DictionaryKey(templateId, networkId);
+        synchronized (byKey) {
+            // Checked under the lock invalidations take, so none can slip in between
+            if (generation.get() != loadedAt) {
+                stalePuts.increment();
+                return row;
+            }
+            byKey.put(key, row);
+        }
+        return row;
+    }
+
+    /**
+     * Drop every cached view resolved for this template or this network.
+     * A network override changes what (anyTemplate, networkId) resolves to,
+     * and a template dictionary change affects (templateId, anyNetwork).
+     * Parsed structures stay until evicted since other keys may share them.
+     */
+    public void invalidate(Long templateId, Long networkId) {
+        synchronized (byKey) {
+            generation.incrementAndGet();
+            byKey.removeIf((k, d) ->
+                (templateId != null && templateId.equals(k.templateId)) ||
+                (networkId != null && networkId.equals(k.networkId)));
+        }
+    }
+
+    /**
+     * Drop every cached view that was built from the dictionary with this uuid
+     */
+    public void invalidateUuid(String uuid) {
+        if (uuid == null) {
+            return;
+        }
+        synchronized (byKey) {
+            generation.incrementAndGet();
+            byKey.removeIf((k, d) -> uuid.equals(d.getUuid()));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (byKey) {
+            generation.incrementAndGet();
+            byKey.clear();
+        }
+        synchronized (byHash) {
+            byHash.clear();
+        }
+    }
+
+    /**
+     * Hex SHA-256 of the YAML content
+     */
+    public static String contentHash(String yaml) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(yaml.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // Counters
+    public long getHitCount() { return hits.sum(); }
+    public long getMissCount() { return misses.sum(); }
+    public long getEvictionCount() { return evictions.sum(); }
+
+    /** YAML documents actually parsed */
+    public long getParseCount() { return parses.sum(); }
+
+    /** Loads served by an already parsed dictionary with the same content hash */
+    public long getSharedParseCount() { return sharedParses.sum(); }
+
+    /** Loaded rows not cached because an invalidation raced the load */
+    public long getStalePutCount() { return stalePuts.sum(); }
+
+    public int size() {
+        return byKey.size();
+    }
+
+    public int parsedSize() {
+        return byHash.size();
+    }
+
+    /**
+     * Cache key: the (template_id, network_id) pair of vnf_dictionaries
+     */
+    private static final class DictionaryKey {
+        private final Long templateId;
+        private final Long networkId;
+
+        DictionaryKey(Long templateId, Long networkId) {
+            this.templateId = templateId;
+            this.networkId = networkId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DictionaryKey)) return false;
+            DictionaryKey other = (DictionaryKey) o;
+            return Objects.equals(templateId, other.templateId) &&
+                   Objects.equals(networkId, other.networkId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(templateId) + Objects.hashCode(networkId);
+        }
+    }
+
+    /**
+     * Bounded map with lock-free lookups. Writers hold its monitor, so the
+     * size check and the eviction scan see no concurrent insert.
+     */
+    private final class Lru<K> {
+        private final ConcurrentHashMap<K, Entry> map;
+        private final AtomicLong clock = new AtomicLong();
+        private final int maxEntries;
+
+        Lru(int maxEntries) {
+            this.map = new ConcurrentHashMap<>(Math.min(maxEntries, 1024));
+            this.maxEntries = maxEntries;
+        }
+
+        VnfDictionary lookup(K key) {
+            Entry entry = map.get(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.lastAccess = clock.incrementAndGet();
+            return entry.value;
+        }
+
+        boolean containsKey(K key) {
+            return map.containsKey(key);
+        }
+
+        synchronized void put(K key, VnfDictionary value) {
+            map.put(key, new Entry(value, clock.incrementAndGet()));
+            evictOverflow();
+        }
+
+        synchronized VnfDictionary putIfAbsent(K key, VnfDictionary value) {
+            Entry existing = map.get(key);
+            if (existing != null) {
+                return existing.value;
+            }
+            map.put(key, new Entry(value, clock.incrementAndGet()));
+            evictOverflow();
+            return value;
+        }
+
+        synchronized void removeIf(BiPredicate<K, VnfDictionary> filter) {
+            map.entrySet().removeIf(e -> filter.test(e.getKey(), e.getValue().value));
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+
+        int size() {
+            return map.size();
+        }
+
+        private void evictOverflow() {
+            while (map.size() > maxEntries) {
+                K eldest = null;
+                long oldest = Long.MAX_VALUE;
+                for (Map.Entry<K, Entry> e : map.entrySet()) {
+                    if (e.getValue().lastAccess < oldest) {
+                        oldest = e.getValue().lastAccess;
+                        eldest = e.getKey();
+                    }
+                }
+                if (eldest == null || map.remove(eldest) == null) {
+                    return;
+                }
+                evictions.increment();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final VnfDictionary value;
+        volatile long lastAccess;
+
+        Entry(VnfDictionary value, long lastAccess) {
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
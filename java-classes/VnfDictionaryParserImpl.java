@@ -10,7 +10,7 @@ import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.error.YAMLException;
 
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Implementation of VNF Dictionary Parser
@@ -18,9 +18,50 @@ import java.util.regex.*;
  */
 public class VnfDictionaryParserImpl implements VnfDictionaryManager {
     
-    private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("\\$\\{([^}]+)\\}");
     private static final Set<String> REQUIRED_SECTIONS = Set.of("services");
     private static final Set<String> COMMON_OPERATIONS = Set.of("create", "delete", "list");
+    private static final Set<String> PROTOCOLS = Set.of("http", "https", "ssh", "telnet");
+    private static final Set<String> HTTP_METHODS = Set.of("GET", "POST", "PUT", "DELETE", "PATCH");
+    
+    // Known CloudStack placeholders for various operations
+    private static final Set<String> KNOWN_PLACEHOLDERS = Set.of(
+        // Common
+        "ruleId", "externalId", "networkId",
+        
+        // Firewall
+        "sourceCidr", "destCidr", "protocol", "startPort", "endPort",
+        "publicPort", "icmpType", "icmpCode", "action",
+        
+        // NAT / Port Forwarding
+        "sourceIp", "publicIp", "destIp", "privateIp", "privatePort",
+        
+        // Load Balancer
+        "lbName", "algorithm", "vipId", "vipIp", "memberIp", "memberPort",
+        
+        // VPN
+        "remoteSubnet", "localSubnet", "sharedSecret", "ikePolicy", "ipsecPolicy",
+        
+        // References to secrets
+        "username", "password", "apiKey", "token"
+    );
+    
+    private final VnfDictionaryDao dictionaryDao;
+    private final VnfDictionaryCache dictionaryCache;
+    
+    private final LongAdder snapshotLoads = new LongAdder();
+    private final LongAdder snapshotFallbacks = new LongAdder();
+    
+    /**
+     * Parser/validator only; database operations are unavailable
+     */
+    public VnfDictionaryParserImpl() {
+        this(null, new VnfDictionaryCache());
+    }
+    
+    public VnfDictionaryParserImpl(VnfDictionaryDao dictionaryDao, VnfDictionaryCache dictionaryCache) {
+        this.dictionaryDao = dictionaryDao;
+        this.dictionaryCache = dictionaryCache;
+    }
     
     @Override
     public VnfDictionary parseDictionary(String yaml) throws DictionaryParseException {
@@ -64,6 +105,22 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
             );
             dictionary.setServices(services);
             
+            // Transaction commands (optional)
+            if (root.containsKey("transaction")) {
+                dictionary.setTransaction(parseTransaction(
+                    (Map<String, Object>) root.get("transaction"), services
+                ));
+            }
+            
+            // Configuration revision probe (optional)
+            if (root.containsKey("revision")) {
+                dictionary.setRevision(parseRevision(
+                    (Map<String, Object>) root.get("revision"), services
+                ));
+            }
+            
+            // Read-only from here on, with indexed service/operation lookup
+            dictionary.freeze();
             return dictionary;
             
         } catch (YAMLException e) {
@@ -92,6 +149,13 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
         config.setTokenRef(getStringValue(accessMap, "tokenRef", null));
         config.setTokenHeader(getStringValue(accessMap, "tokenHeader", "Authorization"));
         
+        // Vendor request rate limit (optional); 0 = global default
+        if (accessMap.containsKey("rateLimit")) {
+            Map<String, Object> rateMap = (Map<String, Object>) accessMap.get("rateLimit");
+            config.setRateLimitPerMinute(getIntValue(rateMap, "perMinute", 0));
+            config.setRateLimitBurst(getIntValue(rateMap, "burst", 0));
+        }
+        
         return config;
     }
     
@@ -122,7 +186,8 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
     /**
      * Parse operations within a service
      */
-    private Map<String, OperationDefinition> parseOperations(Map<String, Object> serviceMap) {
+    private Map<String, OperationDefinition> parseOperations(Map<String, Object> serviceMap) 
+            throws DictionaryParseException {
         Map<String, OperationDefinition> operations = new HashMap<>();
         
         for (Map.Entry<String, Object> entry : serviceMap.entrySet()) {
@@ -152,9 +217,33 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
                 operation.setResponseMapping(mapping);
             }
             
+            // Pagination (list operations)
+            if (opMap.containsKey("pagination")) {
+                operation.setPagination(parsePagination(
+                    (Map<String, Object>) opMap.get("pagination")
+                ));
+            }
+            
+            // Bulk operations (bulkCreate/bulkDelete)
+            operation.setItemTemplate(getStringValue(opMap, "itemTemplate", null));
+            operation.setItemSeparator(getStringValue(opMap, "itemSeparator", ","));
+            int maxItems = getIntValue(opMap, "maxItems", 0);
+            if (maxItems < 0) {
+                throw new DictionaryParseException("Invalid maxItems for operation '" + opName + "': " + maxItems);
+            }
+            operation.setMaxItems(maxItems);
+            
             // CLI specific
             operation.setSuccessPattern(getStringValue(opMap, "successPattern", null));
             
+            // Retries: reads by default, writes only when declared safe to resend
+            if (opMap.containsKey("idempotent")) {
+                operation.setIdempotent(Boolean.valueOf(opMap.get("idempotent").toString()));
+            }
+
+            // Pre-split endpoint/body/headers so requests never re-scan them
+            operation.compileTemplates();
+
             operations.put(opName, operation);
         }
         
@@ -164,7 +253,8 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
     /**
      * Parse response mapping configuration
      */
-    private ResponseMapping parseResponseMapping(Map<String, Object> mappingMap) {
+    private ResponseMapping parseResponseMapping(Map<String, Object> mappingMap) 
+            throws DictionaryParseException {
         ResponseMapping mapping = new ResponseMapping();
         
         mapping.setSuccessCode(getIntValue(mappingMap, "successCode", 200));
@@ -181,11 +271,152 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
             mapping.setItemPaths(itemPaths);
         }
         
+        // XML/CLI success marker may also live in the mapping (PAN-OS)
+        mapping.setSuccessPattern(getStringValue(mappingMap, "successPattern", null));
+        
+        // Compile JSONPaths once so response parsing never re-interprets them
+        try {
+            mapping.compilePaths();
+        } catch (IllegalArgumentException e) {
+            throw new DictionaryParseException("Invalid response mapping path: " + e.getMessage());
+        }
+        
         return mapping;
     }
     
+    /**
+     * Parse pagination configuration of a list operation
+     */
+    private PaginationConfig parsePagination(Map<String, Object> pagingMap)
+            throws DictionaryParseException {
+        PaginationConfig pagination = new PaginationConfig();
+        
+        String type = getStringValue(pagingMap, "type", "offset");
+        try {
+            pagination.setType(PaginationConfig.Type.valueOf(type.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new DictionaryParseException("Unknown pagination type: " + type);
+        }
+        
+        int pageSize = getIntValue(pagingMap, "pageSize", 500);
+        if (pageSize <= 0) {
+            throw new DictionaryParseException("Invalid pagination pageSize: " + pageSize);
+        }
+        pagination.setPageSize(pageSize);
+        pagination.setLimitParam(getStringValue(pagingMap, "limitParam", "limit"));
+        pagination.setOffsetParam(getStringValue(pagingMap, "offsetParam", "offset"));
+        pagination.setCursorParam(getStringValue(pagingMap, "cursorParam", "cursor"));
+        
+        String cursorPath = getStringValue(pagingMap, "nextCursorPath", null);
+        if (pagination.getType() == PaginationConfig.Type.CURSOR) {
+            if (cursorPath == null) {
+                throw new DictionaryParseException("Cursor pagination requires nextCursorPath");
+            }
+            try {
+                pagination.setNextCursorPath(JsonPath.compile(cursorPath));
+            } catch (IllegalArgumentException e) {
+                throw new DictionaryParseException("Invalid pagination path: " + e.getMessage());
+            }
+        }
+        
+        return pagination;
+    }
+    
+    /**
+     * Parse the transaction section; every entry must name an operation
+     * defined in the services section
+     */
+    private TransactionConfig parseTransaction(Map<String, Object> txMap,
+                                               Map<String, ServiceDefinition> services)
+            throws DictionaryParseException {
+        TransactionConfig transaction = new TransactionConfig();
+        
+        String mode = getStringValue(txMap, "mode", "requests");
+        try {
+            transaction.setMode(TransactionConfig.Mode.valueOf(mode.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new DictionaryParseException("Unknown transaction mode: " + mode);
+        }
+        
+        transaction.setBeginOperation(getStringValue(txMap, "begin", null));
+        transaction.setCommitOperation(getStringValue(txMap, "commit", null));
+        transaction.setRollbackOperation(getStringValue(txMap, "rollback", null));
+        
+        if (transaction.getCommitOperation() == null) {
+            throw new DictionaryParseException("Transaction section requires a commit operation");
+        }
+        // A rollback would run in a new CLI session that never saw the changes
+        if (transaction.isScript() && transaction.getRollbackOperation() != null) {
+            throw new DictionaryParseException(
+                "Script transactions stop at the first failing command and cannot declare a rollback");
+        }
+        for (String ref : Arrays.asList(transaction.getBeginOperation(),
+                                        transaction.getCommitOperation(),
+                                        transaction.getRollbackOperation())) {
+            if (ref != null && resolveOperation(services, ref) == null) {
+                throw new DictionaryParseException("Transaction refers to unknown operation '" + ref + "'");
+            }
+        }
+        
+        return transaction;
+    }
+    
+    /**
+     * Parse the revision section: an operation defined in the services
+     * section and exactly one of path, header or pattern
+     */
+    private RevisionConfig parseRevision(Map<String, Object> revisionMap,
+                                         Map<String, ServiceDefinition> services)
+            throws DictionaryParseException {
+        RevisionConfig revision = new RevisionConfig();
+        revision.setOperation(getStringValue(revisionMap, "operation", null));
+        revision.setPath(getStringValue(revisionMap, "path", null));
+        revision.setHeader(getStringValue(revisionMap, "header", null));
+        revision.setPattern(getStringValue(revisionMap, "pattern", null));
+        
+        if (revision.getOperation() == null) {
+            throw new DictionaryParseException("Revision section requires an operation");
+        }
+        if (resolveOperation(services, revision.getOperation()) == null) {
+            throw new DictionaryParseException("Revision refers to unknown operation '" +
+                                               revision.getOperation() + "'");
+        }
+        int sources = (revision.getPath() != null ? 1 : 0) + (revision.getHeader() != null ? 1 : 0) +
+                      (revision.getPattern() != null ? 1 : 0);
+        if (sources != 1) {
+            throw new DictionaryParseException("Revision section requires exactly one of path, header or pattern");
+        }
+        
+        try {
+            revision.compile();
+        } catch (IllegalArgumentException e) {
+            // PatternSyntaxException is an IllegalArgumentException
+            throw new DictionaryParseException("Invalid revision path or pattern: " + e.getMessage());
+        }
+        return revision;
+    }
+    
+    /**
+     * Resolve a "Service.operation" reference
+     */
+    static OperationDefinition resolveOperation(Map<String, ServiceDefinition> services, String ref) {
+        int dot = ref.indexOf('.');
+        if (dot <= 0 || services == null) {
+            return null;
+        }
+        ServiceDefinition service = services.get(ref.substring(0, dot));
+        return service != null ? service.getOperation(ref.substring(dot + 1)) : null;
+    }
+    
+    /**
+     * Frozen dictionaries are validated once; later calls return the same
+     * read-only result
+     */
     @Override
     public DictionaryValidationResult validateDictionary(VnfDictionary dictionary) {
+        if (dictionary.isFrozen() && dictionary.getValidationResult() != null) {
+            return dictionary.getValidationResult();
+        }
         DictionaryValidationResult result = new DictionaryValidationResult();
         
         // Check version
@@ -210,6 +441,23 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
             validateServices(dictionary.getServices(), result);
         }
         
+        // Script transactions join CLI commands; HTTP operations can't be joined
+        TransactionConfig transaction = dictionary.getTransaction();
+        if (transaction != null && transaction.isScript()) {
+            for (String ref : Arrays.asList(transaction.getBeginOperation(),
+                                            transaction.getCommitOperation(),
+                                            transaction.getRollbackOperation())) {
+                OperationDefinition op = dictionary.getOperation(ref);
+                if (op != null && !"SSH".equalsIgnoreCase(op.getMethod()) && !"CLI".equalsIgnoreCase(op.getMethod())) {
+                    result.addError("Transaction operation '" + ref + "' must be SSH/CLI in script mode");
+                }
+            }
+        }
+        
+        if (dictionary.isFrozen()) {
+            result = result.toUnmodifiable();
+            dictionary.setValidationResult(result);
+        }
         return result;
     }
     
@@ -221,7 +469,7 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
             result.addError("Access protocol not specified");
         } else {
             String protocol = config.getProtocol().toLowerCase();
-            if (!Set.of("http", "https", "ssh", "telnet").contains(protocol)) {
+            if (!PROTOCOLS.contains(protocol)) {
                 result.addError("Unknown protocol: " + protocol);
             }
         }
@@ -240,6 +488,11 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
         if (authType == AuthType.TOKEN && config.getTokenRef() == null) {
             result.addWarning("TOKEN auth configured but missing token reference");
         }
+        
+        if (config.getRateLimitPerMinute() < 0 || config.getRateLimitBurst() < 0) {
+            result.addError("Invalid rate limit: " + config.getRateLimitPerMinute() + "/min, burst " +
+                            config.getRateLimitBurst());
+        }
     }
     
     /**
@@ -307,7 +560,7 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
             }
             
             // Check HTTP method validity
-            if (!Set.of("GET", "POST", "PUT", "DELETE", "PATCH").contains(method)) {
+            if (!HTTP_METHODS.contains(method)) {
                 result.addWarning("Service '" + serviceName + "', operation '" + opName + 
                                   "': unusual HTTP method '" + method + "'");
             }
@@ -320,83 +573,56 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
             }
         }
         
-        // Check for placeholders
-        Set<String> placeholders = extractPlaceholders(op);
-        if (!placeholders.isEmpty()) {
-            // Validate placeholder names (could check against known CloudStack fields)
-            for (String placeholder : placeholders) {
-                if (!isValidPlaceholder(placeholder)) {
-                    result.addWarning("Service '" + serviceName + "', operation '" + opName + 
-                                      "': unknown placeholder '${" + placeholder + "}'");
-                }
+        // Bulk operations need a per-rule fragment and somewhere to put it
+        if (opName.startsWith("bulk") || op.getItemTemplate() != null) {
+            String items = "${" + OperationDefinition.BULK_ITEMS + "}";
+            if (op.getItemTemplate() == null || op.getItemTemplate().isEmpty()) {
+                result.addError("Service '" + serviceName + "', operation '" + opName + 
+                                "': bulk operation without itemTemplate");
+            } else if (!(op.getEndpoint() != null && op.getEndpoint().contains(items)) &&
+                       !(op.getBody() != null && op.getBody().contains(items))) {
+                result.addError("Service '" + serviceName + "', operation '" + opName + 
+                                "': bulk operation must use " + items + " in endpoint or body");
+            }
+        }
+        
+        // Check placeholder names against the known CloudStack fields
+        for (String placeholder : extractPlaceholders(op)) {
+            if (!placeholder.equals(OperationDefinition.BULK_ITEMS) && !isValidPlaceholder(placeholder)) {
+                result.addWarning("Service '" + serviceName + "', operation '" + opName + 
+                                  "': unknown placeholder '${" + placeholder + "}'");
             }
         }
     }
     
     /**
-     * Extract all placeholders from an operation
+     * Placeholders of an operation, collected when its templates were
+     * compiled. Operations built by hand are scanned without compiling
+     * them, since validation must not modify an operation it may share.
      */
     private Set<String> extractPlaceholders(OperationDefinition op) {
-        Set<String> placeholders = new HashSet<>();
-        
-        if (op.getEndpoint() != null) {
-            placeholders.addAll(findPlaceholders(op.getEndpoint()));
-        }
-        
-        if (op.getBody() != null) {
-            placeholders.addAll(findPlaceholders(op.getBody()));
+        if (op.getCompiledEndpoint() != null || op.getCompiledBody() != null) {
+            return op.getPlaceholders();
         }
-        
+        List<String> templates = new ArrayList<>(Arrays.asList(op.getEndpoint(), op.getBody(), op.getItemTemplate()));
         if (op.getHeaders() != null) {
-            for (String headerValue : op.getHeaders().values()) {
-                placeholders.addAll(findPlaceholders(headerValue));
-            }
+            templates.addAll(op.getHeaders().values());
         }
-        
-        return placeholders;
-    }
-    
-    /**
-     * Find all ${...} placeholders in a string
-     */
-    private Set<String> findPlaceholders(String text) {
-        Set<String> placeholders = new HashSet<>();
-        Matcher matcher = PLACEHOLDER_PATTERN.matcher(text);
-        
-        while (matcher.find()) {
-            placeholders.add(matcher.group(1));
+        Set<String> names = new LinkedHashSet<>();
+        for (String template : templates) {
+            CompiledTemplate compiled = CompiledTemplate.compile(template);
+            if (compiled != null) {
+                names.addAll(compiled.getVariables());
+            }
         }
-        
-        return placeholders;
+        return names;
     }
     
     /**
      * Check if placeholder name is valid (known CloudStack field)
      */
     private boolean isValidPlaceholder(String name) {
-        // Known CloudStack placeholders for various operations
-        Set<String> knownPlaceholders = Set.of(
-            // Common
-            "ruleId", "externalId", "networkId",
-            
-            // Firewall
-            "sourceCidr", "destCidr", "protocol", "startPort", "endPort",
-            "publicPort", "icmpType", "icmpCode", "action",
-            
-            // NAT / Port Forwarding
-            "sourceIp", "publicIp", "destIp", "privateIp", "publicPort", "privatePort",
-            
-            // Load Balancer
-            "lbName", "algorithm", "vipId", "memberIp", "memberPort",
-            
-            // VPN
-            "remoteSubnet", "localSubnet", "sharedSecret", "ikePolicy", "ipsecPolicy",
-            
-            // References to secrets
-            "username", "password", "apiKey", "token"
-        );
-        
-        return knownPlaceholders.contains(name);
+        return KNOWN_PLACEHOLDERS.contains(name);
     }
     
     // Helper methods
@@ -420,34 +646,192 @@ public class VnfDictionaryParserImpl implements VnfDictionaryManager {
         }
     }
     
-    // Database operations (stub implementations)
+    // Database operations
+    
+    /**
+     * Stores the YAML together with a binary snapshot of its parsed form
+     * (compiled_snapshot), so loading it after a restart skips the YAML parse.
+     * The YAML is always parsed again: the instance passed in may be a cached
+     * view whose structure no longer matches its YAML. A new row is persisted;
+     * the passed instance, possibly shared by the cache, is left untouched.
+     */
     @Override
     public VnfDictionary storeDictionary(VnfDictionary dictionary, Long templateId, Long networkId)
             throws CloudException {
-        // Implementation would use DAO to persist to vnf_dictionaries table
-        throw new UnsupportedOperationException("Not implemented in this example");
+        requireDao();
+        String yaml = dictionary.getYamlContent();
+        VnfDictionary parsed = parseDictionary(yaml);
+        
+        VnfDictionary row = new VnfDictionary();
+        row.setId(dictionary.getId());
+        row.setUuid(dictionary.getUuid());
+        row.setTemplateId(templateId);
+        row.setNetworkId(networkId);
+        row.setYamlContent(yaml);
+        row.setSchemaVersion(parsed.getSchemaVersion());
+        row.setVendor(parsed.getVendor());
+        row.setProduct(parsed.getProduct());
+        row.setCompiledSnapshot(VnfDictionarySnapshot.write(parsed, VnfDictionaryCache.contentHash(yaml)));
+        
+        VnfDictionary stored = dictionaryDao.persist(row);
+        dictionaryCache.invalidate(templateId, networkId);
+        return stored;
     }
     
+    /**
+     * Network override dictionaries take precedence over the template dictionary.
+     * Results are served from the dictionary cache; the YAML is only parsed
+     * when no cached dictionary has the same content.
+     */
     @Override
     public VnfDictionary getDictionary(Long templateId, Long networkId) {
-        // Implementation would query vnf_dictionaries table
-        throw new UnsupportedOperationException("Not implemented in this example");
+        requireDao();
+        VnfDictionary cached = dictionaryCache.get(templateId, networkId);
+        if (cached != null) {
+            return cached;
+        }
+        
+        long generation = dictionaryCache.generation();
+        VnfDictionary row = null;
+        if (networkId != null) {
+            row = dictionaryDao.findByNetworkId(networkId);
+        }
+        if (row == null && templateId != null) {
+            row = dictionaryDao.findByTemplateId(templateId);
+        }
+        if (row == null) {
+            return null;
+        }
+        
+        try {
+            VnfDictionary stored = row;
+            return dictionaryCache.put(templateId, networkId, row, generation, yaml -> loadStored(stored, yaml));
+        } catch (DictionaryParseException e) {
+            throw new IllegalStateException("Stored dictionary " + row.getUuid() +
+                                            " cannot be parsed: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Resolves the cache misses among the appliances with one findActive
+     * query instead of up to two queries each; rows that fail to load are
+     * left for getDictionary to report
+     */
+    @Override
+    public void prefetchDictionaries(Collection<VnfAppliance> appliances) {
+        requireDao();
+        List<VnfAppliance> missing = new ArrayList<>();
+        Set<Long> templateIds = new HashSet<>();
+        Set<Long> networkIds = new HashSet<>();
+        for (VnfAppliance appliance : appliances) {
+            if (dictionaryCache.contains(appliance.getTemplateId(), appliance.getNetworkId())) {
+                continue;
+            }
+            missing.add(appliance);
+            if (appliance.getTemplateId() != null) {
+                templateIds.add(appliance.getTemplateId());
+            }
+            if (appliance.getNetworkId() != null) {
+                networkIds.add(appliance.getNetworkId());
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        long generation = dictionaryCache.generation();
+        Map<Long, VnfDictionary> byTemplate = new HashMap<>();
+        Map<Long, VnfDictionary> byNetwork = new HashMap<>();
+        for (VnfDictionary row : dictionaryDao.findActive(templateIds, networkIds)) {
+            if (row.getNetworkId() != null) {
+                byNetwork.put(row.getNetworkId(), row);
+            } else if (row.getTemplateId() != null) {
+                byTemplate.put(row.getTemplateId(), row);
+            }
+        }
+
+        for (VnfAppliance appliance : missing) {
+            // Same precedence as getDictionary: network override first
+            VnfDictionary row = appliance.getNetworkId() != null ? byNetwork.get(appliance.getNetworkId()) : null;
+            if (row == null && appliance.getTemplateId() != null) {
+                row = byTemplate.get(appliance.getTemplateId());
+            }
+            if (row == null) {
+                continue;
+            }
+            try {
+                VnfDictionary stored = row;
+                dictionaryCache.put(appliance.getTemplateId(), appliance.getNetworkId(), row, generation,
+                                    yaml -> loadStored(stored, yaml));
+            } catch (DictionaryParseException e) {
+                // getDictionary loads it again and reports the failure
+            }
+        }
+    }
+
+    /**
+     * Parsed form of a stored row: its snapshot when that was built from
+     * the same YAML in the current format, otherwise the YAML, after which
+     * the snapshot is rewritten
+     */
+    private VnfDictionary loadStored(VnfDictionary row, String yaml) throws DictionaryParseException {
+        String hash = VnfDictionaryCache.contentHash(yaml);
+        VnfDictionary restored = VnfDictionarySnapshot.read(row.getCompiledSnapshot(), hash);
+        if (restored != null) {
+            restored.setYamlContent(yaml);
+            snapshotLoads.increment();
+            return restored;
+        }
+        
+        snapshotFallbacks.increment();
+        VnfDictionary parsed = parseDictionary(yaml);
+        if (row.getUuid() != null) {
+            try {
+                dictionaryDao.updateCompiledSnapshot(row.getUuid(), VnfDictionarySnapshot.write(parsed, hash));
+            } catch (RuntimeException e) {
+                // Next load falls back to the YAML again
+            }
+        }
+        return parsed;
     }
     
     @Override
     public boolean deleteDictionary(String uuid) {
-        // Implementation would soft-delete from vnf_dictionaries table
-        throw new UnsupportedOperationException("Not implemented in this example");
+        requireDao();
+        VnfDictionary row = dictionaryDao.findByUuid(uuid);
+        boolean removed = dictionaryDao.remove(uuid);
+        
+        if (row != null) {
+            dictionaryCache.invalidate(row.getTemplateId(), row.getNetworkId());
+        }
+        dictionaryCache.invalidateUuid(uuid);
+        return removed;
+    }
+    
+    public VnfDictionaryCache getDictionaryCache() {
+        return dictionaryCache;
+    }
+    
+    /** Stored dictionaries rebuilt from their compiled snapshot */
+    public long getSnapshotLoadCount() { return snapshotLoads.sum(); }
+    
+    /** Stored dictionaries parsed from YAML because the snapshot was missing or stale */
+    public long getSnapshotFallbackCount() { return snapshotFallbacks.sum(); }
+    
+    private void requireDao() {
+        if (dictionaryDao == null) {
+            throw new UnsupportedOperationException("No dictionary DAO configured");
+        }
     }
 }
 
 /**
- * Template renderer that replaces placeholders with actual values
+ * Template renderer that replaces placeholders with actual values.
+ * Hot paths should render the CompiledTemplate held by OperationDefinition;
+ * the String overloads compile on the fly for ad-hoc templates.
  */
 public class VnfTemplateRenderer {
     
-    private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("\\$\\{([^}]+)\\}");
-    
     /**
      * Render a template string with context variables
      */
@@ -455,35 +839,48 @@ public class VnfTemplateRenderer {
         if (template == null) {
             return null;
         }
-        
-        StringBuffer result = new StringBuffer();
-        Matcher matcher = PLACEHOLDER_PATTERN.matcher(template);
-        
-        while (matcher.find()) {
-            String placeholder = matcher.group(1);
-            Object value = context.get(placeholder);
-            
-            String replacement = value != null ? value.toString() : "";
-            matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+        return CompiledTemplate.compile(template).render(context, TemplateEscaping.NONE);
+    }
+    
+    /**
+     * Render a pre-compiled template with the given escaping
+     */
+    public static String render(CompiledTemplate template, TemplateContext context,
+                                TemplateEscaping escaping) {
+        if (template == null) {
+            return null;
         }
-        
-        matcher.appendTail(result);
-        return result.toString();
+        return template.render(context, escaping);
     }
     
     /**
      * Render and escape for JSON context
      */
     public static String renderJson(String template, TemplateContext context) {
-        String rendered = render(template, context);
-        // Could add JSON escaping here if needed
-        return rendered;
+        if (template == null) {
+            return null;
+        }
+        return CompiledTemplate.compile(template).render(context, TemplateEscaping.JSON);
     }
     
     /**
      * Check if template has all required placeholders filled
      */
     public static boolean hasUnresolvedPlaceholders(String rendered) {
-        return PLACEHOLDER_PATTERN.matcher(rendered).find();
+        if (rendered == null) {
+            return false;
+        }
+        int open = rendered.indexOf("${");
+        while (open >= 0) {
+            int close = rendered.indexOf('}', open + 2);
+            if (close < 0) {
+                return false;
+            }
+            if (close > open + 2) {
+                return true;
+            }
+            open = rendered.indexOf("${", close + 1);
+        }
+        return false;
     }
 }
@@ -0,0 +1,364 @@
+// =====================================================
+// VNF Dictionary Snapshot - Binary Compiled Dictionaries
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Binary form of a parsed dictionary, stored next to the YAML in
+ * vnf_dictionaries.compiled_snapshot so a restarted management server
+ * rebuilds dictionaries without going through SnakeYAML.
+ *
+ * Layout (big-endian):
+ *   int    magic "VNFS"
+ *   short  FORMAT_VERSION
+ *   string SHA-256 of the YAML the snapshot was built from (hex)
+ *   int    payload length
+ *   bytes  payload: metadata, access, services, transaction, revision
+ *   long   CRC32 of the payload
+ *
+ * Strings are an int UTF-8 length (-1 for null) followed by the bytes.
+ * Only the source fields are stored; templates and paths are compiled
+ * again on read, which is cheap next to the YAML parse. A snapshot of
+ * another format version, of other YAML or with a bad checksum reads as
+ * null and the caller falls back to the YAML.
+ */
+public final class VnfDictionarySnapshot {
+
+    public static final int MAGIC = 0x564E4653;  // "VNFS"
+
+    /**
+     * Bump whenever the payload layout or the parsed model changes
+     */
+    public static final short FORMAT_VERSION = 2;
+
+    private VnfDictionarySnapshot() {
+    }
+
+    /**
+     * Serialize a parsed dictionary
+     *
+     * @param contentHash VnfDictionaryCache.contentHash of the YAML it was parsed from
+     */
+    public static byte[] write(VnfDictionary dictionary, String contentHash) {
+        try {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(4096);
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            writePayload(payload, dictionary);
+            payload.flush();
+            byte[] body = payloadBytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(body);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 96);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            writeString(out, contentHash);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeLong(crc.getValue());
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Rebuild a frozen dictionary from a snapshot
+     *
+     * @param contentHash VnfDictionaryCache.contentHash of the current YAML
+     * @return null if the snapshot is missing, stale or corrupt
+     */
+    public static VnfDictionary read(byte[] snapshot, String contentHash) {
+        if (snapshot == null || snapshot.length < 10) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+            if (in.readInt() != MAGIC || in.readShort() != FORMAT_VERSION) {
+                return null;
+            }
+            if (!Objects.equals(readString(in), contentHash)) {
+                return null;
+            }
+            int length = in.readInt();
+            if (length < 0 || length > in.available() - Long.BYTES) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if (in.readLong() != crc.getValue()) {
+                return null;
+            }
+            return readPayload(new DataInputStream(new ByteArrayInputStream(body)));
+        } catch (IOException | RuntimeException e) {
+            // Truncated, or a payload the model no longer accepts
+            return null;
+        }
+    }
+
+    /**
+     * Format version of a snapshot, or -1 if it is not one
+     */
+    public static int formatVersion(byte[] snapshot) {
+        if (snapshot == null || snapshot.length < 6) {
+            return -1;
+        }
+        int magic = ((snapshot[0] & 0xFF) << 24) | ((snapshot[1] & 0xFF) << 16) |
+                    ((snapshot[2] & 0xFF) << 8) | (snapshot[3] & 0xFF);
+        return magic == MAGIC ? (short) (((snapshot[4] & 0xFF) << 8) | (snapshot[5] & 0xFF)) : -1;
+    }
+
+    // Payload
+
+    private static void writePayload(DataOutputStream out, VnfDictionary dictionary) throws IOException {
+        writeString(out, dictionary.getSchemaVersion());
+        writeString(out, dictionary.getVendor());
+        writeString(out, dictionary.getProduct());
+
+        AccessConfig access = dictionary.getAccessConfig();
+        out.writeBoolean(access != null);
+        if (access != null) {
+            writeString(out, access.getProtocol());
+            out.writeInt(access.getPort());
+            writeString(out, access.getBasePath());
+            writeString(out, access.getAuthType() != null ? access.getAuthType().name() : null);
+            writeString(out, access.getUsernameRef());
+            writeString(out, access.getPasswordRef());
+            writeString(out, access.getTokenRef());
+            writeString(out, access.getTokenHeader());
+            out.writeInt(access.getRateLimitPerMinute());
+            out.writeInt(access.getRateLimitBurst());
+        }
+
+        Map<String, ServiceDefinition> services = dictionary.getServices();
+        out.writeInt(services != null ? services.size() : 0);
+        if (services != null) {
+            for (Map.Entry<String, ServiceDefinition> service : services.entrySet()) {
+                writeString(out, service.getKey());
+                Map<String, OperationDefinition> operations = service.getValue().getOperations();
+                out.writeInt(operations != null ? operations.size() : 0);
+                if (operations != null) {
+                    for (Map.Entry<String, OperationDefinition> op : operations.entrySet()) {
+                        writeString(out, op.getKey());
+                        writeOperation(out, op.getValue());
+                    }
+                }
+            }
+        }
+
+        TransactionConfig transaction = dictionary.getTransaction();
+        out.writeBoolean(transaction != null);
+        if (transaction != null) {
+            writeString(out, transaction.getMode().name());
+            writeString(out, transaction.getBeginOperation());
+            writeString(out, transaction.getCommitOperation());
+            writeString(out, transaction.getRollbackOperation());
+        }
+
+        RevisionConfig revision = dictionary.getRevision();
+        out.writeBoolean(revision != null);
+        if (revision != null) {
+            writeString(out, revision.getOperation());
+            writeString(out, revision.getPath());
+            writeString(out, revision.getHeader());
+            writeString(out, revision.getPattern());
+        }
+    }
+
+    private static void writeOperation(DataOutputStream out, OperationDefinition op) throws IOException {
+        writeString(out, op.getMethod());
+        writeString(out, op.getEndpoint());
+        writeString(out, op.getBody());
+        writeMap(out, op.getHeaders());
+        writeString(out, op.getSuccessPattern());
+        writeString(out, op.getItemTemplate());
+        writeString(out, op.getItemSeparator());
+        out.writeInt(op.getMaxItems());
+        out.writeBoolean(op.isIdempotent());
+
+        ResponseMapping mapping = op.getResponseMapping();
+        out.writeBoolean(mapping != null);
+        if (mapping != null) {
+            out.writeInt(mapping.getSuccessCode());
+            writeString(out, mapping.getIdPath());
+            writeString(out, mapping.getListPath());
+            writeMap(out, mapping.getItemPaths());
+            writeString(out, mapping.getSuccessPattern());
+        }
+
+        PaginationConfig pagination = op.getPagination();
+        out.writeBoolean(pagination != null);
+        if (pagination != null) {
+            writeString(out, pagination.getType().name());
+            out.writeInt(pagination.getPageSize());
+            writeString(out, pagination.getLimitParam());
+            writeString(out, pagination.getOffsetParam());
+            writeString(out, pagination.getCursorParam());
+            writeString(out, pagination.getNextCursorPath() != null ?
+                             pagination.getNextCursorPath().getSource() : null);
+        }
+    }
+
+    private static VnfDictionary readPayload(DataInputStream in) throws IOException {
+        VnfDictionary dictionary = new VnfDictionary();
+        dictionary.setSchemaVersion(readString(in));
+        dictionary.setVendor(readString(in));
+        dictionary.setProduct(readString(in));
+
+        if (in.readBoolean()) {
+            AccessConfig access = new AccessConfig();
+            access.setProtocol(readString(in));
+            access.setPort(in.readInt());
+            access.setBasePath(readString(in));
+            String authType = readString(in);
+            access.setAuthType(authType != null ? AuthType.valueOf(authType) : null);
+            access.setUsernameRef(readString(in));
+            access.setPasswordRef(readString(in));
+            access.setTokenRef(readString(in));
+            access.setTokenHeader(readString(in));
+            access.setRateLimitPerMinute(in.readInt());
+            access.setRateLimitBurst(in.readInt());
+            dictionary.setAccessConfig(access);
+        }
+
+        int serviceCount = in.readInt();
+        Map<String, ServiceDefinition> services = new HashMap<>(serviceCount * 2);
+        for (int i = 0; i < serviceCount; i++) {
+            String serviceName = readString(in);
+            int opCount = in.readInt();
+            Map<String, OperationDefinition> operations = new HashMap<>(opCount * 2);
+            for (int j = 0; j < opCount; j++) {
+                String opName = readString(in);
+                operations.put(opName, readOperation(in));
+            }
+            ServiceDefinition service = new ServiceDefinition();
+            service.setName(serviceName);
+            service.setOperations(operations);
+            services.put(serviceName, service);
+        }
+        dictionary.setServices(services);
+
+        if (in.readBoolean()) {
+            TransactionConfig transaction = new TransactionConfig();
+            transaction.setMode(TransactionConfig.Mode.valueOf(readString(in)));
+            transaction.setBeginOperation(readString(in));
+            transaction.setCommitOperation(readString(in));
+            transaction.setRollbackOperation(readString(in));
+            dictionary.setTransaction(transaction);
+        }
+
+        if (in.readBoolean()) {
+            RevisionConfig revision = new RevisionConfig();
+            revision.setOperation(readString(in));
+            revision.setPath(readString(in));
+            revision.setHeader(readString(in));
+            revision.setPattern(readString(in));
+            revision.compile();
+            dictionary.setRevision(revision);
+        }
+
+        dictionary.freeze();
+        return dictionary;
+    }
+
+    private static OperationDefinition readOperation(DataInputStream in) throws IOException {
+        OperationDefinition op = new OperationDefinition();
+        op.setMethod(readString(in));
+        op.setEndpoint(readString(in));
+        op.setBody(readString(in));
+        op.setHeaders(readMap(in));
+        op.setSuccessPattern(readString(in));
+        op.setItemTemplate(readString(in));
+        op.setItemSeparator(readString(in));
+        op.setMaxItems(in.readInt());
+        op.setIdempotent(in.readBoolean());
+
+        if (in.readBoolean()) {
+            ResponseMapping mapping = new ResponseMapping();
+            mapping.setSuccessCode(in.readInt());
+            mapping.setIdPath(readString(in));
+            mapping.setListPath(readString(in));
+            mapping.setItemPaths(readMap(in));
+            mapping.setSuccessPattern(readString(in));
+            mapping.compilePaths();
+            op.setResponseMapping(mapping);
+        }
+
+        if (in.readBoolean()) {
+            PaginationConfig pagination = new PaginationConfig();
+            pagination.setType(PaginationConfig.Type.valueOf(readString(in)));
+            pagination.setPageSize(in.readInt());
+            pagination.setLimitParam(readString(in));
+            pagination.setOffsetParam(readString(in));
+            pagination.setCursorParam(readString(in));
+            String cursorPath = readString(in);
+            pagination.setNextCursorPath(cursorPath != null ? JsonPath.compile(cursorPath) : null);
+            op.setPagination(pagination);
+        }
+
+        op.compileTemplates();
+        return op;
+    }
+
+    // Primitives
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new EOFException("String of " + length + " bytes past the end of the snapshot");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map != null ? map.size() : -1);
+        if (map != null) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> map = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+}
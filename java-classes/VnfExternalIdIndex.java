@@ -0,0 +1,520 @@
+// =====================================================
+// VNF External ID Index - Rule ID to Device Object Map
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * In-memory copy of firewall_rules.external_id / port_forwarding_rules.external_id
+ * per (service, network), so ${externalId} of delete and update templates
+ * resolves without a query.
+ *
+ * A partition is loaded from VnfRuleInventory.findRules the first time one
+ * of its rules is looked up, and refreshed whenever a reconciliation reads
+ * the same rows, unless the partition changed after the read began (the
+ * reader takes a mark() first). Each partition is an open-addressing table of primitive
+ * rule ids to external ids (no boxed keys, no entry objects); lookups are
+ * optimistic reads and take no lock unless a write races them.
+ *
+ * The database stays the source of truth:
+ * - callers report rules they created or deleted with recordCreated /
+ *   recordDeleted after the row is committed
+ * - a rule missing from a loaded partition (created by another management
+ *   server, or applied after the load) is resolved through the delegate
+ *   lookup and then kept
+ * - invalidate drops a network's partitions, e.g. on network shutdown or a
+ *   change made outside this node
+ * - a partition older than maxAge (VNF_EXTERNAL_ID_INDEX_MAX_AGE_SECONDS)
+ *   is reloaded on its next lookup, so a rule another management server
+ *   deleted or re-applied is served stale for at most that long. Updates
+ *   recorded while the reload query runs are replayed over its rows.
+ */
+public class VnfExternalIdIndex implements VnfRuleLookup {
+
+    public static final int DEFAULT_MAX_AGE_SECONDS = 300;
+
+    private final VnfRuleLookup delegate;
+    private final VnfRuleInventory inventory;
+    private final long maxAgeMillis;
+    private final Clock clock;
+    private final ConcurrentHashMap<PartitionKey, Partition> partitions = new ConcurrentHashMap<>();
+    private final AtomicLong modifications = new AtomicLong();
+    private volatile long invalidatedAt;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder staleRefreshes = new LongAdder();
+
+    /**
+     * @param delegate  database lookup, used for rules not in the index and
+     *                  for public IPs
+     * @param inventory loads a partition's rules
+     */
+    public VnfExternalIdIndex(VnfRuleLookup delegate, VnfRuleInventory inventory) {
+        this(delegate, inventory, DEFAULT_MAX_AGE_SECONDS, Clock.systemUTC());
+    }
+
+    /**
+     * @param maxAgeSeconds age after which a partition is reloaded
+     */
+    public VnfExternalIdIndex(VnfRuleLookup delegate, VnfRuleInventory inventory, int maxAgeSeconds,
+                              Clock clock) {
+        if (maxAgeSeconds <= 0) {
+            throw new IllegalArgumentException("maxAgeSeconds must be positive: " + maxAgeSeconds);
+        }
+        this.delegate = delegate;
+        this.inventory = inventory;
+        this.maxAgeMillis = maxAgeSeconds * 1000L;
+        this.clock = clock;
+    }
+
+    // VnfRuleLookup
+
+    @Override
+    public String findExternalId(String serviceName, long networkId, long ruleId) {
+        Partition partition = partition(serviceName, networkId);
+        partition.ensureLoaded(serviceName, networkId);
+        String externalId = partition.get(ruleId);
+        if (externalId != null) {
+            hits.increment();
+            return externalId;
+        }
+        misses.increment();
+        externalId = delegate.findExternalId(serviceName, networkId, ruleId);
+        if (externalId != null) {
+            partition.put(ruleId, externalId);
+        }
+        return externalId;
+    }
+
+    /**
+     * Without the network the partition is unknown; goes to the delegate
+     */
+    @Override
+    public String findExternalId(String serviceName, long ruleId) {
+        return delegate.findExternalId(serviceName, ruleId);
+    }
+
+    @Override
+    public String findPublicIp(long ipAddressId) {
+        return delegate.findPublicIp(ipAddressId);
+    }
+
+    // Updates
+
+    /**
+     * A rule was created on the device and its external_id committed
+     */
+    public void recordCreated(String serviceName, long networkId, long ruleId, String externalId) {
+        if (externalId == null) {
+            recordDeleted(serviceName, networkId, ruleId);
+            return;
+        }
+        Partition partition = partitions.get(new PartitionKey(serviceName, networkId));
+        if (partition != null) {
+            partition.put(ruleId, externalId);
+        }
+    }
+
+    /**
+     * A rule was removed from the device or its row deleted
+     */
+    public void recordDeleted(String serviceName, long networkId, long ruleId) {
+        Partition partition = partitions.get(new PartitionKey(serviceName, networkId));
+        if (partition != null) {
+            partition.remove(ruleId);
+        }
+    }
+
+    /**
+     * Take before reading rows that will be passed to refresh
+     */
+    public long mark() {
+        return modifications.get();
+    }
+
+    /**
+     * Replace a partition with rows read from the database after mark was
+     * taken (the reconciler passes the rules it loaded anyway). Skipped if
+     * the partition was loaded, updated or invalidated since, as the rows
+     * may then miss a change; it reloads after maxAge either way.
+     */
+    public void refresh(String serviceName, long networkId, List<VnfRuleRecord> rules, long mark) {
+        if (mark < invalidatedAt || !partition(serviceName, networkId).refresh(rules, mark)) {
+            staleRefreshes.increment();
+        }
+    }
+
+    /**
+     * Drop every partition of a network; they load again on next use
+     */
+    public void invalidate(long networkId) {
+        invalidatedAt = modifications.incrementAndGet();
+        partitions.keySet().removeIf(key -> key.networkId == networkId);
+    }
+
+    public void invalidateAll() {
+        invalidatedAt = modifications.incrementAndGet();
+        partitions.clear();
+    }
+
+    // Stats
+
+    public long getHitCount() { return hits.sum(); }
+    public long getMissCount() { return misses.sum(); }
+    public long getLoadCount() { return loads.sum(); }
+    public long getStaleRefreshCount() { return staleRefreshes.sum(); }
+    public int getPartitionCount() { return partitions.size(); }
+
+    /**
+     * Rules held across all partitions
+     */
+    public int size() {
+        int size = 0;
+        for (Partition partition : partitions.values()) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    private Partition partition(String serviceName, long networkId) {
+        return partitions.computeIfAbsent(new PartitionKey(serviceName, networkId), k -> new Partition());
+    }
+
+    private static final class PartitionKey {
+        private final String serviceName;
+        private final long networkId;
+
+        PartitionKey(String serviceName, long networkId) {
+            this.serviceName = serviceName;
+            this.networkId = networkId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PartitionKey)) return false;
+            PartitionKey other = (PartitionKey) o;
+            return networkId == other.networkId && serviceName.equals(other.serviceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * serviceName.hashCode() + Long.hashCode(networkId);
+        }
+    }
+
+    /**
+     * Rules of one service on one network. While a load or reload query
+     * runs, updates are also kept in a journal and replayed over the loaded
+     * rows, so a create or delete committed meanwhile is not lost.
+     */
+    private final class Partition {
+        private final StampedLock lock = new StampedLock();
+        private final Object loadLock = new Object();
+        private volatile boolean loaded;
+        private volatile long loadedAt;
+        private long modifiedAt;  // value of modifications at the last write
+        private boolean loading;  // a load query is running
+        private List<Update> journal = new ArrayList<>();
+        private LongStringTable table = new LongStringTable(8);
+
+        void ensureLoaded(String serviceName, long networkId) {
+            if (loaded && !expired()) {
+                return;
+            }
+            synchronized (loadLock) {
+                if (!loaded || expired()) {
+                    startJournal();
+                    List<VnfRuleRecord> rules;
+                    try {
+                        rules = inventory.findRules(serviceName, networkId);
+                    } catch (RuntimeException e) {
+                        loadFailed();
+                        throw e;
+                    }
+                    replace(rules);
+                    loads.increment();
+                }
+            }
+        }
+
+        private boolean expired() {
+            return clock.millis() - loadedAt >= maxAgeMillis;
+        }
+
+        private void startJournal() {
+            long stamp = lock.writeLock();
+            try {
+                if (journal == null) {
+                    journal = new ArrayList<>();
+                }
+                loading = true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Keeps the journal for the next attempt
+         */
+        private void loadFailed() {
+            long stamp = lock.writeLock();
+            try {
+                loading = false;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void replace(List<VnfRuleRecord> rules) {
+            LongStringTable fresh = toTable(rules);
+            long stamp = lock.writeLock();
+            try {
+                if (journal != null) {
+                    for (Update update : journal) {
+                        if (update.externalId != null) {
+                            fresh.put(update.ruleId, update.externalId);
+                        } else {
+                            fresh.remove(update.ruleId);
+                        }
+                    }
+                    journal = null;
+                }
+                table = fresh;
+                loadedAt = clock.millis();
+                loaded = true;
+                loading = false;
+                modifiedAt = modifications.incrementAndGet();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Install rows read after mark, unless a load is running or the
+         * partition was written since; journaled updates are then older
+         * than the rows and already in them
+         */
+        boolean refresh(List<VnfRuleRecord> rules, long mark) {
+            LongStringTable fresh = toTable(rules);
+            long stamp = lock.writeLock();
+            try {
+                if (loading || modifiedAt > mark) {
+                    return false;
+                }
+                journal = null;
+                table = fresh;
+                loadedAt = clock.millis();
+                loaded = true;
+                modifiedAt = modifications.incrementAndGet();
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private LongStringTable toTable(List<VnfRuleRecord> rules) {
+            LongStringTable fresh = new LongStringTable(rules != null ? rules.size() : 0);
+            if (rules != null) {
+                for (VnfRuleRecord rule : rules) {
+                    if (rule.getExternalId() != null) {
+                        fresh.put(rule.getRuleId(), rule.getExternalId());
+                    }
+                }
+            }
+            return fresh;
+        }
+
+        String get(long ruleId) {
+            long stamp = lock.tryOptimisticRead();
+            String value = table.get(ruleId);
+            if (lock.validate(stamp)) {
+                return value;
+            }
+            stamp = lock.readLock();
+            try {
+                return table.get(ruleId);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void put(long ruleId, String externalId) {
+            long stamp = lock.writeLock();
+            try {
+                if (loaded) {
+                    table.put(ruleId, externalId);
+                }
+                if (journal != null) {
+                    journal.add(new Update(ruleId, externalId));
+                }
+                modifiedAt = modifications.incrementAndGet();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void remove(long ruleId) {
+            long stamp = lock.writeLock();
+            try {
+                if (loaded) {
+                    table.remove(ruleId);
+                }
+                if (journal != null) {
+                    journal.add(new Update(ruleId, null));
+                }
+                modifiedAt = modifications.incrementAndGet();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return table.size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Create (externalId set) or delete made while the partition loaded
+     */
+    private static final class Update {
+        final long ruleId;
+        final String externalId;
+
+        Update(long ruleId, String externalId) {
+            this.ruleId = ruleId;
+            this.externalId = externalId;
+        }
+    }
+
+    /**
+     * Linear-probing long -> String table; a null value marks a free slot.
+     * Not thread-safe: writers hold the partition's write lock, and a get
+     * racing a write may see garbage but never fails, since it captures
+     * both arrays and probes at most their length (the optimistic read is
+     * then discarded).
+     */
+    static final class LongStringTable {
+        private long[] keys;
+        private String[] values;
+        private int size;
+
+        LongStringTable(int expected) {
+            int capacity = 16;
+            while (capacity * 2 < expected * 3) {
+                capacity <<= 1;
+            }
+            keys = new long[capacity];
+            values = new String[capacity];
+        }
+
+        String get(long key) {
+            long[] k = keys;
+            String[] v = values;
+            if (k.length != v.length) {
+                return null;
+            }
+            int mask = k.length - 1;
+            int slot = slot(key, mask);
+            for (int probes = 0; probes < k.length; probes++) {
+                String value = v[slot];
+                if (value == null) {
+                    return null;
+                }
+                if (k[slot] == key) {
+                    return value;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        void put(long key, String value) {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            if (++size * 3 > keys.length * 2) {
+                resize();
+            }
+        }
+
+        /**
+         * Backward-shift deletion, so probe chains stay unbroken without tombstones
+         */
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == null) {
+                return;
+            }
+            size--;
+            int gap = slot;
+            int next = (gap + 1) & mask;
+            while (values[next] != null) {
+                int home = slot(keys[next], mask);
+                // Move the entry back if its home is not in (gap, next]
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            values[gap] = null;
+            keys[gap] = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new String[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
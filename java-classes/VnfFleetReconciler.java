@@ -0,0 +1,662 @@
+// =====================================================
+// VNF Fleet Reconciler
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import com.cloud.exception.CloudException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reconciles many appliances per sweep with bounded parallelism.
+ *
+ * Up to batchSize appliances (VNF_RECONCILIATION_BATCH_SIZE) are reconciled
+ * at once; as one finishes the next starts. Within an appliance the list
+ * operations of all its services are sent at the same time, and the device
+ * rules are streamed through a hash join against CloudStack's rules,
+ * matched by external ID or by fingerprint (VnfRuleFingerprint), so the
+ * comparison is linear in the number of rules. Dictionaries with a
+ * revision probe let quiet devices skip the listing altogether (see
+ * setHistory). A sweep stops starting appliances once its timeout
+ * (VNF_RECONCILIATION_TIMEOUT_MINUTES) has passed and reports the
+ * unfinished ones as timed out or skipped.
+ *
+ * Nothing here blocks a thread while waiting on another appliance: list
+ * calls run on the executor (virtual threads with VnfIoExecutor) and
+ * device concurrency is bounded by the broker client stack.
+ */
+public class VnfFleetReconciler {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_TIMEOUT_MINUTES = 10;
+
+    /**
+     * Fixes the drift of one appliance (re-apply missing rules, remove
+     * unknown ones); only called outside dry runs
+     */
+    @FunctionalInterface
+    public interface Remediation {
+        void apply(VnfAppliance appliance, VnfReconciliationResult drift) throws CloudException;
+    }
+
+    /**
+     * Called after each appliance of a sweep completes
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        void onProgress(SweepReport progress);
+    }
+
+    private final VnfBrokerClient brokerClient;
+    private final VnfRequestBuilder requestBuilder;
+    private final VnfResponseParser responseParser;
+    private final VnfRuleInventory inventory;
+    private final Executor executor;
+    private final int batchSize;
+    private final long timeoutMillis;
+
+    private Remediation remediation;
+    private boolean autoFixMissing = true;
+    private boolean autoRemoveUnknown;
+    private ProgressListener progressListener;
+    private VnfReconciliationHistory history;
+    private VnfExternalIdIndex externalIdIndex;
+    private VnfBatchLoader batchLoader;
+    private final LongAdder fingerprintsComputed = new LongAdder();
+    private final LongAdder revisionsUnchanged = new LongAdder();
+
+    /**
+     * @param executor      runs list calls and comparisons (a VnfIoExecutor)
+     * @param batchSize     appliances reconciled at once
+     * @param timeoutMillis time budget of one sweep
+     */
+    public VnfFleetReconciler(VnfBrokerClient brokerClient, VnfRequestBuilder requestBuilder,
+                              VnfResponseParser responseParser, VnfRuleInventory inventory,
+                              Executor executor, int batchSize, long timeoutMillis) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.brokerClient = brokerClient;
+        this.requestBuilder = requestBuilder;
+        this.responseParser = responseParser;
+        this.inventory = inventory;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * VNF_RECONCILIATION_AUTO_FIX_MISSING / VNF_RECONCILIATION_AUTO_REMOVE_UNKNOWN
+     */
+    public void setRemediation(Remediation remediation, boolean autoFixMissing, boolean autoRemoveUnknown) {
+        this.remediation = remediation;
+        this.autoFixMissing = autoFixMissing;
+        this.autoRemoveUnknown = autoRemoveUnknown;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        this.progressListener = listener;
+    }
+
+    /**
+     * Enables revision-aware reconciliation for dictionaries with a revision
+     * probe: devices whose revision and rules match their last clean run
+     * are not listed
+     */
+    public void setHistory(VnfReconciliationHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Refresh the index's partitions from the rules each reconciliation
+     * reads, so it converges on the database once per sweep
+     */
+    public void setExternalIdIndex(VnfExternalIdIndex externalIdIndex) {
+        this.externalIdIndex = externalIdIndex;
+    }
+
+    /**
+     * Prefetch dictionaries and CloudStack rules for each batchSize chunk
+     * of a sweep in set-based queries, instead of per appliance and service
+     */
+    public void setBatchLoader(VnfBatchLoader batchLoader) {
+        this.batchLoader = batchLoader;
+    }
+
+    /**
+     * Reconciliations that skipped listing because nothing had changed
+     */
+    public long getRevisionsUnchanged() {
+        return revisionsUnchanged.sum();
+    }
+
+    /**
+     * CloudStack-side fingerprints computed because the stored one was
+     * missing or stale; stays flat across sweeps once all are stored
+     */
+    public long getFingerprintsComputed() {
+        return fingerprintsComputed.sum();
+    }
+
+    // Sweep
+
+    /**
+     * Reconcile every appliance; blocks until the sweep completes or times out
+     */
+    public SweepReport reconcileAll(List<VnfAppliance> appliances, boolean dryRun) {
+        try {
+            return reconcileAllAsync(appliances, dryRun).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during reconciliation sweep", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Reconciliation sweep failed", e.getCause());
+        }
+    }
+
+    public CompletableFuture<SweepReport> reconcileAllAsync(List<VnfAppliance> appliances, boolean dryRun) {
+        Sweep sweep = new Sweep(new ArrayList<>(appliances), dryRun);
+        sweep.launch();
+        return sweep.done;
+    }
+
+    /**
+     * Sliding window over the appliances of one sweep
+     */
+    private final class Sweep {
+        final List<VnfAppliance> appliances;
+        final boolean dryRun;
+        final long startNanos = System.nanoTime();
+        final long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final SweepReport report;
+        final CompletableFuture<SweepReport> done = new CompletableFuture<>();
+        final Map<VnfAppliance, Prefetched> prefetchedRules = new ConcurrentHashMap<>();
+        private final Object prefetchLock = new Object();
+        private int prefetched;  // guarded by prefetchLock
+        private int next;
+        private int inFlight;
+
+        Sweep(List<VnfAppliance> appliances, boolean dryRun) {
+            this.appliances = appliances;
+            this.dryRun = dryRun;
+            this.report = new SweepReport(appliances.size());
+        }
+
+        void launch() {
+            List<VnfAppliance> starting = new ArrayList<>();
+            boolean finished;
+            int claimed;
+            synchronized (this) {
+                while (inFlight < batchSize && next < appliances.size()) {
+                    VnfAppliance appliance = appliances.get(next++);
+                    if (System.nanoTime() - deadlineNanos >= 0) {
+                        report.record(appliance, null, Outcome.SKIPPED);
+                        continue;
+                    }
+                    inFlight++;
+                    starting.add(appliance);
+                }
+                finished = inFlight == 0 && next >= appliances.size();
+                claimed = next;
+            }
+            if (batchLoader != null && !starting.isEmpty()) {
+                prefetch(claimed);
+            }
+            for (VnfAppliance appliance : starting) {
+                long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+                reconcile(appliance, dryRun, prefetchedRules.remove(appliance))
+                    .orTimeout(remaining, TimeUnit.MILLISECONDS)
+                    .whenComplete((result, error) -> completed(appliance, result, error));
+            }
+            if (finished) {
+                finish();
+            }
+        }
+
+        void completed(VnfAppliance appliance, VnfReconciliationResult result, Throwable error) {
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            if (error instanceof TimeoutException) {
+                report.record(appliance, failed("Reconciliation timed out"), Outcome.TIMED_OUT);
+            } else if (error != null) {
+                report.record(appliance, failed(String.valueOf(error.getMessage())), Outcome.FAILED);
+            } else {
+                report.record(appliance, result, !result.isSuccess() ? Outcome.FAILED :
+                                                 result.isUnchanged() ? Outcome.UNCHANGED : Outcome.RECONCILED);
+            }
+            synchronized (this) {
+                inFlight--;
+            }
+            report.elapsedNanos = System.nanoTime() - startNanos;
+            if (progressListener != null) {
+                progressListener.onProgress(report);
+            }
+            launch();
+        }
+
+        /**
+         * Load every chunk up to the given appliance index; a concurrent
+         * launch waits for the chunk being loaded rather than querying per
+         * appliance
+         */
+        private void prefetch(int upTo) {
+            synchronized (prefetchLock) {
+                while (prefetched < upTo) {
+                    int end = Math.min(prefetched + batchSize, appliances.size());
+                    List<VnfAppliance> chunk = appliances.subList(prefetched, end);
+                    try {
+                        long mark = indexMark();
+                        VnfBatchLoader.Batch batch = batchLoader.load(chunk);
+                        for (VnfAppliance appliance : chunk) {
+                            Map<String, List<VnfRuleRecord>> rules = batch.getRules(appliance.getNetworkId());
+                            if (rules != null) {
+                                prefetchedRules.put(appliance, new Prefetched(rules, mark));
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        // The chunk's appliances load their own rules
+                    }
+                    prefetched = end;
+                }
+            }
+        }
+
+        private void finish() {
+            report.elapsedNanos = System.nanoTime() - startNanos;
+            done.complete(report);
+        }
+    }
+
+    // One appliance
+
+    /**
+     * Reconcile one appliance: probe the revision if the dictionary declares
+     * one, otherwise (or if it changed) all list calls in parallel, then compare
+     */
+    public CompletableFuture<VnfReconciliationResult> reconcile(VnfAppliance appliance, boolean dryRun) {
+        return reconcile(appliance, dryRun, null);
+    }
+
+    private CompletableFuture<VnfReconciliationResult> reconcile(VnfAppliance appliance, boolean dryRun,
+                                                                 Prefetched loaded) {
+        VnfDictionary dictionary = appliance.getDictionary();
+        if (dictionary == null || dictionary.getServices() == null) {
+            return CompletableFuture.completedFuture(failed("No dictionary for appliance " + appliance.getId()));
+        }
+        if (appliance.getNetworkId() == null) {
+            return CompletableFuture.completedFuture(failed("Appliance " + appliance.getId() + " has no network"));
+        }
+
+        List<String> serviceNames = new ArrayList<>();
+        for (Map.Entry<String, ServiceDefinition> service : dictionary.getServices().entrySet()) {
+            if (service.getValue().getOperation("list") != null) {
+                serviceNames.add(service.getKey());
+            }
+        }
+
+        if (history == null || dictionary.getRevision() == null || appliance.getId() == null) {
+            return listAndCompare(appliance, dictionary, serviceNames, loaded, null, dryRun);
+        }
+        return CompletableFuture.supplyAsync(() -> probe(appliance, dictionary, serviceNames, loaded), executor)
+            .thenCompose(probe -> probe.unchanged ?
+                CompletableFuture.completedFuture(unchanged(probe)) :
+                listAndCompare(appliance, dictionary, serviceNames, loaded, probe, dryRun));
+    }
+
+    private CompletableFuture<VnfReconciliationResult> listAndCompare(VnfAppliance appliance,
+                                                                      VnfDictionary dictionary,
+                                                                      List<String> serviceNames,
+                                                                      Prefetched loaded,
+                                                                      Probe probe, boolean dryRun) {
+        Map<String, CompletableFuture<VnfDriftDetector.ServiceDiff>> listings = new LinkedHashMap<>();
+        for (String serviceName : serviceNames) {
+            List<VnfRuleRecord> expected = probe != null ? probe.expected.get(serviceName) : null;
+            listings.put(serviceName, CompletableFuture.supplyAsync(
+                () -> diffService(appliance, dictionary, serviceName, expected, loaded), executor));
+        }
+
+        return CompletableFuture.allOf(listings.values().toArray(new CompletableFuture[0]))
+            .thenApplyAsync(ignored -> {
+                Map<String, VnfDriftDetector.ServiceDiff> diffs = new LinkedHashMap<>();
+                listings.forEach((name, listing) -> diffs.put(name, listing.join()));
+                VnfReconciliationResult result = compare(appliance, diffs, dryRun);
+                if (probe != null) {
+                    result.setDeviceRevision(probe.revision);
+                    result.setRulesDigest(probe.digest);
+                }
+                return result;
+            }, executor);
+    }
+
+    // Revisions
+
+    /**
+     * What the revision probe found; the expected rules it loaded are
+     * reused by the full comparison
+     */
+    private static final class Probe {
+        final Map<String, List<VnfRuleRecord>> expected = new HashMap<>();
+        String revision;
+        String digest;
+        boolean unchanged;
+    }
+
+    /**
+     * Read the device revision and digest CloudStack's rules. The device is
+     * unchanged if both match the last clean run. The revision is read
+     * before any listing, so a change made while listing shows up as a new
+     * revision on the next sweep rather than being hidden.
+     */
+    private Probe probe(VnfAppliance appliance, VnfDictionary dictionary, List<String> serviceNames,
+                        Prefetched loaded) {
+        Probe probe = new Probe();
+        for (String serviceName : serviceNames) {
+            probe.expected.put(serviceName, expectedRules(appliance, dictionary, serviceName, loaded));
+        }
+        probe.digest = rulesDigest(probe.expected);
+        probe.revision = readRevision(appliance, dictionary);
+
+        VnfRevisionMark last = probe.revision != null ? history.findLastCleanRun(appliance.getId()) : null;
+        probe.unchanged = last != null && last.matches(probe.revision, probe.digest);
+        if (probe.unchanged) {
+            revisionsUnchanged.increment();
+        }
+        return probe;
+    }
+
+    /**
+     * Device revision, or null if the probe fails (the device is then listed)
+     */
+    private String readRevision(VnfAppliance appliance, VnfDictionary dictionary) {
+        try {
+            VnfRequest request = requestBuilder.buildRevisionRequest(dictionary);
+            VnfResponse response = brokerClient.sendRequest(appliance, request);
+            if (!responseParser.isSuccess(response, dictionary, dictionary.getRevision().getOperation())) {
+                return null;
+            }
+            return responseParser.extractRevision(response, dictionary);
+        } catch (RequestBuildException | CommunicationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Order-independent digest of the expected rules: the sum of a 64-bit
+     * hash per rule, so adding, removing or re-applying any rule changes it
+     */
+    static String rulesDigest(Map<String, List<VnfRuleRecord>> expected) {
+        long sum = 0;
+        long count = 0;
+        for (Map.Entry<String, List<VnfRuleRecord>> service : expected.entrySet()) {
+            for (VnfRuleRecord rule : service.getValue()) {
+                long h = fnv(FNV_OFFSET, service.getKey());
+                h = fnv(h, Long.toString(rule.getRuleId()));
+                h = fnv(h, rule.getExternalId());
+                h = fnv(h, rule.getFingerprint());
+                sum += h;
+                count++;
+            }
+        }
+        return Long.toHexString(count) + ":" + Long.toHexString(sum);
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static long fnv(long h, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                h = (h ^ value.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return (h ^ 0xff) * 0x100000001b3L;  // field separator
+    }
+
+    private static VnfReconciliationResult unchanged(Probe probe) {
+        VnfReconciliationResult result = new VnfReconciliationResult();
+        result.setSuccess(true);
+        result.setUnchanged(true);
+        result.setDeviceRevision(probe.revision);
+        result.setRulesDigest(probe.digest);
+        return result;
+    }
+
+    // Listing
+
+    /**
+     * Stream a service's device rules through the hash-join diff; the
+     * device listing is never held in memory
+     */
+    private VnfDriftDetector.ServiceDiff diffService(VnfAppliance appliance, VnfDictionary dictionary,
+                                                     String serviceName, List<VnfRuleRecord> expected,
+                                                     Prefetched loaded) {
+        VnfRequest listRequest;
+        try {
+            listRequest = requestBuilder.buildListRequest(dictionary, serviceName);
+        } catch (RequestBuildException e) {
+            throw new CompletionException(e);
+        }
+
+        if (expected == null) {
+            expected = expectedRules(appliance, dictionary, serviceName, loaded);
+        }
+
+        VnfDeviceRuleIterator it = null;
+        try {
+            it = responseParser.iterateList(dictionary, serviceName, listRequest,
+                                            page -> send(appliance, dictionary, serviceName, page));
+            return VnfDriftDetector.diff(expected, it, VnfRuleFingerprint.fieldSet(dictionary, serviceName));
+        } catch (CommunicationException e) {
+            throw new CompletionException(e);
+        } finally {
+            if (it != null) {
+                it.close();
+            }
+        }
+    }
+
+    /**
+     * CloudStack's rules of a service with current fingerprints, from the
+     * chunk's prefetched rules when the service is among them
+     */
+    private List<VnfRuleRecord> expectedRules(VnfAppliance appliance, VnfDictionary dictionary,
+                                              String serviceName, Prefetched loaded) {
+        List<VnfRuleRecord> expected = loaded != null ? loaded.rules.get(serviceName) : null;
+        long mark = loaded != null ? loaded.indexMark : 0;
+        if (expected == null) {
+            mark = indexMark();
+            expected = inventory.findRules(serviceName, appliance.getNetworkId());
+        }
+        if (externalIdIndex != null) {
+            externalIdIndex.refresh(serviceName, appliance.getNetworkId(), expected, mark);
+        }
+        VnfRuleFingerprint.FieldSet fieldSet = VnfRuleFingerprint.fieldSet(dictionary, serviceName);
+        if (fieldSet != null) {
+            refreshFingerprints(serviceName, expected, fieldSet);
+        }
+        return expected;
+    }
+
+    /**
+     * Taken before reading rules, so the index can tell whether they are
+     * older than its own updates
+     */
+    private long indexMark() {
+        return externalIdIndex != null ? externalIdIndex.mark() : 0;
+    }
+
+    /**
+     * Rules of an appliance's network loaded with its chunk, and the index
+     * mark taken before the chunk was read
+     */
+    private static final class Prefetched {
+        final Map<String, List<VnfRuleRecord>> rules;
+        final long indexMark;
+
+        Prefetched(Map<String, List<VnfRuleRecord>> rules, long indexMark) {
+            this.rules = rules;
+            this.indexMark = indexMark;
+        }
+    }
+
+    /**
+     * Compute and store the fingerprints that are missing or were computed
+     * over another field set (dictionary changed); current ones are reused
+     */
+    private void refreshFingerprints(String serviceName, List<VnfRuleRecord> expected,
+                                     VnfRuleFingerprint.FieldSet fieldSet) {
+        for (VnfRuleRecord record : expected) {
+            if (!fieldSet.accepts(record.getFingerprint())) {
+                String fingerprint = fieldSet.of(record.getFields());
+                record.setFingerprint(fingerprint);
+                inventory.storeFingerprint(serviceName, record.getRuleId(), fingerprint);
+                fingerprintsComputed.increment();
+            }
+        }
+    }
+
+    private VnfResponse send(VnfAppliance appliance, VnfDictionary dictionary, String serviceName,
+                             VnfRequest request) throws CommunicationException {
+        VnfResponse response = brokerClient.sendRequest(appliance, request);
+        if (!responseParser.isSuccess(response, dictionary, serviceName + ".list")) {
+            throw new CommunicationException(serviceName + ".list failed on appliance " + appliance.getId() +
+                                             ": " + responseParser.extractErrorMessage(response), false);
+        }
+        return response;
+    }
+
+    private VnfReconciliationResult compare(VnfAppliance appliance,
+                                            Map<String, VnfDriftDetector.ServiceDiff> diffs, boolean dryRun) {
+        VnfReconciliationResult result = new VnfReconciliationResult();
+        int checked = 0;
+        int missing = 0;
+        int extra = 0;
+        boolean repair = !dryRun && remediation != null;
+
+        for (Map.Entry<String, VnfDriftDetector.ServiceDiff> entry : diffs.entrySet()) {
+            String serviceName = entry.getKey();
+            VnfDriftDetector.ServiceDiff diff = entry.getValue();
+            checked += diff.deviceRules;
+            ReconciliationAction.ActionType reapply = repair && autoFixMissing ?
+                ReconciliationAction.ActionType.REAPPLIED : ReconciliationAction.ActionType.FLAGGED;
+
+            for (VnfRuleRecord rule : diff.missing) {
+                missing++;
+                result.addAction(new ReconciliationAction(serviceName, reapply,
+                    String.valueOf(rule.getRuleId()), "Rule missing on device"));
+            }
+            for (VnfRuleRecord rule : diff.changed) {
+                missing++;
+                result.addAction(new ReconciliationAction(serviceName, reapply,
+                    String.valueOf(rule.getRuleId()), "Rule changed on device"));
+            }
+            for (String externalId : diff.extra) {
+                extra++;
+                result.addAction(new ReconciliationAction(serviceName,
+                    repair && autoRemoveUnknown ? ReconciliationAction.ActionType.REMOVED :
+                                                  ReconciliationAction.ActionType.FLAGGED,
+                    externalId, "Rule unknown to CloudStack"));
+            }
+        }
+
+        result.setRulesChecked(checked);
+        result.setMissingRules(missing);
+        result.setExtraRules(extra);
+        result.setDriftDetected(missing + extra > 0);
+        result.setSuccess(true);
+
+        if (repair && result.isDriftDetected()) {
+            try {
+                remediation.apply(appliance, result);
+            } catch (CloudException | RuntimeException e) {
+                result.setSuccess(false);
+                result.setErrorMessage("Remediation failed: " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private static VnfReconciliationResult failed(String message) {
+        VnfReconciliationResult result = new VnfReconciliationResult();
+        result.setSuccess(false);
+        result.setErrorMessage(message);
+        return result;
+    }
+
+    // Reporting
+
+    /**
+     * UNCHANGED: reconciled from the revision probe alone, nothing listed
+     */
+    public enum Outcome { RECONCILED, UNCHANGED, FAILED, TIMED_OUT, SKIPPED }
+
+    /**
+     * Progress and totals of one sweep; a live view while the sweep runs
+     */
+    public static final class SweepReport {
+        private final int total;
+        private final Map<Long, VnfReconciliationResult> results = new ConcurrentHashMap<>();
+        private final EnumMap<Outcome, Integer> outcomes = new EnumMap<>(Outcome.class);
+        private int completed;
+        private int drifted;
+        private long rulesChecked;
+        volatile long elapsedNanos;
+
+        SweepReport(int total) {
+            this.total = total;
+        }
+
+        synchronized void record(VnfAppliance appliance, VnfReconciliationResult result, Outcome outcome) {
+            completed++;
+            outcomes.merge(outcome, 1, Integer::sum);
+            if (result != null) {
+                if (appliance.getId() != null) {
+                    results.put(appliance.getId(), result);
+                }
+                if (result.isDriftDetected()) {
+                    drifted++;
+                }
+                rulesChecked += result.getRulesChecked();
+            }
+        }
+
+        public int getTotal() { return total; }
+        public synchronized int getCompleted() { return completed; }
+        public synchronized int getDrifted() { return drifted; }
+        public synchronized long getRulesChecked() { return rulesChecked; }
+        public synchronized int getCount(Outcome outcome) { return outcomes.getOrDefault(outcome, 0); }
+        public long getElapsedMillis() { return TimeUnit.NANOSECONDS.toMillis(elapsedNanos); }
+
+        /**
+         * Result by appliance id
+         */
+        public Map<Long, VnfReconciliationResult> getResults() { return Collections.unmodifiableMap(results); }
+
+        /**
+         * Appliances finished per second so far
+         */
+        public synchronized double getAppliancesPerSecond() {
+            return elapsedNanos > 0 ? completed * 1e9 / elapsedNanos : 0;
+        }
+
+        public synchronized double getRulesPerSecond() {
+            return elapsedNanos > 0 ? rulesChecked * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT,
+                "%d/%d appliances (%d unchanged, %d drifted, %d failed, %d timed out, %d skipped), " +
+                "%d rules in %d ms: %.1f appliances/s, %.0f rules/s",
+                completed, total, getCount(Outcome.UNCHANGED), drifted, getCount(Outcome.FAILED),
+                getCount(Outcome.TIMED_OUT), getCount(Outcome.SKIPPED), rulesChecked, getElapsedMillis(),
+                getAppliancesPerSecond(), getRulesPerSecond());
+        }
+    }
+}
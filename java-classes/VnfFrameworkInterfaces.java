@@ -8,8 +8,16 @@
 package org.apache.cloudstack.network.vnf;
 
 import java.util.*;
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 import com.cloud.network.Network;
 import com.cloud.network.element.NetworkElement;
+import com.cloud.network.lb.LoadBalancingRule;
+import com.cloud.network.rules.FirewallRule;
+import com.cloud.network.rules.PortForwardingRule;
 import com.cloud.exception.*;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.offering.NetworkOffering;
@@ -90,12 +98,327 @@ public interface VnfDictionaryManager {
      */
     VnfDictionary getDictionary(Long templateId, Long networkId);
     
+    /**
+     * Load the dictionaries of many appliances at once, so getDictionary
+     * answers them from the cache; the default leaves that to getDictionary
+     */
+    default void prefetchDictionaries(Collection<VnfAppliance> appliances) {
+    }
+    
     /**
      * Delete dictionary
      */
     boolean deleteDictionary(String uuid);
 }
 
+/**
+ * DAO for the vnf_dictionaries table (rows are returned unparsed:
+ * identity columns and yaml_content only)
+ */
+public interface VnfDictionaryDao {
+
+    /**
+     * Active dictionary attached to a template, or null
+     */
+    VnfDictionary findByTemplateId(long templateId);
+
+    /**
+     * Active override dictionary attached to a network, or null
+     */
+    VnfDictionary findByNetworkId(long networkId);
+
+    VnfDictionary findByUuid(String uuid);
+
+    /**
+     * Active dictionaries attached to any of the templates or networks, in
+     * one query over fk_vnf_dictionaries_template_id / _network_id; the
+     * default issues one query per id
+     */
+    default List<VnfDictionary> findActive(Collection<Long> templateIds, Collection<Long> networkIds) {
+        List<VnfDictionary> rows = new ArrayList<>();
+        for (Long networkId : networkIds) {
+            VnfDictionary row = findByNetworkId(networkId);
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        for (Long templateId : templateIds) {
+            VnfDictionary row = findByTemplateId(templateId);
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    VnfDictionary persist(VnfDictionary dictionary);
+
+    /**
+     * Replace compiled_snapshot of a row whose snapshot was missing or stale
+     */
+    void updateCompiledSnapshot(String uuid, byte[] snapshot);
+
+    /**
+     * Soft-delete (sets removed)
+     */
+    boolean remove(String uuid);
+}
+
+/**
+ * Rule data the request builder needs that CloudStack rule objects
+ * don't carry themselves
+ */
+public interface VnfRuleLookup {
+
+    /**
+     * external_id recorded when the rule was created on the device, or null
+     */
+    String findExternalId(String serviceName, long ruleId);
+
+    /**
+     * Same, for a rule of a known network; lets an index (VnfExternalIdIndex)
+     * answer from the network's rules without a query
+     */
+    default String findExternalId(String serviceName, long networkId, long ruleId) {
+        return findExternalId(serviceName, ruleId);
+    }
+
+    /**
+     * Address of a public IP (user_ip_address.id), or null
+     */
+    String findPublicIp(long ipAddressId);
+}
+
+/**
+ * Rules CloudStack expects on a network's device (reconciliation)
+ */
+public interface VnfRuleInventory {
+
+    /**
+     * Active rules of a service on a network with their external_id and
+     * stored fingerprint; the external_id is null for rules never applied
+     * to the device
+     */
+    List<VnfRuleRecord> findRules(String serviceName, long networkId);
+
+    /**
+     * Active rules of a service on many networks in one query
+     * (network_id IN ...), by network id; the default issues one query per
+     * network
+     */
+    default Map<Long, List<VnfRuleRecord>> findRules(String serviceName, Collection<Long> networkIds) {
+        Map<Long, List<VnfRuleRecord>> rules = new HashMap<>();
+        for (Long networkId : networkIds) {
+            rules.put(networkId, findRules(serviceName, networkId));
+        }
+        return rules;
+    }
+
+    /**
+     * Persist a rule's fingerprint next to its external_id
+     */
+    void storeFingerprint(String serviceName, long ruleId, String fingerprint);
+}
+
+/**
+ * Past reconciliations of an appliance (vnf_reconciliation_log)
+ */
+public interface VnfReconciliationHistory {
+    
+    /**
+     * Device revision and CloudStack rule digest of the appliance's last
+     * successful run without drift, or null if there is none
+     */
+    VnfRevisionMark findLastCleanRun(long applianceId);
+}
+
+/**
+ * State both sides were in when a reconciliation found no drift
+ */
+public class VnfRevisionMark {
+    private final String deviceRevision;
+    private final String rulesDigest;
+    
+    public VnfRevisionMark(String deviceRevision, String rulesDigest) {
+        this.deviceRevision = deviceRevision;
+        this.rulesDigest = rulesDigest;
+    }
+    
+    public String getDeviceRevision() { return deviceRevision; }
+    public String getRulesDigest() { return rulesDigest; }
+    
+    public boolean matches(String deviceRevision, String rulesDigest) {
+        return this.deviceRevision != null && this.deviceRevision.equals(deviceRevision) &&
+               Objects.equals(this.rulesDigest, rulesDigest);
+    }
+}
+
+/**
+ * Appliance rows of vnf_appliances
+ */
+public interface VnfApplianceDao {
+
+    /**
+     * Non-removed appliances in a state; associations (dictionary,
+     * network, VM) are not loaded
+     */
+    List<VnfAppliance> listByState(VnfState state);
+
+    /**
+     * Non-removed appliances of many networks in one query
+     * (uk_vnf_appliance_network); associations are not loaded
+     */
+    List<VnfAppliance> listByNetworkIds(Collection<Long> networkIds);
+
+    /**
+     * One page of non-removed appliances, optionally filtered by network
+     * and state (listVnfAppliances); associations are not loaded
+     */
+    List<VnfAppliance> search(Long networkId, VnfState state, long offset, long limit);
+}
+
+/**
+ * CloudStack entities behind appliances, fetched in bulk (NetworkDao,
+ * VMInstanceDao) rather than one findById per appliance
+ */
+public interface VnfApplianceAssociationDao {
+
+    /**
+     * Networks by id; unknown ids are absent
+     */
+    Map<Long, Network> findNetworks(Collection<Long> networkIds);
+
+    /**
+     * Appliance VMs by id; unknown ids are absent
+     */
+    Map<Long, VirtualMachine> findVirtualMachines(Collection<Long> vmIds);
+}
+
+/**
+ * Health columns of vnf_appliances, written in batches
+ */
+public interface VnfApplianceHealthDao {
+
+    /**
+     * Apply health_status and last_contact for many appliances in one
+     * batched UPDATE; a null last contact leaves the column unchanged
+     */
+    void updateHealth(List<VnfHealthUpdate> updates);
+}
+
+/**
+ * Latest health of one appliance, pending persistence
+ */
+public class VnfHealthUpdate {
+    private final long applianceId;
+    private final HealthStatus healthStatus;
+    private final Date lastContact;
+    
+    public VnfHealthUpdate(long applianceId, HealthStatus healthStatus, Date lastContact) {
+        this.applianceId = applianceId;
+        this.healthStatus = healthStatus;
+        this.lastContact = lastContact;
+    }
+    
+    public long getApplianceId() { return applianceId; }
+    public HealthStatus getHealthStatus() { return healthStatus; }
+    public Date getLastContact() { return lastContact; }
+}
+
+/**
+ * DAO for the vnf_broker_audit table
+ */
+public interface VnfBrokerAuditDao {
+
+    /**
+     * Insert many audit rows with one multi-row (or batched) INSERT
+     */
+    void insertBatch(List<VnfAuditRecord> records);
+}
+
+/**
+ * One device call, as recorded in vnf_broker_audit. Text is cut to the
+ * column widths so a long URI or error cannot fail the insert.
+ */
+public class VnfAuditRecord {
+    public static final int MAX_OPERATION_LENGTH = 100;
+    public static final int MAX_METHOD_LENGTH = 10;
+    public static final int MAX_ENDPOINT_LENGTH = 500;
+    public static final int MAX_ERROR_MESSAGE_LENGTH = 21_845;  // TEXT: 65535 bytes, 3 per utf8 character
+    
+    private final Long applianceId;
+    private final String operation;
+    private final String method;
+    private final String endpoint;
+    private final Date requestTimestamp;
+    private final Date responseTimestamp;
+    private final int statusCode;       // 0 if no response was received
+    private final boolean success;
+    private final String errorMessage;
+    private final long durationMs;
+    
+    public VnfAuditRecord(Long applianceId, String operation, String method, String endpoint,
+                          Date requestTimestamp, Date responseTimestamp, int statusCode,
+                          boolean success, String errorMessage, long durationMs) {
+        this.applianceId = applianceId;
+        this.operation = truncate(operation, MAX_OPERATION_LENGTH);
+        this.method = truncate(method, MAX_METHOD_LENGTH);
+        this.endpoint = truncate(endpoint, MAX_ENDPOINT_LENGTH);
+        this.requestTimestamp = requestTimestamp;
+        this.responseTimestamp = responseTimestamp;
+        this.statusCode = statusCode;
+        this.success = success;
+        this.errorMessage = truncate(errorMessage, MAX_ERROR_MESSAGE_LENGTH);
+        this.durationMs = durationMs;
+    }
+    
+    /**
+     * At most max chars, without splitting a surrogate pair
+     */
+    static String truncate(String value, int max) {
+        if (value == null || value.length() <= max) {
+            return value;
+        }
+        int end = Character.isHighSurrogate(value.charAt(max - 1)) ? max - 1 : max;
+        return value.substring(0, end);
+    }
+    
+    public Long getApplianceId() { return applianceId; }
+    public String getOperation() { return operation; }
+    public String getMethod() { return method; }
+    public String getEndpoint() { return endpoint; }
+    public Date getRequestTimestamp() { return requestTimestamp; }
+    public Date getResponseTimestamp() { return responseTimestamp; }
+    public int getStatusCode() { return statusCode; }
+    public boolean isSuccess() { return success; }
+    public String getErrorMessage() { return errorMessage; }
+    public long getDurationMs() { return durationMs; }
+}
+
+/**
+ * Where the broker serving an appliance listens (VR control IP or
+ * external controller address)
+ */
+public interface VnfBrokerLocator {
+
+    /**
+     * Broker host for the appliance, or null if none is running
+     */
+    String findBrokerAddress(VnfAppliance appliance);
+}
+
+/**
+ * Resolves the secrets a dictionary's access section refers to
+ * (usernameRef, passwordRef, tokenRef) for one appliance
+ */
+public interface VnfCredentialResolver {
+
+    /**
+     * Value stored for the appliance under ref, or null if none is set
+     */
+    String resolve(VnfAppliance appliance, String ref);
+}
+
 /**
  * Request builder that translates CloudStack operations to VNF commands
  */
@@ -135,6 +458,103 @@ public interface VnfRequestBuilder {
         VnfDictionary dictionary,
         String serviceName
     ) throws RequestBuildException;
+    
+    /**
+     * Build requests for a batch of firewall rules. Uses the service's
+     * bulkCreate/bulkDelete operation when the dictionary defines one,
+     * otherwise falls back to one request per rule.
+     */
+    List<VnfBatchRequest> buildFirewallRequests(
+        VnfDictionary dictionary,
+        FirewallRuleOperation operation,
+        Collection<? extends FirewallRule> rules
+    ) throws RequestBuildException;
+    
+    /**
+     * Build requests for a batch of NAT rules (bulk when available)
+     */
+    List<VnfBatchRequest> buildNatRequests(
+        VnfDictionary dictionary,
+        NatOperation operation,
+        Collection<? extends PortForwardingRule> rules
+    ) throws RequestBuildException;
+    
+    /**
+     * Build requests for a batch of load balancer rules (bulk when available)
+     */
+    List<VnfBatchRequest> buildLoadBalancerRequests(
+        VnfDictionary dictionary,
+        LoadBalancerOperation operation,
+        Collection<? extends LoadBalancingRule> rules
+    ) throws RequestBuildException;
+    
+    /**
+     * Build the request of the dictionary's revision probe (RevisionConfig)
+     *
+     * @throws RequestBuildException if the dictionary declares no revision
+     */
+    VnfRequest buildRevisionRequest(VnfDictionary dictionary) throws RequestBuildException;
+    
+    /**
+     * Open a configuration transaction: rule operations staged on it are
+     * applied with a single commit (see TransactionConfig)
+     *
+     * @throws RequestBuildException if the dictionary declares no transaction
+     */
+    VnfTransaction beginTransaction(VnfDictionary dictionary) throws RequestBuildException;
+}
+
+/**
+ * Rule operations staged for one commit. Staged requests hold only the
+ * operation itself; begin/commit are sent once for the whole transaction.
+ */
+public interface VnfTransaction {
+    
+    VnfDictionary getDictionary();
+    
+    List<VnfBatchRequest> stageFirewallRules(
+        FirewallRuleOperation operation,
+        Collection<? extends FirewallRule> rules
+    ) throws RequestBuildException;
+    
+    List<VnfBatchRequest> stageNatRules(
+        NatOperation operation,
+        Collection<? extends PortForwardingRule> rules
+    ) throws RequestBuildException;
+    
+    List<VnfBatchRequest> stageLoadBalancerRules(
+        LoadBalancerOperation operation,
+        Collection<? extends LoadBalancingRule> rules
+    ) throws RequestBuildException;
+    
+    /**
+     * Staged requests in apply order
+     */
+    List<VnfBatchRequest> getStaged();
+    
+    /**
+     * True for CLI dictionaries: everything is sent as one command (toScript)
+     */
+    boolean isScript();
+    
+    /**
+     * Begin request, or null if the device needs none
+     */
+    VnfBatchRequest getBegin();
+    
+    VnfBatchRequest getCommit();
+    
+    /**
+     * Rollback request, or null if the dictionary declares none
+     */
+    VnfBatchRequest getRollback();
+    
+    /**
+     * Begin, every staged command and commit chained into one CLI command
+     * list that stops at the first failing command, so nothing is committed
+     * unless every step succeeded
+     */
+    VnfBatchRequest toScript();
 }
 
 /**
@@ -158,165 +578,1014 @@ public interface VnfBrokerClient {
     ) throws CommunicationException;
     
     /**
-     * Test basic connectivity
+     * Send a request without blocking the caller. The future fails with the
+     * CommunicationException a blocking send would have thrown.
+     * The default runs the blocking call on the calling thread.
+     */
+    default CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+        try {
+            return CompletableFuture.completedFuture(sendRequest(appliance, request));
+        } catch (CommunicationException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    /**
+     * Send with retry logic without blocking the caller
+     */
+    default CompletableFuture<VnfResponse> sendRequestWithRetryAsync(
+        VnfAppliance appliance,
+        VnfRequest request,
+        int maxRetries
+    ) {
+        try {
+            return CompletableFuture.completedFuture(sendRequestWithRetry(appliance, request, maxRetries));
+        } catch (CommunicationException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    /**
+     * Apply a transaction: begin, staged requests in order, then one commit
+     * (or a single script for CLI devices). The first failing step stops
+     * the transaction and the dictionary's rollback is sent; nothing after
+     * the failure is attempted. A script stops at its own first failing
+     * command, before its commit, so it needs no rollback.
+     */
+    default VnfTransactionResult executeTransaction(
+        VnfAppliance appliance,
+        VnfTransaction transaction,
+        VnfResponseParser responseParser
+    ) {
+        VnfTransactionResult result = new VnfTransactionResult();
+        if (transaction.getStaged().isEmpty()) {
+            result.setCommitted(true);
+            return result;
+        }
+        
+        List<VnfBatchRequest> steps = new ArrayList<>();
+        if (transaction.isScript()) {
+            steps.add(transaction.toScript());
+        } else {
+            if (transaction.getBegin() != null) {
+                steps.add(transaction.getBegin());
+            }
+            steps.addAll(transaction.getStaged());
+            steps.add(transaction.getCommit());
+        }
+        
+        VnfDictionary dictionary = transaction.getDictionary();
+        for (VnfBatchRequest step : steps) {
+            String error;
+            try {
+                VnfResponse response = sendRequest(appliance, step.getRequest());
+                result.addResponse(step, response);
+                if (responseParser.isSuccess(response, dictionary, step.getOperation())) {
+                    continue;
+                }
+                error = responseParser.extractErrorMessage(response);
+            } catch (CommunicationException e) {
+                error = e.getMessage();
+            }
+            result.setFailure(step.getOperation(), error);
+            
+            VnfBatchRequest rollback = transaction.getRollback();
+            if (rollback != null) {
+                try {
+                    VnfResponse response = sendRequest(appliance, rollback.getRequest());
+                    result.setRolledBack(responseParser.isSuccess(response, dictionary, rollback.getOperation()));
+                } catch (CommunicationException e) {
+                    result.setRolledBack(false);
+                }
+            }
+            return result;
+        }
+        
+        result.setCommitted(true);
+        return result;
+    }
+    
+    /**
+     * Send a request built outside a transaction, then its commit request
+     * (VnfRequest.getCommitRequest) if it has one and the operation
+     * succeeded. The result is committed only when both steps succeeded.
+     */
+    default VnfTransactionResult sendCommitted(
+        VnfAppliance appliance,
+        VnfRequest request,
+        VnfDictionary dictionary,
+        VnfResponseParser responseParser
+    ) {
+        VnfTransactionResult result = new VnfTransactionResult();
+        List<VnfRequest> steps = new ArrayList<>(2);
+        steps.add(request);
+        if (request.getCommitRequest() != null) {
+            steps.add(request.getCommitRequest());
+        }
+        for (VnfRequest step : steps) {
+            String error;
+            try {
+                VnfResponse response = sendRequest(appliance, step);
+                result.addResponse(new VnfBatchRequest(step, step.getOperation(), Collections.emptyList(), false),
+                                   response);
+                if (responseParser.isSuccess(response, dictionary, step.getOperation())) {
+                    continue;
+                }
+                error = responseParser.extractErrorMessage(response);
+            } catch (CommunicationException e) {
+                error = e.getMessage();
+            }
+            result.setFailure(step.getOperation(), error);
+            return result;
+        }
+        result.setCommitted(true);
+        return result;
+    }
+    
+    /**
+     * Apply a transaction without blocking the caller.
+     * The default runs the blocking call on the calling thread.
+     */
+    default CompletableFuture<VnfTransactionResult> executeTransactionAsync(
+        VnfAppliance appliance,
+        VnfTransaction transaction,
+        VnfResponseParser responseParser
+    ) {
+        try {
+            return CompletableFuture.completedFuture(executeTransaction(appliance, transaction, responseParser));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    /**
+     * Test basic connectivity
+     */
+    boolean isReachable(VnfAppliance appliance);
+    
+    /**
+     * Get broker type (VR, Direct, External)
+     */
+    BrokerType getBrokerType();
+}
+
+/**
+ * Response parser interface
+ */
+public interface VnfResponseParser {
+    
+    /**
+     * Parse response and extract external ID
+     */
+    String extractExternalId(VnfResponse response, VnfDictionary dictionary, String operation);
+    
+    /**
+     * Extract the external IDs created by a bulk operation, in payload order
+     */
+    default List<String> extractExternalIds(VnfResponse response, VnfDictionary dictionary, String operation) {
+        String id = extractExternalId(response, dictionary, operation);
+        return id != null ? Collections.singletonList(id) : Collections.emptyList();
+    }
+    
+    /**
+     * Parse list response into structured data
+     */
+    List<VnfDeviceRule> parseListResponse(
+        VnfResponse response,
+        VnfDictionary dictionary,
+        String serviceName
+    );
+    
+    /**
+     * Parse list response lazily. Rules are read from the response stream as
+     * the iterator advances; close the iterator to release the stream.
+     */
+    default VnfDeviceRuleIterator iterateListResponse(
+        VnfResponse response,
+        VnfDictionary dictionary,
+        String serviceName
+    ) {
+        return VnfDeviceRuleIterator.of(parseListResponse(response, dictionary, serviceName));
+    }
+    
+    /**
+     * Iterate every page of a service's list. The default sends the list
+     * request once; parsers that follow the dictionary's pagination section
+     * send the further page requests through the sender as iteration
+     * reaches them.
+     */
+    default VnfDeviceRuleIterator iterateList(
+        VnfDictionary dictionary,
+        String serviceName,
+        VnfRequest listRequest,
+        PageSender sender
+    ) throws CommunicationException {
+        return iterateListResponse(sender.send(listRequest), dictionary, serviceName);
+    }
+    
+    /**
+     * Sends one page request, e.g. {@code req -> brokerClient.sendRequest(appliance, req)}
+     */
+    @FunctionalInterface
+    interface PageSender {
+        VnfResponse send(VnfRequest pageRequest) throws CommunicationException;
+    }
+    
+    /**
+     * Configuration revision from the response of the revision probe, or
+     * null if the dictionary declares none or the response has none
+     */
+    default String extractRevision(VnfResponse response, VnfDictionary dictionary) {
+        return null;
+    }
+    
+    /**
+     * Check if response indicates success
+     */
+    boolean isSuccess(VnfResponse response, VnfDictionary dictionary, String operation);
+    
+    /**
+     * Extract error message from response
+     */
+    String extractErrorMessage(VnfResponse response);
+}
+
+// =====================================================
+// 2. DATA MODELS
+// =====================================================
+
+/**
+ * Represents a VNF dictionary
+ */
+public class VnfDictionary {
+    private String id;
+    private String uuid;
+    private Long templateId;
+    private Long networkId;
+    private String name;
+    private String yamlContent;
+    private byte[] compiledSnapshot;  // VnfDictionarySnapshot of yamlContent, may be null or stale
+    private String schemaVersion;
+    private String vendor;
+    private String product;
+    private Date created;
+    private Date updated;
+    
+    // Parsed structure
+    private AccessConfig accessConfig;
+    private Map<String, ServiceDefinition> services;
+    private TransactionConfig transaction;
+    private RevisionConfig revision;
+    
+    // Compiled form, built by freeze()
+    private boolean frozen;
+    private ServiceDefinition[] serviceSlots;
+    private Map<String, OperationDefinition> operationRefs;
+    private DictionaryValidationResult validationResult;
+    
+    // Getters and setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+    
+    public String getUuid() { return uuid; }
+    public void setUuid(String uuid) { this.uuid = uuid; }
+    
+    public Long getTemplateId() { return templateId; }
+    public void setTemplateId(Long templateId) { this.templateId = templateId; }
+    
+    public Long getNetworkId() { return networkId; }
+    public void setNetworkId(Long networkId) { this.networkId = networkId; }
+    
+    public String getYamlContent() { return yamlContent; }
+    public void setYamlContent(String yamlContent) { this.yamlContent = yamlContent; }
+    
+    public byte[] getCompiledSnapshot() { return compiledSnapshot; }
+    public void setCompiledSnapshot(byte[] snapshot) { this.compiledSnapshot = snapshot; }
+    
+    public String getSchemaVersion() { return schemaVersion; }
+    public void setSchemaVersion(String version) { checkMutable(); this.schemaVersion = version; }
+    
+    public String getVendor() { return vendor; }
+    public void setVendor(String vendor) { checkMutable(); this.vendor = vendor; }
+    
+    public String getProduct() { return product; }
+    public void setProduct(String product) { checkMutable(); this.product = product; }
+    
+    public AccessConfig getAccessConfig() { return accessConfig; }
+    public void setAccessConfig(AccessConfig config) { checkMutable(); this.accessConfig = config; }
+    
+    public Map<String, ServiceDefinition> getServices() { return services; }
+    public void setServices(Map<String, ServiceDefinition> services) { checkMutable(); this.services = services; }
+    
+    public ServiceDefinition getService(String name) { return services != null ? services.get(name) : null; }
+    
+    /**
+     * Array slot lookup of a well-known service; null if not defined
+     */
+    public ServiceDefinition getService(DictionaryService service) {
+        if (serviceSlots != null) {
+            return serviceSlots[service.ordinal()];
+        }
+        return getService(service.getKey());
+    }
+    
+    /**
+     * Operation of a service, through the slots when both names are well known
+     */
+    public OperationDefinition getOperation(String serviceName, String opName) {
+        if (frozen) {
+            DictionaryService service = DictionaryService.of(serviceName);
+            DictionaryOperation operation = DictionaryOperation.of(opName);
+            if (service != null && operation != null) {
+                ServiceDefinition definition = serviceSlots[service.ordinal()];
+                return definition != null ? definition.getOperation(operation) : null;
+            }
+        }
+        ServiceDefinition definition = getService(serviceName);
+        return definition != null ? definition.getOperation(opName) : null;
+    }
+    
+    /**
+     * Resolve a "Service.operation" reference; null if it names nothing
+     */
+    public OperationDefinition getOperation(String ref) {
+        if (ref == null) {
+            return null;
+        }
+        if (frozen) {
+            return operationRefs.get(ref);
+        }
+        int dot = ref.indexOf('.');
+        return dot > 0 ? getOperation(ref.substring(0, dot), ref.substring(dot + 1)) : null;
+    }
+    
+    public TransactionConfig getTransaction() { return transaction; }
+    public void setTransaction(TransactionConfig transaction) { checkMutable(); this.transaction = transaction; }
+    
+    public RevisionConfig getRevision() { return revision; }
+    public void setRevision(RevisionConfig revision) { checkMutable(); this.revision = revision; }
+    
+    public boolean isFrozen() { return frozen; }
+    
+    /**
+     * Validation result memoized for a frozen dictionary, null until validated
+     */
+    public DictionaryValidationResult getValidationResult() { return validationResult; }
+    public void setValidationResult(DictionaryValidationResult result) { this.validationResult = result; }
+    
+    /**
+     * Compile the parsed structure into its immutable form: services and
+     * operations become read-only, well-known ones get array slots and every
+     * "Service.operation" reference is indexed. Called once by the parser;
+     * afterwards every setter of the parsed graph (services, operations,
+     * access, transaction, revision, mappings) fails.
+     */
+    public void freeze() {
+        if (frozen) {
+            return;
+        }
+        ServiceDefinition[] slots = new ServiceDefinition[DictionaryService.values().length];
+        Map<String, OperationDefinition> refs = new HashMap<>();
+        Map<String, ServiceDefinition> frozenServices = new LinkedHashMap<>();
+        if (services != null) {
+            for (Map.Entry<String, ServiceDefinition> entry : services.entrySet()) {
+                ServiceDefinition service = entry.getValue();
+                service.freeze(entry.getKey());
+                frozenServices.put(entry.getKey(), service);
+                for (Map.Entry<String, OperationDefinition> op : service.getOperations().entrySet()) {
+                    refs.put(op.getValue().getRef(), op.getValue());
+                }
+                DictionaryService known = DictionaryService.of(entry.getKey());
+                if (known != null) {
+                    slots[known.ordinal()] = service;
+                }
+            }
+        }
+        if (accessConfig != null) {
+            accessConfig.freeze();
+        }
+        if (transaction != null) {
+            transaction.freeze();
+        }
+        if (revision != null) {
+            revision.freeze();
+        }
+        this.services = Collections.unmodifiableMap(frozenServices);
+        this.serviceSlots = slots;
+        this.operationRefs = refs;
+        this.frozen = true;
+    }
+    
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Dictionary " + (uuid != null ? uuid : id) + " is frozen");
+        }
+    }
+
+    /**
+     * Share the parsed structure of a dictionary with identical YAML content.
+     * Identity fields (id, uuid, template/network) are left untouched.
+     */
+    public void shareParsedStructure(VnfDictionary parsed) {
+        this.schemaVersion = parsed.schemaVersion;
+        this.vendor = parsed.vendor;
+        this.product = parsed.product;
+        this.accessConfig = parsed.accessConfig;
+        this.services = parsed.services;
+        this.transaction = parsed.transaction;
+        this.revision = parsed.revision;
+        this.serviceSlots = parsed.serviceSlots;
+        this.operationRefs = parsed.operationRefs;
+        this.validationResult = parsed.validationResult;
+        this.frozen = parsed.frozen;
+    }
+}
+
+/**
+ * Access configuration from dictionary
+ */
+public class AccessConfig {
+    private String protocol;  // "https", "ssh", "http"
+    private int port;
+    private String basePath;
+    private AuthType authType;
+    private String usernameRef;
+    private String passwordRef;
+    private String tokenRef;
+    private String tokenHeader;
+    private int rateLimitPerMinute;  // Requests per minute per appliance, 0 = VNF_RATE_LIMIT_PER_MINUTE
+    private int rateLimitBurst;      // 0 = VNF_RATE_LIMIT_BURST
+    private boolean frozen;
+    
+    // Getters and setters
+    public String getProtocol() { return protocol; }
+    public void setProtocol(String protocol) { checkMutable(); this.protocol = protocol; }
+    
+    public int getPort() { return port; }
+    public void setPort(int port) { checkMutable(); this.port = port; }
+    
+    public AuthType getAuthType() { return authType; }
+    public void setAuthType(AuthType authType) { checkMutable(); this.authType = authType; }
+    
+    public String getBasePath() { return basePath; }
+    public void setBasePath(String basePath) { checkMutable(); this.basePath = basePath; }
+    
+    public String getUsernameRef() { return usernameRef; }
+    public void setUsernameRef(String ref) { checkMutable(); this.usernameRef = ref; }
+    
+    public String getPasswordRef() { return passwordRef; }
+    public void setPasswordRef(String ref) { checkMutable(); this.passwordRef = ref; }
+    
+    public String getTokenRef() { return tokenRef; }
+    public void setTokenRef(String ref) { checkMutable(); this.tokenRef = ref; }
+    
+    public String getTokenHeader() { return tokenHeader; }
+    public void setTokenHeader(String header) { checkMutable(); this.tokenHeader = header; }
+    
+    public int getRateLimitPerMinute() { return rateLimitPerMinute; }
+    public void setRateLimitPerMinute(int perMinute) { checkMutable(); this.rateLimitPerMinute = perMinute; }
+    
+    public int getRateLimitBurst() { return rateLimitBurst; }
+    public void setRateLimitBurst(int burst) { checkMutable(); this.rateLimitBurst = burst; }
+    
+    /**
+     * Called by VnfDictionary.freeze(); the setters fail afterwards
+     */
+    void freeze() {
+        this.frozen = true;
+    }
+    
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Access configuration is frozen");
+        }
+    }
+}
+
+/**
+ * Service definition (e.g., Firewall, NAT)
+ */
+public class ServiceDefinition {
+    private String name;
+    private Map<String, OperationDefinition> operations;
+    private OperationDefinition[] operationSlots;  // Set by freeze()
+    
+    public String getName() { return name; }
+    public void setName(String name) { checkMutable(); this.name = name; }
+    
+    public Map<String, OperationDefinition> getOperations() { return operations; }
+    
+    public OperationDefinition getOperation(String opName) {
+        return operations.get(opName);
+    }
+    
+    /**
+     * Array slot lookup of a well-known operation; null if not defined
+     */
+    public OperationDefinition getOperation(DictionaryOperation operation) {
+        if (operationSlots != null) {
+            return operationSlots[operation.ordinal()];
+        }
+        return operations != null ? operations.get(operation.getKey()) : null;
+    }
+    
+    public void setOperations(Map<String, OperationDefinition> ops) { checkMutable(); this.operations = ops; }
+    
+    /**
+     * Make the operations read-only and fill the well-known slots
+     */
+    void freeze(String serviceName) {
+        if (operationSlots != null) {
+            return;
+        }
+        this.name = serviceName;
+        OperationDefinition[] slots = new OperationDefinition[DictionaryOperation.values().length];
+        Map<String, OperationDefinition> frozenOps = new LinkedHashMap<>();
+        if (operations != null) {
+            for (Map.Entry<String, OperationDefinition> entry : operations.entrySet()) {
+                OperationDefinition op = entry.getValue();
+                op.setRef(serviceName + "." + entry.getKey());
+                op.freeze();
+                frozenOps.put(entry.getKey(), op);
+                DictionaryOperation known = DictionaryOperation.of(entry.getKey());
+                if (known != null) {
+                    slots[known.ordinal()] = op;
+                }
+            }
+        }
+        this.operations = Collections.unmodifiableMap(frozenOps);
+        this.operationSlots = slots;
+    }
+    
+    private void checkMutable() {
+        if (operationSlots != null) {
+            throw new IllegalStateException("Service " + name + " is frozen");
+        }
+    }
+}
+
+/**
+ * Operation definition (e.g., create, delete, list)
+ */
+public class OperationDefinition {
+    private String method;       // HTTP method or "SSH"
+    private String endpoint;     // URL path or CLI command
+    private String body;         // Request body template
+    private Map<String, String> headers;
+    private ResponseMapping responseMapping;
+    private String successPattern;  // For CLI responses
+    private PaginationConfig pagination;  // For list operations
+    private Boolean idempotent;  // Safe to resend; null = only GET/HEAD
+    
+    // Bulk operations: the per-rule fragment is rendered once per rule and
+    // the joined fragments are substituted verbatim for ${items}
+    private String itemTemplate;
+    private String itemSeparator = ",";
+    private int maxItems;  // Rules per request, 0 = unlimited
+    
+    /** Placeholder receiving the joined item fragments of a bulk operation */
+    public static final String BULK_ITEMS = "items";
+    
+    // Compiled at parse time, rendered on every request
+    private String ref;  // "Service.operation", set when the dictionary is frozen
+    private Set<String> placeholders = Collections.emptySet();
+    private CompiledTemplate compiledEndpoint;
+    private CompiledTemplate compiledBody;
+    private Map<String, CompiledTemplate> compiledHeaders;
+    private TemplateEscaping endpointEscaping = TemplateEscaping.NONE;
+    private TemplateEscaping bodyEscaping = TemplateEscaping.NONE;
+    private CompiledTemplate compiledItem;
+    private TemplateEscaping itemEscaping = TemplateEscaping.NONE;
+    private int itemContext;
+    private boolean frozen;  // Set by freeze(), after compileTemplates()
+    
+    // Getters and setters
+    public String getMethod() { return method; }
+    public void setMethod(String method) { checkMutable(); this.method = method; }
+    
+    public String getEndpoint() { return endpoint; }
+    public void setEndpoint(String endpoint) { checkMutable(); this.endpoint = endpoint; }
+    
+    public String getBody() { return body; }
+    public void setBody(String body) { checkMutable(); this.body = body; }
+    
+    public Map<String, String> getHeaders() { return headers; }
+    public void setHeaders(Map<String, String> headers) { checkMutable(); this.headers = headers; }
+    
+    public String getSuccessPattern() { return successPattern; }
+    public void setSuccessPattern(String pattern) { checkMutable(); this.successPattern = pattern; }
+    
+    public PaginationConfig getPagination() { return pagination; }
+    public void setPagination(PaginationConfig pagination) { checkMutable(); this.pagination = pagination; }
+    
+    public String getItemTemplate() { return itemTemplate; }
+    public void setItemTemplate(String template) { checkMutable(); this.itemTemplate = template; }
+    
+    public String getItemSeparator() { return itemSeparator; }
+    public void setItemSeparator(String separator) { checkMutable(); this.itemSeparator = separator; }
+    
+    public int getMaxItems() { return maxItems; }
+    public void setMaxItems(int maxItems) { checkMutable(); this.maxItems = maxItems; }
+    
+    /**
+     * Whether a request of this operation may be sent again after a failure
+     * or a retriable status. Reads are; anything else only when the
+     * dictionary says so ("idempotent: true"), since a retried create or
+     * CLI command can apply twice.
+     */
+    public boolean isIdempotent() {
+        if (idempotent != null) {
+            return idempotent;
+        }
+        return method != null && (method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD"));
+    }
+    public void setIdempotent(Boolean idempotent) { checkMutable(); this.idempotent = idempotent; }
+    
+    /**
+     * Compile endpoint, body and headers into segment plans.
+     * Called once by the parser; must be re-run if the raw strings change.
+     */
+    public void compileTemplates() {
+        checkMutable();
+        this.endpointEscaping = TemplateEscaping.forEndpoint(method, endpoint);
+        this.bodyEscaping = TemplateEscaping.forBody(method, headers, body);
+        this.compiledEndpoint = CompiledTemplate.compile(endpoint);
+        this.compiledBody = CompiledTemplate.compile(body);
+        this.compiledItem = CompiledTemplate.compile(itemTemplate);
+
+        // Item values are escaped for wherever ${items} lands
+        boolean itemsInBody = body != null && body.contains("${" + BULK_ITEMS + "}");
+        this.itemEscaping = itemsInBody ? bodyEscaping : endpointEscaping;
+        CompiledTemplate outer = itemsInBody ? compiledBody : compiledEndpoint;
+        this.itemContext = outer != null ? outer.contextOf(BULK_ITEMS) : 0;
+
+        if (headers != null) {
+            Map<String, CompiledTemplate> compiled = new LinkedHashMap<>();
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                compiled.put(h.getKey(), CompiledTemplate.compile(h.getValue()));
+            }
+            this.compiledHeaders = Collections.unmodifiableMap(compiled);
+        } else {
+            this.compiledHeaders = Collections.emptyMap();
+        }
+
+        Set<String> names = new LinkedHashSet<>();
+        for (CompiledTemplate template : Arrays.asList(compiledEndpoint, compiledBody, compiledItem)) {
+            if (template != null) {
+                names.addAll(template.getVariables());
+            }
+        }
+        for (CompiledTemplate template : compiledHeaders.values()) {
+            names.addAll(template.getVariables());
+        }
+        this.placeholders = Collections.unmodifiableSet(names);
+    }
+    
+    /**
+     * Placeholder names of endpoint, body, item template and headers,
+     * collected by compileTemplates()
+     */
+    public Set<String> getPlaceholders() { return placeholders; }
+    
+    public String getRef() { return ref; }
+    void setRef(String ref) { checkMutable(); this.ref = ref; }
+    
+    public CompiledTemplate getCompiledEndpoint() { return compiledEndpoint; }
+    public CompiledTemplate getCompiledBody() { return compiledBody; }
+    public Map<String, CompiledTemplate> getCompiledHeaders() { return compiledHeaders; }
+    public TemplateEscaping getEndpointEscaping() { return endpointEscaping; }
+    public TemplateEscaping getBodyEscaping() { return bodyEscaping; }
+    public CompiledTemplate getCompiledItem() { return compiledItem; }
+    
+    /**
+     * True for bulk operations (an itemTemplate is defined)
+     */
+    public boolean isBulk() { return compiledItem != null; }
+    
+    /**
+     * Render one item fragment per context, joined with the item separator.
+     * The result is meant for the ${items} placeholder and is not escaped again.
+     * In a form field or query value (PAN-OS element=, xpath=) the joined
+     * text, item template and separator included, is URL-encoded as a whole.
+     */
+    public CompiledTemplate.Raw renderItems(List<TemplateContext> contexts) {
+        TemplateEscaping fragment = itemEscaping.fragmentEscaping(itemContext);
+        TemplateEscaping values = fragment != null ? fragment : itemEscaping;
+        StringBuilder out = new StringBuilder(contexts.size() * 64);
+        for (int i = 0; i < contexts.size(); i++) {
+            if (i > 0) {
+                out.append(itemSeparator);
+            }
+            compiledItem.renderTo(out, contexts.get(i), values, itemContext);
+        }
+        if (fragment == null) {
+            return CompiledTemplate.Raw.of(out.toString());
+        }
+        StringBuilder encoded = new StringBuilder(out.length() + out.length() / 2);
+        TemplateEscaping.appendFragment(encoded, out);
+        return CompiledTemplate.Raw.of(encoded.toString());
+    }
+    
+    /**
+     * Render endpoint with the escaping chosen at compile time
+     */
+    public String renderEndpoint(TemplateContext context) {
+        return compiledEndpoint == null ? null : compiledEndpoint.render(context, endpointEscaping);
+    }
+    
+    /**
+     * Render body with the escaping chosen at compile time
+     */
+    public String renderBody(TemplateContext context) {
+        return compiledBody == null ? null : compiledBody.render(context, bodyEscaping);
+    }
+    
+    /**
+     * Render all headers (values are not escaped)
+     */
+    public Map<String, String> renderHeaders(TemplateContext context) {
+        if (compiledHeaders == null || compiledHeaders.isEmpty()) {
+            return new HashMap<>();
+        }
+        Map<String, String> rendered = new HashMap<>(compiledHeaders.size() * 2);
+        for (Map.Entry<String, CompiledTemplate> h : compiledHeaders.entrySet()) {
+            rendered.put(h.getKey(), h.getValue().render(context));
+        }
+        return rendered;
+    }
+    
+    public ResponseMapping getResponseMapping() { return responseMapping; }
+    public void setResponseMapping(ResponseMapping mapping) { checkMutable(); this.responseMapping = mapping; }
+    
+    /**
+     * Called by VnfDictionary.freeze(); the setters fail afterwards
+     */
+    void freeze() {
+        if (responseMapping != null) {
+            responseMapping.freeze();
+        }
+        if (pagination != null) {
+            pagination.freeze();
+        }
+        this.frozen = true;
+    }
+    
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Operation " + ref + " is frozen");
+        }
+    }
+}
+
+/**
+ * Response mapping configuration
+ */
+public class ResponseMapping {
+    private int successCode = 200;
+    private String idPath;           // JSONPath to extract ID
+    private String listPath;         // JSONPath to list of items
+    private Map<String, String> itemPaths;  // Field mappings
+    private String successPattern;   // For XML/CLI responses
+    
+    // Compiled once per dictionary load
+    private JsonPath compiledIdPath;
+    private JsonPath compiledListPath;
+    private JsonFieldExtractor itemExtractor;
+    private boolean frozen;
+    
+    public int getSuccessCode() { return successCode; }
+    public void setSuccessCode(int code) { checkMutable(); this.successCode = code; }
+    
+    public String getIdPath() { return idPath; }
+    public void setIdPath(String path) { checkMutable(); this.idPath = path; }
+    
+    public String getListPath() { return listPath; }
+    public void setListPath(String path) { checkMutable(); this.listPath = path; }
+    
+    public Map<String, String> getItemPaths() { return itemPaths; }
+    public void setItemPaths(Map<String, String> paths) { checkMutable(); this.itemPaths = paths; }
+    
+    public String getSuccessPattern() { return successPattern; }
+    public void setSuccessPattern(String pattern) { checkMutable(); this.successPattern = pattern; }
+    
+    /**
+     * Compile idPath, listPath and item paths into reusable extractors.
+     * Called once by the parser.
+     *
+     * @throws IllegalArgumentException if a path is not supported
      */
-    boolean isReachable(VnfAppliance appliance);
+    public void compilePaths() {
+        checkMutable();
+        this.compiledIdPath = idPath != null ? JsonPath.compile(idPath) : null;
+        this.compiledListPath = listPath != null ? JsonPath.compile(listPath) : null;
+        
+        // List items without an explicit idPath use their "id" member
+        Map<String, String> paths = itemPaths;
+        if (listPath != null && (paths == null || !paths.containsKey("idPath"))) {
+            paths = new LinkedHashMap<>();
+            paths.put("idPath", "$.id");
+            if (itemPaths != null) {
+                paths.putAll(itemPaths);
+            }
+        }
+        this.itemExtractor = JsonFieldExtractor.compile(paths);
+    }
+    
+    public JsonPath getCompiledIdPath() { return compiledIdPath; }
+    public JsonPath getCompiledListPath() { return compiledListPath; }
+    public JsonFieldExtractor getItemExtractor() { return itemExtractor; }
     
     /**
-     * Get broker type (VR, Direct, External)
+     * Called by VnfDictionary.freeze(); the setters fail afterwards
      */
-    BrokerType getBrokerType();
+    void freeze() {
+        this.frozen = true;
+    }
+    
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Response mapping is frozen");
+        }
+    }
 }
 
 /**
- * Response parser interface
+ * Pagination for list operations.
+ * OFFSET pages with limit/offset query parameters and stops on a short page;
+ * CURSOR passes the value found at nextCursorPath until it is absent.
  */
-public interface VnfResponseParser {
+public class PaginationConfig {
     
-    /**
-     * Parse response and extract external ID
-     */
-    String extractExternalId(VnfResponse response, VnfDictionary dictionary, String operation);
+    public enum Type {
+        OFFSET, CURSOR
+    }
     
-    /**
-     * Parse list response into structured data
-     */
-    List<VnfDeviceRule> parseListResponse(
-        VnfResponse response,
-        VnfDictionary dictionary,
-        String serviceName
-    );
+    private Type type = Type.OFFSET;
+    private int pageSize = 500;
+    private String limitParam = "limit";
+    private String offsetParam = "offset";
+    private String cursorParam = "cursor";
+    private JsonPath nextCursorPath;
+    private boolean frozen;
+    
+    public Type getType() { return type; }
+    public void setType(Type type) { checkMutable(); this.type = type; }
+    
+    public int getPageSize() { return pageSize; }
+    public void setPageSize(int size) { checkMutable(); this.pageSize = size; }
+    
+    public String getLimitParam() { return limitParam; }
+    public void setLimitParam(String param) { checkMutable(); this.limitParam = param; }
+    
+    public String getOffsetParam() { return offsetParam; }
+    public void setOffsetParam(String param) { checkMutable(); this.offsetParam = param; }
+    
+    public String getCursorParam() { return cursorParam; }
+    public void setCursorParam(String param) { checkMutable(); this.cursorParam = param; }
+    
+    public JsonPath getNextCursorPath() { return nextCursorPath; }
+    public void setNextCursorPath(JsonPath path) { checkMutable(); this.nextCursorPath = path; }
     
     /**
-     * Check if response indicates success
+     * URI of one page. The cursor is ignored for OFFSET paging and omitted
+     * on the first CURSOR page.
      */
-    boolean isSuccess(VnfResponse response, VnfDictionary dictionary, String operation);
+    public String pageUri(String uri, int offset, String cursor) {
+        StringBuilder sb = new StringBuilder(uri);
+        char sep = uri.indexOf('?') >= 0 ? '&' : '?';
+        
+        sb.append(sep).append(limitParam).append('=').append(pageSize);
+        if (type == Type.OFFSET) {
+            sb.append('&').append(offsetParam).append('=').append(offset);
+        } else if (cursor != null) {
+            sb.append('&').append(cursorParam).append('=')
+              .append(URLEncoder.encode(cursor, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
     
     /**
-     * Extract error message from response
+     * Called by VnfDictionary.freeze(); the setters fail afterwards
      */
-    String extractErrorMessage(VnfResponse response);
+    void freeze() {
+        this.frozen = true;
+    }
+    
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Pagination configuration is frozen");
+        }
+    }
 }
 
-// =====================================================
-// 2. DATA MODELS
-// =====================================================
-
 /**
- * Represents a VNF dictionary
+ * Transaction section of a dictionary. Each entry names a regular
+ * operation ("System.commit"), so commands, success patterns and
+ * escaping work as for any other operation.
+ *
+ * REQUESTS: begin (optional), staged requests and commit are sent one by one.
+ * Standalone operations carry the commit as their commit request.
+ * SCRIPT: for CLI devices, where configure mode does not outlive a single
+ * SSH command: begin, staged commands and commit are chained into one
+ * command that stops at the first failing line. Standalone operations are
+ * wrapped in begin/commit the same way. A script cannot declare a rollback.
  */
-public class VnfDictionary {
-    private String id;
-    private String uuid;
-    private Long templateId;
-    private Long networkId;
-    private String name;
-    private String yamlContent;
-    private String schemaVersion;
-    private String vendor;
-    private String product;
-    private Date created;
-    private Date updated;
-    
-    // Parsed structure
-    private AccessConfig accessConfig;
-    private Map<String, ServiceDefinition> services;
-    
-    // Getters and setters
-    public String getId() { return id; }
-    public void setId(String id) { this.id = id; }
+public class TransactionConfig {
     
-    public String getSchemaVersion() { return schemaVersion; }
-    public void setSchemaVersion(String version) { this.schemaVersion = version; }
+    public enum Mode {
+        REQUESTS, SCRIPT
+    }
     
-    public AccessConfig getAccessConfig() { return accessConfig; }
-    public void setAccessConfig(AccessConfig config) { this.accessConfig = config; }
+    private Mode mode = Mode.REQUESTS;
+    private String beginOperation;
+    private String commitOperation;
+    private String rollbackOperation;
+    private boolean frozen;
     
-    public Map<String, ServiceDefinition> getServices() { return services; }
-    public void setServices(Map<String, ServiceDefinition> services) { this.services = services; }
+    public Mode getMode() { return mode; }
+    public void setMode(Mode mode) { checkMutable(); this.mode = mode; }
     
-    public ServiceDefinition getService(String name) { return services.get(name); }
-}
-
-/**
- * Access configuration from dictionary
- */
-public class AccessConfig {
-    private String protocol;  // "https", "ssh", "http"
-    private int port;
-    private String basePath;
-    private AuthType authType;
-    private String usernameRef;
-    private String passwordRef;
-    private String tokenRef;
-    private String tokenHeader;
+    public String getBeginOperation() { return beginOperation; }
+    public void setBeginOperation(String op) { checkMutable(); this.beginOperation = op; }
     
-    // Getters and setters
-    public String getProtocol() { return protocol; }
-    public void setProtocol(String protocol) { this.protocol = protocol; }
+    public String getCommitOperation() { return commitOperation; }
+    public void setCommitOperation(String op) { checkMutable(); this.commitOperation = op; }
     
-    public int getPort() { return port; }
-    public void setPort(int port) { this.port = port; }
+    public String getRollbackOperation() { return rollbackOperation; }
+    public void setRollbackOperation(String op) { checkMutable(); this.rollbackOperation = op; }
     
-    public AuthType getAuthType() { return authType; }
-    public void setAuthType(AuthType authType) { this.authType = authType; }
-}
-
-/**
- * Service definition (e.g., Firewall, NAT)
- */
-public class ServiceDefinition {
-    private String name;
-    private Map<String, OperationDefinition> operations;
+    public boolean isScript() { return mode == Mode.SCRIPT; }
     
-    public OperationDefinition getOperation(String opName) {
-        return operations.get(opName);
+    /**
+     * Called by VnfDictionary.freeze(); the setters fail afterwards
+     */
+    void freeze() {
+        this.frozen = true;
     }
     
-    public void setOperations(Map<String, OperationDefinition> ops) {
-        this.operations = ops;
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Transaction configuration is frozen");
+        }
     }
 }
 
 /**
- * Operation definition (e.g., create, delete, list)
+ * Cheap probe of a device's configuration revision, used by reconciliation
+ * to skip listing devices that have not changed since their last clean run.
+ *
+ * The revision is read from the response of one operation, by exactly one
+ * of: a JSONPath into the body, a response header (e.g. ETag), or the first
+ * group of a regex for XML/CLI output.
  */
-public class OperationDefinition {
-    private String method;       // HTTP method or "SSH"
-    private String endpoint;     // URL path or CLI command
-    private String body;         // Request body template
-    private Map<String, String> headers;
-    private ResponseMapping responseMapping;
-    private String successPattern;  // For CLI responses
+public class RevisionConfig {
     
-    // Getters and setters
-    public String getMethod() { return method; }
-    public void setMethod(String method) { this.method = method; }
+    private String operation;  // "Service.operation"
+    private String path;
+    private String header;
+    private String pattern;
     
-    public String getEndpoint() { return endpoint; }
-    public void setEndpoint(String endpoint) { this.endpoint = endpoint; }
+    // Compiled once per dictionary load
+    private JsonPath compiledPath;
+    private java.util.regex.Pattern compiledPattern;
+    private boolean frozen;
     
-    public String getBody() { return body; }
-    public void setBody(String body) { this.body = body; }
+    public String getOperation() { return operation; }
+    public void setOperation(String operation) { checkMutable(); this.operation = operation; }
     
-    public ResponseMapping getResponseMapping() { return responseMapping; }
-    public void setResponseMapping(ResponseMapping mapping) { this.responseMapping = mapping; }
-}
-
-/**
- * Response mapping configuration
- */
-public class ResponseMapping {
-    private int successCode = 200;
-    private String idPath;           // JSONPath to extract ID
-    private String listPath;         // JSONPath to list of items
-    private Map<String, String> itemPaths;  // Field mappings
+    public String getPath() { return path; }
+    public void setPath(String path) { checkMutable(); this.path = path; }
     
-    public int getSuccessCode() { return successCode; }
-    public void setSuccessCode(int code) { this.successCode = code; }
+    public String getHeader() { return header; }
+    public void setHeader(String header) { checkMutable(); this.header = header; }
     
-    public String getIdPath() { return idPath; }
-    public void setIdPath(String path) { this.idPath = path; }
+    public String getPattern() { return pattern; }
+    public void setPattern(String pattern) { checkMutable(); this.pattern = pattern; }
+    
+    /**
+     * @throws IllegalArgumentException if the path or pattern is not supported
+     */
+    public void compile() {
+        checkMutable();
+        this.compiledPath = path != null ? JsonPath.compile(path) : null;
+        this.compiledPattern = pattern != null ? java.util.regex.Pattern.compile(pattern) : null;
+    }
+    
+    public JsonPath getCompiledPath() { return compiledPath; }
+    public java.util.regex.Pattern getCompiledPattern() { return compiledPattern; }
+    
+    /**
+     * Called by VnfDictionary.freeze(); the setters fail afterwards
+     */
+    void freeze() {
+        this.frozen = true;
+    }
+    
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Revision configuration is frozen");
+        }
+    }
 }
 
 /**
@@ -337,6 +1606,9 @@ public class VnfAppliance {
     private HealthStatus healthStatus;
     private Date lastContact;
     private Date created;
+    private Long accountId;              // Owner of the network (tenant rate limit)
+    private Integer rateLimitPerMinute;  // Overrides the dictionary's access.rateLimit
+    private Integer rateLimitBurst;
     
     // Lazy-loaded associations
     private VirtualMachine vmInstance;
@@ -356,11 +1628,44 @@ public class VnfAppliance {
     public String getManagementIp() { return managementIp; }
     public void setManagementIp(String ip) { this.managementIp = ip; }
     
+    public String getGuestIp() { return guestIp; }
+    public void setGuestIp(String ip) { this.guestIp = ip; }
+    
+    public Long getNetworkId() { return networkId; }
+    public void setNetworkId(Long id) { this.networkId = id; }
+    
+    public Long getTemplateId() { return templateId; }
+    public void setTemplateId(Long id) { this.templateId = id; }
+    
+    public Long getDictionaryId() { return dictionaryId; }
+    public void setDictionaryId(Long id) { this.dictionaryId = id; }
+    
+    public VnfDictionary getDictionary() { return dictionary; }
+    public void setDictionary(VnfDictionary dictionary) { this.dictionary = dictionary; }
+    
+    public Network getNetwork() { return network; }
+    public void setNetwork(Network network) { this.network = network; }
+    
+    public VirtualMachine getVmInstance() { return vmInstance; }
+    public void setVmInstance(VirtualMachine vmInstance) { this.vmInstance = vmInstance; }
+    
     public VnfState getState() { return state; }
     public void setState(VnfState state) { this.state = state; }
     
     public HealthStatus getHealthStatus() { return healthStatus; }
     public void setHealthStatus(HealthStatus status) { this.healthStatus = status; }
+    
+    public Date getLastContact() { return lastContact; }
+    public void setLastContact(Date lastContact) { this.lastContact = lastContact; }
+    
+    public Long getAccountId() { return accountId; }
+    public void setAccountId(Long accountId) { this.accountId = accountId; }
+    
+    public Integer getRateLimitPerMinute() { return rateLimitPerMinute; }
+    public void setRateLimitPerMinute(Integer perMinute) { this.rateLimitPerMinute = perMinute; }
+    
+    public Integer getRateLimitBurst() { return rateLimitBurst; }
+    public void setRateLimitBurst(Integer burst) { this.rateLimitBurst = burst; }
 }
 
 /**
@@ -369,12 +1674,16 @@ public class VnfAppliance {
 public class VnfRequest {
     private String targetIp;
     private String protocol;
+    private int port;  // 0 = default port of the protocol
     private String method;
     private String uri;
     private Map<String, String> headers;
     private String body;
     private int timeoutSeconds;
     private String jwtToken;  // For broker authorization
+    private String operation; // "Service.operation" it was built from (audit)
+    private boolean idempotent;  // Safe to resend (OperationDefinition.isIdempotent)
+    private VnfRequest commitRequest;  // Makes a standalone candidate-config change take effect
     
     // Getters and setters
     public String getTargetIp() { return targetIp; }
@@ -383,6 +1692,12 @@ public class VnfRequest {
     public String getProtocol() { return protocol; }
     public void setProtocol(String protocol) { this.protocol = protocol; }
     
+    public int getPort() { return port; }
+    public void setPort(int port) { this.port = port; }
+    
+    public int getTimeoutSeconds() { return timeoutSeconds; }
+    public void setTimeoutSeconds(int seconds) { this.timeoutSeconds = seconds; }
+    
     public String getMethod() { return method; }
     public void setMethod(String method) { this.method = method; }
     
@@ -397,6 +1712,109 @@ public class VnfRequest {
     
     public String getJwtToken() { return jwtToken; }
     public void setJwtToken(String token) { this.jwtToken = token; }
+    
+    public String getOperation() { return operation; }
+    public void setOperation(String operation) { this.operation = operation; }
+    
+    /**
+     * Whether the request may be resent (retries): reads always, anything
+     * else only if its operation was declared idempotent
+     */
+    public boolean isIdempotent() {
+        return idempotent ||
+               (method != null && (method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD")));
+    }
+    public void setIdempotent(boolean idempotent) { this.idempotent = idempotent; }
+    
+    /**
+     * Commit to send after this request succeeds, or null. Set on requests
+     * built outside a transaction for dictionaries whose rule operations only
+     * edit a candidate configuration (REQUESTS transactions, e.g. PAN-OS).
+     */
+    public VnfRequest getCommitRequest() { return commitRequest; }
+    public void setCommitRequest(VnfRequest commit) { this.commitRequest = commit; }
+    
+    /**
+     * Copy of this request addressed to another URI (used for paging)
+     */
+    public VnfRequest withUri(String newUri) {
+        VnfRequest copy = new VnfRequest();
+        copy.targetIp = targetIp;
+        copy.protocol = protocol;
+        copy.port = port;
+        copy.method = method;
+        copy.uri = newUri;
+        copy.headers = headers;
+        copy.body = body;
+        copy.timeoutSeconds = timeoutSeconds;
+        copy.jwtToken = jwtToken;
+        copy.operation = operation;
+        copy.idempotent = idempotent;
+        copy.commitRequest = commitRequest;
+        return copy;
+    }
+}
+
+/**
+ * A request built for one or more rules. Bulk requests cover several
+ * rules; ruleIds lists them in payload order so the external IDs in the
+ * response can be matched back.
+ */
+public class VnfBatchRequest {
+    private final VnfRequest request;
+    private final String operation;   // "Firewall.bulkCreate", "NAT.delete", ...
+    private final List<Long> ruleIds;
+    private final boolean bulk;
+    
+    public VnfBatchRequest(VnfRequest request, String operation, List<Long> ruleIds, boolean bulk) {
+        this.request = request;
+        this.operation = operation;
+        this.ruleIds = Collections.unmodifiableList(ruleIds);
+        this.bulk = bulk;
+    }
+    
+    public VnfRequest getRequest() { return request; }
+    public String getOperation() { return operation; }
+    public List<Long> getRuleIds() { return ruleIds; }
+    public boolean isBulk() { return bulk; }
+}
+
+/**
+ * Outcome of a transaction. Responses are recorded per sent step so the
+ * external IDs of staged creates can be extracted afterwards.
+ */
+public class VnfTransactionResult {
+    private boolean committed;
+    private boolean rolledBack;
+    private String failedOperation;
+    private String errorMessage;
+    private final List<VnfBatchRequest> steps = new ArrayList<>();
+    private final List<VnfResponse> responses = new ArrayList<>();
+    
+    public boolean isCommitted() { return committed; }
+    public void setCommitted(boolean committed) { this.committed = committed; }
+    
+    public boolean isRolledBack() { return rolledBack; }
+    public void setRolledBack(boolean rolledBack) { this.rolledBack = rolledBack; }
+    
+    public String getFailedOperation() { return failedOperation; }
+    public String getErrorMessage() { return errorMessage; }
+    
+    public void setFailure(String operation, String message) {
+        this.failedOperation = operation;
+        this.errorMessage = message;
+    }
+    
+    public void addResponse(VnfBatchRequest step, VnfResponse response) {
+        steps.add(step);
+        responses.add(response);
+    }
+    
+    /**
+     * Steps sent, in order, aligned with getResponses()
+     */
+    public List<VnfBatchRequest> getSteps() { return steps; }
+    public List<VnfResponse> getResponses() { return responses; }
 }
 
 /**
@@ -409,6 +1827,7 @@ public class VnfResponse {
     private long durationMs;
     private boolean success;
     private String errorMessage;
+    private InputStream bodyStream;  // Unbuffered body for large list responses
     
     // Getters and setters
     public int getStatusCode() { return statusCode; }
@@ -417,9 +1836,48 @@ public class VnfResponse {
     public String getBody() { return body; }
     public void setBody(String body) { this.body = body; }
     
+    public Map<String, String> getHeaders() { return headers; }
+    public void setHeaders(Map<String, String> headers) { this.headers = headers; }
+    
+    public InputStream getBodyStream() { return bodyStream; }
+    public void setBodyStream(InputStream stream) { this.bodyStream = stream; }
+    
+    /**
+     * Reader over the body: the stream if one is attached (single use),
+     * otherwise the buffered body. Null if there is no body.
+     */
+    public Reader openBodyReader() {
+        if (bodyStream != null) {
+            InputStream stream = bodyStream;
+            bodyStream = null;
+            return new BufferedReader(
+                new InputStreamReader(stream, StandardCharsets.UTF_8));
+        }
+        return body != null ? new StringReader(body) : null;
+    }
+    
+    /**
+     * The body as a String, reading an attached stream to the end first so
+     * that later reads see the same content. Null if there is no body.
+     */
+    public String bufferBody() {
+        if (bodyStream != null) {
+            try (InputStream stream = bodyStream) {
+                bodyStream = null;
+                body = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read response body", e);
+            }
+        }
+        return body;
+    }
+    
     public boolean isSuccess() { return success; }
     public void setSuccess(boolean success) { this.success = success; }
     
+    public String getErrorMessage() { return errorMessage; }
+    public void setErrorMessage(String message) { this.errorMessage = message; }
+    
     public long getDurationMs() { return durationMs; }
     public void setDurationMs(long ms) { this.durationMs = ms; }
 }
@@ -430,15 +1888,67 @@ public class VnfResponse {
 public class VnfDeviceRule {
     private String externalId;
     private String serviceName;  // "Firewall", "NAT", etc.
-    private Map<String, Object> properties;
+    private Map<String, Object> properties = new HashMap<>();
     
     public String getExternalId() { return externalId; }
     public void setExternalId(String id) { this.externalId = id; }
     
+    public String getServiceName() { return serviceName; }
+    public void setServiceName(String name) { this.serviceName = name; }
+    
     public Map<String, Object> getProperties() { return properties; }
     public void setProperty(String key, Object value) { properties.put(key, value); }
 }
 
+/**
+ * A CloudStack rule as seen by reconciliation
+ */
+public class VnfRuleRecord {
+    private final long ruleId;
+    private final String externalId;
+    private String fingerprint;  // stored value, may be missing or stale
+    private final Supplier<Map<String, Object>> fields;
+
+    /**
+     * @param fields canonical fields (VnfRuleFingerprint.firewallFields etc.),
+     *               only loaded when the stored fingerprint must be recomputed
+     */
+    public VnfRuleRecord(long ruleId, String externalId, String fingerprint,
+                         Supplier<Map<String, Object>> fields) {
+        this.ruleId = ruleId;
+        this.externalId = externalId;
+        this.fingerprint = fingerprint;
+        this.fields = fields;
+    }
+
+    public long getRuleId() { return ruleId; }
+    public String getExternalId() { return externalId; }
+
+    public String getFingerprint() { return fingerprint; }
+    public void setFingerprint(String fingerprint) { this.fingerprint = fingerprint; }
+
+    public Map<String, Object> getFields() { return fields != null ? fields.get() : Collections.emptyMap(); }
+}
+
+/**
+ * Lazy iterator over device rules; close to release the underlying stream.
+ * Failures while reading or fetching pages surface as VnfListIterationException.
+ */
+public interface VnfDeviceRuleIterator extends Iterator<VnfDeviceRule>, AutoCloseable {
+    
+    @Override
+    void close();
+    
+    static VnfDeviceRuleIterator of(List<VnfDeviceRule> rules) {
+        Iterator<VnfDeviceRule> it = rules.iterator();
+        return new VnfDeviceRuleIterator() {
+            public boolean hasNext() { return it.hasNext(); }
+            public VnfDeviceRule next() { return it.next(); }
+            public void close() { }
+        };
+    }
+}
+
 /**
  * Reconciliation result
  */
@@ -450,16 +1960,40 @@ public class VnfReconciliationResult {
     private int extraRules;
     private int rulesReapplied;
     private int rulesRemoved;
-    private List<ReconciliationAction> actions;
+    private List<ReconciliationAction> actions = new ArrayList<>();
     private String errorMessage;
+    private String deviceRevision;   // recorded in vnf_reconciliation_log.device_revision
+    private String rulesDigest;      // recorded in vnf_reconciliation_log.rules_digest
+    private boolean unchanged;       // rule lists skipped: revision and rules as last clean run
     
     // Getters and setters
+    public boolean isSuccess() { return success; }
+    public void setSuccess(boolean success) { this.success = success; }
+    
     public boolean isDriftDetected() { return driftDetected; }
     public void setDriftDetected(boolean detected) { this.driftDetected = detected; }
     
+    public int getRulesChecked() { return rulesChecked; }
+    public void setRulesChecked(int count) { this.rulesChecked = count; }
+    
     public int getMissingRules() { return missingRules; }
     public void setMissingRules(int count) { this.missingRules = count; }
     
+    public int getExtraRules() { return extraRules; }
+    public void setExtraRules(int count) { this.extraRules = count; }
+    
+    public String getErrorMessage() { return errorMessage; }
+    public void setErrorMessage(String message) { this.errorMessage = message; }
+    
+    public String getDeviceRevision() { return deviceRevision; }
+    public void setDeviceRevision(String revision) { this.deviceRevision = revision; }
+    
+    public String getRulesDigest() { return rulesDigest; }
+    public void setRulesDigest(String digest) { this.rulesDigest = digest; }
+    
+    public boolean isUnchanged() { return unchanged; }
+    public void setUnchanged(boolean unchanged) { this.unchanged = unchanged; }
+    
     public List<ReconciliationAction> getActions() { return actions; }
     public void addAction(ReconciliationAction action) { actions.add(action); }
 }
@@ -483,6 +2017,11 @@ public class ReconciliationAction {
         this.ruleId = ruleId;
         this.description = desc;
     }
+    
+    public String getService() { return service; }
+    public ActionType getActionType() { return actionType; }
+    public String getRuleId() { return ruleId; }
+    public String getDescription() { return description; }
 }
 
 /**
@@ -546,6 +2085,92 @@ public enum LoadBalancerOperation {
     CREATE, DELETE, UPDATE, LIST
 }
 
+/**
+ * Services with a fixed slot in a frozen dictionary
+ */
+public enum DictionaryService {
+    FIREWALL("Firewall"),
+    NAT("NAT"),
+    SOURCE_NAT("SourceNAT"),
+    LOAD_BALANCER("LoadBalancer"),
+    ROUTING("Routing"),
+    VPN("VPN"),
+    SYSTEM("System");
+    
+    private final String key;
+    
+    DictionaryService(String key) { this.key = key; }
+    
+    /** Name of the service in the dictionary YAML */
+    public String getKey() { return key; }
+    
+    /**
+     * Well-known service for a dictionary key, null for any other
+     */
+    public static DictionaryService of(String key) {
+        if (key == null) {
+            return null;
+        }
+        switch (key) {
+            case "Firewall": return FIREWALL;
+            case "NAT": return NAT;
+            case "SourceNAT": return SOURCE_NAT;
+            case "LoadBalancer": return LOAD_BALANCER;
+            case "Routing": return ROUTING;
+            case "VPN": return VPN;
+            case "System": return SYSTEM;
+            default: return null;
+        }
+    }
+}
+
+/**
+ * Operations with a fixed slot in a frozen service
+ */
+public enum DictionaryOperation {
+    CREATE("create"),
+    DELETE("delete"),
+    UPDATE("update"),
+    LIST("list"),
+    BULK_CREATE("bulkCreate"),
+    BULK_DELETE("bulkDelete"),
+    BEGIN("begin"),
+    COMMIT("commit"),
+    ROLLBACK("rollback"),
+    REVERT("revert"),
+    REVISION("revision");
+    
+    private final String key;
+    
+    DictionaryOperation(String key) { this.key = key; }
+    
+    /** Name of the operation in the dictionary YAML */
+    public String getKey() { return key; }
+    
+    /**
+     * Well-known operation for a dictionary key, null for any other
+     */
+    public static DictionaryOperation of(String key) {
+        if (key == null) {
+            return null;
+        }
+        switch (key) {
+            case "create": return CREATE;
+            case "delete": return DELETE;
+            case "update": return UPDATE;
+            case "list": return LIST;
+            case "bulkCreate": return BULK_CREATE;
+            case "bulkDelete": return BULK_DELETE;
+            case "begin": return BEGIN;
+            case "commit": return COMMIT;
+            case "rollback": return ROLLBACK;
+            case "revert": return REVERT;
+            case "revision": return REVISION;
+            default: return null;
+        }
+    }
+}
+
 // =====================================================
 // 4. EXCEPTIONS
 // =====================================================
@@ -586,6 +2211,16 @@ public class CommunicationException extends CloudException {
     public boolean isRetriable() { return retriable; }
 }
 
+/**
+ * Unchecked failure while iterating a lazily read or paginated list
+ * (the cause is the underlying IOException or CommunicationException)
+ */
+public class VnfListIterationException extends RuntimeException {
+    public VnfListIterationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
+
 // =====================================================
 // 5. VALIDATION RESULT
 // =====================================================
@@ -617,6 +2252,18 @@ public class DictionaryValidationResult {
     
     public List<String> getServicesFound() { return servicesFound; }
     public void addService(String service) { servicesFound.add(service); }
+    
+    /**
+     * Read-only copy, safe to share between callers
+     */
+    public DictionaryValidationResult toUnmodifiable() {
+        DictionaryValidationResult copy = new DictionaryValidationResult();
+        copy.valid = valid;
+        copy.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+        copy.warnings = Collections.unmodifiableList(new ArrayList<>(warnings));
+        copy.servicesFound = Collections.unmodifiableList(new ArrayList<>(servicesFound));
+        return copy;
+    }
 }
 
 // =====================================================
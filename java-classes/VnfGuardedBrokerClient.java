@@ -0,0 +1,566 @@
+// =====================================================
+// VNF Guarded Broker Client - Circuit Breaker & Adaptive Limit
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Protects appliances that are failing or overloaded.
+ *
+ * Every request to an appliance passes two per-appliance guards:
+ *
+ * Circuit breaker (VNF_CIRCUIT_BREAKER_*): after failureThreshold
+ * consecutive failures the circuit opens and requests fail at once with a
+ * non-retriable CommunicationException. After openMillis one trial request
+ * is let through (half-open); its success closes the circuit, its failure
+ * opens it again. Requests admitted before the circuit opened may still
+ * complete meanwhile; they do not decide the trial.
+ *
+ * Adaptive concurrency limit (VNF_ADAPTIVE_LIMIT_*): AIMD. Each fast
+ * success raises the limit by 1/limit, about one per limit's worth of
+ * requests. A retry status code (VNF_RETRY_STATUS_CODES), a retriable
+ * failure or a response slower than slowMillis multiplies it by
+ * backoffRatio. A request over the limit is rejected as retriable, so
+ * callers back off instead of queueing threads on a struggling device.
+ *
+ * A failure is a retriable CommunicationException or a retry status code;
+ * other errors (bad request, authentication) say nothing about the
+ * appliance's health and are ignored by both guards. Health probes
+ * (isReachable) bypass the guards.
+ *
+ * Place it above VnfBoundedBrokerClient so shed requests never wait for
+ * an I/O permit, and below VnfPipelinedBrokerClient, whose retries then
+ * back off on shed requests and stop on an open circuit.
+ */
+public class VnfGuardedBrokerClient implements VnfBrokerClient {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 10;
+    public static final long DEFAULT_OPEN_MILLIS = 60_000;
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 32;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.5;
+    public static final long DEFAULT_SLOW_MILLIS = 5000;
+
+    /**
+     * Called when an appliance's circuit changes state, and once each time
+     * its consecutive failures reach the error threshold (VNF_ERROR_THRESHOLD)
+     */
+    public interface Listener {
+        default void onStateChange(VnfAppliance appliance, State from, State to) { }
+        default void onErrorThreshold(VnfAppliance appliance, int consecutiveFailures) { }
+    }
+
+    private final VnfBrokerClient delegate;
+    private final Executor executor;
+    private final ConcurrentHashMap<Object, Guard> guards = new ConcurrentHashMap<>();
+
+    private boolean breakerEnabled = true;
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OPEN_MILLIS);
+    private boolean limitEnabled = true;
+    private int initialLimit = DEFAULT_INITIAL_LIMIT;
+    private int minLimit = DEFAULT_MIN_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+    private long slowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_MILLIS);
+    private int errorThreshold;
+    private Listener listener = new Listener() { };
+
+    private long retryBaseDelayMs = VnfPipelinedBrokerClient.DEFAULT_RETRY_BASE_DELAY_MS;
+    private double retryBackoffMultiplier = VnfPipelinedBrokerClient.DEFAULT_RETRY_BACKOFF_MULTIPLIER;
+    private long retryMaxDelayMs = VnfPipelinedBrokerClient.DEFAULT_RETRY_MAX_DELAY_MS;
+    private Set<Integer> retryStatusCodes = VnfPipelinedBrokerClient.DEFAULT_RETRY_STATUS_CODES;
+
+    private final LongAdder rejectedOpen = new LongAdder();
+    private final LongAdder rejectedLimit = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+
+    /**
+     * @param executor runs the delayed retries of sendRequestWithRetryAsync
+     */
+    public VnfGuardedBrokerClient(VnfBrokerClient delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    // Settings; apply before the first request
+
+    /**
+     * VNF_CIRCUIT_BREAKER_ENABLED / _FAILURE_THRESHOLD / _TIMEOUT_SECONDS
+     */
+    public void setCircuitBreaker(boolean enabled, int failureThreshold, long openMillis) {
+        if (failureThreshold <= 0 || openMillis <= 0) {
+            throw new IllegalArgumentException("Circuit breaker settings must be positive: " +
+                                               failureThreshold + "/" + openMillis);
+        }
+        this.breakerEnabled = enabled;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * VNF_ADAPTIVE_LIMIT_* settings
+     */
+    public void setAdaptiveLimit(boolean enabled, int initial, int min, int max, double backoffRatio,
+                                 long slowMillis) {
+        if (min <= 0 || initial < min || max < initial || backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Invalid adaptive limit: initial=" + initial + " min=" + min +
+                                               " max=" + max + " backoffRatio=" + backoffRatio);
+        }
+        this.limitEnabled = enabled;
+        this.initialLimit = initial;
+        this.minLimit = min;
+        this.maxLimit = max;
+        this.backoffRatio = backoffRatio;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+    }
+
+    /**
+     * Backoff between retry attempts and the status codes that signal
+     * overload (VNF_RETRY_* settings)
+     */
+    public void setRetryPolicy(long baseDelayMs, double multiplier, long maxDelayMs, Set<Integer> statusCodes) {
+        this.retryBaseDelayMs = baseDelayMs;
+        this.retryBackoffMultiplier = multiplier;
+        this.retryMaxDelayMs = maxDelayMs;
+        this.retryStatusCodes = Set.copyOf(statusCodes);
+    }
+
+    /**
+     * @param errorThreshold VNF_ERROR_THRESHOLD; 0 disables the callback
+     */
+    public void setListener(Listener listener, int errorThreshold) {
+        this.listener = listener;
+        this.errorThreshold = errorThreshold;
+    }
+
+    /**
+     * "408,429,503" as in VNF_RETRY_STATUS_CODES
+     */
+    public static Set<Integer> parseStatusCodes(String value) {
+        Set<Integer> codes = new HashSet<>();
+        if (value != null) {
+            for (String code : value.split(",")) {
+                if (!code.isBlank()) {
+                    codes.add(Integer.parseInt(code.trim()));
+                }
+            }
+        }
+        return codes;
+    }
+
+    // Requests
+
+    @Override
+    public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+        Guard guard = guardOf(appliance);
+        Permit permit = admit(guard, appliance);
+        long start = System.nanoTime();
+        try {
+            VnfResponse response = delegate.sendRequest(appliance, request);
+            record(guard, permit, appliance, response, null, System.nanoTime() - start);
+            return response;
+        } catch (CommunicationException | RuntimeException e) {
+            record(guard, permit, appliance, null, e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+        Guard guard = guardOf(appliance);
+        Permit permit;
+        try {
+            permit = admit(guard, appliance);
+        } catch (CommunicationException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<VnfResponse> call;
+        try {
+            call = delegate.sendRequestAsync(appliance, request);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        return call.whenComplete((response, error) ->
+            record(guard, permit, appliance, response, unwrap(error), System.nanoTime() - start));
+    }
+
+    /**
+     * Retries retriable failures and retry status codes of idempotent
+     * requests with backoff; an open circuit ends the loop at once
+     */
+    @Override
+    public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+            throws CommunicationException {
+        if (!request.isIdempotent()) {
+            maxRetries = 0;
+        }
+        for (int attempt = 0; ; attempt++) {
+            try {
+                VnfResponse response = sendRequest(appliance, request);
+                if (attempt >= maxRetries || !retryStatusCodes.contains(response.getStatusCode())) {
+                    return response;
+                }
+            } catch (CommunicationException e) {
+                if (!e.isRetriable() || attempt >= maxRetries) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(backoff(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CommunicationException("Interrupted while retrying broker request", false);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestWithRetryAsync(VnfAppliance appliance, VnfRequest request,
+                                                                    int maxRetries) {
+        CompletableFuture<VnfResponse> result = new CompletableFuture<>();
+        attemptAsync(appliance, request, 0, request.isIdempotent() ? Math.max(0, maxRetries) : 0, result);
+        return result;
+    }
+
+    private void attemptAsync(VnfAppliance appliance, VnfRequest request, int attempt, int maxRetries,
+                              CompletableFuture<VnfResponse> result) {
+        sendRequestAsync(appliance, request).whenComplete((response, error) -> {
+            Throwable cause = unwrap(error);
+            boolean retry = attempt < maxRetries && (cause != null ?
+                cause instanceof CommunicationException && ((CommunicationException) cause).isRetriable() :
+                retryStatusCodes.contains(response.getStatusCode()));
+            if (retry) {
+                try {
+                    CompletableFuture.delayedExecutor(backoff(attempt), TimeUnit.MILLISECONDS, executor)
+                        .execute(() -> attemptAsync(appliance, request, attempt + 1, maxRetries, result));
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // complete with the last outcome
+                }
+            }
+            if (cause != null) {
+                result.completeExceptionally(cause);
+            } else {
+                result.complete(response);
+            }
+        });
+    }
+
+    long backoff(int attempt) {
+        double delay = retryBaseDelayMs * Math.pow(retryBackoffMultiplier, attempt);
+        return (long) Math.min(delay, retryMaxDelayMs);
+    }
+
+    /**
+     * A transaction takes one slot and is refused while the circuit is
+     * open; a failed step may be a rule error, so only a commit is recorded
+     */
+    @Override
+    public VnfTransactionResult executeTransaction(VnfAppliance appliance, VnfTransaction transaction,
+                                                   VnfResponseParser responseParser) {
+        Guard guard = guardOf(appliance);
+        Permit permit;
+        try {
+            permit = admit(guard, appliance);
+        } catch (CommunicationException e) {
+            VnfTransactionResult result = new VnfTransactionResult();
+            result.setFailure(null, e.getMessage());
+            return result;
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            VnfTransactionResult result = delegate.executeTransaction(appliance, transaction, responseParser);
+            success = result.isCommitted();
+            return result;
+        } finally {
+            complete(guard, permit, appliance, success ? Signal.SUCCESS : Signal.NEUTRAL,
+                     System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public CompletableFuture<VnfTransactionResult> executeTransactionAsync(VnfAppliance appliance,
+                                                                          VnfTransaction transaction,
+                                                                          VnfResponseParser responseParser) {
+        Guard guard = guardOf(appliance);
+        Permit permit;
+        try {
+            permit = admit(guard, appliance);
+        } catch (CommunicationException e) {
+            VnfTransactionResult result = new VnfTransactionResult();
+            result.setFailure(null, e.getMessage());
+            return CompletableFuture.completedFuture(result);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<VnfTransactionResult> call;
+        try {
+            call = delegate.executeTransactionAsync(appliance, transaction, responseParser);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        return call.whenComplete((result, error) -> complete(guard, permit, appliance,
+            result != null && result.isCommitted() ? Signal.SUCCESS : Signal.NEUTRAL, System.nanoTime() - start));
+    }
+
+    @Override
+    public boolean isReachable(VnfAppliance appliance) {
+        return delegate.isReachable(appliance);
+    }
+
+    @Override
+    public BrokerType getBrokerType() {
+        return delegate.getBrokerType();
+    }
+
+    // Guards
+
+    private enum Signal { SUCCESS, FAILURE, NEUTRAL }
+
+    private enum Refusal { OPEN, FULL }
+
+    /**
+     * A slot taken by admit, or why none was. A half-open circuit hands out
+     * a fresh trial permit, and only that permit's outcome moves it on.
+     */
+    private static final class Permit {
+        static final Permit ADMITTED = new Permit(null);
+        static final Permit REFUSED_OPEN = new Permit(Refusal.OPEN);
+        static final Permit REFUSED_FULL = new Permit(Refusal.FULL);
+
+        final Refusal refusal;
+
+        Permit(Refusal refusal) {
+            this.refusal = refusal;
+        }
+    }
+
+    private Permit admit(Guard guard, VnfAppliance appliance) throws CommunicationException {
+        State before;
+        State after;
+        Permit permit;
+        int limit;
+        synchronized (guard) {
+            before = guard.state;
+            permit = guard.tryAdmit();
+            after = guard.state;
+            limit = guard.currentLimit();
+        }
+        Refusal refusal = permit.refusal;
+        if (before != after) {
+            listener.onStateChange(appliance, before, after);
+        }
+        if (refusal == Refusal.OPEN) {
+            rejectedOpen.increment();
+            throw new CommunicationException("Circuit open for appliance " + describe(appliance) +
+                                             " after repeated failures", false);
+        }
+        if (refusal == Refusal.FULL) {
+            rejectedLimit.increment();
+            throw new CommunicationException("Appliance " + describe(appliance) + " is at its concurrency limit (" +
+                                             limit + ")", true);
+        }
+        return permit;
+    }
+
+    private void record(Guard guard, Permit permit, VnfAppliance appliance, VnfResponse response,
+                        Throwable error, long elapsedNanos) {
+        Signal signal;
+        if (error != null) {
+            signal = error instanceof CommunicationException && ((CommunicationException) error).isRetriable() ?
+                Signal.FAILURE : Signal.NEUTRAL;
+        } else {
+            signal = retryStatusCodes.contains(response.getStatusCode()) ? Signal.FAILURE : Signal.SUCCESS;
+        }
+        complete(guard, permit, appliance, signal, elapsedNanos);
+    }
+
+    private void complete(Guard guard, Permit permit, VnfAppliance appliance, Signal signal, long elapsedNanos) {
+        State before;
+        State after;
+        boolean thresholdReached;
+        int failures;
+        synchronized (guard) {
+            before = guard.state;
+            boolean decreased = guard.completed(permit, signal, elapsedNanos);
+            if (decreased) {
+                decreases.increment();
+            }
+            after = guard.state;
+            failures = guard.consecutiveFailures;
+            thresholdReached = signal == Signal.FAILURE && errorThreshold > 0 && failures == errorThreshold;
+        }
+        if (before != after) {
+            listener.onStateChange(appliance, before, after);
+        }
+        if (thresholdReached) {
+            listener.onErrorThreshold(appliance, failures);
+        }
+    }
+
+    /**
+     * Breaker and limit of one appliance; guarded by its own monitor
+     */
+    private final class Guard {
+        State state = State.CLOSED;
+        long openedAt;
+        Permit trial;  // the half-open trial in flight
+        int consecutiveFailures;
+        double limit = initialLimit;
+        int inFlight;
+
+        /**
+         * Take a slot, or return a refusal (REFUSED_OPEN, REFUSED_FULL)
+         */
+        Permit tryAdmit() {
+            if (breakerEnabled) {
+                if (state == State.OPEN) {
+                    if (System.nanoTime() - openedAt < openNanos) {
+                        return Permit.REFUSED_OPEN;
+                    }
+                    state = State.HALF_OPEN;
+                }
+                if (state == State.HALF_OPEN) {
+                    if (trial != null) {
+                        return Permit.REFUSED_OPEN;
+                    }
+                    trial = new Permit(null);
+                    inFlight++;
+                    return trial;
+                }
+            }
+            if (limitEnabled && inFlight >= currentLimit()) {
+                return Permit.REFUSED_FULL;
+            }
+            inFlight++;
+            return Permit.ADMITTED;
+        }
+
+        /**
+         * Release a slot and apply the outcome; true if the limit was cut
+         */
+        boolean completed(Permit permit, Signal signal, long elapsedNanos) {
+            inFlight--;
+            boolean isTrial = permit == trial;
+            if (isTrial) {
+                trial = null;
+            }
+
+            boolean overloaded = signal == Signal.FAILURE ||
+                                 (signal == Signal.SUCCESS && elapsedNanos > slowNanos);
+            boolean decreased = false;
+            if (limitEnabled && overloaded) {
+                double cut = Math.max(minLimit, limit * backoffRatio);
+                decreased = cut < limit;
+                limit = cut;
+            } else if (limitEnabled && signal == Signal.SUCCESS) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+
+            if (signal == Signal.SUCCESS) {
+                consecutiveFailures = 0;
+                if (state == State.HALF_OPEN && isTrial) {
+                    state = State.CLOSED;
+                }
+            } else if (signal == Signal.FAILURE) {
+                consecutiveFailures++;
+                if (breakerEnabled && ((state == State.HALF_OPEN && isTrial) ||
+                                       (state == State.CLOSED && consecutiveFailures >= failureThreshold))) {
+                    state = State.OPEN;
+                    openedAt = System.nanoTime();
+                }
+            }
+            return decreased;
+        }
+
+        int currentLimit() {
+            return Math.max(minLimit, (int) limit);
+        }
+    }
+
+    private Guard guardOf(VnfAppliance appliance) {
+        return guards.computeIfAbsent(keyOf(appliance), k -> new Guard());
+    }
+
+    private static Object keyOf(VnfAppliance appliance) {
+        return appliance.getId() != null ? appliance.getId() : appliance.getManagementIp();
+    }
+
+    private static String describe(VnfAppliance appliance) {
+        return appliance.getId() != null ? appliance.getId().toString() : appliance.getManagementIp();
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    // Inspection
+
+    /**
+     * Circuit state of an appliance (CLOSED if it has sent nothing yet)
+     */
+    public State getState(VnfAppliance appliance) {
+        Guard guard = guards.get(keyOf(appliance));
+        if (guard == null) {
+            return State.CLOSED;
+        }
+        synchronized (guard) {
+            return guard.state;
+        }
+    }
+
+    /**
+     * Current adaptive concurrency limit of an appliance
+     */
+    public int getLimit(VnfAppliance appliance) {
+        Guard guard = guards.get(keyOf(appliance));
+        if (guard == null) {
+            return initialLimit;
+        }
+        synchronized (guard) {
+            return guard.currentLimit();
+        }
+    }
+
+    /**
+     * Forget the guards of a destroyed appliance
+     */
+    public void removeAppliance(VnfAppliance appliance) {
+        guards.remove(keyOf(appliance));
+    }
+
+    /**
+     * Counters for the health report
+     */
+    public Map<String, Long> getStats() {
+        long open = 0;
+        for (Guard guard : guards.values()) {
+            synchronized (guard) {
+                if (guard.state != State.CLOSED) {
+                    open++;
+                }
+            }
+        }
+        return Map.of(
+            "appliances", (long) guards.size(),
+            "openCircuits", open,
+            "rejectedOpen", rejectedOpen.sum(),
+            "rejectedLimit", rejectedLimit.sum(),
+            "limitDecreases", decreases.sum());
+    }
+}
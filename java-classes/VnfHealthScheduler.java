@@ -0,0 +1,408 @@
+// =====================================================
+// VNF Health Scheduler - Timing Wheel & Batched Persistence
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the periodic appliance health checks (VNF_HEALTH_CHECK_*).
+ *
+ * Probes are kept on a hashed timing wheel: one slot per tick, each
+ * appliance in the slot of its next deadline, so scheduling and firing cost
+ * O(1) however many appliances there are. A new appliance's first probe
+ * lands at a random point of the interval and every later one is moved by
+ * up to jitterPercent of the interval, so the fleet is probed evenly
+ * instead of in bursts. An appliance whose probe is still running is not
+ * probed again. A probe that outlives timeoutMillis counts as a failure
+ * right away, but the appliance stays busy until the call itself returns,
+ * and the late result is ignored.
+ *
+ * The failure threshold is applied in memory: a success marks the
+ * appliance HEALTHY and records its last contact, failureThreshold
+ * consecutive failures (or timeouts) mark it UNHEALTHY. Changes are
+ * coalesced per appliance and written with VnfApplianceHealthDao in
+ * batches of batchSize, every flushMillis or as soon as a batch is full;
+ * a failed write is retried with the next flush unless a newer state
+ * replaced it.
+ *
+ * tick() advances the wheel to the clock's time; start() calls it from a
+ * timer every tickMillis.
+ */
+public class VnfHealthScheduler {
+
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_JITTER_PERCENT = 10;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_FLUSH_MILLIS = 5000;
+
+    private static final class Probe {
+        final VnfAppliance appliance;
+        final long id;
+        long deadlineTick;
+        long rounds;
+        volatile boolean cancelled;
+        volatile boolean running;
+        int failures;  // guarded by the probe
+
+        Probe(VnfAppliance appliance) {
+            this.appliance = appliance;
+            this.id = appliance.getId();
+        }
+    }
+
+    private final VnfBrokerClient brokerClient;
+    private final VnfApplianceHealthDao healthDao;
+    private final Executor executor;
+    private final Clock clock;
+    private final long intervalMillis;
+    private final int failureThreshold;
+    private final long timeoutMillis;
+
+    private long tickMillis = DEFAULT_TICK_MILLIS;
+    private int jitterPercent = DEFAULT_JITTER_PERCENT;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long flushMillis = DEFAULT_FLUSH_MILLIS;
+
+    // Owned by the thread calling tick()
+    private ArrayDeque<Probe>[] wheel;
+    private long currentTick = -1;
+    private long nextFlushMillis;
+
+    private final ConcurrentLinkedQueue<Probe> arrivals = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Long, Probe> probes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, VnfHealthUpdate> dirty = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private ScheduledFuture<?> timer;
+
+    private final LongAdder probed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder transitions = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+
+    /**
+     * @param executor         runs probes and database flushes (a VnfIoExecutor)
+     * @param intervalMillis   VNF_HEALTH_CHECK_INTERVAL_MINUTES
+     * @param failureThreshold VNF_HEALTH_CHECK_FAILURE_THRESHOLD
+     * @param timeoutMillis    VNF_HEALTH_CHECK_TIMEOUT_SECONDS
+     */
+    public VnfHealthScheduler(VnfBrokerClient brokerClient, VnfApplianceHealthDao healthDao, Executor executor,
+                              long intervalMillis, int failureThreshold, long timeoutMillis) {
+        this(brokerClient, healthDao, executor, intervalMillis, failureThreshold, timeoutMillis,
+             Clock.systemUTC());
+    }
+
+    public VnfHealthScheduler(VnfBrokerClient brokerClient, VnfApplianceHealthDao healthDao, Executor executor,
+                              long intervalMillis, int failureThreshold, long timeoutMillis, Clock clock) {
+        if (intervalMillis <= 0 || failureThreshold <= 0 || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Health check settings must be positive: interval=" +
+                                               intervalMillis + " threshold=" + failureThreshold +
+                                               " timeout=" + timeoutMillis);
+        }
+        this.brokerClient = brokerClient;
+        this.healthDao = healthDao;
+        this.executor = executor;
+        this.clock = clock;
+        this.intervalMillis = intervalMillis;
+        this.failureThreshold = failureThreshold;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // Settings; apply before the first tick
+
+    /**
+     * Wheel resolution and VNF_HEALTH_CHECK_JITTER_PERCENT
+     */
+    public void setWheel(long tickMillis, int jitterPercent) {
+        if (tickMillis <= 0 || jitterPercent < 0 || jitterPercent > 50) {
+            throw new IllegalArgumentException("Invalid wheel: tick=" + tickMillis + " jitter=" + jitterPercent);
+        }
+        this.tickMillis = tickMillis;
+        this.jitterPercent = jitterPercent;
+    }
+
+    /**
+     * VNF_HEALTH_CHECK_BATCH_SIZE / VNF_HEALTH_CHECK_FLUSH_MS
+     */
+    public void setPersistence(int batchSize, long flushMillis) {
+        if (batchSize <= 0 || flushMillis <= 0) {
+            throw new IllegalArgumentException("Invalid persistence: batch=" + batchSize + " flush=" + flushMillis);
+        }
+        this.batchSize = batchSize;
+        this.flushMillis = flushMillis;
+    }
+
+    /**
+     * Ticks the wheel every tickMillis on the timer
+     */
+    public synchronized void start(ScheduledExecutorService timer) {
+        if (this.timer == null) {
+            this.timer = timer.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops ticking and writes the pending changes
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        flush();
+    }
+
+    /**
+     * Probes the appliance from now on; its first probe falls at a random
+     * point of the next interval
+     */
+    public void schedule(VnfAppliance appliance) {
+        if (appliance.getId() == null) {
+            throw new IllegalArgumentException("Appliance without id: " + appliance.getManagementIp());
+        }
+        Probe probe = new Probe(appliance);
+        Probe previous = probes.put(probe.id, probe);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        probe.deadlineTick = toTick(clock.millis() + ThreadLocalRandom.current().nextLong(intervalMillis));
+        arrivals.add(probe);
+    }
+
+    /**
+     * Stops probing the appliance, e.g. when it is destroyed
+     */
+    public void unschedule(VnfAppliance appliance) {
+        Probe probe = probes.remove(appliance.getId());
+        if (probe != null) {
+            probe.cancelled = true;
+        }
+    }
+
+    /**
+     * Fires the probes due up to now and flushes health changes when the
+     * flush interval has passed or a batch is full
+     */
+    public synchronized void tick() {
+        long now = clock.millis();
+        long target = now / tickMillis;
+        if (wheel == null) {
+            wheel = newWheel();
+            currentTick = target - 1;
+            nextFlushMillis = now + flushMillis;
+        }
+        // After a long pause every slot is due at most once
+        if (target - currentTick > wheel.length) {
+            currentTick = target - wheel.length;
+        }
+        while (currentTick < target) {
+            currentTick++;
+            placeArrivals();
+            expire(wheel[(int) (currentTick & (wheel.length - 1))]);
+        }
+        if (now >= nextFlushMillis || dirty.size() >= batchSize) {
+            nextFlushMillis = now + flushMillis;
+            flushAsync();
+        }
+    }
+
+    /**
+     * Writes all pending health changes now, in batches
+     */
+    public void flush() {
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<VnfHealthUpdate> batch = new ArrayList<>(Math.min(batchSize, dirty.size()));
+            for (Long id : dirty.keySet()) {
+                VnfHealthUpdate update = dirty.remove(id);
+                if (update != null) {
+                    batch.add(update);
+                }
+                if (batch.size() == batchSize) {
+                    write(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        } finally {
+            flushing.set(false);
+        }
+    }
+
+    public HealthStatus getStatus(long applianceId) {
+        Probe probe = probes.get(applianceId);
+        return probe != null ? probe.appliance.getHealthStatus() : null;
+    }
+
+    public Map<String, Long> getStats() {
+        return Map.of(
+            "appliances", (long) probes.size(),
+            "probed", probed.sum(),
+            "failed", failed.sum(),
+            "timedOut", timedOut.sum(),
+            "skipped", skipped.sum(),
+            "transitions", transitions.sum(),
+            "pending", (long) dirty.size(),
+            "batches", batches.sum(),
+            "rowsWritten", rowsWritten.sum(),
+            "writeErrors", writeErrors.sum());
+    }
+
+    private void placeArrivals() {
+        Probe probe;
+        while ((probe = arrivals.poll()) != null) {
+            if (probe.cancelled) {
+                continue;
+            }
+            long delay = Math.max(probe.deadlineTick - currentTick, 0);
+            probe.rounds = delay / wheel.length;
+            wheel[(int) ((currentTick + delay) & (wheel.length - 1))].add(probe);
+        }
+    }
+
+    private void expire(ArrayDeque<Probe> slot) {
+        for (int i = slot.size(); i > 0; i--) {
+            Probe probe = slot.poll();
+            if (probe.cancelled) {
+                continue;
+            }
+            if (probe.rounds > 0) {
+                probe.rounds--;
+                slot.add(probe);
+                continue;
+            }
+            if (probe.running) {
+                skipped.increment();
+            } else {
+                run(probe);
+            }
+            reschedule(probe);
+        }
+    }
+
+    private void reschedule(Probe probe) {
+        long jitter = intervalMillis * jitterPercent / 100;
+        long delay = intervalMillis + (jitter == 0 ? 0 : ThreadLocalRandom.current().nextLong(-jitter, jitter + 1));
+        probe.deadlineTick = currentTick + Math.max(delay / tickMillis, 1);
+        arrivals.add(probe);
+    }
+
+    private void run(Probe probe) {
+        probe.running = true;
+        probed.increment();
+        AtomicBoolean settled = new AtomicBoolean();
+        CompletableFuture<Boolean> call =
+            CompletableFuture.supplyAsync(() -> brokerClient.isReachable(probe.appliance), executor);
+        // The timeout settles the outcome; the probe stays running until the call returns
+        call.copy().orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((reachable, error) -> {
+            if (error instanceof TimeoutException && settled.compareAndSet(false, true)) {
+                timedOut.increment();
+                record(probe, false);
+            }
+        });
+        call.whenComplete((reachable, error) -> {
+            try {
+                if (settled.compareAndSet(false, true)) {
+                    record(probe, error == null && Boolean.TRUE.equals(reachable));
+                }
+            } finally {
+                probe.running = false;
+            }
+        });
+    }
+
+    private void record(Probe probe, boolean reachable) {
+        synchronized (probe) {
+            if (!probe.cancelled) {
+                apply(probe, reachable);
+            }
+        }
+    }
+
+    private void apply(Probe probe, boolean reachable) {
+        VnfAppliance appliance = probe.appliance;
+        HealthStatus before = appliance.getHealthStatus();
+        HealthStatus after = before;
+        Date lastContact = null;
+        if (reachable) {
+            probe.failures = 0;
+            after = HealthStatus.HEALTHY;
+            lastContact = new Date(clock.millis());
+            appliance.setLastContact(lastContact);
+        } else {
+            failed.increment();
+            if (++probe.failures >= failureThreshold) {
+                after = HealthStatus.UNHEALTHY;
+            }
+        }
+        if (after != before) {
+            appliance.setHealthStatus(after);
+            transitions.increment();
+        }
+        if (after != before || lastContact != null) {
+            // Keep the newest status, and the newest contact even if a later failure carries none
+            dirty.merge(probe.id, new VnfHealthUpdate(probe.id, after, lastContact),
+                (old, update) -> update.getLastContact() != null ? update :
+                    new VnfHealthUpdate(probe.id, update.getHealthStatus(), old.getLastContact()));
+        }
+    }
+
+    private void write(List<VnfHealthUpdate> batch) {
+        try {
+            healthDao.updateHealth(batch);
+            batches.increment();
+            rowsWritten.add(batch.size());
+        } catch (RuntimeException e) {
+            writeErrors.increment();
+            for (VnfHealthUpdate update : batch) {
+                dirty.putIfAbsent(update.getApplianceId(), update);
+            }
+        }
+    }
+
+    private void flushAsync() {
+        if (dirty.isEmpty() || flushing.get()) {
+            return;
+        }
+        try {
+            executor.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // Executor shutting down: stop() writes what is left
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArrayDeque<Probe>[] newWheel() {
+        // One turn covers the interval plus jitter, so most probes never wait extra rounds
+        long ticks = (intervalMillis + intervalMillis * jitterPercent / 100) / tickMillis + 1;
+        int size = Integer.highestOneBit((int) Math.min(ticks, 1 << 16));
+        if (size < ticks && size < (1 << 16)) {
+            size <<= 1;
+        }
+        ArrayDeque<Probe>[] slots = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        return slots;
+    }
+
+    private long toTick(long millis) {
+        return millis / tickMillis;
+    }
+}
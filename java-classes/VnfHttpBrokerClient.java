@@ -0,0 +1,541 @@
+// =====================================================
+// VNF HTTP Broker Client
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Broker client over the pooled HTTP transport.
+ *
+ * VIRTUAL_ROUTER / EXTERNAL_CONTROLLER: every request is wrapped in the
+ * broker's /vnfproxy envelope and POSTed over the mTLS link with the
+ * request's JWT; connections are pooled per (broker, appliance). CLI
+ * envelopes carry the SSH login named by the dictionary's usernameRef and
+ * passwordRef, resolved through the VnfCredentialResolver.
+ *
+ * DIRECT: HTTP(S) requests go straight to the appliance's management IP,
+ * pooled per appliance endpoint. CLI requests need a broker and fail.
+ * Successful list reads ("Service.list") are returned with the body as a
+ * stream, so the response parser maps rules as they arrive instead of
+ * holding the whole rule table as one String. Broker responses are always
+ * buffered: the device body is a string inside the broker's JSON envelope.
+ *
+ * sendRequestAsync does not block: the future completes on the
+ * transport's callback threads, which suits VnfPipelinedBrokerClient.
+ */
+public class VnfHttpBrokerClient implements VnfBrokerClient {
+
+    public static final int DEFAULT_BROKER_PORT = 8443;
+    public static final int DEFAULT_READ_TIMEOUT_SECONDS = 25;
+    static final String PROXY_PATH = "/vnfproxy";
+    static final String HEALTH_PATH = "/health";
+    // Managed by the JDK client; setting them is rejected
+    private static final Set<String> RESTRICTED_HEADERS =
+        Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    private final VnfHttpTransport transport;
+    private final BrokerType brokerType;
+    private final VnfBrokerLocator locator;
+    private final int brokerPort;
+    private final String brokerScheme;
+    private final Duration readTimeout;
+    private VnfCredentialResolver credentialResolver;
+
+    private long retryBaseDelayMs = VnfPipelinedBrokerClient.DEFAULT_RETRY_BASE_DELAY_MS;
+    private double retryBackoffMultiplier = VnfPipelinedBrokerClient.DEFAULT_RETRY_BACKOFF_MULTIPLIER;
+    private long retryMaxDelayMs = VnfPipelinedBrokerClient.DEFAULT_RETRY_MAX_DELAY_MS;
+
+    /**
+     * Client for a broker on the VR or an external controller
+     *
+     * @param brokerScheme       VNF_BROKER_PROTOCOL
+     * @param brokerPort         VNF_BROKER_PORT
+     * @param readTimeoutSeconds VNF_HTTP_READ_TIMEOUT_SECONDS, used when the request sets none
+     */
+    public VnfHttpBrokerClient(VnfHttpTransport transport, BrokerType brokerType, VnfBrokerLocator locator,
+                               String brokerScheme, int brokerPort, int readTimeoutSeconds) {
+        if (brokerType != BrokerType.DIRECT && locator == null) {
+            throw new IllegalArgumentException(brokerType + " broker needs a locator");
+        }
+        this.transport = transport;
+        this.brokerType = brokerType;
+        this.locator = locator;
+        this.brokerScheme = brokerScheme != null ? brokerScheme.toLowerCase(Locale.ROOT) : "https";
+        this.brokerPort = brokerPort;
+        this.readTimeout = Duration.ofSeconds(readTimeoutSeconds);
+    }
+
+    /**
+     * Client talking to appliances directly
+     */
+    public static VnfHttpBrokerClient direct(VnfHttpTransport transport, int readTimeoutSeconds) {
+        return new VnfHttpBrokerClient(transport, BrokerType.DIRECT, null, null, 0, readTimeoutSeconds);
+    }
+
+    /**
+     * Source of the SSH login sent with CLI requests
+     */
+    public void setCredentialResolver(VnfCredentialResolver credentialResolver) {
+        this.credentialResolver = credentialResolver;
+    }
+
+    /**
+     * Backoff of the blocking retry loop (VNF_RETRY_* settings)
+     */
+    public void setRetryPolicy(long baseDelayMs, double multiplier, long maxDelayMs) {
+        this.retryBaseDelayMs = baseDelayMs;
+        this.retryBackoffMultiplier = multiplier;
+        this.retryMaxDelayMs = maxDelayMs;
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+        long start = System.nanoTime();
+        Exchange exchange;
+        try {
+            exchange = brokerType == BrokerType.DIRECT ? direct(appliance, request) : proxied(appliance, request);
+        } catch (CommunicationException | IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        if (brokerType != BrokerType.DIRECT) {
+            return exchange(exchange, HttpResponse.BodyHandlers.ofString(), VnfHttpBrokerClient::fromBroker, start);
+        }
+        if (isListRead(request)) {
+            return exchange(exchange, HttpResponse.BodyHandlers.ofInputStream(),
+                            VnfHttpBrokerClient::fromDeviceStream, start);
+        }
+        return exchange(exchange, HttpResponse.BodyHandlers.ofString(), VnfHttpBrokerClient::fromDevice, start);
+    }
+
+    private <T> CompletableFuture<VnfResponse> exchange(Exchange exchange, HttpResponse.BodyHandler<T> bodyHandler,
+                                                        ResponseMapper<T> mapper, long start) {
+        CompletableFuture<VnfResponse> result = new CompletableFuture<>();
+        transport.send(exchange.poolKey, exchange.request, bodyHandler).whenComplete((response, error) -> {
+            try {
+                if (error != null) {
+                    result.completeExceptionally(translate(exchange.request.uri(), unwrap(error)));
+                    return;
+                }
+                VnfResponse parsed = mapper.map(response);
+                if (parsed.getDurationMs() == 0) {
+                    parsed.setDurationMs(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+                result.complete(parsed);
+            } catch (CommunicationException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+        try {
+            return sendRequestAsync(appliance, request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommunicationException("Interrupted while waiting for broker response", false);
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (cause instanceof CommunicationException) {
+                throw (CommunicationException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CommunicationException("Broker request failed: " + cause, false);
+        }
+    }
+
+    @Override
+    public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+            throws CommunicationException {
+        if (!request.isIdempotent()) {
+            // A create or command that timed out may have been applied
+            maxRetries = 0;
+        }
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return sendRequest(appliance, request);
+            } catch (CommunicationException e) {
+                if (!e.isRetriable() || attempt >= maxRetries) {
+                    throw e;
+                }
+            }
+            long delay = (long) Math.min(retryBaseDelayMs * Math.pow(retryBackoffMultiplier, attempt),
+                                         retryMaxDelayMs);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CommunicationException("Interrupted while retrying broker request", false);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReachable(VnfAppliance appliance) {
+        try {
+            URI uri;
+            Object poolKey;
+            if (brokerType == BrokerType.DIRECT) {
+                uri = URI.create("https://" + appliance.getManagementIp() + "/");
+                poolKey = uri.getScheme() + "://" + uri.getAuthority();
+            } else {
+                String broker = requireBroker(appliance);
+                uri = URI.create(brokerScheme + "://" + broker + ":" + brokerPort + HEALTH_PATH);
+                poolKey = brokerPoolKey(broker, appliance);
+            }
+            HttpRequest probe = HttpRequest.newBuilder(uri).timeout(readTimeout).GET().build();
+            HttpResponse<String> response = transport.send(poolKey, probe).get();
+            // Any HTTP answer proves a device; the broker must report healthy
+            return brokerType == BrokerType.DIRECT || response.statusCode() == 200;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | CommunicationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public BrokerType getBrokerType() {
+        return brokerType;
+    }
+
+    /**
+     * Drop the pooled connections of a destroyed appliance
+     */
+    public void removeAppliance(VnfAppliance appliance) {
+        if (brokerType == BrokerType.DIRECT) {
+            return;  // keyed by endpoint; idle eviction takes care of it
+        }
+        String broker = locator.findBrokerAddress(appliance);
+        if (broker != null) {
+            transport.remove(brokerPoolKey(broker, appliance));
+        }
+    }
+
+    // Request mapping
+
+    private Exchange proxied(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+        String broker = requireBroker(appliance);
+
+        JsonObject envelope = new JsonObject();
+        String target = request.getTargetIp() != null ? request.getTargetIp() : appliance.getManagementIp();
+        envelope.addProperty("target", target);
+        if (isCli(request)) {
+            envelope.addProperty("protocol", "SSH");
+            envelope.addProperty("command", request.getUri());
+            if (request.getPort() > 0) {
+                envelope.addProperty("ssh_port", request.getPort());
+            }
+            addSshLogin(envelope, appliance);
+        } else {
+            envelope.addProperty("protocol", scheme(request).toUpperCase(Locale.ROOT));
+            envelope.addProperty("method", request.getMethod() != null ? request.getMethod() : "GET");
+            envelope.addProperty("uri", request.getUri());
+            if (request.getPort() > 0) {
+                envelope.addProperty("port", request.getPort());
+            }
+            JsonObject headers = new JsonObject();
+            if (request.getHeaders() != null) {
+                request.getHeaders().forEach(headers::addProperty);
+            }
+            envelope.add("headers", headers);
+            if (request.getBody() != null) {
+                envelope.addProperty("body", request.getBody());
+            }
+        }
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(
+                URI.create(brokerScheme + "://" + broker + ":" + brokerPort + PROXY_PATH))
+            .timeout(timeout(request))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(envelope.toString(), StandardCharsets.UTF_8));
+        if (request.getJwtToken() != null) {
+            builder.header("Authorization", "Bearer " + request.getJwtToken());
+        }
+        return new Exchange(brokerPoolKey(broker, appliance), builder.build());
+    }
+
+    /**
+     * Without a login the broker would try "admin" with no password, so a
+     * password-authenticated dictionary fails here instead
+     */
+    private void addSshLogin(JsonObject envelope, VnfAppliance appliance) throws CommunicationException {
+        AccessConfig access = appliance.getDictionary() != null ? appliance.getDictionary().getAccessConfig() : null;
+        if (access == null) {
+            return;
+        }
+        String username = resolve(appliance, access.getUsernameRef());
+        String password = resolve(appliance, access.getPasswordRef());
+        if (access.getAuthType() == AuthType.SSH_PASSWORD && (username == null || password == null)) {
+            throw new CommunicationException("No SSH credentials for appliance " + appliance.getId(), false);
+        }
+        if (username != null) {
+            envelope.addProperty("ssh_username", username);
+        }
+        if (password != null) {
+            envelope.addProperty("ssh_password", password);
+        }
+    }
+
+    private String resolve(VnfAppliance appliance, String ref) {
+        return ref != null && credentialResolver != null ? credentialResolver.resolve(appliance, ref) : null;
+    }
+
+    private Exchange direct(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+        if (isCli(request)) {
+            throw new CommunicationException("DIRECT broker cannot run CLI requests for " +
+                                             appliance.getManagementIp(), false);
+        }
+        String scheme = scheme(request);
+        String host = request.getTargetIp() != null ? request.getTargetIp() : appliance.getManagementIp();
+        String authority = request.getPort() > 0 ? host + ":" + request.getPort() : host;
+        URI uri = URI.create(scheme + "://" + authority + encodeUri(request.getUri()));
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(timeout(request));
+        if ("http".equals(scheme)) {
+            builder.version(HttpClient.Version.HTTP_1_1);  // no h2c upgrade attempts
+        }
+        if (request.getHeaders() != null) {
+            request.getHeaders().forEach((name, value) -> {
+                if (!RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                    builder.header(name, value);
+                }
+            });
+        }
+        String method = request.getMethod() != null ? request.getMethod().toUpperCase(Locale.ROOT) : "GET";
+        builder.method(method, request.getBody() != null ?
+            HttpRequest.BodyPublishers.ofString(request.getBody(), StandardCharsets.UTF_8) :
+            HttpRequest.BodyPublishers.noBody());
+        return new Exchange(scheme + "://" + authority, builder.build());
+    }
+
+    private String requireBroker(VnfAppliance appliance) throws CommunicationException {
+        String broker = locator.findBrokerAddress(appliance);
+        if (broker == null) {
+            throw new CommunicationException("No broker available for appliance " + appliance.getId(), true);
+        }
+        return broker;
+    }
+
+    private static Object brokerPoolKey(String broker, VnfAppliance appliance) {
+        Object applianceKey = appliance.getId() != null ? appliance.getId() : appliance.getManagementIp();
+        return broker + "/" + applianceKey;
+    }
+
+    private Duration timeout(VnfRequest request) {
+        return request.getTimeoutSeconds() > 0 ? Duration.ofSeconds(request.getTimeoutSeconds()) : readTimeout;
+    }
+
+    private static boolean isCli(VnfRequest request) {
+        return "SSH".equalsIgnoreCase(request.getMethod()) || "CLI".equalsIgnoreCase(request.getMethod()) ||
+               "ssh".equalsIgnoreCase(request.getProtocol());
+    }
+
+    private static String scheme(VnfRequest request) {
+        return "http".equalsIgnoreCase(request.getProtocol()) ? "http" : "https";
+    }
+
+    /**
+     * Percent-encode characters that dictionary endpoints may contain but
+     * java.net.URI rejects (PAN-OS xpath brackets, quotes, spaces)
+     */
+    static String encodeUri(String uri) {
+        if (uri == null || uri.isEmpty()) {
+            return "/";
+        }
+        StringBuilder sb = null;
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            boolean legal = c < 0x80 && (Character.isLetterOrDigit(c) || "-._~:/?#@!$&'()*+,;=%".indexOf(c) >= 0);
+            if (legal) {
+                if (sb != null) {
+                    sb.append(c);
+                }
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(uri.length() + 16).append(uri, 0, i);
+            }
+            int end = Character.isHighSurrogate(c) && i + 1 < uri.length() ? i + 2 : i + 1;
+            for (byte b : uri.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)))
+                  .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+            i = end - 1;
+        }
+        String encoded = sb != null ? sb.toString() : uri;
+        return encoded.startsWith("/") ? encoded : "/" + encoded;
+    }
+
+    // Response mapping
+
+    private static VnfResponse fromDevice(HttpResponse<String> response) {
+        VnfResponse result = new VnfResponse();
+        result.setStatusCode(response.statusCode());
+        result.setBody(response.body());
+        result.setHeaders(firstValues(response.headers().map()));
+        result.setSuccess(response.statusCode() < 400);
+        return result;
+    }
+
+    /**
+     * Successful list bodies stay a stream for the response parser; error
+     * bodies are small and read at once, which also frees the connection
+     */
+    static VnfResponse fromDeviceStream(HttpResponse<InputStream> response) throws CommunicationException {
+        VnfResponse result = new VnfResponse();
+        result.setStatusCode(response.statusCode());
+        result.setHeaders(firstValues(response.headers().map()));
+        result.setSuccess(response.statusCode() < 400);
+        if (result.isSuccess()) {
+            result.setBodyStream(response.body());
+            return result;
+        }
+        try (InputStream body = response.body()) {
+            result.setBody(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new CommunicationException("Failed to read response body: " + e.getMessage(), true);
+        }
+        return result;
+    }
+
+    /**
+     * GET of a dictionary list operation, whose response may be large
+     */
+    static boolean isListRead(VnfRequest request) {
+        String operation = request.getOperation();
+        return operation != null && operation.endsWith(".list") &&
+               (request.getMethod() == null || request.getMethod().equalsIgnoreCase("GET"));
+    }
+
+    /**
+     * Unwrap the broker's JSON result (status_code, body or stdout, error)
+     */
+    static VnfResponse fromBroker(HttpResponse<String> response) throws CommunicationException {
+        int status = response.statusCode();
+        if (status != 200) {
+            throw new CommunicationException("Broker returned HTTP " + status + ": " + response.body(),
+                                             status >= 500 || status == 429);
+        }
+        JsonObject json;
+        try {
+            JsonElement parsed = JsonParser.parseString(response.body());
+            if (!parsed.isJsonObject()) {
+                throw new CommunicationException("Malformed broker response", false);
+            }
+            json = parsed.getAsJsonObject();
+        } catch (JsonParseException e) {
+            throw new CommunicationException("Malformed broker response: " + e.getMessage(), false);
+        }
+
+        VnfResponse result = new VnfResponse();
+        result.setStatusCode(intValue(json, "status_code", 0));
+        result.setSuccess(json.has("success") && json.get("success").getAsBoolean());
+        result.setDurationMs(intValue(json, "duration_ms", 0));
+        String body = stringValue(json, "body");
+        result.setBody(body != null ? body : stringValue(json, "stdout"));
+        String error = stringValue(json, "error");
+        if (error == null && !result.isSuccess()) {
+            error = stringValue(json, "stderr");
+        }
+        result.setErrorMessage(error != null && !error.isEmpty() ? error : null);
+        if (json.has("headers") && json.get("headers").isJsonObject()) {
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> header : json.getAsJsonObject("headers").entrySet()) {
+                headers.put(header.getKey(), header.getValue().getAsString());
+            }
+            result.setHeaders(headers);
+        }
+        return result;
+    }
+
+    private static int intValue(JsonObject json, String name, int defaultValue) {
+        JsonElement value = json.get(name);
+        return value != null && !value.isJsonNull() ? value.getAsInt() : defaultValue;
+    }
+
+    private static String stringValue(JsonObject json, String name) {
+        JsonElement value = json.get(name);
+        return value != null && !value.isJsonNull() ? value.getAsString() : null;
+    }
+
+    private static Map<String, String> firstValues(Map<String, List<String>> headers) {
+        Map<String, String> result = new LinkedHashMap<>();
+        headers.forEach((name, values) -> {
+            if (!values.isEmpty()) {
+                result.put(name, values.get(0));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Connect failures and timeouts are retriable; TLS failures are not
+     */
+    private static CommunicationException translate(URI uri, Throwable error) {
+        if (error instanceof CommunicationException) {
+            return (CommunicationException) error;
+        }
+        String target = uri.getScheme() + "://" + uri.getAuthority();
+        if (error instanceof SSLException || error.getCause() instanceof SSLException) {
+            return new CommunicationException("TLS failure talking to " + target + ": " + error.getMessage(), false);
+        }
+        if (error instanceof HttpTimeoutException) {
+            return new CommunicationException("Timeout talking to " + target, true);
+        }
+        if (error instanceof ConnectException || error instanceof IOException) {
+            return new CommunicationException("Connection to " + target + " failed: " + error, true);
+        }
+        return new CommunicationException("Request to " + target + " failed: " + error, false);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) &&
+               error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    @FunctionalInterface
+    private interface ResponseMapper<T> {
+        VnfResponse map(HttpResponse<T> response) throws CommunicationException;
+    }
+
+    private static final class Exchange {
+        final Object poolKey;
+        final HttpRequest request;
+
+        Exchange(Object poolKey, HttpRequest request) {
+            this.poolKey = poolKey;
+            this.request = request;
+        }
+    }
+}
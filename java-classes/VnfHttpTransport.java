@@ -0,0 +1,285 @@
+// =====================================================
+// VNF HTTP Transport
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Pooled HTTP transport shared by the broker clients.
+ *
+ * One HttpClient serves every broker and appliance, so all requests share
+ * its connection pool and selector thread; connections are kept alive
+ * between requests and reused per endpoint. Each pool key (broker +
+ * appliance, or appliance for DIRECT) only holds request slots: at most
+ * poolSize requests per key are in flight, and further requests wait for a
+ * slot without blocking a thread. Over TLS the client offers HTTP/2 via
+ * ALPN and multiplexes requests to one endpoint on one connection when the
+ * peer accepts it, falling back to kept-alive HTTP/1.1 otherwise.
+ *
+ * Connection keep-alive is governed by the JDK client's own properties,
+ * which are read once per JVM and apply to every HttpClient in the
+ * management server. Set them as startup flags, e.g.
+ * -Djdk.httpclient.keepalive.timeout=60 -Djdk.httpclient.keepalive.timeout.h2=60
+ * to match VNF_HTTP_KEEP_ALIVE_SECONDS; the transport does not change them.
+ *
+ * Without an SSLContext the transport creates a private one, whose client
+ * session cache lets a new connection to a broker seen before resume the
+ * TLS session instead of repeating the full handshake. A context passed in
+ * is used as is; its owner sizes the cache with configureSessionCache.
+ *
+ * Slot groups idle for longer than the keep-alive time are dropped.
+ */
+public class VnfHttpTransport {
+
+    public static final int DEFAULT_POOL_SIZE = 5;
+    public static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+    public static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 1024;
+    public static final int DEFAULT_TLS_SESSION_TIMEOUT_SECONDS = 86400;
+
+    private final HttpClient client;
+    private final int poolSize;
+    private final long keepAliveNanos;
+
+    private final ConcurrentHashMap<Object, Pool> pools = new ConcurrentHashMap<>();
+    private volatile long lastSweep = System.nanoTime();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder http2Responses = new LongAdder();
+    private final LongAdder poolsCreated = new LongAdder();
+    private final LongAdder poolsEvicted = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+
+    public VnfHttpTransport(SSLContext sslContext) {
+        this(sslContext, null, DEFAULT_POOL_SIZE, DEFAULT_KEEP_ALIVE_SECONDS,
+             DEFAULT_CONNECT_TIMEOUT_SECONDS, true);
+    }
+
+    /**
+     * @param sslContext            mTLS context of the management server; null for a private default
+     * @param executor              runs response callbacks; null for the JDK default
+     * @param poolSize              requests in flight per pool key (VNF_HTTP_CONNECTION_POOL_SIZE)
+     * @param keepAliveSeconds      idle time before the slots of a pool key are dropped
+     *                              (VNF_HTTP_KEEP_ALIVE_SECONDS)
+     * @param connectTimeoutSeconds VNF_BROKER_CONNECT_TIMEOUT_SECONDS
+     * @param http2                 offer HTTP/2 over TLS (VNF_HTTP2_ENABLED)
+     */
+    public VnfHttpTransport(SSLContext sslContext, Executor executor, int poolSize, int keepAliveSeconds,
+                            int connectTimeoutSeconds, boolean http2) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize must be positive: " + poolSize);
+        }
+        if (keepAliveSeconds <= 0) {
+            throw new IllegalArgumentException("keepAliveSeconds must be positive: " + keepAliveSeconds);
+        }
+        this.poolSize = poolSize;
+        this.keepAliveNanos = Duration.ofSeconds(keepAliveSeconds).toNanos();
+
+        HttpClient.Builder builder = HttpClient.newBuilder()
+            .sslContext(sslContext != null ? sslContext : privateContext())
+            .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+            .followRedirects(HttpClient.Redirect.NEVER);
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        this.client = builder.build();
+    }
+
+    /**
+     * Size the client session cache that TLS resumption draws from
+     * (VNF_TLS_SESSION_CACHE_SIZE, VNF_TLS_SESSION_TIMEOUT_SECONDS)
+     */
+    public static void configureSessionCache(SSLContext context, int cacheSize, int timeoutSeconds) {
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(cacheSize);
+            sessions.setSessionTimeout(timeoutSeconds);
+        }
+    }
+
+    /**
+     * Default trust material in a context of our own, so sizing its session
+     * cache does not touch SSLContext.getDefault()
+     */
+    private static SSLContext privateContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            configureSessionCache(context, DEFAULT_TLS_SESSION_CACHE_SIZE, DEFAULT_TLS_SESSION_TIMEOUT_SECONDS);
+            return context;
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            throw new IllegalStateException("Cannot create TLS context", e);
+        }
+    }
+
+    /**
+     * Send a request in the slots of poolKey. The future fails with the
+     * IOException of the exchange (connect/timeout errors included).
+     */
+    public CompletableFuture<HttpResponse<String>> send(Object poolKey, HttpRequest request) {
+        return send(poolKey, request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Same, with the body handled by bodyHandler. The slot is released when
+     * the future completes; with ofInputStream that is once the headers
+     * arrived, while the caller may still be reading the body.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> send(Object poolKey, HttpRequest request,
+                                                       HttpResponse.BodyHandler<T> bodyHandler) {
+        sweepIfDue();
+        Pool pool = join(poolKey);
+        requests.increment();
+
+        CompletableFuture<HttpResponse<T>> result = pool.acquire()
+            .thenCompose(ignored -> {
+                try {
+                    return client.sendAsync(request, bodyHandler);
+                } catch (RuntimeException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            });
+        return result.whenComplete((response, error) -> {
+            pool.release();
+            if (response != null && response.version() == HttpClient.Version.HTTP_2) {
+                http2Responses.increment();
+            }
+        });
+    }
+
+    /**
+     * The pool of poolKey with this caller counted as joining, taken under
+     * the map's lock for the key so evictIdle and remove cannot drop it
+     * between the lookup and the acquire
+     */
+    private Pool join(Object poolKey) {
+        return pools.compute(poolKey, (k, p) -> {
+            Pool target = p;
+            if (target == null) {
+                poolsCreated.increment();
+                target = new Pool();
+            }
+            target.join();
+            return target;
+        });
+    }
+
+    /**
+     * Drop slot groups that have been idle for longer than the keep-alive time
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        lastSweep = now;
+        for (Object key : pools.keySet()) {
+            evictIf(key, pool -> pool.idleSince(now) > keepAliveNanos);
+        }
+    }
+
+    private void sweepIfDue() {
+        if (System.nanoTime() - lastSweep > keepAliveNanos / 2) {
+            evictIdle();
+        }
+    }
+
+    /**
+     * Forget the slots of a destroyed appliance once no request holds or
+     * waits for them; a busy pool is left to evictIdle
+     */
+    public void remove(Object poolKey) {
+        evictIf(poolKey, Pool::isIdle);
+    }
+
+    private void evictIf(Object poolKey, Predicate<Pool> evictable) {
+        pools.computeIfPresent(poolKey, (k, pool) -> {
+            if (!evictable.test(pool)) {
+                return pool;
+            }
+            poolsEvicted.increment();
+            return null;
+        });
+    }
+
+    public int getPoolCount() { return pools.size(); }
+    public int getPoolSize() { return poolSize; }
+
+    /**
+     * Counters for the health report
+     */
+    public Map<String, Long> getStats() {
+        return Map.of(
+            "pools", (long) pools.size(),
+            "poolsCreated", poolsCreated.sum(),
+            "poolsEvicted", poolsEvicted.sum(),
+            "requests", requests.sum(),
+            "http2Responses", http2Responses.sum(),
+            "waits", waits.sum());
+    }
+
+    /**
+     * Request slots of one pool key
+     */
+    private final class Pool {
+        private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+        private int inUse;
+        private int joining;
+        private long lastUsed = System.nanoTime();
+
+        synchronized void join() {
+            joining++;
+        }
+
+        CompletableFuture<Void> acquire() {
+            synchronized (this) {
+                joining--;
+                if (inUse < poolSize) {
+                    inUse++;
+                    return CompletableFuture.completedFuture(null);
+                }
+                CompletableFuture<Void> slot = new CompletableFuture<>();
+                waiting.add(slot);
+                waits.increment();
+                return slot;
+            }
+        }
+
+        void release() {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                lastUsed = System.nanoTime();
+                next = waiting.poll();
+                if (next == null) {
+                    inUse--;
+                }
+            }
+            if (next != null) {
+                next.complete(null);  // hand the slot over
+            }
+        }
+
+        synchronized long idleSince(long now) {
+            return isIdle() ? now - lastUsed : 0;
+        }
+
+        synchronized boolean isIdle() {
+            return inUse == 0 && joining == 0 && waiting.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+// =====================================================
+// VNF I/O Executor
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor for VNF device I/O: broker calls, health probes and
+ * reconciliation steps.
+ *
+ * PLATFORM mode keeps the fixed pool (VNF_EXECUTOR_THREAD_POOL_SIZE threads,
+ * VNF_EXECUTOR_QUEUE_SIZE queued tasks). VIRTUAL mode starts every task on
+ * its own virtual thread, so a task blocked on a device parks cheaply
+ * instead of holding one of a handful of platform threads; it needs
+ * Java 21 and falls back to PLATFORM on older runtimes, with one warning
+ * per JVM.
+ *
+ * In both modes work submitted for an appliance is bounded by two
+ * semaphores: at most maxPerAppliance tasks per appliance and maxConcurrent
+ * tasks overall touch devices at once (VNF_IO_MAX_PER_APPLIANCE,
+ * VNF_IO_MAX_CONCURRENT). The appliance permit is taken first so a busy
+ * appliance does not hold global permits while it waits.
+ */
+public class VnfIoExecutor implements Executor, AutoCloseable {
+
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    public static final int DEFAULT_MAX_CONCURRENT = 1000;
+    public static final int DEFAULT_MAX_PER_APPLIANCE = 4;
+
+    private static final Logger LOGGER = LogManager.getLogger(VnfIoExecutor.class);
+    private static final AtomicBoolean fallbackLogged = new AtomicBoolean();
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final Semaphore global;
+    private final int maxConcurrent;
+    private final int maxPerAppliance;
+    private final ConcurrentHashMap<Object, ApplianceLimit> appliances = new ConcurrentHashMap<>();
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder applianceWaits = new LongAdder();
+    private final LongAdder globalWaits = new LongAdder();
+
+    /**
+     * @param mode            requested mode; VIRTUAL falls back to PLATFORM before Java 21
+     * @param platformThreads pool size in PLATFORM mode
+     * @param queueSize       pending tasks in PLATFORM mode
+     * @param maxConcurrent   device calls in flight overall
+     * @param maxPerAppliance device calls in flight per appliance
+     */
+    public VnfIoExecutor(Mode mode, int platformThreads, int queueSize, int maxConcurrent, int maxPerAppliance) {
+        if (maxConcurrent <= 0 || maxPerAppliance <= 0) {
+            throw new IllegalArgumentException("Concurrency limits must be positive: " +
+                                               maxConcurrent + "/" + maxPerAppliance);
+        }
+        ExecutorService virtual = mode == Mode.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            this.mode = Mode.VIRTUAL;
+            this.executor = virtual;
+        } else {
+            if (mode == Mode.VIRTUAL && fallbackLogged.compareAndSet(false, true)) {
+                LOGGER.warn("VNF_EXECUTOR_MODE=virtual needs Java 21 virtual threads, not available on Java " +
+                            Runtime.version().feature() + "; using the platform pool of " + platformThreads +
+                            " threads instead");
+            }
+            this.mode = Mode.PLATFORM;
+            this.executor = newPlatformExecutor(platformThreads, queueSize);
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerAppliance = maxPerAppliance;
+        this.global = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Mode from VNF_EXECUTOR_MODE ("platform" or "virtual")
+     */
+    public static Mode parseMode(String value) {
+        if (value == null || value.isBlank()) {
+            return Mode.PLATFORM;
+        }
+        try {
+            return Mode.valueOf(value.trim().toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown executor mode: " + value);
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), or null if the runtime
+     * has no (enabled) virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;  // before Java 21, or preview not enabled
+        }
+    }
+
+    private static ExecutorService newPlatformExecutor(int threads, int queueSize) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            runnable -> {
+                Thread thread = new Thread(runnable, "vnf-io-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    public Mode getMode() { return mode; }
+
+    /**
+     * Run a task that does not talk to a device (callbacks, dispatch)
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Run device I/O for an appliance within the per-appliance and global limits
+     */
+    public <T> CompletableFuture<T> submit(VnfAppliance appliance, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call(appliance, task));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Run device I/O on the calling thread within the limits
+     */
+    public <T> T call(VnfAppliance appliance, Callable<T> task) throws Exception {
+        ApplianceLimit limit = join(appliance);
+        try {
+            return callWithin(limit.permits, task);
+        } finally {
+            limit.users.decrementAndGet();
+        }
+    }
+
+    /**
+     * The appliance's limit with this caller counted as a user, taken under
+     * the map's lock for the key so removeAppliance cannot drop it between
+     * the lookup and the acquire
+     */
+    private ApplianceLimit join(VnfAppliance appliance) {
+        return appliances.compute(keyOf(appliance), (k, l) -> {
+            ApplianceLimit target = l != null ? l : new ApplianceLimit(maxPerAppliance);
+            target.users.incrementAndGet();
+            return target;
+        });
+    }
+
+    private <T> T callWithin(Semaphore perAppliance, Callable<T> task) throws Exception {
+        acquire(perAppliance, applianceWaits);
+        try {
+            acquire(global, globalWaits);
+            active.incrementAndGet();
+            try {
+                return task.call();
+            } finally {
+                active.decrementAndGet();
+                completed.increment();
+                global.release();
+            }
+        } finally {
+            perAppliance.release();
+        }
+    }
+
+    private static void acquire(Semaphore semaphore, LongAdder waits) throws InterruptedException {
+        if (!semaphore.tryAcquire()) {
+            waits.increment();
+            semaphore.acquire();
+        }
+    }
+
+    /**
+     * Forget the limiter of a destroyed appliance once no caller holds or
+     * waits for its permits; a later call creates a fresh one
+     */
+    public void removeAppliance(VnfAppliance appliance) {
+        appliances.computeIfPresent(keyOf(appliance), (k, l) -> l.users.get() == 0 ? null : l);
+    }
+
+    private static Object keyOf(VnfAppliance appliance) {
+        return appliance.getId() != null ? appliance.getId() : appliance.getManagementIp();
+    }
+
+    /**
+     * Device calls in flight
+     */
+    public int getActiveCount() { return active.get(); }
+
+    /**
+     * Counters for the health report
+     */
+    public Map<String, Long> getStats() {
+        return Map.of(
+            "active", (long) active.get(),
+            "completed", completed.sum(),
+            "applianceWaits", applianceWaits.sum(),
+            "globalWaits", globalWaits.sum(),
+            "maxConcurrent", (long) maxConcurrent,
+            "maxPerAppliance", (long) maxPerAppliance);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Per-appliance permits plus the callers between join() and release
+     */
+    private static final class ApplianceLimit {
+        final Semaphore permits;
+        final AtomicInteger users = new AtomicInteger();
+
+        ApplianceLimit(int maxPerAppliance) {
+            this.permits = new Semaphore(maxPerAppliance, true);
+        }
+    }
+}
@@ -0,0 +1,549 @@
+// =====================================================
+// VNF JSONPath - Precompiled Response Extractors
+// Package: org.apache.cloudstack.network.vnf
+// =====================================================
+// ResponseMapping paths (idPath, listPath, item.*) are compiled once per
+// dictionary load. Only the subset used by dictionaries is supported:
+//   $            root
+//   .name        object member
+//   ['name']     object member (quoted, for names like "local-port")
+//   [n]          array element
+
+package org.apache.cloudstack.network.vnf;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * A compiled JSONPath expression.
+ * Segments are either a String (object member) or an Integer (array index).
+ */
+public final class JsonPath {
+
+    private final String source;
+    private final Object[] segments;
+
+    private JsonPath(String source, Object[] segments) {
+        this.source = source;
+        this.segments = segments;
+    }
+
+    /**
+     * Compile a path expression
+     *
+     * @throws IllegalArgumentException if the expression is not supported
+     */
+    public static JsonPath compile(String path) {
+        if (path == null || path.isEmpty() || path.charAt(0) != '$') {
+            throw new IllegalArgumentException("JSONPath must start with '$': " + path);
+        }
+
+        List<Object> segments = new ArrayList<>();
+        int i = 1;
+        int n = path.length();
+
+        while (i < n) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                int start = ++i;
+                while (i < n && path.charAt(i) != '.' && path.charAt(i) != '[') {
+                    i++;
+                }
+                if (i == start) {
+                    throw new IllegalArgumentException("Empty member name at " + start + ": " + path);
+                }
+                String name = path.substring(start, i);
+                if (name.equals("*")) {
+                    throw new IllegalArgumentException("Wildcards are not supported: " + path);
+                }
+                segments.add(name);
+            } else if (c == '[') {
+                int close = path.indexOf(']', i);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unclosed '[' at " + i + ": " + path);
+                }
+                String inner = path.substring(i + 1, close).trim();
+                if (inner.length() >= 2 &&
+                    (inner.charAt(0) == '\'' || inner.charAt(0) == '"') &&
+                    inner.charAt(inner.length() - 1) == inner.charAt(0)) {
+                    segments.add(inner.substring(1, inner.length() - 1));
+                } else {
+                    try {
+                        int index = Integer.parseInt(inner);
+                        if (index < 0) {
+                            throw new IllegalArgumentException("Negative index: " + path);
+                        }
+                        segments.add(index);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Unsupported selector [" + inner + "]: " + path);
+                    }
+                }
+                i = close + 1;
+            } else {
+                throw new IllegalArgumentException("Unexpected '" + c + "' at " + i + ": " + path);
+            }
+        }
+
+        return new JsonPath(path, segments.toArray());
+    }
+
+    /**
+     * Evaluate against a parsed document. Returns null if any step is missing.
+     */
+    public JsonElement evaluate(JsonElement root) {
+        JsonElement current = root;
+        for (Object segment : segments) {
+            current = step(current, segment);
+            if (current == null) {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    static JsonElement step(JsonElement current, Object segment) {
+        if (current == null) {
+            return null;
+        }
+        if (segment instanceof String) {
+            if (!current.isJsonObject()) {
+                return null;
+            }
+            JsonElement next = current.getAsJsonObject().get((String) segment);
+            return next == null || next.isJsonNull() ? null : next;
+        }
+        if (!current.isJsonArray()) {
+            return null;
+        }
+        JsonArray array = current.getAsJsonArray();
+        int index = (Integer) segment;
+        return index < array.size() ? array.get(index) : null;
+    }
+
+    Object[] segments() { return segments; }
+
+    public boolean isRoot() { return segments.length == 0; }
+
+    public String getSource() { return source; }
+
+    @Override
+    public String toString() { return source; }
+
+    /**
+     * Convert a JSON value to the object stored in VnfDeviceRule properties:
+     * String, Boolean, Long, Double, or the JSON text for objects/arrays
+     */
+    public static Object toValue(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return null;
+        }
+        if (element.isJsonPrimitive()) {
+            JsonPrimitive p = element.getAsJsonPrimitive();
+            if (p.isBoolean()) {
+                return p.getAsBoolean();
+            }
+            if (p.isNumber()) {
+                return numberValue(p.getAsString());
+            }
+            return p.getAsString();
+        }
+        return element.toString();
+    }
+
+    static Object numberValue(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(text);
+        }
+    }
+}
+
+/**
+ * Compiled set of item field paths (ResponseMapping "item" section).
+ *
+ * The paths are merged into a trie so that one walk over an item visits each
+ * JSON node at most once, regardless of how many fields share a prefix.
+ */
+public final class JsonFieldExtractor {
+
+    private static final String PATH_SUFFIX = "Path";
+
+    private final String[] fields;
+    private final Node root;
+
+    private JsonFieldExtractor(String[] fields, Node root) {
+        this.fields = fields;
+        this.root = root;
+    }
+
+    /**
+     * Compile item mappings such as {idPath: $.id, srcPath: $.src}.
+     * A trailing "Path" is dropped from the key to form the field name.
+     *
+     * @throws IllegalArgumentException if any path is not supported
+     */
+    public static JsonFieldExtractor compile(Map<String, String> itemPaths) {
+        Node root = new Node();
+        List<String> fields = new ArrayList<>();
+
+        if (itemPaths != null) {
+            for (Map.Entry<String, String> entry : itemPaths.entrySet()) {
+                int slot = fields.size();
+                fields.add(fieldName(entry.getKey()));
+
+                Node node = root;
+                for (Object segment : JsonPath.compile(entry.getValue()).segments()) {
+                    node = node.child(segment);
+                }
+                node.addSlot(slot);
+            }
+        }
+
+        return new JsonFieldExtractor(fields.toArray(new String[0]), root);
+    }
+
+    static String fieldName(String key) {
+        if (key.endsWith(PATH_SUFFIX) && key.length() > PATH_SUFFIX.length()) {
+            return key.substring(0, key.length() - PATH_SUFFIX.length());
+        }
+        return key;
+    }
+
+    /**
+     * Extract all fields from one item. Missing fields are null.
+     */
+    public Object[] extract(JsonElement item) {
+        Object[] values = new Object[fields.length];
+        walk(root, item, values);
+        return values;
+    }
+
+    private static void walk(Node node, JsonElement element, Object[] values) {
+        if (node.slots != null) {
+            Object value = JsonPath.toValue(element);
+            for (int slot : node.slots) {
+                values[slot] = value;
+            }
+        }
+        if (node.children == null) {
+            return;
+        }
+        for (Map.Entry<Object, Node> child : node.children.entrySet()) {
+            JsonElement next = JsonPath.step(element, child.getKey());
+            if (next != null) {
+                walk(child.getValue(), next, values);
+            }
+        }
+    }
+
+    /**
+     * Extract all fields from the next value of a streaming reader, consuming
+     * exactly that value. Members outside the trie are skipped without being
+     * materialized.
+     */
+    public Object[] extract(JsonReader reader) throws IOException {
+        Object[] values = new Object[fields.length];
+        walk(root, reader, values);
+        return values;
+    }
+
+    private static void walk(Node node, JsonReader reader, Object[] values) throws IOException {
+        if (node.slots != null) {
+            if (node.children == null) {
+                Object value = readValue(reader);
+                for (int slot : node.slots) {
+                    values[slot] = value;
+                }
+            } else {
+                // Value is both a field and a prefix of other fields
+                walk(node, JsonParser.parseReader(reader), values);
+            }
+            return;
+        }
+        if (node.children == null) {
+            reader.skipValue();
+            return;
+        }
+
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                Node child = node.children.get(reader.nextName());
+                if (child == null) {
+                    reader.skipValue();
+                } else {
+                    walk(child, reader, values);
+                }
+            }
+            reader.endObject();
+        } else if (token == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            int index = 0;
+            while (reader.hasNext()) {
+                Node child = node.children.get(index++);
+                if (child == null) {
+                    reader.skipValue();
+                } else {
+                    walk(child, reader, values);
+                }
+            }
+            reader.endArray();
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return JsonPath.numberValue(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                return JsonParser.parseReader(reader).toString();
+        }
+    }
+
+    /**
+     * Field names in slot order
+     */
+    public String[] getFields() { return fields.clone(); }
+
+    public int indexOf(String field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() { return fields.length; }
+
+    Node root() { return root; }
+
+    /**
+     * Trie node: children keyed by member name (String) or index (Integer)
+     */
+    static final class Node {
+        Map<Object, Node> children;
+        int[] slots;
+
+        Node child(Object segment) {
+            if (children == null) {
+                children = new LinkedHashMap<>(4);
+            }
+            return children.computeIfAbsent(segment, k -> new Node());
+        }
+
+        void addSlot(int slot) {
+            if (slots == null) {
+                slots = new int[] { slot };
+            } else {
+                slots = Arrays.copyOf(slots, slots.length + 1);
+                slots[slots.length - 1] = slot;
+            }
+        }
+    }
+}
+
+/**
+ * Pull-style walker over a JSON document that yields the items at a list
+ * path one at a time, without building the document tree.
+ *
+ * Additional scalar paths (e.g. a pagination cursor) are captured wherever
+ * they appear in the document, before or after the list. Captured values are
+ * complete once nextItem() has returned false.
+ */
+public final class JsonListStream implements Closeable {
+
+    private final JsonReader reader;
+    private final SeekNode root = new SeekNode();
+    private final Object[] captured;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    private boolean started;
+    private boolean inList;
+    private boolean singleItem;
+    private boolean singleConsumed;
+    private boolean listSeen;
+    private boolean finished;
+
+    public JsonListStream(Reader in, JsonPath listPath, JsonPath... capturePaths) {
+        this.reader = new JsonReader(in);
+        this.captured = new Object[capturePaths.length];
+
+        SeekNode node = root;
+        for (Object segment : listPath.segments()) {
+            node = node.child(segment);
+        }
+        node.list = true;
+
+        for (int i = 0; i < capturePaths.length; i++) {
+            SeekNode c = root;
+            for (Object segment : capturePaths[i].segments()) {
+                c = c.child(segment);
+            }
+            c.capture = i;
+        }
+    }
+
+    /**
+     * Advance to the next list item. When true, the caller must consume
+     * exactly one value from reader() before calling again.
+     */
+    public boolean nextItem() throws IOException {
+        while (!finished) {
+            if (inList) {
+                if (singleItem) {
+                    singleItem = false;
+                    singleConsumed = true;
+                    return true;
+                }
+                if (singleConsumed) {
+                    singleConsumed = false;
+                    inList = false;
+                    continue;
+                }
+                if (reader.hasNext()) {
+                    return true;
+                }
+                reader.endArray();
+                inList = false;
+                continue;
+            }
+            if (!seek()) {
+                finished = true;
+            }
+        }
+        return false;
+    }
+
+    public JsonReader reader() { return reader; }
+
+    /**
+     * Value captured for the i-th capture path, or null if absent
+     */
+    public Object getCaptured(int i) { return captured[i]; }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private boolean seek() throws IOException {
+        if (!started) {
+            started = true;
+            if (reader.peek() == JsonToken.END_DOCUMENT) {
+                return false;
+            }
+            if (enter(root)) {
+                return true;
+            }
+        }
+        while (!stack.isEmpty()) {
+            Frame top = stack.peek();
+            if (!reader.hasNext()) {
+                if (top.array) {
+                    reader.endArray();
+                } else {
+                    reader.endObject();
+                }
+                stack.pop();
+                continue;
+            }
+            SeekNode child = top.array ? top.node.get(top.index++) : top.node.get(reader.nextName());
+            if (child == null) {
+                reader.skipValue();
+                continue;
+            }
+            if (enter(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean enter(SeekNode node) throws IOException {
+        JsonToken token = reader.peek();
+
+        if (node.list && !listSeen) {
+            listSeen = true;
+            if (token == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                inList = true;
+                return true;
+            }
+            if (token == JsonToken.BEGIN_OBJECT) {
+                // Single object where a list was expected: one item
+                inList = true;
+                singleItem = true;
+                return true;
+            }
+            reader.skipValue();
+            return false;
+        }
+
+        if (node.capture >= 0) {
+            captured[node.capture] = JsonPath.toValue(JsonParser.parseReader(reader));
+            return false;
+        }
+
+        if (node.children == null) {
+            reader.skipValue();
+        } else if (token == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            stack.push(new Frame(node, false));
+        } else if (token == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            stack.push(new Frame(node, true));
+        } else {
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    private static final class Frame {
+        final SeekNode node;
+        final boolean array;
+        int index;
+
+        Frame(SeekNode node, boolean array) {
+            this.node = node;
+            this.array = array;
+        }
+    }
+
+    private static final class SeekNode {
+        Map<Object, SeekNode> children;
+        boolean list;
+        int capture = -1;
+
+        SeekNode child(Object segment) {
+            if (children == null) {
+                children = new HashMap<>(4);
+            }
+            return children.computeIfAbsent(segment, k -> new SeekNode());
+        }
+
+        SeekNode get(Object segment) {
+            return children == null ? null : children.get(segment);
+        }
+    }
+}
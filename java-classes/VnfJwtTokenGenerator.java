@@ -0,0 +1,196 @@
+// =====================================================
+// VNF JWT Token Generator - HS256 Broker Tokens
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Signs the tokens the broker checks in validate_jwt (VNF_JWT_* settings).
+ *
+ * Claims: iss, sub (the appliance uuid or id), allowed_target (the
+ * appliance's management IP, which the broker enforces), op, iat and exp.
+ *
+ * The signing key is turned into an initialized HmacSHA256 prototype once;
+ * each thread clones it on first use, so signing never repeats the key
+ * schedule, never looks up a provider and never contends on a shared Mac.
+ * The encoded header is precomputed as well.
+ */
+public class VnfJwtTokenGenerator implements JwtTokenGenerator {
+
+    public static final String ALGORITHM = "HS256";
+    public static final String DEFAULT_ISSUER = "cloudstack-mgmt";
+
+    private static final String HMAC = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private static final byte[] HEADER = (ENCODER.encodeToString(
+        "{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8)) + ".")
+        .getBytes(StandardCharsets.US_ASCII);
+
+    private final String issuer;
+    private final Clock clock;
+    private final SecretKeySpec key;
+    private final Mac prototype;
+    private final ThreadLocal<Mac> macs;
+
+    private final LongAdder signed = new LongAdder();
+    private final LongAdder signNanos = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param secret contents of the broker's jwt_secret file
+     * @param algorithm VNF_JWT_ALGORITHM; only HS256 is supported
+     * @param issuer VNF_JWT_ISSUER
+     */
+    public VnfJwtTokenGenerator(byte[] secret, String algorithm, String issuer) {
+        this(secret, algorithm, issuer, Clock.systemUTC());
+    }
+
+    public VnfJwtTokenGenerator(byte[] secret, String algorithm, String issuer, Clock clock) {
+        if (!ALGORITHM.equals(algorithm)) {
+            throw new IllegalArgumentException("Unsupported JWT algorithm: " + algorithm);
+        }
+        if (secret == null || secret.length == 0) {
+            throw new IllegalArgumentException("JWT secret must not be empty");
+        }
+        this.issuer = issuer != null ? issuer : DEFAULT_ISSUER;
+        this.clock = clock;
+        this.key = new SecretKeySpec(secret, HMAC);
+        try {
+            this.prototype = Mac.getInstance(HMAC);
+            prototype.init(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 unavailable", e);
+        }
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    @Override
+    public String generateToken(VnfAppliance appliance, String operation, int expirySeconds) {
+        if (expirySeconds <= 0) {
+            throw new IllegalArgumentException("JWT expiry must be positive: " + expirySeconds);
+        }
+        long issuedAt = clock.millis() / 1000;
+        JsonObject claims = new JsonObject();
+        claims.addProperty("iss", issuer);
+        claims.addProperty("sub", subject(appliance));
+        if (appliance.getManagementIp() != null) {
+            claims.addProperty("allowed_target", appliance.getManagementIp());
+        }
+        claims.addProperty("op", operation);
+        claims.addProperty("iat", issuedAt);
+        claims.addProperty("exp", issuedAt + expirySeconds);
+
+        long start = System.nanoTime();
+        byte[] payload = ENCODER.encode(claims.toString().getBytes(StandardCharsets.UTF_8));
+        byte[] signingInput = new byte[HEADER.length + payload.length];
+        System.arraycopy(HEADER, 0, signingInput, 0, HEADER.length);
+        System.arraycopy(payload, 0, signingInput, HEADER.length, payload.length);
+        byte[] signature = macs.get().doFinal(signingInput);
+        String token = new String(signingInput, StandardCharsets.US_ASCII) + "." +
+                       ENCODER.encodeToString(signature);
+        signNanos.add(System.nanoTime() - start);
+        signed.increment();
+        return token;
+    }
+
+    /**
+     * Checks the signature, header, issuer and expiry
+     */
+    @Override
+    public boolean validateToken(String token) {
+        if (token == null) {
+            rejected.increment();
+            return false;
+        }
+        int first = token.indexOf('.');
+        int last = token.lastIndexOf('.');
+        if (first < 0 || first == last) {
+            rejected.increment();
+            return false;
+        }
+        try {
+            byte[] expected = macs.get().doFinal(
+                token.substring(0, last).getBytes(StandardCharsets.US_ASCII));
+            byte[] actual = DECODER.decode(token.substring(last + 1));
+            if (!MessageDigest.isEqual(expected, actual)) {
+                rejected.increment();
+                return false;
+            }
+            JsonObject header = decode(token.substring(0, first));
+            JsonObject claims = decode(token.substring(first + 1, last));
+            boolean valid = header != null && claims != null &&
+                            ALGORITHM.equals(string(header.get("alg"))) &&
+                            issuer.equals(string(claims.get("iss"))) &&
+                            claims.has("exp") && claims.get("exp").getAsLong() > clock.millis() / 1000;
+            if (!valid) {
+                rejected.increment();
+            }
+            return valid;
+        } catch (IllegalArgumentException | JsonParseException | UnsupportedOperationException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Tokens signed and total time spent signing; rejected validations
+     */
+    public Map<String, Long> getStats() {
+        return Map.of(
+            "signed", signed.sum(),
+            "signNanos", signNanos.sum(),
+            "rejected", rejected.sum());
+    }
+
+    static String subject(VnfAppliance appliance) {
+        if (appliance.getUuid() != null) {
+            return appliance.getUuid();
+        }
+        return appliance.getId() != null ? appliance.getId().toString() : appliance.getManagementIp();
+    }
+
+    private Mac newMac() {
+        try {
+            synchronized (prototype) {
+                return (Mac) prototype.clone();
+            }
+        } catch (CloneNotSupportedException e) {
+            // Provider without clonable MACs: pay the key schedule once per thread
+            try {
+                Mac mac = Mac.getInstance(HMAC, prototype.getProvider());
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException inner) {
+                throw new IllegalStateException("HMAC-SHA256 unavailable", inner);
+            }
+        }
+    }
+
+    private static JsonObject decode(String segment) {
+        JsonElement element = JsonParser.parseString(
+            new String(DECODER.decode(segment), StandardCharsets.UTF_8));
+        return element.isJsonObject() ? element.getAsJsonObject() : null;
+    }
+
+    private static String string(JsonElement element) {
+        return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+    }
+}
@@ -0,0 +1,112 @@
+// =====================================================
+// VNF Metered Broker Client
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Records the latency and outcome of every device call in a
+ * VnfMetricsRegistry, keyed by the request's dictionary operation
+ * (VNF_METRICS_TRACK_LATENCY / VNF_METRICS_TRACK_RATES).
+ *
+ * A 2xx response is a success, a retriable CommunicationException a retry
+ * and anything else an error. Like VnfAuditedBrokerClient it belongs
+ * directly above the transport client, so each attempt and each
+ * transaction step is measured on its own.
+ */
+public class VnfMeteredBrokerClient implements VnfBrokerClient {
+
+    private final VnfBrokerClient delegate;
+    private final VnfMetricsRegistry registry;
+
+    public VnfMeteredBrokerClient(VnfBrokerClient delegate, VnfMetricsRegistry registry) {
+        this.delegate = delegate;
+        this.registry = registry;
+    }
+
+    @Override
+    public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+        long start = System.nanoTime();
+        try {
+            VnfResponse response = delegate.sendRequest(appliance, request);
+            measure(appliance, request, start, response, null);
+            return response;
+        } catch (CommunicationException | RuntimeException e) {
+            measure(appliance, request, start, null, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+            throws CommunicationException {
+        long start = System.nanoTime();
+        try {
+            VnfResponse response = delegate.sendRequestWithRetry(appliance, request, maxRetries);
+            measure(appliance, request, start, response, null);
+            return response;
+        } catch (CommunicationException | RuntimeException e) {
+            measure(appliance, request, start, null, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+        long start = System.nanoTime();
+        CompletableFuture<VnfResponse> future = delegate.sendRequestAsync(appliance, request);
+        future.whenComplete((response, error) -> measure(appliance, request, start, response, error));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestWithRetryAsync(VnfAppliance appliance, VnfRequest request,
+                                                                    int maxRetries) {
+        long start = System.nanoTime();
+        CompletableFuture<VnfResponse> future = delegate.sendRequestWithRetryAsync(appliance, request, maxRetries);
+        future.whenComplete((response, error) -> measure(appliance, request, start, response, error));
+        return future;
+    }
+
+    /**
+     * Steps go through sendRequest so each one is measured
+     */
+    @Override
+    public VnfTransactionResult executeTransaction(VnfAppliance appliance, VnfTransaction transaction,
+                                                   VnfResponseParser responseParser) {
+        return VnfBrokerClient.super.executeTransaction(appliance, transaction, responseParser);
+    }
+
+    @Override
+    public boolean isReachable(VnfAppliance appliance) {
+        return delegate.isReachable(appliance);
+    }
+
+    @Override
+    public BrokerType getBrokerType() {
+        return delegate.getBrokerType();
+    }
+
+    private void measure(VnfAppliance appliance, VnfRequest request, long start, VnfResponse response,
+                         Throwable error) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        VnfMetricsRegistry.Outcome outcome;
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ?
+                error.getCause() : error;
+            outcome = cause instanceof CommunicationException && ((CommunicationException) cause).isRetriable() ?
+                VnfMetricsRegistry.Outcome.RETRY : VnfMetricsRegistry.Outcome.ERROR;
+        } else {
+            int status = response.getStatusCode();
+            outcome = response.isSuccess() || (status >= 200 && status < 300) ?
+                VnfMetricsRegistry.Outcome.SUCCESS : VnfMetricsRegistry.Outcome.ERROR;
+        }
+        String operation = request.getOperation() != null ? request.getOperation() : request.getMethod();
+        registry.record(appliance, operation, micros, outcome);
+    }
+}
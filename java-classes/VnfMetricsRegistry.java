@@ -0,0 +1,426 @@
+// =====================================================
+// VNF Metrics Registry - Latency Histograms & Counters
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Device call latency and outcomes per appliance, vendor and dictionary
+ * operation (VNF_METRICS_*).
+ *
+ * Each series holds a lock-free log-linear histogram of latencies in
+ * microseconds: exact below 32 us, then 16 buckets per power of two (at
+ * most 6.25% relative error) up to about 71 minutes, 464 counters in all.
+ * Recording is one atomic increment plus a max update; percentiles are
+ * read from a copy of the counters, so readers never stop writers.
+ * Success, error and retry counters sit next to the histogram.
+ *
+ * healthMetrics() feeds the metrics object of getVnfHealth;
+ * writePrometheus() renders every series in the Prometheus text format,
+ * served on /metrics by startEndpoint() (VNF_METRICS_PORT).
+ */
+public class VnfMetricsRegistry {
+
+    /**
+     * Operation name under which connectivity tests are recorded
+     */
+    public static final String CONNECTIVITY = "connectivity";
+
+    public enum Outcome { SUCCESS, ERROR, RETRY }
+
+    /**
+     * Lock-free high-dynamic-range latency histogram
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 31;
+        static final int BUCKETS = SUB + (MAX_EXPONENT - SUB_BITS + 1) * SUB;
+        private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            long v = Math.min(Math.max(value, 0), MAX_VALUE);
+            counts.incrementAndGet(index(v));
+            sum.add(v);
+            if (v > max.get()) {
+                max.accumulateAndGet(v, Math::max);
+            }
+        }
+
+        public long getMax() { return max.get(); }
+        public long getSum() { return sum.sum(); }
+
+        /**
+         * Copy of the counters for a consistent read
+         */
+        public long[] snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+
+        /**
+         * Smallest value at or above the given fraction (0..1] of a snapshot,
+         * as the upper bound of its bucket; 0 if the snapshot is empty
+         */
+        public static long percentile(long[] snapshot, double quantile, long max) {
+            long total = 0;
+            for (long count : snapshot) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        static int index(long v) {
+            if (v < SUB) {
+                return (int) v;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return SUB + shift * SUB + (int) (v >>> shift) - SUB;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB) {
+                return index;
+            }
+            int shift = (index - SUB) / SUB;
+            long top = SUB + (index - SUB) % SUB;
+            return ((top + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * Read-only view of one series, or of several merged; latencies in ms
+     */
+    public static final class Summary {
+        private final String operation;
+        private final String vendor;
+        private final long count;
+        private final long successes;
+        private final long errors;
+        private final long retries;
+        private final double meanMs;
+        private final double p50Ms;
+        private final double p99Ms;
+        private final double maxMs;
+
+        Summary(String operation, String vendor, long[] counts, long sumMicros, long maxMicros,
+                long successes, long errors, long retries) {
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.operation = operation;
+            this.vendor = vendor;
+            this.count = total;
+            this.successes = successes;
+            this.errors = errors;
+            this.retries = retries;
+            this.meanMs = total == 0 ? 0 : sumMicros / 1000.0 / total;
+            this.p50Ms = Histogram.percentile(counts, 0.50, maxMicros) / 1000.0;
+            this.p99Ms = Histogram.percentile(counts, 0.99, maxMicros) / 1000.0;
+            this.maxMs = maxMicros / 1000.0;
+        }
+
+        public String getOperation() { return operation; }
+        public String getVendor() { return vendor; }
+        public long getCount() { return count; }
+        public long getSuccesses() { return successes; }
+        public long getErrors() { return errors; }
+        public long getRetries() { return retries; }
+        public double getMeanMs() { return meanMs; }
+        public double getP50Ms() { return p50Ms; }
+        public double getP99Ms() { return p99Ms; }
+        public double getMaxMs() { return maxMs; }
+    }
+
+    private static final class Key {
+        final long applianceId;
+        final String vendor;
+        final String operation;
+
+        Key(long applianceId, String vendor, String operation) {
+            this.applianceId = applianceId;
+            this.vendor = vendor;
+            this.operation = operation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return applianceId == other.applianceId && vendor.equals(other.vendor) &&
+                   operation.equals(other.operation);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Long.hashCode(applianceId) + vendor.hashCode()) + operation.hashCode();
+        }
+    }
+
+    private static final class Series {
+        final Histogram latency = new Histogram();
+        final LongAdder successes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder retries = new LongAdder();
+    }
+
+    private final ConcurrentHashMap<Key, Series> series = new ConcurrentHashMap<>();
+
+    /**
+     * One device call of an appliance
+     *
+     * @param operation the dictionary operation, e.g. Firewall.create
+     */
+    public void record(VnfAppliance appliance, String operation, long micros, Outcome outcome) {
+        if (appliance.getId() == null) {
+            return;
+        }
+        Key key = new Key(appliance.getId(), vendor(appliance), operation != null ? operation : "unknown");
+        Series s = series.get(key);
+        if (s == null) {
+            s = series.computeIfAbsent(key, k -> new Series());
+        }
+        s.latency.record(micros);
+        switch (outcome) {
+            case SUCCESS:
+                s.successes.increment();
+                break;
+            case ERROR:
+                s.errors.increment();
+                break;
+            case RETRY:
+                s.retries.increment();
+                break;
+        }
+    }
+
+    /**
+     * A connectivity test, recorded as operation CONNECTIVITY
+     */
+    public void recordConnectivity(VnfAppliance appliance, VnfConnectivityResult result) {
+        record(appliance, CONNECTIVITY, result.getLatencyMs() * 1000,
+               result.isReachable() ? Outcome.SUCCESS : Outcome.ERROR);
+    }
+
+    /**
+     * Per-operation summaries of an appliance, sorted by operation
+     */
+    public List<Summary> summaries(long applianceId) {
+        List<Summary> result = new ArrayList<>();
+        for (Map.Entry<Key, Series> e : series.entrySet()) {
+            if (e.getKey().applianceId == applianceId) {
+                result.add(summarize(e.getKey().operation, e.getKey().vendor, List.of(e.getValue())));
+            }
+        }
+        result.sort(Comparator.comparing(Summary::getOperation));
+        return result;
+    }
+
+    /**
+     * All operations of all appliances of a vendor merged into one summary
+     */
+    public Summary vendorSummary(String vendor) {
+        List<Series> matching = new ArrayList<>();
+        for (Map.Entry<Key, Series> e : series.entrySet()) {
+            if (e.getKey().vendor.equals(vendor)) {
+                matching.add(e.getValue());
+            }
+        }
+        return summarize(null, vendor, matching);
+    }
+
+    /**
+     * The metrics object of the getVnfHealth response for an appliance
+     */
+    public Map<String, Object> healthMetrics(long applianceId) {
+        List<Series> all = new ArrayList<>();
+        String vendor = null;
+        List<Map<String, Object>> operations = new ArrayList<>();
+        for (Map.Entry<Key, Series> e : series.entrySet()) {
+            if (e.getKey().applianceId == applianceId) {
+                all.add(e.getValue());
+                vendor = e.getKey().vendor;
+            }
+        }
+        for (Summary summary : summaries(applianceId)) {
+            Map<String, Object> op = responseFields(summary);
+            op.put("operation", summary.getOperation());
+            operations.add(op);
+        }
+        Map<String, Object> metrics = responseFields(summarize(null, vendor, all));
+        metrics.put("operations", operations);
+        return metrics;
+    }
+
+    /**
+     * Every series in the Prometheus text exposition format (0.0.4)
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        List<Map.Entry<Key, Series>> entries = new ArrayList<>(series.entrySet());
+        entries.sort(Comparator.comparing((Map.Entry<Key, Series> e) -> e.getKey().applianceId)
+                               .thenComparing(e -> e.getKey().operation));
+
+        out.append("# HELP vnf_request_duration_seconds Latency of VNF device calls\n");
+        out.append("# TYPE vnf_request_duration_seconds summary\n");
+        for (Map.Entry<Key, Series> e : entries) {
+            String labels = labels(e.getKey());
+            Histogram h = e.getValue().latency;
+            long[] counts = h.snapshot();
+            long max = h.getMax();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            for (double q : new double[] {0.5, 0.99}) {
+                out.append("vnf_request_duration_seconds{").append(labels).append(",quantile=\"")
+                   .append(Double.toString(q)).append("\"} ")
+                   .append(seconds(Histogram.percentile(counts, q, max))).append('\n');
+            }
+            out.append("vnf_request_duration_seconds_sum{").append(labels).append("} ")
+               .append(seconds(h.getSum())).append('\n');
+            out.append("vnf_request_duration_seconds_count{").append(labels).append("} ")
+               .append(Long.toString(total)).append('\n');
+        }
+
+        out.append("# HELP vnf_request_duration_seconds_max Slowest VNF device call\n");
+        out.append("# TYPE vnf_request_duration_seconds_max gauge\n");
+        for (Map.Entry<Key, Series> e : entries) {
+            out.append("vnf_request_duration_seconds_max{").append(labels(e.getKey())).append("} ")
+               .append(seconds(e.getValue().latency.getMax())).append('\n');
+        }
+
+        out.append("# HELP vnf_requests_total VNF device calls by outcome\n");
+        out.append("# TYPE vnf_requests_total counter\n");
+        for (Map.Entry<Key, Series> e : entries) {
+            String labels = labels(e.getKey());
+            Series s = e.getValue();
+            counter(out, labels, "success", s.successes.sum());
+            counter(out, labels, "error", s.errors.sum());
+            counter(out, labels, "retry", s.retries.sum());
+        }
+    }
+
+    /**
+     * Serves writePrometheus() on GET /metrics
+     */
+    public HttpServer startEndpoint(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                StringBuilder text = new StringBuilder();
+                writePrometheus(text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Drops an appliance's series, e.g. when it is destroyed
+     */
+    public void removeAppliance(VnfAppliance appliance) {
+        if (appliance.getId() != null) {
+            long id = appliance.getId();
+            series.keySet().removeIf(key -> key.applianceId == id);
+        }
+    }
+
+    private static Summary summarize(String operation, String vendor, List<Series> merged) {
+        long[] counts = new long[Histogram.BUCKETS];
+        long sum = 0;
+        long max = 0;
+        long successes = 0;
+        long errors = 0;
+        long retries = 0;
+        for (Series s : merged) {
+            long[] snapshot = s.latency.snapshot();
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += snapshot[i];
+            }
+            sum += s.latency.getSum();
+            max = Math.max(max, s.latency.getMax());
+            successes += s.successes.sum();
+            errors += s.errors.sum();
+            retries += s.retries.sum();
+        }
+        return new Summary(operation, vendor, counts, sum, max, successes, errors, retries);
+    }
+
+    private static Map<String, Object> responseFields(Summary summary) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("successfuloperations", summary.getSuccesses());
+        fields.put("failedoperations", summary.getErrors());
+        fields.put("retriedoperations", summary.getRetries());
+        fields.put("averagelatencyms", Math.round(summary.getMeanMs()));
+        fields.put("p50latencyms", summary.getP50Ms());
+        fields.put("p99latencyms", summary.getP99Ms());
+        fields.put("maxlatencyms", summary.getMaxMs());
+        return fields;
+    }
+
+    private static void counter(Appendable out, String labels, String outcome, long value) throws IOException {
+        out.append("vnf_requests_total{").append(labels).append(",outcome=\"").append(outcome).append("\"} ")
+           .append(Long.toString(value)).append('\n');
+    }
+
+    private static String labels(Key key) {
+        return "appliance=\"" + key.applianceId + "\",vendor=\"" + escape(key.vendor) +
+               "\",operation=\"" + escape(key.operation) + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+
+    private static String vendor(VnfAppliance appliance) {
+        VnfDictionary dictionary = appliance.getDictionary();
+        return dictionary != null && dictionary.getVendor() != null ? dictionary.getVendor() : "unknown";
+    }
+}
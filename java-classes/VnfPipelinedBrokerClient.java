@@ -0,0 +1,456 @@
+// =====================================================
+// VNF Pipelined Broker Client
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous broker client with one ordered pipeline per appliance.
+ *
+ * Requests for an appliance enter its queue in submission order. Reads
+ * (GET/HEAD) may overlap up to pipelineDepth in flight; any other request
+ * (POST/PUT/DELETE/PATCH, SSH/CLI commands) is a barrier: it starts only
+ * after everything submitted before it has completed, and nothing
+ * submitted after it starts until it completes. Retries happen inside the
+ * request's slot, so a retried write still keeps its place. Only
+ * idempotent requests are retried (reads, and operations the dictionary
+ * marks "idempotent: true"); a create or CLI command that timed out may
+ * have been applied, so it fails instead of being sent twice. A whole
+ * transaction (begin, staged requests, commit) occupies a single barrier
+ * slot, so no other request can land between its begin and its commit.
+ *
+ * Since each appliance holds at most pipelineDepth requests in flight, a
+ * slow VNF cannot occupy the whole executor; other appliances keep being
+ * served. At most maxQueued requests wait behind them; further ones fail
+ * at once with a retriable CommunicationException. The blocking methods
+ * wait for the request's timeout (or the default) per attempt plus the
+ * retry backoff; a request still queued by then is withdrawn unsent.
+ *
+ * When the delegate's sendRequestAsync is non-blocking, executor threads
+ * are only used to dispatch and throughput is bounded by the number of
+ * appliances rather than by the pool size.
+ */
+public class VnfPipelinedBrokerClient implements VnfBrokerClient {
+
+    public static final int DEFAULT_PIPELINE_DEPTH = 4;
+    public static final long DEFAULT_RETRY_BASE_DELAY_MS = 1000;
+    public static final double DEFAULT_RETRY_BACKOFF_MULTIPLIER = 2.0;
+    public static final long DEFAULT_RETRY_MAX_DELAY_MS = 30000;
+    public static final Set<Integer> DEFAULT_RETRY_STATUS_CODES = Set.of(408, 429, 500, 502, 503, 504);
+    public static final int DEFAULT_MAX_QUEUED = 1000;
+    public static final int DEFAULT_TIMEOUT_SECONDS = 30;
+
+    private final VnfBrokerClient delegate;
+    private final Executor executor;
+    private final int pipelineDepth;
+
+    private long retryBaseDelayMs = DEFAULT_RETRY_BASE_DELAY_MS;
+    private double retryBackoffMultiplier = DEFAULT_RETRY_BACKOFF_MULTIPLIER;
+    private long retryMaxDelayMs = DEFAULT_RETRY_MAX_DELAY_MS;
+    private Set<Integer> retryStatusCodes = DEFAULT_RETRY_STATUS_CODES;
+    private int maxQueued = DEFAULT_MAX_QUEUED;
+    private int defaultTimeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+
+    private final ConcurrentHashMap<Object, AppliancePipeline> pipelines = new ConcurrentHashMap<>();
+
+    public VnfPipelinedBrokerClient(VnfBrokerClient delegate, Executor executor) {
+        this(delegate, executor, DEFAULT_PIPELINE_DEPTH);
+    }
+
+    /**
+     * @param delegate      client performing the actual transport
+     * @param executor      runs dispatches and retry callbacks
+     * @param pipelineDepth maximum requests in flight per appliance
+     */
+    public VnfPipelinedBrokerClient(VnfBrokerClient delegate, Executor executor, int pipelineDepth) {
+        if (pipelineDepth <= 0) {
+            throw new IllegalArgumentException("pipelineDepth must be positive: " + pipelineDepth);
+        }
+        this.delegate = delegate;
+        this.executor = executor;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Backoff between retry attempts (VNF_RETRY_* settings)
+     */
+    public void setRetryPolicy(long baseDelayMs, double multiplier, long maxDelayMs, Set<Integer> statusCodes) {
+        this.retryBaseDelayMs = baseDelayMs;
+        this.retryBackoffMultiplier = multiplier;
+        this.retryMaxDelayMs = maxDelayMs;
+        this.retryStatusCodes = Set.copyOf(statusCodes);
+    }
+
+    /**
+     * Requests waiting per appliance before new ones are refused
+     * (VNF_BROKER_PIPELINE_QUEUE_SIZE), and the timeout of requests that
+     * set none (VNF_REQUEST_TIMEOUT_SECONDS)
+     */
+    public void setLimits(int maxQueued, int defaultTimeoutSeconds) {
+        if (maxQueued <= 0 || defaultTimeoutSeconds <= 0) {
+            throw new IllegalArgumentException("Pipeline limits must be positive: " +
+                                               maxQueued + "/" + defaultTimeoutSeconds);
+        }
+        this.maxQueued = maxQueued;
+        this.defaultTimeoutSeconds = defaultTimeoutSeconds;
+    }
+
+    // Asynchronous API
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+        return enqueue(appliance, request, 0).future;
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestWithRetryAsync(VnfAppliance appliance, VnfRequest request,
+                                                                    int maxRetries) {
+        return enqueue(appliance, request, retriesOf(request, maxRetries)).future;
+    }
+
+    // Blocking API, kept for existing callers
+
+    @Override
+    public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+        return await(enqueue(appliance, request, 0), waitMillis(request, 0));
+    }
+
+    @Override
+    public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+            throws CommunicationException {
+        int retries = retriesOf(request, maxRetries);
+        return await(enqueue(appliance, request, retries), waitMillis(request, retries));
+    }
+
+    /**
+     * The transaction runs as one ordered unit of the appliance pipeline
+     */
+    @Override
+    public CompletableFuture<VnfTransactionResult> executeTransactionAsync(VnfAppliance appliance,
+                                                                          VnfTransaction transaction,
+                                                                          VnfResponseParser responseParser) {
+        return enqueue(appliance, transaction, responseParser).future;
+    }
+
+    /**
+     * Waits for the sum of the timeouts of the transaction's requests
+     */
+    @Override
+    public VnfTransactionResult executeTransaction(VnfAppliance appliance, VnfTransaction transaction,
+                                                   VnfResponseParser responseParser) {
+        try {
+            return await(enqueue(appliance, transaction, responseParser), waitMillis(transaction));
+        } catch (CommunicationException e) {
+            VnfTransactionResult result = new VnfTransactionResult();
+            result.setFailure(null, e.getMessage());
+            return result;
+        }
+    }
+
+    @Override
+    public boolean isReachable(VnfAppliance appliance) {
+        return delegate.isReachable(appliance);
+    }
+
+    @Override
+    public BrokerType getBrokerType() {
+        return delegate.getBrokerType();
+    }
+
+    /**
+     * Requests queued or in flight for an appliance
+     */
+    public int getPendingCount(VnfAppliance appliance) {
+        AppliancePipeline pipeline = pipelines.get(keyOf(appliance));
+        return pipeline != null ? pipeline.pending() : 0;
+    }
+
+    /**
+     * Drop the (idle) pipeline of a destroyed appliance
+     */
+    public void removeAppliance(VnfAppliance appliance) {
+        pipelines.computeIfPresent(keyOf(appliance), (k, p) -> p.pending() == 0 ? null : p);
+    }
+
+    // Pipeline
+
+    private PendingRequest<VnfResponse> enqueue(VnfAppliance appliance, VnfRequest request, int maxRetries) {
+        PendingRequest<VnfResponse> pending = new PendingRequest<>(appliance, isOrdered(request), maxRetries,
+            request.isIdempotent(), () -> delegate.sendRequestAsync(appliance, request));
+        submit(appliance, pending);
+        return pending;
+    }
+
+    private PendingRequest<VnfTransactionResult> enqueue(VnfAppliance appliance, VnfTransaction transaction,
+                                                         VnfResponseParser responseParser) {
+        PendingRequest<VnfTransactionResult> pending = new PendingRequest<>(appliance, true, 0, false,
+            () -> delegate.executeTransactionAsync(appliance, transaction, responseParser));
+        submit(appliance, pending);
+        return pending;
+    }
+
+    /**
+     * Queued under the map's lock for the key, so removeAppliance cannot
+     * drop a pipeline between its lookup and the enqueue. A full queue
+     * fails the request without sending it.
+     */
+    private void submit(VnfAppliance appliance, PendingRequest<?> pending) {
+        boolean[] queued = new boolean[1];
+        AppliancePipeline pipeline = pipelines.compute(keyOf(appliance), (k, p) -> {
+            AppliancePipeline target = p != null ? p : new AppliancePipeline();
+            queued[0] = target.add(pending);
+            return target;
+        });
+        if (!queued[0]) {
+            pending.future.completeExceptionally(new CommunicationException(
+                "Broker pipeline for " + appliance.getManagementIp() + " is full (" + maxQueued +
+                " requests waiting)", true));
+            return;
+        }
+        pipeline.drain();
+    }
+
+    private static int retriesOf(VnfRequest request, int maxRetries) {
+        return request.isIdempotent() ? Math.max(0, maxRetries) : 0;
+    }
+
+    private long timeoutMillis(VnfRequest request) {
+        int seconds = request != null && request.getTimeoutSeconds() > 0
+            ? request.getTimeoutSeconds() : defaultTimeoutSeconds;
+        return TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * One timeout per attempt plus the backoff before each retry
+     */
+    private long waitMillis(VnfRequest request, int maxRetries) {
+        long wait = timeoutMillis(request) * (maxRetries + 1);
+        for (int attempt = 0; attempt < maxRetries; attempt++) {
+            wait += backoff(attempt);
+        }
+        return wait;
+    }
+
+    private long waitMillis(VnfTransaction transaction) {
+        List<VnfBatchRequest> requests = new ArrayList<>(transaction.getStaged());
+        requests.add(transaction.getBegin());
+        requests.add(transaction.getCommit());
+        requests.add(transaction.getRollback());
+        long wait = 0;
+        for (VnfBatchRequest request : requests) {
+            if (request != null) {
+                wait += timeoutMillis(request.getRequest());
+            }
+        }
+        return Math.max(wait, timeoutMillis(null));
+    }
+
+    private static Object keyOf(VnfAppliance appliance) {
+        return appliance.getId() != null ? appliance.getId() : appliance.getManagementIp();
+    }
+
+    /**
+     * Reads may overlap; anything that can change device state keeps its order
+     */
+    static boolean isOrdered(VnfRequest request) {
+        String method = request.getMethod();
+        return method == null ||
+               !(method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD"));
+    }
+
+    private void dispatch(AppliancePipeline pipeline, PendingRequest<?> pending) {
+        try {
+            executor.execute(() -> attempt(pipeline, pending));
+        } catch (RejectedExecutionException e) {
+            finish(pipeline, pending, null,
+                   new CommunicationException("Broker executor rejected request: " + e.getMessage(), true));
+        }
+    }
+
+    private <T> void attempt(AppliancePipeline pipeline, PendingRequest<T> pending) {
+        CompletableFuture<T> call;
+        try {
+            call = pending.call.get();
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+
+        call.whenComplete((outcome, error) -> {
+            Throwable cause = unwrap(error);
+            if (pending.attempts < pending.maxRetries && shouldRetry(outcome, cause)) {
+                long delay = backoff(pending.attempts++);
+                try {
+                    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor)
+                        .execute(() -> attempt(pipeline, pending));
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // fall through with the last outcome
+                }
+            }
+            finish(pipeline, pending, outcome, cause);
+        });
+    }
+
+    private boolean shouldRetry(Object outcome, Throwable error) {
+        if (error != null) {
+            return error instanceof CommunicationException && ((CommunicationException) error).isRetriable();
+        }
+        return outcome instanceof VnfResponse &&
+               retryStatusCodes.contains(((VnfResponse) outcome).getStatusCode());
+    }
+
+    long backoff(int attempt) {
+        double delay = retryBaseDelayMs * Math.pow(retryBackoffMultiplier, attempt);
+        return (long) Math.min(delay, retryMaxDelayMs);
+    }
+
+    private <T> void finish(AppliancePipeline pipeline, PendingRequest<T> pending, T outcome, Throwable error) {
+        // Free the slot first so the next request starts before callbacks run
+        pipeline.completed(pending);
+        if (error != null) {
+            pending.future.completeExceptionally(error);
+        } else {
+            pending.future.complete(outcome);
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    private <T> T await(PendingRequest<T> pending, long timeoutMs) throws CommunicationException {
+        CompletableFuture<T> future = pending.future;
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Unsent requests are withdrawn and safe to resend; one already
+            // sent may still be applied, so only idempotent ones are
+            boolean withdrawn = withdraw(pending);
+            CommunicationException timeout = new CommunicationException(
+                "No broker response for " + pending.appliance.getManagementIp() + " within " + timeoutMs +
+                " ms" + (withdrawn ? "; the request was not sent" : ""), withdrawn || pending.idempotent);
+            if (withdrawn) {
+                future.completeExceptionally(timeout);
+            }
+            throw timeout;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommunicationException("Interrupted while waiting for broker response", false);
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (cause instanceof CommunicationException) {
+                throw (CommunicationException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CommunicationException("Broker request failed: " + cause, false);
+        }
+    }
+
+    private boolean withdraw(PendingRequest<?> pending) {
+        AppliancePipeline pipeline = pipelines.get(keyOf(pending.appliance));
+        return pipeline != null && pipeline.withdraw(pending);
+    }
+
+    /**
+     * Ordered request queue of one appliance
+     */
+    private final class AppliancePipeline {
+        private final ArrayDeque<PendingRequest<?>> waiting = new ArrayDeque<>();
+        private int inFlight;
+        private boolean barrier;  // an ordered request is in flight
+
+        synchronized boolean add(PendingRequest<?> pending) {
+            if (waiting.size() >= maxQueued) {
+                return false;
+            }
+            waiting.add(pending);
+            return true;
+        }
+
+        /**
+         * Remove a request that has not been dispatched yet
+         */
+        boolean withdraw(PendingRequest<?> pending) {
+            boolean removed;
+            synchronized (this) {
+                removed = waiting.remove(pending);
+            }
+            if (removed) {
+                drain();  // a barrier may have been waiting at the head
+            }
+            return removed;
+        }
+
+        void completed(PendingRequest<?> pending) {
+            synchronized (this) {
+                inFlight--;
+                if (pending.ordered) {
+                    barrier = false;
+                }
+            }
+            drain();
+        }
+
+        synchronized int pending() {
+            return waiting.size() + inFlight;
+        }
+
+        void drain() {
+            List<PendingRequest<?>> ready = null;
+            synchronized (this) {
+                while (!waiting.isEmpty() && !barrier && inFlight < pipelineDepth) {
+                    PendingRequest<?> head = waiting.peek();
+                    if (head.ordered && inFlight > 0) {
+                        break;  // wait for everything submitted before it
+                    }
+                    waiting.poll();
+                    inFlight++;
+                    barrier = head.ordered;
+                    if (ready == null) {
+                        ready = new ArrayList<>(2);
+                    }
+                    ready.add(head);
+                }
+            }
+            if (ready != null) {
+                for (PendingRequest<?> pending : ready) {
+                    dispatch(this, pending);
+                }
+            }
+        }
+    }
+
+    /**
+     * A queued unit of work: one request, or a whole transaction
+     */
+    private static final class PendingRequest<T> {
+        final VnfAppliance appliance;
+        final boolean ordered;
+        final int maxRetries;
+        final boolean idempotent;
+        final Supplier<CompletableFuture<T>> call;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        int attempts;  // only touched by the attempt chain
+
+        PendingRequest(VnfAppliance appliance, boolean ordered, int maxRetries, boolean idempotent,
+                       Supplier<CompletableFuture<T>> call) {
+            this.appliance = appliance;
+            this.ordered = ordered;
+            this.maxRetries = maxRetries;
+            this.idempotent = idempotent;
+            this.call = call;
+        }
+    }
+}
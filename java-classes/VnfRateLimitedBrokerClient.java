@@ -0,0 +1,358 @@
+// =====================================================
+// VNF Rate Limited Broker Client
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Enforces request rates per appliance and per tenant with lock-free
+ * token buckets.
+ *
+ * An appliance's rate is, in order of precedence: its own override
+ * (vnf_appliances.rate_limit_*), the vendor limit in its dictionary's
+ * access.rateLimit section, or VNF_RATE_LIMIT_PER_MINUTE / _BURST. All
+ * appliances of an account additionally share the tenant bucket
+ * (VNF_RATE_LIMIT_TENANT_*), if one is configured.
+ *
+ * With maxWaitMillis 0 (VNF_RATE_LIMIT_MAX_WAIT_MS) a request without a
+ * token fails at once with a retriable CommunicationException. Otherwise
+ * it may wait up to maxWaitMillis for its token: blocking calls sleep,
+ * async calls are delayed without holding a thread. A request that would
+ * wait longer fails at once, so nothing queues behind a slow API.
+ */
+public class VnfRateLimitedBrokerClient implements VnfBrokerClient {
+
+    public static final int DEFAULT_PER_MINUTE = 60;
+    public static final int DEFAULT_BURST = 10;
+
+    private final VnfBrokerClient delegate;
+    private final Executor executor;
+    private final int defaultPerMinute;
+    private final int defaultBurst;
+    private final long maxWaitNanos;
+
+    private int tenantPerMinute;
+    private int tenantBurst;
+
+    private final ConcurrentHashMap<Object, TokenBucket> appliances = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, TokenBucket> tenants = new ConcurrentHashMap<>();
+
+    private final LongAdder granted = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param executor      runs delayed async requests
+     * @param perMinute     VNF_RATE_LIMIT_PER_MINUTE, for dictionaries without a rate limit
+     * @param burst         VNF_RATE_LIMIT_BURST
+     * @param maxWaitMillis VNF_RATE_LIMIT_MAX_WAIT_MS; 0 fails fast
+     */
+    public VnfRateLimitedBrokerClient(VnfBrokerClient delegate, Executor executor, int perMinute, int burst,
+                                      long maxWaitMillis) {
+        if (perMinute <= 0 || burst <= 0 || maxWaitMillis < 0) {
+            throw new IllegalArgumentException("Invalid rate limit: " + perMinute + "/min, burst " + burst +
+                                               ", max wait " + maxWaitMillis + " ms");
+        }
+        this.delegate = delegate;
+        this.executor = executor;
+        this.defaultPerMinute = perMinute;
+        this.defaultBurst = burst;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * VNF_RATE_LIMIT_TENANT_PER_MINUTE / _BURST; 0 disables the tenant bucket
+     */
+    public void setTenantLimit(int perMinute, int burst) {
+        this.tenantPerMinute = perMinute;
+        this.tenantBurst = burst > 0 ? burst : defaultBurst;
+    }
+
+    @Override
+    public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+        pause(acquire(appliance));
+        return delegate.sendRequest(appliance, request);
+    }
+
+    /**
+     * One token for the whole call; wrapping clients that retry
+     * (VnfGuardedBrokerClient, VnfPipelinedBrokerClient) take one per attempt
+     */
+    @Override
+    public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+            throws CommunicationException {
+        pause(acquire(appliance));
+        return delegate.sendRequestWithRetry(appliance, request, maxRetries);
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+        return later(appliance, () -> delegate.sendRequestAsync(appliance, request));
+    }
+
+    @Override
+    public CompletableFuture<VnfResponse> sendRequestWithRetryAsync(VnfAppliance appliance, VnfRequest request,
+                                                                    int maxRetries) {
+        return later(appliance, () -> delegate.sendRequestWithRetryAsync(appliance, request, maxRetries));
+    }
+
+    /**
+     * A transaction takes one token: its steps must go back to back, and
+     * charging each one could exceed the burst and never be admitted
+     */
+    @Override
+    public VnfTransactionResult executeTransaction(VnfAppliance appliance, VnfTransaction transaction,
+                                                   VnfResponseParser responseParser) {
+        try {
+            pause(acquire(appliance));
+        } catch (CommunicationException e) {
+            VnfTransactionResult result = new VnfTransactionResult();
+            result.setFailure(null, e.getMessage());
+            return result;
+        }
+        return delegate.executeTransaction(appliance, transaction, responseParser);
+    }
+
+    @Override
+    public CompletableFuture<VnfTransactionResult> executeTransactionAsync(VnfAppliance appliance,
+                                                                          VnfTransaction transaction,
+                                                                          VnfResponseParser responseParser) {
+        long waitNanos;
+        try {
+            waitNanos = acquire(appliance);
+        } catch (CommunicationException e) {
+            VnfTransactionResult result = new VnfTransactionResult();
+            result.setFailure(null, e.getMessage());
+            return CompletableFuture.completedFuture(result);
+        }
+        return delay(waitNanos, () -> delegate.executeTransactionAsync(appliance, transaction, responseParser));
+    }
+
+    @Override
+    public boolean isReachable(VnfAppliance appliance) {
+        return delegate.isReachable(appliance);
+    }
+
+    @Override
+    public BrokerType getBrokerType() {
+        return delegate.getBrokerType();
+    }
+
+    // Buckets
+
+    /**
+     * Take a token from the appliance and tenant buckets; returns the nanos
+     * to wait before sending, or throws if that exceeds maxWaitNanos
+     */
+    private long acquire(VnfAppliance appliance) throws CommunicationException {
+        TokenBucket bucket = applianceBucket(appliance);
+        long wait = bucket.reserve(1, maxWaitNanos);
+        if (wait < 0) {
+            rejected.increment();
+            throw new CommunicationException("Rate limit of appliance " + describe(appliance) + " exceeded (" +
+                                             bucket.getPerMinute() + "/min)", true);
+        }
+        TokenBucket tenant = tenantBucket(appliance);
+        if (tenant != null) {
+            long tenantWait = tenant.reserve(1, maxWaitNanos);
+            if (tenantWait < 0) {
+                bucket.refund(1);
+                rejected.increment();
+                throw new CommunicationException("Rate limit of account " + appliance.getAccountId() +
+                                                 " exceeded (" + tenant.getPerMinute() + "/min)", true);
+            }
+            wait = Math.max(wait, tenantWait);
+        }
+        granted.increment();
+        if (wait > 0) {
+            delayed.increment();
+        }
+        return wait;
+    }
+
+    private static void pause(long waitNanos) throws CommunicationException {
+        if (waitNanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommunicationException("Interrupted while waiting for a rate limit token", false);
+        }
+    }
+
+    private CompletableFuture<VnfResponse> later(VnfAppliance appliance,
+                                                 Callable<CompletableFuture<VnfResponse>> send) {
+        long waitNanos;
+        try {
+            waitNanos = acquire(appliance);
+        } catch (CommunicationException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return delay(waitNanos, send);
+    }
+
+    private <T> CompletableFuture<T> delay(long waitNanos, Callable<CompletableFuture<T>> send) {
+        if (waitNanos <= 0) {
+            return call(send);
+        }
+        return CompletableFuture.runAsync(() -> { },
+                CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS, executor))
+            .thenCompose(ignored -> call(send));
+    }
+
+    private static <T> CompletableFuture<T> call(Callable<CompletableFuture<T>> send) {
+        try {
+            return send.call();
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * The appliance's bucket, replaced if its configured rate changed
+     */
+    private TokenBucket applianceBucket(VnfAppliance appliance) {
+        int perMinute = defaultPerMinute;
+        int burst = defaultBurst;
+        AccessConfig access = appliance.getDictionary() != null ? appliance.getDictionary().getAccessConfig() : null;
+        if (access != null && access.getRateLimitPerMinute() > 0) {
+            perMinute = access.getRateLimitPerMinute();
+            burst = access.getRateLimitBurst() > 0 ? access.getRateLimitBurst() : burst;
+        }
+        if (appliance.getRateLimitPerMinute() != null && appliance.getRateLimitPerMinute() > 0) {
+            perMinute = appliance.getRateLimitPerMinute();
+        }
+        if (appliance.getRateLimitBurst() != null && appliance.getRateLimitBurst() > 0) {
+            burst = appliance.getRateLimitBurst();
+        }
+
+        int rate = perMinute;
+        int size = burst;
+        TokenBucket bucket = appliances.get(keyOf(appliance));
+        if (bucket != null && bucket.hasRate(rate, size)) {
+            return bucket;
+        }
+        return appliances.compute(keyOf(appliance),
+            (k, current) -> current != null && current.hasRate(rate, size) ? current : new TokenBucket(rate, size));
+    }
+
+    private TokenBucket tenantBucket(VnfAppliance appliance) {
+        if (tenantPerMinute <= 0 || appliance.getAccountId() == null) {
+            return null;
+        }
+        return tenants.computeIfAbsent(appliance.getAccountId(), k -> new TokenBucket(tenantPerMinute, tenantBurst));
+    }
+
+    private static Object keyOf(VnfAppliance appliance) {
+        return appliance.getId() != null ? appliance.getId() : appliance.getManagementIp();
+    }
+
+    private static String describe(VnfAppliance appliance) {
+        return appliance.getId() != null ? appliance.getId().toString() : appliance.getManagementIp();
+    }
+
+    /**
+     * Forget the bucket of a destroyed appliance
+     */
+    public void removeAppliance(VnfAppliance appliance) {
+        appliances.remove(keyOf(appliance));
+    }
+
+    /**
+     * Counters for the health report
+     */
+    public Map<String, Long> getStats() {
+        return Map.of(
+            "appliances", (long) appliances.size(),
+            "tenants", (long) tenants.size(),
+            "granted", granted.sum(),
+            "delayed", delayed.sum(),
+            "rejected", rejected.sum());
+    }
+
+    /**
+     * Token bucket kept as one theoretical arrival time (GCRA), so taking
+     * a token is a single compare-and-set.
+     *
+     * Each token moves the arrival time one interval (60s / perMinute)
+     * forward. A request may proceed at once while the arrival time is at
+     * most burst intervals ahead of now. A request that would push it
+     * further waits for the difference.
+     */
+    public static final class TokenBucket {
+        private final int perMinute;
+        private final int burst;
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong arrival;
+
+        public TokenBucket(int perMinute, int burst) {
+            if (perMinute <= 0 || burst <= 0) {
+                throw new IllegalArgumentException("Invalid token bucket: " + perMinute + "/min, burst " + burst);
+            }
+            this.perMinute = perMinute;
+            this.burst = burst;
+            this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / perMinute;
+            this.burstNanos = intervalNanos * burst;
+            this.arrival = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Take tokens if they are available within maxWaitNanos
+         *
+         * @return nanos to wait before using them (0 = now), or -1 if none
+         *         were taken because the wait would be longer
+         */
+        public long reserve(int tokens, long maxWaitNanos) {
+            long cost = intervalNanos * tokens;
+            for (;;) {
+                long now = System.nanoTime();
+                long current = arrival.get();
+                long next = Math.max(current, now) + cost;
+                long wait = Math.max(0, next - now - burstNanos);
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (arrival.compareAndSet(current, next)) {
+                    return wait;
+                }
+            }
+        }
+
+        public boolean tryAcquire() {
+            return reserve(1, 0) == 0;
+        }
+
+        /**
+         * Return tokens taken for a request that was not sent
+         */
+        public void refund(int tokens) {
+            arrival.addAndGet(-intervalNanos * tokens);
+        }
+
+        /**
+         * Tokens that could be taken right now
+         */
+        public int available() {
+            long ahead = Math.max(0, arrival.get() - System.nanoTime());
+            return (int) Math.max(0, (burstNanos - ahead) / intervalNanos);
+        }
+
+        public int getPerMinute() { return perMinute; }
+        public int getBurst() { return burst; }
+
+        boolean hasRate(int perMinute, int burst) {
+            return this.perMinute == perMinute && this.burst == burst;
+        }
+    }
+}
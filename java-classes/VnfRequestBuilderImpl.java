@@ -0,0 +1,525 @@
+// =====================================================
+// VNF Request Builder Implementation
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+import com.cloud.network.lb.LoadBalancingRule;
+import com.cloud.network.rules.FirewallRule;
+import com.cloud.network.rules.PortForwardingRule;
+
+import java.util.*;
+
+/**
+ * Builds VNF requests from dictionary operations and CloudStack rules.
+ *
+ * Single-rule operations use the service's create/delete/list entries.
+ * Batches use bulkCreate/bulkDelete when the dictionary defines them:
+ * the operation's itemTemplate is rendered once per rule and the joined
+ * fragments replace ${items} in the endpoint or body. Batches larger than
+ * maxItems are split. Without a bulk operation every rule gets its own
+ * request, so callers can always use the batch API.
+ *
+ * Dictionaries with a transaction section can stage operations on a
+ * VnfTransaction instead and commit them once. Requests built outside a
+ * transaction still apply on their own: for SCRIPT transactions (CLI
+ * devices) they are wrapped in the begin/commit commands, for REQUESTS
+ * transactions (PAN-OS) they carry the commit as their commit request.
+ *
+ * Scripts chain their command lines with "&&", so the device shell stops
+ * at the first failing line and never reaches commit/save after a partial
+ * change.
+ */
+public class VnfRequestBuilderImpl implements VnfRequestBuilder {
+
+    public static final String FIREWALL_SERVICE = "Firewall";
+    public static final String NAT_SERVICE = "NAT";
+    public static final String LOAD_BALANCER_SERVICE = "LoadBalancer";
+
+    private final VnfRuleLookup ruleLookup;
+
+    public VnfRequestBuilderImpl(VnfRuleLookup ruleLookup) {
+        this.ruleLookup = ruleLookup;
+    }
+
+    // Single-rule requests
+
+    @Override
+    public VnfRequest buildFirewallRequest(VnfDictionary dictionary, FirewallRuleOperation operation,
+                                           FirewallRule rule) throws RequestBuildException {
+        String opName = operationName(operation.name());
+        return standalone(dictionary, build(dictionary, FIREWALL_SERVICE, opName,
+                                            firewallContext(FIREWALL_SERVICE, opName, rule)));
+    }
+
+    @Override
+    public VnfRequest buildNatRequest(VnfDictionary dictionary, NatOperation operation,
+                                      PortForwardingRule rule) throws RequestBuildException {
+        String opName = operationName(operation.name());
+        return standalone(dictionary, build(dictionary, NAT_SERVICE, opName, natContext(opName, rule)));
+    }
+
+    @Override
+    public VnfRequest buildLoadBalancerRequest(VnfDictionary dictionary, LoadBalancerOperation operation,
+                                               LoadBalancingRule rule) throws RequestBuildException {
+        String opName = operationName(operation.name());
+        return standalone(dictionary, build(dictionary, LOAD_BALANCER_SERVICE, opName,
+                                            loadBalancerContext(opName, rule)));
+    }
+
+    @Override
+    public VnfRequest buildListRequest(VnfDictionary dictionary, String serviceName)
+            throws RequestBuildException {
+        return build(dictionary, serviceName, "list", new TemplateContext());
+    }
+
+    @Override
+    public VnfRequest buildRevisionRequest(VnfDictionary dictionary) throws RequestBuildException {
+        RevisionConfig config = dictionary.getRevision();
+        if (config == null) {
+            throw new RequestBuildException("Dictionary declares no revision operation");
+        }
+        return control(dictionary, config.getOperation()).getRequest();
+    }
+
+    // Batch requests
+
+    @Override
+    public List<VnfBatchRequest> buildFirewallRequests(VnfDictionary dictionary,
+                                                       FirewallRuleOperation operation,
+                                                       Collection<? extends FirewallRule> rules)
+            throws RequestBuildException {
+        return firewallBatch(dictionary, operation, rules, true);
+    }
+
+    @Override
+    public List<VnfBatchRequest> buildNatRequests(VnfDictionary dictionary,
+                                                  NatOperation operation,
+                                                  Collection<? extends PortForwardingRule> rules)
+            throws RequestBuildException {
+        return natBatch(dictionary, operation, rules, true);
+    }
+
+    @Override
+    public List<VnfBatchRequest> buildLoadBalancerRequests(VnfDictionary dictionary,
+                                                           LoadBalancerOperation operation,
+                                                           Collection<? extends LoadBalancingRule> rules)
+            throws RequestBuildException {
+        return loadBalancerBatch(dictionary, operation, rules, true);
+    }
+
+    private List<VnfBatchRequest> firewallBatch(VnfDictionary dictionary, FirewallRuleOperation operation,
+                                                Collection<? extends FirewallRule> rules, boolean standalone)
+            throws RequestBuildException {
+        String opName = operationName(operation.name());
+        List<Long> ids = new ArrayList<>(rules.size());
+        List<TemplateContext> contexts = new ArrayList<>(rules.size());
+        for (FirewallRule rule : rules) {
+            ids.add(rule.getId());
+            contexts.add(firewallContext(FIREWALL_SERVICE, opName, rule));
+        }
+        return buildBatch(dictionary, FIREWALL_SERVICE, opName, ids, contexts, standalone);
+    }
+
+    private List<VnfBatchRequest> natBatch(VnfDictionary dictionary, NatOperation operation,
+                                           Collection<? extends PortForwardingRule> rules, boolean standalone)
+            throws RequestBuildException {
+        String opName = operationName(operation.name());
+        List<Long> ids = new ArrayList<>(rules.size());
+        List<TemplateContext> contexts = new ArrayList<>(rules.size());
+        for (PortForwardingRule rule : rules) {
+            ids.add(rule.getId());
+            contexts.add(natContext(opName, rule));
+        }
+        return buildBatch(dictionary, NAT_SERVICE, opName, ids, contexts, standalone);
+    }
+
+    private List<VnfBatchRequest> loadBalancerBatch(VnfDictionary dictionary, LoadBalancerOperation operation,
+                                                    Collection<? extends LoadBalancingRule> rules,
+                                                    boolean standalone)
+            throws RequestBuildException {
+        String opName = operationName(operation.name());
+        List<Long> ids = new ArrayList<>(rules.size());
+        List<TemplateContext> contexts = new ArrayList<>(rules.size());
+        for (LoadBalancingRule rule : rules) {
+            ids.add(rule.getId());
+            contexts.add(loadBalancerContext(opName, rule));
+        }
+        return buildBatch(dictionary, LOAD_BALANCER_SERVICE, opName, ids, contexts, standalone);
+    }
+
+    /**
+     * Bulk requests when the service has a bulk variant of the operation,
+     * otherwise one request per rule. Standalone requests are wrapped for
+     * script transactions; staged ones are not.
+     */
+    private List<VnfBatchRequest> buildBatch(VnfDictionary dictionary, String serviceName, String opName,
+                                             List<Long> ruleIds, List<TemplateContext> contexts,
+                                             boolean standalone)
+            throws RequestBuildException {
+
+        if (opName.equals("list")) {
+            throw new RequestBuildException("List is not a per-rule operation");
+        }
+
+        String bulkName = bulkOperationName(opName);
+        OperationDefinition bulkOp = bulkName != null ? findOperation(dictionary, serviceName, bulkName) : null;
+
+        // A single rule only goes through the bulk operation if there is no other way
+        boolean useBulk = bulkOp != null && bulkOp.isBulk() &&
+            (ruleIds.size() > 1 || findOperation(dictionary, serviceName, opName) == null);
+
+        List<VnfBatchRequest> requests = new ArrayList<>();
+        if (!useBulk) {
+            OperationDefinition op = requireOperation(dictionary, serviceName, opName);
+            for (int i = 0; i < ruleIds.size(); i++) {
+                VnfRequest request = render(dictionary, serviceName, opName, op, contexts.get(i));
+                requests.add(new VnfBatchRequest(
+                    standalone ? standalone(dictionary, request) : request,
+                    serviceName + "." + opName,
+                    Collections.singletonList(ruleIds.get(i)),
+                    false));
+            }
+            return requests;
+        }
+
+        // Items substituted into the endpoint address objects, like an endpoint would
+        if (bulkOp.getCompiledEndpoint() != null &&
+            bulkOp.getCompiledEndpoint().getVariables().contains(OperationDefinition.BULK_ITEMS)) {
+            for (TemplateContext context : contexts) {
+                requireVariables(bulkOp.getCompiledItem(), context, serviceName, bulkName);
+            }
+        }
+
+        int chunk = bulkOp.getMaxItems() > 0 ? bulkOp.getMaxItems() : ruleIds.size();
+        for (int from = 0; from < ruleIds.size(); from += chunk) {
+            int to = Math.min(from + chunk, ruleIds.size());
+
+            TemplateContext context = new TemplateContext();
+            context.set(OperationDefinition.BULK_ITEMS, bulkOp.renderItems(contexts.subList(from, to)));
+
+            VnfRequest request = render(dictionary, serviceName, bulkName, bulkOp, context);
+            requests.add(new VnfBatchRequest(
+                standalone ? standalone(dictionary, request) : request,
+                serviceName + "." + bulkName,
+                new ArrayList<>(ruleIds.subList(from, to)),
+                true));
+        }
+        return requests;
+    }
+
+    // Transactions
+
+    @Override
+    public VnfTransaction beginTransaction(VnfDictionary dictionary) throws RequestBuildException {
+        TransactionConfig config = dictionary.getTransaction();
+        if (config == null) {
+            throw new RequestBuildException("Dictionary declares no transaction commands");
+        }
+        return new Transaction(dictionary, config);
+    }
+
+    /**
+     * Make a request built outside a transaction apply on its own: wrapped
+     * in the begin/commit commands of a SCRIPT transaction, or given the
+     * commit of a REQUESTS transaction as its commit request
+     */
+    private VnfRequest standalone(VnfDictionary dictionary, VnfRequest request) throws RequestBuildException {
+        TransactionConfig config = dictionary.getTransaction();
+        if (config == null) {
+            return request;
+        }
+        if (!config.isScript()) {
+            request.setCommitRequest(control(dictionary, config.getCommitOperation()).getRequest());
+            return request;
+        }
+        List<String> commands = new ArrayList<>(3);
+        if (config.getBeginOperation() != null) {
+            commands.add(control(dictionary, config.getBeginOperation()).getRequest().getUri());
+        }
+        commands.add(request.getUri());
+        commands.add(control(dictionary, config.getCommitOperation()).getRequest().getUri());
+        return request.withUri(chainCommands(commands));
+    }
+
+    /**
+     * Render a begin/commit/rollback operation ("Service.operation")
+     */
+    private VnfBatchRequest control(VnfDictionary dictionary, String ref) throws RequestBuildException {
+        if (ref == null) {
+            return null;
+        }
+        int dot = ref.indexOf('.');
+        if (dot <= 0) {
+            throw new RequestBuildException("Invalid operation reference: " + ref);
+        }
+        String serviceName = ref.substring(0, dot);
+        String opName = ref.substring(dot + 1);
+        VnfRequest request = build(dictionary, serviceName, opName, new TemplateContext());
+        return new VnfBatchRequest(request, ref, Collections.emptyList(), false);
+    }
+
+    /**
+     * One CLI command per line, each line run only if the previous one
+     * succeeded ("a &&\nb"); blank lines of YAML blocks are dropped
+     */
+    private static String chainCommands(List<String> commands) {
+        StringBuilder sb = new StringBuilder();
+        for (String command : commands) {
+            for (String line : command.split("\n")) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append(" &&\n");
+                }
+                sb.append(trimmed);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Staging area of one transaction; not thread-safe
+     */
+    private final class Transaction implements VnfTransaction {
+        private final VnfDictionary dictionary;
+        private final TransactionConfig config;
+        private final VnfBatchRequest begin;
+        private final VnfBatchRequest commit;
+        private final VnfBatchRequest rollback;
+        private final List<VnfBatchRequest> staged = new ArrayList<>();
+
+        Transaction(VnfDictionary dictionary, TransactionConfig config) throws RequestBuildException {
+            this.dictionary = dictionary;
+            this.config = config;
+            this.begin = control(dictionary, config.getBeginOperation());
+            this.commit = control(dictionary, config.getCommitOperation());
+            this.rollback = control(dictionary, config.getRollbackOperation());
+        }
+
+        @Override
+        public VnfDictionary getDictionary() { return dictionary; }
+
+        @Override
+        public List<VnfBatchRequest> stageFirewallRules(FirewallRuleOperation operation,
+                                                        Collection<? extends FirewallRule> rules)
+                throws RequestBuildException {
+            return stage(firewallBatch(dictionary, operation, rules, false));
+        }
+
+        @Override
+        public List<VnfBatchRequest> stageNatRules(NatOperation operation,
+                                                   Collection<? extends PortForwardingRule> rules)
+                throws RequestBuildException {
+            return stage(natBatch(dictionary, operation, rules, false));
+        }
+
+        @Override
+        public List<VnfBatchRequest> stageLoadBalancerRules(LoadBalancerOperation operation,
+                                                            Collection<? extends LoadBalancingRule> rules)
+                throws RequestBuildException {
+            return stage(loadBalancerBatch(dictionary, operation, rules, false));
+        }
+
+        private List<VnfBatchRequest> stage(List<VnfBatchRequest> requests) {
+            staged.addAll(requests);
+            return requests;
+        }
+
+        @Override
+        public List<VnfBatchRequest> getStaged() { return Collections.unmodifiableList(staged); }
+
+        @Override
+        public boolean isScript() { return config.isScript(); }
+
+        @Override
+        public VnfBatchRequest getBegin() { return begin; }
+
+        @Override
+        public VnfBatchRequest getCommit() { return commit; }
+
+        @Override
+        public VnfBatchRequest getRollback() { return rollback; }
+
+        /**
+         * Success of the script is judged by the commit operation, whose
+         * output only appears if every earlier line succeeded
+         */
+        @Override
+        public VnfBatchRequest toScript() {
+            if (!config.isScript()) {
+                throw new IllegalStateException("Transaction is not in script mode");
+            }
+            List<String> commands = new ArrayList<>(staged.size() + 2);
+            List<Long> ruleIds = new ArrayList<>();
+            if (begin != null) {
+                commands.add(begin.getRequest().getUri());
+            }
+            for (VnfBatchRequest request : staged) {
+                commands.add(request.getRequest().getUri());
+                ruleIds.addAll(request.getRuleIds());
+            }
+            commands.add(commit.getRequest().getUri());
+            return new VnfBatchRequest(commit.getRequest().withUri(chainCommands(commands)),
+                                       commit.getOperation(), ruleIds, true);
+        }
+    }
+
+    // Rendering
+
+    private VnfRequest build(VnfDictionary dictionary, String serviceName, String opName,
+                             TemplateContext context) throws RequestBuildException {
+        OperationDefinition op = requireOperation(dictionary, serviceName, opName);
+        return render(dictionary, serviceName, opName, op, context);
+    }
+
+    private VnfRequest render(VnfDictionary dictionary, String serviceName, String opName,
+                              OperationDefinition op, TemplateContext context)
+            throws RequestBuildException {
+
+        // An empty externalId in "/rule/${externalId}" would address the collection
+        CompiledTemplate endpoint = op.getCompiledEndpoint();
+        if (endpoint == null) {
+            throw new RequestBuildException(
+                "Operation " + serviceName + "." + opName + " has no endpoint");
+        }
+        requireVariables(endpoint, context, serviceName, opName);
+
+        AccessConfig access = dictionary.getAccessConfig();
+        boolean cli = isCli(op);
+
+        VnfRequest request = new VnfRequest();
+        request.setOperation(op.getRef() != null ? op.getRef() : serviceName + "." + opName);
+        request.setMethod(op.getMethod());
+        request.setIdempotent(op.isIdempotent());
+        request.setProtocol(access != null ? access.getProtocol() : null);
+        request.setPort(access != null ? access.getPort() : 0);
+
+        String rendered = op.renderEndpoint(context);
+        String basePath = access != null && !cli ? access.getBasePath() : null;
+        request.setUri(basePath != null && !basePath.isEmpty() ? basePath + rendered : rendered);
+        request.setHeaders(op.renderHeaders(context));
+        request.setBody(op.renderBody(context));
+        return request;
+    }
+
+    private static void requireVariables(CompiledTemplate template, TemplateContext context,
+                                         String serviceName, String opName) throws RequestBuildException {
+        for (String variable : template.getVariables()) {
+            if (context.get(variable) == null) {
+                throw new RequestBuildException("Missing value for ${" + variable + "} in " +
+                                                serviceName + "." + opName + " endpoint");
+            }
+        }
+    }
+
+    // Template contexts
+
+    /**
+     * Firewall placeholders; also the base of the NAT context
+     */
+    protected TemplateContext firewallContext(String serviceName, String opName, FirewallRule rule) {
+        TemplateContext context = new TemplateContext();
+        context.set("ruleId", rule.getId());
+        context.set("networkId", rule.getNetworkId());
+        context.set("protocol", rule.getProtocol());
+        context.set("startPort", rule.getSourcePortStart());
+        context.set("endPort", rule.getSourcePortEnd());
+        context.set("icmpType", rule.getIcmpType());
+        context.set("icmpCode", rule.getIcmpCode());
+
+        List<String> cidrs = rule.getSourceCidrList();
+        if (cidrs != null && !cidrs.isEmpty()) {
+            context.set("sourceCidr", String.join(",", cidrs));
+        }
+
+        if (rule.getSourceIpAddressId() != null) {
+            context.set("publicIp", ruleLookup.findPublicIp(rule.getSourceIpAddressId()));
+        }
+
+        if (needsExternalId(opName)) {
+            context.set("externalId", ruleLookup.findExternalId(serviceName, rule.getNetworkId(), rule.getId()));
+        }
+        return context;
+    }
+
+    protected TemplateContext natContext(String opName, PortForwardingRule rule) {
+        TemplateContext context = firewallContext(NAT_SERVICE, opName, rule);
+        context.set("publicPort", rule.getSourcePortStart());
+        context.set("privatePort", rule.getDestinationPortStart());
+        if (rule.getDestinationIpAddress() != null) {
+            context.set("privateIp", rule.getDestinationIpAddress().addr());
+        }
+        return context;
+    }
+
+    protected TemplateContext loadBalancerContext(String opName, LoadBalancingRule rule) {
+        TemplateContext context = new TemplateContext();
+        context.set("ruleId", rule.getId());
+        context.set("networkId", rule.getNetworkId());
+        context.set("lbName", rule.getName());
+        context.set("algorithm", rule.getAlgorithm());
+        context.set("publicPort", rule.getSourcePortStart());
+        context.set("privatePort", rule.getDefaultPortStart());
+        if (rule.getSourceIp() != null) {
+            context.set("publicIp", rule.getSourceIp().addr());
+            context.set("vipIp", rule.getSourceIp().addr());
+        }
+        if (needsExternalId(opName)) {
+            context.set("externalId", ruleLookup.findExternalId(LOAD_BALANCER_SERVICE, rule.getNetworkId(),
+                                                                 rule.getId()));
+        }
+        return context;
+    }
+
+    // Helpers
+
+    private static String operationName(String enumName) {
+        switch (enumName) {
+            case "CREATE": return "create";
+            case "DELETE": return "delete";
+            case "UPDATE": return "update";
+            case "LIST": return "list";
+            default: return enumName.toLowerCase();
+        }
+    }
+
+    /**
+     * create -> bulkCreate, delete -> bulkDelete; other operations have no bulk form
+     */
+    private static String bulkOperationName(String opName) {
+        switch (opName) {
+            case "create": return "bulkCreate";
+            case "delete": return "bulkDelete";
+            default: return null;
+        }
+    }
+
+    private static boolean needsExternalId(String opName) {
+        return opName.equals("delete") || opName.equals("update");
+    }
+
+    private static boolean isCli(OperationDefinition op) {
+        return op.getMethod() != null &&
+               (op.getMethod().equalsIgnoreCase("SSH") || op.getMethod().equalsIgnoreCase("CLI"));
+    }
+
+    private static OperationDefinition findOperation(VnfDictionary dictionary, String serviceName,
+                                                     String opName) {
+        return dictionary.getOperation(serviceName, opName);
+    }
+
+    private static OperationDefinition requireOperation(VnfDictionary dictionary, String serviceName,
+                                                        String opName) throws RequestBuildException {
+        OperationDefinition op = findOperation(dictionary, serviceName, opName);
+        if (op == null) {
+            throw new RequestBuildException(
+                "Dictionary does not define operation " + serviceName + "." + opName);
+        }
+        return op;
+    }
+}
@@ -0,0 +1,517 @@
+// =====================================================
+// VNF Response Parser Implementation
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Response parser driven by the compiled ResponseMapping of each operation.
+ * The response body is parsed once; idPath/listPath and the item field trie
+ * are evaluated against that single tree.
+ */
+public class VnfResponseParserImpl implements VnfResponseParser {
+    
+    private static final String ID_FIELD = "id";
+    
+    /**
+     * @param operation "Service.operation", e.g. "Firewall.create"
+     */
+    @Override
+    public String extractExternalId(VnfResponse response, VnfDictionary dictionary, String operation) {
+        ResponseMapping mapping = findMapping(dictionary, operation);
+        if (mapping == null || mapping.getCompiledIdPath() == null) {
+            return null;
+        }
+        
+        JsonElement root = parseBody(response);
+        if (root == null) {
+            return null;
+        }
+        
+        Object id = JsonPath.toValue(mapping.getCompiledIdPath().evaluate(root));
+        return id != null ? id.toString() : null;
+    }
+    
+    /**
+     * Bulk operations map the created objects with listPath + item idPath;
+     * operations with a plain idPath yield a single ID.
+     */
+    @Override
+    public List<String> extractExternalIds(VnfResponse response, VnfDictionary dictionary, String operation) {
+        ResponseMapping mapping = findMapping(dictionary, operation);
+        if (mapping == null || mapping.getCompiledListPath() == null) {
+            return VnfResponseParser.super.extractExternalIds(response, dictionary, operation);
+        }
+        
+        JsonElement root = parseBody(response);
+        JsonElement list = root != null ? mapping.getCompiledListPath().evaluate(root) : null;
+        if (list == null) {
+            return new ArrayList<>();
+        }
+        
+        JsonFieldExtractor extractor = mapping.getItemExtractor();
+        int idSlot = extractor.indexOf(ID_FIELD);
+        Iterable<JsonElement> items = list.isJsonArray()
+            ? list.getAsJsonArray() : Collections.singletonList(list);
+        
+        List<String> ids = new ArrayList<>();
+        for (JsonElement item : items) {
+            Object id = extractor.extract(item)[idSlot];
+            ids.add(id != null ? id.toString() : null);
+        }
+        return ids;
+    }
+    
+    @Override
+    public List<VnfDeviceRule> parseListResponse(VnfResponse response,
+                                                 VnfDictionary dictionary,
+                                                 String serviceName) {
+        OperationDefinition listOp = dictionary.getOperation(serviceName, "list");
+        ResponseMapping mapping = listOp != null ? listOp.getResponseMapping() : null;
+        if (mapping == null || mapping.getCompiledListPath() == null) {
+            return new ArrayList<>();
+        }
+        
+        JsonElement root = parseBody(response);
+        if (root == null) {
+            return new ArrayList<>();
+        }
+        
+        JsonElement list = mapping.getCompiledListPath().evaluate(root);
+        if (list == null) {
+            return new ArrayList<>();
+        }
+        
+        JsonFieldExtractor extractor = mapping.getItemExtractor();
+        String[] fields = extractor.getFields();
+        int idSlot = extractor.indexOf(ID_FIELD);
+        
+        if (!list.isJsonArray()) {
+            // Single object returned where a list was expected
+            List<VnfDeviceRule> rules = new ArrayList<>(1);
+            rules.add(toRule(serviceName, fields, idSlot, extractor.extract(list)));
+            return rules;
+        }
+        
+        List<VnfDeviceRule> rules = new ArrayList<>(list.getAsJsonArray().size());
+        for (JsonElement item : list.getAsJsonArray()) {
+            rules.add(toRule(serviceName, fields, idSlot, extractor.extract(item)));
+        }
+        return rules;
+    }
+    
+    /**
+     * Streams list items straight from the response body; only the fields in
+     * the item mapping are materialized and only one rule is held at a time.
+     */
+    @Override
+    public VnfDeviceRuleIterator iterateListResponse(VnfResponse response,
+                                                     VnfDictionary dictionary,
+                                                     String serviceName) {
+        return streamList(response, dictionary.getOperation(serviceName, "list"), serviceName);
+    }
+    
+    /**
+     * Follows the list operation's pagination section, see VnfPagedListIterator
+     */
+    @Override
+    public VnfDeviceRuleIterator iterateList(VnfDictionary dictionary, String serviceName,
+                                             VnfRequest listRequest, PageSender sender) {
+        return new VnfPagedListIterator(this, dictionary, serviceName, listRequest, sender);
+    }
+    
+    /**
+     * Stream one page. The page iterator also exposes the item count and the
+     * next pagination cursor once it is exhausted.
+     */
+    StreamingRuleIterator streamList(VnfResponse response, OperationDefinition listOp,
+                                     String serviceName) {
+        ResponseMapping mapping = listOp != null ? listOp.getResponseMapping() : null;
+        if (mapping == null || mapping.getCompiledListPath() == null) {
+            return StreamingRuleIterator.empty(serviceName);
+        }
+        
+        Reader body = response.openBodyReader();
+        if (body == null) {
+            return StreamingRuleIterator.empty(serviceName);
+        }
+        
+        PaginationConfig pagination = listOp.getPagination();
+        JsonListStream stream;
+        if (pagination != null && pagination.getNextCursorPath() != null) {
+            stream = new JsonListStream(body, mapping.getCompiledListPath(), pagination.getNextCursorPath());
+        } else {
+            stream = new JsonListStream(body, mapping.getCompiledListPath());
+        }
+        return new StreamingRuleIterator(stream, mapping.getItemExtractor(), serviceName);
+    }
+    
+    static VnfDeviceRule toRule(String serviceName, String[] fields, int idSlot, Object[] values) {
+        VnfDeviceRule rule = new VnfDeviceRule();
+        rule.setServiceName(serviceName);
+        for (int i = 0; i < fields.length; i++) {
+            if (values[i] != null) {
+                rule.setProperty(fields[i], values[i]);
+            }
+        }
+        if (idSlot >= 0 && values[idSlot] != null) {
+            rule.setExternalId(values[idSlot].toString());
+        }
+        return rule;
+    }
+    
+    /**
+     * Success requires the mapped status code and, when declared, the
+     * success pattern (PAN-OS XML status, VyOS CLI output)
+     */
+    @Override
+    public boolean isSuccess(VnfResponse response, VnfDictionary dictionary, String operation) {
+        OperationDefinition op = findOperation(dictionary, operation);
+        ResponseMapping mapping = op != null ? op.getResponseMapping() : null;
+        
+        int expected = mapping != null ? mapping.getSuccessCode() : 200;
+        String pattern = op != null ? op.getSuccessPattern() : null;
+        if (pattern == null && mapping != null) {
+            pattern = mapping.getSuccessPattern();
+        }
+        
+        if (op != null && isCli(op)) {
+            // CLI: exit code 0 plus output marker
+            if (response.getStatusCode() != 0) {
+                return false;
+            }
+        } else if (response.getStatusCode() != expected) {
+            return false;
+        }
+        
+        if (pattern != null) {
+            // A streamed list body is buffered here; without a pattern it stays a stream
+            String body = response.bufferBody();
+            return body != null && body.contains(pattern);
+        }
+        return true;
+    }
+    
+    /**
+     * Header lookups ignore case; a weak ETag prefix (W/) is kept since
+     * the revision is only compared with earlier values of the same probe
+     */
+    @Override
+    public String extractRevision(VnfResponse response, VnfDictionary dictionary) {
+        RevisionConfig revision = dictionary.getRevision();
+        if (revision == null) {
+            return null;
+        }
+        if (revision.getHeader() != null) {
+            if (response.getHeaders() == null) {
+                return null;
+            }
+            for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+                if (header.getKey() != null && header.getKey().equalsIgnoreCase(revision.getHeader())) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+        if (revision.getCompiledPattern() != null) {
+            String body = response.bufferBody();
+            if (body == null) {
+                return null;
+            }
+            java.util.regex.Matcher matcher = revision.getCompiledPattern().matcher(body);
+            if (!matcher.find()) {
+                return null;
+            }
+            return matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+        }
+        JsonElement root = parseBody(response);
+        Object value = root != null ? JsonPath.toValue(revision.getCompiledPath().evaluate(root)) : null;
+        return value != null ? value.toString() : null;
+    }
+    
+    @Override
+    public String extractErrorMessage(VnfResponse response) {
+        if (response.getErrorMessage() != null) {
+            return response.getErrorMessage();
+        }
+        return response.bufferBody();
+    }
+    
+    private static boolean isCli(OperationDefinition op) {
+        String method = op.getMethod();
+        return method != null && (method.equalsIgnoreCase("SSH") || method.equalsIgnoreCase("CLI"));
+    }
+    
+    private static JsonElement parseBody(VnfResponse response) {
+        String body = response.bufferBody();
+        if (body == null || body.isEmpty()) {
+            return null;
+        }
+        try {
+            return JsonParser.parseString(body);
+        } catch (JsonParseException e) {
+            // XML or CLI output; not handled by JSON mappings
+            return null;
+        }
+    }
+    
+    static OperationDefinition findOperation(VnfDictionary dictionary, String operation) {
+        return dictionary.getOperation(operation);
+    }
+    
+    static ResponseMapping findMapping(VnfDictionary dictionary, String operation) {
+        OperationDefinition op = findOperation(dictionary, operation);
+        return op != null ? op.getResponseMapping() : null;
+    }
+}
+
+/**
+ * Iterator over the items of one streamed list response
+ */
+class StreamingRuleIterator implements VnfDeviceRuleIterator {
+    
+    private final JsonListStream stream;
+    private final JsonFieldExtractor extractor;
+    private final String[] fields;
+    private final int idSlot;
+    private final String serviceName;
+    
+    private VnfDeviceRule next;
+    private boolean exhausted;
+    private int count;
+    
+    StreamingRuleIterator(JsonListStream stream, JsonFieldExtractor extractor, String serviceName) {
+        this.stream = stream;
+        this.extractor = extractor;
+        this.fields = extractor != null ? extractor.getFields() : new String[0];
+        this.idSlot = extractor != null ? extractor.indexOf("id") : -1;
+        this.serviceName = serviceName;
+        this.exhausted = stream == null;
+    }
+    
+    static StreamingRuleIterator empty(String serviceName) {
+        return new StreamingRuleIterator(null, null, serviceName);
+    }
+    
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (exhausted) {
+            return false;
+        }
+        try {
+            if (stream.nextItem()) {
+                next = VnfResponseParserImpl.toRule(serviceName, fields, idSlot,
+                                                    extractor.extract(stream.reader()));
+                count++;
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw new VnfListIterationException("Failed to read " + serviceName + " list response", e);
+        }
+        close();
+        return false;
+    }
+    
+    @Override
+    public VnfDeviceRule next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        VnfDeviceRule rule = next;
+        next = null;
+        return rule;
+    }
+    
+    /**
+     * Items returned so far
+     */
+    int count() { return count; }
+    
+    /**
+     * Next pagination cursor; valid once the iterator is exhausted
+     */
+    String nextCursor() {
+        Object cursor = stream != null ? stream.getCaptured(0) : null;
+        return cursor != null ? cursor.toString() : null;
+    }
+    
+    @Override
+    public void close() {
+        if (exhausted) {
+            return;
+        }
+        exhausted = true;
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // nothing left to read
+        }
+    }
+}
+
+/**
+ * Pulls the pages of a paginated list operation on demand and streams the
+ * rules of each page. Only one page is open at a time.
+ *
+ * Dictionaries without a pagination section get a single streamed page.
+ * A page with more items than pageSize means the device ignored the paging
+ * parameters and returned everything, so iteration stops there.
+ *
+ * Devices may cap the limit below pageSize, so a full page is one as long
+ * as the first: a short first page is followed by one more request, and
+ * only a page shorter than the first (or empty) ends the listing. A list
+ * that would need more than MAX_PAGES pages fails with
+ * VnfListIterationException rather than ending early, since a partial
+ * listing reads as drift.
+ */
+public class VnfPagedListIterator implements VnfDeviceRuleIterator {
+    
+    /** Upper bound on pages per list, in case a device keeps returning full pages */
+    public static final int MAX_PAGES = 10000;
+    
+    private final VnfResponseParserImpl parser;
+    private final VnfDictionary dictionary;
+    private final String serviceName;
+    private final OperationDefinition listOp;
+    private final PaginationConfig pagination;
+    private final VnfRequest listRequest;
+    private final VnfResponseParser.PageSender sender;
+    
+    private StreamingRuleIterator page;
+    private int pages;
+    private int pageLimit;  // items on a full page, from the first page
+    private int offset;
+    private String cursor;
+    private boolean done;
+    
+    public VnfPagedListIterator(VnfResponseParserImpl parser, VnfDictionary dictionary,
+                                String serviceName, VnfRequest listRequest,
+                                VnfResponseParser.PageSender sender) {
+        this.parser = parser;
+        this.dictionary = dictionary;
+        this.serviceName = serviceName;
+        this.listOp = dictionary.getOperation(serviceName, "list");
+        this.pagination = listOp != null ? listOp.getPagination() : null;
+        this.listRequest = listRequest;
+        this.sender = sender;
+    }
+    
+    @Override
+    public boolean hasNext() {
+        while (true) {
+            if (page != null) {
+                if (page.hasNext()) {
+                    return true;
+                }
+                if (!advance()) {
+                    done = true;
+                }
+                page = null;
+            }
+            if (done) {
+                return false;
+            }
+            fetchPage();
+        }
+    }
+    
+    @Override
+    public VnfDeviceRule next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+    
+    /**
+     * Decide whether another page follows the one just exhausted
+     */
+    private boolean advance() {
+        if (pagination == null) {
+            return false;
+        }
+        if (pagination.getType() == PaginationConfig.Type.OFFSET) {
+            int count = page.count();
+            if (count > pagination.getPageSize()) {
+                // paging ignored, everything was returned
+                return false;
+            }
+            if (pages == 1) {
+                pageLimit = count;
+            }
+            if (count == 0 || count < pageLimit) {
+                // short page: end of table
+                return false;
+            }
+            checkPageLimit();
+            offset += count;
+            return true;
+        }
+        String next = page.nextCursor();
+        if (next == null || next.isEmpty() || next.equals(cursor)) {
+            return false;
+        }
+        checkPageLimit();
+        cursor = next;
+        return true;
+    }
+    
+    private void checkPageLimit() {
+        if (pages >= MAX_PAGES) {
+            done = true;
+            throw new VnfListIterationException(serviceName + " listing still incomplete after " +
+                                                MAX_PAGES + " pages", null);
+        }
+    }
+    
+    private void fetchPage() {
+        String uri = pagination != null
+            ? pagination.pageUri(listRequest.getUri(), offset, cursor)
+            : listRequest.getUri();
+        
+        VnfResponse response;
+        try {
+            response = sender.send(listRequest.withUri(uri));
+        } catch (CommunicationException e) {
+            done = true;
+            throw new VnfListIterationException("Failed to fetch " + serviceName + " page " + (pages + 1), e);
+        }
+        
+        if (!parser.isSuccess(response, dictionary, serviceName + ".list")) {
+            done = true;
+            throw new VnfListIterationException("Device rejected " + serviceName + " page " + (pages + 1) +
+                                                ": " + parser.extractErrorMessage(response), null);
+        }
+        
+        pages++;
+        page = parser.streamList(response, listOp, serviceName);
+    }
+    
+    /**
+     * Pages fetched so far
+     */
+    public int getPageCount() { return pages; }
+    
+    @Override
+    public void close() {
+        done = true;
+        if (page != null) {
+            page.close();
+            page = null;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+// =====================================================
+// VNF Rule Fingerprints - Linear Drift Detection
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+//
+// A fingerprint is a hash over the canonical form of a rule's matching
+// fields (CIDRs, ports, protocol, action, addresses). CloudStack rules and
+// device rules with the same effect get the same fingerprint, so drift
+// detection is a hash join instead of comparing every pair.
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import com.cloud.network.lb.LoadBalancingRule;
+import com.cloud.network.rules.FirewallRule;
+import com.cloud.network.rules.PortForwardingRule;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Canonical rule fingerprints.
+ *
+ * Each service has a fixed list of canonical fields. A device can only be
+ * compared on the fields its dictionary's list mapping returns, so a
+ * fingerprint covers the FieldSet shared by both sides and is stored as
+ * "mask:hash" (mask = fields covered). A stored fingerprint whose mask does
+ * not match the current dictionary is stale and is recomputed.
+ */
+public final class VnfRuleFingerprint {
+
+    public static final String PROTOCOL = "protocol";
+    public static final String SOURCE_CIDR = "sourceCidr";
+    public static final String PORTS = "ports";
+    public static final String ACTION = "action";
+    public static final String PUBLIC_IP = "publicIp";
+    public static final String PUBLIC_PORT = "publicPort";
+    public static final String PRIVATE_IP = "privateIp";
+    public static final String PRIVATE_PORT = "privatePort";
+    public static final String ALGORITHM = "algorithm";
+
+    private static final Map<String, List<String>> SERVICE_FIELDS = Map.of(
+        "Firewall", List.of(PROTOCOL, SOURCE_CIDR, PORTS, ACTION),
+        "NAT", List.of(PROTOCOL, PUBLIC_IP, PUBLIC_PORT, PRIVATE_IP, PRIVATE_PORT),
+        "LoadBalancer", List.of(PUBLIC_IP, PUBLIC_PORT, PRIVATE_PORT, ALGORITHM));
+
+    // Device property names (item mapping keys without "Path") per canonical field
+    private static final Map<String, List<String>> ALIASES = Map.of(
+        PROTOCOL, List.of("protocol", "proto"),
+        SOURCE_CIDR, List.of("sourceCidr", "src", "source", "srcaddr"),
+        PORTS, List.of("ports", "dstport", "port", "destinationPort", "startPort"),
+        ACTION, List.of("action"),
+        PUBLIC_IP, List.of("publicIp", "extip", "vip"),
+        PUBLIC_PORT, List.of("publicPort", "extport"),
+        PRIVATE_IP, List.of("privateIp", "mappedip", "target"),
+        PRIVATE_PORT, List.of("privatePort", "mappedport", "localPort", "local-port"),
+        ALGORITHM, List.of("algorithm", "method"));
+
+    // Fields that tell rules of one service apart; protocol, action and
+    // algorithm alone are shared by most rules of a network
+    private static final Set<String> DISCRIMINATING = Set.of(
+        SOURCE_CIDR, PORTS, PUBLIC_IP, PUBLIC_PORT, PRIVATE_IP, PRIVATE_PORT);
+
+    private static final String ANY = "*";
+
+    private VnfRuleFingerprint() {
+    }
+
+    // Field sets
+
+    /**
+     * Fields of a service that a list mapping exposes, or null if the
+     * service has no fingerprint (matching falls back to external IDs).
+     * A mapping without a port, CIDR or address field has none either:
+     * every rule with the same action would share one fingerprint and any
+     * stray device rule would pair with any missing CloudStack rule.
+     */
+    public static FieldSet fieldSet(String serviceName, Collection<String> deviceFields) {
+        List<String> canonical = SERVICE_FIELDS.get(serviceName);
+        if (canonical == null || deviceFields == null) {
+            return null;
+        }
+        int mask = 0;
+        boolean discriminating = false;
+        String[] sources = new String[canonical.size()];
+        for (int i = 0; i < canonical.size(); i++) {
+            for (String alias : ALIASES.get(canonical.get(i))) {
+                if (deviceFields.contains(alias)) {
+                    mask |= 1 << i;
+                    sources[i] = alias;
+                    discriminating |= DISCRIMINATING.contains(canonical.get(i));
+                    break;
+                }
+            }
+        }
+        return discriminating ? new FieldSet(serviceName, canonical, mask, sources) : null;
+    }
+
+    /**
+     * Field set of a dictionary's list operation for a service
+     */
+    public static FieldSet fieldSet(VnfDictionary dictionary, String serviceName) {
+        ServiceDefinition service = dictionary.getService(serviceName);
+        OperationDefinition list = service != null ? service.getOperation("list") : null;
+        ResponseMapping mapping = list != null ? list.getResponseMapping() : null;
+        if (mapping == null || mapping.getItemPaths() == null) {
+            return null;
+        }
+        Set<String> fields = new HashSet<>();
+        for (String key : mapping.getItemPaths().keySet()) {
+            fields.add(key.endsWith("Path") ? key.substring(0, key.length() - 4) : key);
+        }
+        return fieldSet(serviceName, fields);
+    }
+
+    /**
+     * The canonical fields covered by fingerprints of one service/dictionary
+     */
+    public static final class FieldSet {
+        private final String serviceName;
+        private final List<String> canonical;
+        private final int mask;
+        private final String[] deviceFields;
+        private final String prefix;
+
+        FieldSet(String serviceName, List<String> canonical, int mask, String[] deviceFields) {
+            this.serviceName = serviceName;
+            this.canonical = canonical;
+            this.mask = mask;
+            this.deviceFields = deviceFields;
+            this.prefix = Integer.toHexString(mask) + ":";
+        }
+
+        public boolean covers(String field) {
+            int i = canonical.indexOf(field);
+            return i >= 0 && (mask & (1 << i)) != 0;
+        }
+
+        /**
+         * True if a stored fingerprint was computed over this field set
+         */
+        public boolean accepts(String fingerprint) {
+            return fingerprint != null && fingerprint.startsWith(prefix);
+        }
+
+        /**
+         * Fingerprint of a CloudStack rule from its canonical fields
+         */
+        public String of(Map<String, ?> fields) {
+            StringBuilder canonicalForm = new StringBuilder(64).append(serviceName);
+            String protocol = normalizeProtocol(fields.get(PROTOCOL));
+            for (int i = 0; i < canonical.size(); i++) {
+                if ((mask & (1 << i)) != 0) {
+                    String field = canonical.get(i);
+                    canonicalForm.append('|').append(normalize(field, fields.get(field), protocol));
+                }
+            }
+            return prefix + hash(canonicalForm);
+        }
+
+        /**
+         * Fingerprint of a device rule from its listed properties
+         */
+        public String of(VnfDeviceRule rule) {
+            Map<String, Object> properties = rule.getProperties();
+            Map<String, Object> fields = new HashMap<>(canonical.size() * 2);
+            for (int i = 0; i < canonical.size(); i++) {
+                if (deviceFields[i] != null) {
+                    fields.put(canonical.get(i), properties.get(deviceFields[i]));
+                }
+            }
+            if (!fields.containsKey(PROTOCOL)) {
+                // Ports are canonical per protocol even when the device does not list it
+                fields.put(PROTOCOL, null);
+            }
+            return of(fields);
+        }
+    }
+
+    // CloudStack rule fields
+
+    public static Map<String, Object> firewallFields(FirewallRule rule) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(PROTOCOL, rule.getProtocol());
+        fields.put(SOURCE_CIDR, rule.getSourceCidrList());
+        fields.put(PORTS, portRange(rule.getSourcePortStart(), rule.getSourcePortEnd()));
+        fields.put(ACTION, "allow");  // CloudStack firewall rules only allow
+        return fields;
+    }
+
+    /**
+     * @param publicIp address of the rule's public IP (user_ip_address)
+     */
+    public static Map<String, Object> natFields(PortForwardingRule rule, String publicIp) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(PROTOCOL, rule.getProtocol());
+        fields.put(PUBLIC_IP, publicIp);
+        fields.put(PUBLIC_PORT, rule.getSourcePortStart());
+        fields.put(PRIVATE_IP, rule.getDestinationIpAddress() != null ?
+            rule.getDestinationIpAddress().addr() : null);
+        fields.put(PRIVATE_PORT, rule.getDestinationPortStart());
+        return fields;
+    }
+
+    public static Map<String, Object> loadBalancerFields(LoadBalancingRule rule) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(PUBLIC_IP, rule.getSourceIp() != null ? rule.getSourceIp().addr() : null);
+        fields.put(PUBLIC_PORT, rule.getSourcePortStart());
+        fields.put(PRIVATE_PORT, rule.getDefaultPortStart());
+        fields.put(ALGORITHM, rule.getAlgorithm());
+        return fields;
+    }
+
+    private static String portRange(Integer start, Integer end) {
+        if (start == null) {
+            return null;
+        }
+        return end == null || end.equals(start) ? start.toString() : start + "-" + end;
+    }
+
+    // Normalization
+
+    static String normalize(String field, Object value, String protocol) {
+        switch (field) {
+            case PROTOCOL:
+                return protocol;
+            case SOURCE_CIDR:
+                return normalizeCidrs(value);
+            case PORTS:
+                // ICMP and "any" rules have no ports whatever either side reports
+                return protocol.equals("icmp") || protocol.equals(ANY) ? ANY : normalizePorts(value);
+            case PUBLIC_PORT:
+            case PRIVATE_PORT:
+                return normalizePorts(value);
+            case PUBLIC_IP:
+            case PRIVATE_IP:
+                return normalizeAddress(value);
+            case ACTION:
+                return normalizeAction(value);
+            default:
+                return value != null ? value.toString().trim().toLowerCase(Locale.ROOT) : ANY;
+        }
+    }
+
+    static String normalizeProtocol(Object value) {
+        String protocol = value != null ? value.toString().trim().toLowerCase(Locale.ROOT) : "";
+        switch (protocol) {
+            case "": case "any": case "all": case "ip": case "*":
+                return ANY;
+            case "6":
+                return "tcp";
+            case "17":
+                return "udp";
+            case "1": case "icmpv4":
+                return "icmp";
+            default:
+                return protocol;
+        }
+    }
+
+    static String normalizeAction(Object value) {
+        String action = value != null ? value.toString().trim().toLowerCase(Locale.ROOT) : "";
+        switch (action) {
+            case "": case "accept": case "allow": case "permit": case "pass":
+                return "allow";
+            case "deny": case "drop": case "reject": case "block":
+                return "deny";
+            default:
+                return action;
+        }
+    }
+
+    /**
+     * "80", 80, "80-90", "80:90"; missing, "any" and the full range are "*"
+     */
+    static String normalizePorts(Object value) {
+        if (value == null) {
+            return ANY;
+        }
+        String ports = value.toString().trim().toLowerCase(Locale.ROOT);
+        if (ports.isEmpty() || ports.equals("any") || ports.equals(ANY)) {
+            return ANY;
+        }
+        int sep = ports.indexOf('-') > 0 ? ports.indexOf('-') : ports.indexOf(':');
+        try {
+            int start = Integer.parseInt((sep > 0 ? ports.substring(0, sep) : ports).trim());
+            int end = sep > 0 ? Integer.parseInt(ports.substring(sep + 1).trim()) : start;
+            if (start <= 1 && end >= 65535) {
+                return ANY;
+            }
+            return start == end ? Integer.toString(start) : start + "-" + end;
+        } catch (NumberFormatException e) {
+            return ports;  // service names such as "http" stay as listed
+        }
+    }
+
+    /**
+     * Sorted, de-duplicated network addresses; empty means any
+     */
+    static String normalizeCidrs(Object value) {
+        List<String> raw = new ArrayList<>();
+        if (value instanceof Collection) {
+            for (Object item : (Collection<?>) value) {
+                if (item != null) {
+                    raw.add(item.toString());
+                }
+            }
+        } else if (value != null) {
+            raw.addAll(Arrays.asList(value.toString().split("[,\\s]+")));
+        }
+        TreeSet<String> cidrs = new TreeSet<>();
+        for (String cidr : raw) {
+            String normalized = normalizeCidr(cidr.trim());
+            if (normalized != null) {
+                cidrs.add(normalized);
+            }
+        }
+        if (cidrs.isEmpty() || cidrs.contains("0.0.0.0/0")) {
+            return "0.0.0.0/0";
+        }
+        return String.join(",", cidrs);
+    }
+
+    static String normalizeCidr(String cidr) {
+        String lower = cidr.toLowerCase(Locale.ROOT);
+        if (lower.isEmpty()) {
+            return null;
+        }
+        if (lower.equals("any") || lower.equals(ANY) || lower.equals("all")) {
+            return "0.0.0.0/0";
+        }
+        int slash = lower.indexOf('/');
+        String address = slash >= 0 ? lower.substring(0, slash) : lower;
+        byte[] bytes = literalAddress(address);
+        if (bytes == null) {
+            return lower;  // an alias or object name; compare as listed
+        }
+        int bits = bytes.length * 8;
+        int prefix = bits;
+        if (slash >= 0) {
+            try {
+                prefix = Integer.parseInt(lower.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return lower;
+            }
+            if (prefix < 0 || prefix > bits) {
+                return lower;
+            }
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            int keep = Math.max(0, Math.min(8, prefix - i * 8));
+            bytes[i] &= (byte) (0xFF << (8 - keep));
+        }
+        return format(bytes) + "/" + prefix;
+    }
+
+    static String normalizeAddress(Object value) {
+        if (value == null) {
+            return ANY;
+        }
+        String address = value.toString().trim().toLowerCase(Locale.ROOT);
+        int slash = address.indexOf('/');
+        if (slash >= 0 && (address.endsWith("/32") || address.endsWith("/128"))) {
+            address = address.substring(0, slash);
+        }
+        byte[] bytes = literalAddress(address);
+        return bytes != null ? format(bytes) : address;
+    }
+
+    /**
+     * Bytes of an IPv4/IPv6 literal, without ever resolving a host name
+     */
+    private static byte[] literalAddress(String address) {
+        boolean v4 = !address.isEmpty() && address.chars().allMatch(c -> (c >= '0' && c <= '9') || c == '.');
+        boolean v6 = address.indexOf(':') >= 0 &&
+                     address.chars().allMatch(c -> Character.digit(c, 16) >= 0 || c == ':' || c == '.');
+        if (!v4 && !v6) {
+            return null;
+        }
+        if (v4 && address.split("\\.", -1).length != 4) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(address).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static String format(byte[] bytes) {
+        try {
+            String text = InetAddress.getByAddress(bytes).getHostAddress();
+            return bytes.length == 16 ? compressIpv6(text) : text;
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * "2001:db8:0:0:0:0:0:0" -> "2001:db8::" (longest zero run)
+     */
+    private static String compressIpv6(String text) {
+        String[] groups = text.split(":");
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int i = 0; i < groups.length; ) {
+            if (!groups[i].equals("0")) {
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j < groups.length && groups[j].equals("0")) {
+                j++;
+            }
+            if (j - i > bestLength) {
+                bestStart = i;
+                bestLength = j - i;
+            }
+            i = j;
+        }
+        if (bestStart < 0) {
+            return text;
+        }
+        String head = String.join(":", Arrays.copyOfRange(groups, 0, bestStart));
+        String tail = String.join(":", Arrays.copyOfRange(groups, bestStart + bestLength, groups.length));
+        return head + "::" + tail;
+    }
+
+    private static String hash(CharSequence canonicalForm) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(canonicalForm.toString().getBytes(StandardCharsets.UTF_8));
+            // 128 bits are plenty to tell the rules of one network apart
+            return String.format("%032x", new BigInteger(1, Arrays.copyOf(hash, 16)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
+
+/**
+ * Linear-time diff between the rules CloudStack expects and the rules a
+ * device lists.
+ *
+ * Expected rules are indexed by external ID and by fingerprint; device
+ * rules are then streamed once. A device rule matches the expected rule
+ * with its external ID (or, failing that, any unmatched expected rule with
+ * the same fingerprint). A match by ID whose fingerprint differs means the
+ * rule was changed on the device. Unmatched device rules are extra,
+ * unmatched expected rules are missing.
+ */
+final class VnfDriftDetector {
+
+    /**
+     * Rules of one service compared on one device
+     */
+    static final class ServiceDiff {
+        final List<VnfRuleRecord> missing = new ArrayList<>();
+        final List<VnfRuleRecord> changed = new ArrayList<>();
+        final List<String> extra = new ArrayList<>();
+        int deviceRules;
+    }
+
+    private VnfDriftDetector() {
+    }
+
+    /**
+     * @param expected records whose fingerprint is current for fieldSet
+     *                 (or null when fieldSet is null)
+     * @param fieldSet fingerprint fields, or null to match by external ID only
+     */
+    static ServiceDiff diff(List<VnfRuleRecord> expected, Iterator<VnfDeviceRule> device,
+                            VnfRuleFingerprint.FieldSet fieldSet) {
+        Map<String, Integer> byExternalId = new HashMap<>(expected.size() * 2);
+        Map<String, ArrayDeque<Integer>> byFingerprint = new HashMap<>(expected.size() * 2);
+        for (int i = 0; i < expected.size(); i++) {
+            VnfRuleRecord record = expected.get(i);
+            if (record.getExternalId() != null) {
+                byExternalId.put(record.getExternalId(), i);
+            }
+            if (fieldSet != null && record.getFingerprint() != null) {
+                byFingerprint.computeIfAbsent(record.getFingerprint(), k -> new ArrayDeque<>(1)).add(i);
+            }
+        }
+
+        boolean[] matched = new boolean[expected.size()];
+        ServiceDiff diff = new ServiceDiff();
+        while (device.hasNext()) {
+            VnfDeviceRule rule = device.next();
+            diff.deviceRules++;
+            String fingerprint = fieldSet != null ? fieldSet.of(rule) : null;
+
+            Integer byId = rule.getExternalId() != null ? byExternalId.get(rule.getExternalId()) : null;
+            if (byId != null && !matched[byId]) {
+                matched[byId] = true;
+                String recorded = expected.get(byId).getFingerprint();
+                if (fingerprint != null && recorded != null && !fingerprint.equals(recorded)) {
+                    diff.changed.add(expected.get(byId));
+                }
+                continue;
+            }
+
+            Integer byContent = fingerprint != null ? takeUnmatched(byFingerprint.get(fingerprint), matched) : null;
+            if (byContent != null) {
+                matched[byContent] = true;
+                continue;
+            }
+            diff.extra.add(rule.getExternalId());
+        }
+
+        for (int i = 0; i < matched.length; i++) {
+            if (!matched[i]) {
+                diff.missing.add(expected.get(i));
+            }
+        }
+        return diff;
+    }
+
+    private static Integer takeUnmatched(ArrayDeque<Integer> candidates, boolean[] matched) {
+        if (candidates == null) {
+            return null;
+        }
+        Integer index;
+        while ((index = candidates.poll()) != null) {
+            if (!matched[index]) {
+                return index;
+            }
+        }
+        return null;
+    }
+}
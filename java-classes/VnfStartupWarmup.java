@@ -0,0 +1,294 @@
+// =====================================================
+// VNF Startup Warm-up - Dictionaries, Tokens, Connections
+// Package: org.apache.cloudstack.network.vnf.impl
+// =====================================================
+
+package org.apache.cloudstack.network.vnf.impl;
+
+import org.apache.cloudstack.network.vnf.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Prepares every RUNNING appliance after a management-server restart, so
+ * the first rule operations do not all pay for cold caches at once
+ * (VNF_WARMUP_*).
+ *
+ * For each appliance, in parallel up to the concurrency budget:
+ * - its dictionary is loaded into the dictionary cache (from the
+ *   compiled snapshot when there is one) and attached to the appliance
+ * - with a token generator, broker tokens are signed for every operation
+ *   of the dictionary, which a VnfCachingJwtTokenGenerator then reuses
+ * - a health probe through the broker client opens and pools the
+ *   connection, including the TLS handshake
+ *
+ * Like a reconciliation sweep, the run stops starting appliances once its
+ * timeout has passed. Unreachable appliances and failures are reported but
+ * do not fail the warm-up. The node should take traffic once isComplete()
+ * is true; getProgress() reports how far it got before that.
+ */
+public class VnfStartupWarmup {
+
+    public static final int DEFAULT_CONCURRENCY = 32;
+    public static final long DEFAULT_TIMEOUT_SECONDS = 300;
+
+    public enum Outcome {
+        READY,        // Dictionary loaded, connection open
+        UNREACHABLE,  // Dictionary loaded, health probe failed
+        FAILED,       // No usable dictionary
+        TIMED_OUT,
+        SKIPPED       // Not started before the timeout
+    }
+
+    /**
+     * Called after each appliance completes
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        void onProgress(WarmupReport progress);
+    }
+
+    private final VnfApplianceDao applianceDao;
+    private final VnfDictionaryManager dictionaryManager;
+    private final VnfBrokerClient brokerClient;
+    private final Executor executor;
+    private final int concurrency;
+    private final long timeoutMillis;
+
+    private boolean openConnections = true;
+    private JwtTokenGenerator tokenGenerator;
+    private int tokenExpirySeconds;
+    private ProgressListener progressListener;
+
+    private volatile Run run;
+
+    /**
+     * @param executor      runs the per-appliance steps, which block (a VnfIoExecutor)
+     * @param concurrency   VNF_WARMUP_CONCURRENCY: appliances warmed at once
+     * @param timeoutMillis VNF_WARMUP_TIMEOUT_SECONDS
+     */
+    public VnfStartupWarmup(VnfApplianceDao applianceDao, VnfDictionaryManager dictionaryManager,
+                            VnfBrokerClient brokerClient, Executor executor, int concurrency,
+                            long timeoutMillis) {
+        if (concurrency <= 0 || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid warm-up: concurrency=" + concurrency +
+                                               " timeout=" + timeoutMillis);
+        }
+        this.applianceDao = applianceDao;
+        this.dictionaryManager = dictionaryManager;
+        this.brokerClient = brokerClient;
+        this.executor = executor;
+        this.concurrency = concurrency;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // Settings; apply before start()
+
+    /**
+     * VNF_WARMUP_OPEN_CONNECTIONS
+     */
+    public void setOpenConnections(boolean openConnections) {
+        this.openConnections = openConnections;
+    }
+
+    /**
+     * Pre-sign broker tokens (VNF_JWT_EXPIRY_SECONDS); size
+     * VNF_JWT_CACHE_MAX_ENTRIES for appliances times operations
+     */
+    public void setTokenGenerator(JwtTokenGenerator tokenGenerator, int expirySeconds) {
+        this.tokenGenerator = tokenGenerator;
+        this.tokenExpirySeconds = expirySeconds;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        this.progressListener = listener;
+    }
+
+    /**
+     * Starts the warm-up once; later calls return the same future
+     */
+    public synchronized CompletableFuture<WarmupReport> start() {
+        if (run == null) {
+            List<VnfAppliance> appliances = applianceDao.listByState(VnfState.RUNNING);
+            run = new Run(appliances != null ? appliances : Collections.emptyList());
+            run.launch();
+        }
+        return run.done;
+    }
+
+    /**
+     * Progress of the running or finished warm-up, null before start()
+     */
+    public WarmupReport getProgress() {
+        Run current = run;
+        return current != null ? current.report : null;
+    }
+
+    /**
+     * True once every appliance is warmed, failed or skipped
+     */
+    public boolean isComplete() {
+        Run current = run;
+        return current != null && current.done.isDone();
+    }
+
+    /**
+     * Sliding window over the appliances
+     */
+    private final class Run {
+        final List<VnfAppliance> appliances;
+        final long startNanos = System.nanoTime();
+        final long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final WarmupReport report;
+        final CompletableFuture<WarmupReport> done = new CompletableFuture<>();
+        private int next;
+        private int inFlight;
+
+        Run(List<VnfAppliance> appliances) {
+            this.appliances = appliances;
+            this.report = new WarmupReport(appliances.size());
+        }
+
+        void launch() {
+            List<VnfAppliance> starting = new ArrayList<>();
+            boolean finished;
+            synchronized (this) {
+                while (inFlight < concurrency && next < appliances.size()) {
+                    VnfAppliance appliance = appliances.get(next++);
+                    if (System.nanoTime() - deadlineNanos >= 0) {
+                        report.record(appliance, Outcome.SKIPPED, null);
+                        continue;
+                    }
+                    inFlight++;
+                    starting.add(appliance);
+                }
+                finished = inFlight == 0 && next >= appliances.size();
+            }
+            for (VnfAppliance appliance : starting) {
+                // Rounded up, so a timed-out appliance finds the deadline passed
+                long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(
+                    deadlineNanos - System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+                CompletableFuture<Outcome> step;
+                try {
+                    step = CompletableFuture.supplyAsync(() -> warm(appliance), executor);
+                } catch (RejectedExecutionException e) {
+                    step = CompletableFuture.failedFuture(e);
+                }
+                step.orTimeout(remaining, TimeUnit.MILLISECONDS)
+                    .whenComplete((outcome, error) -> completed(appliance, outcome, error));
+            }
+            if (finished) {
+                report.elapsedNanos = System.nanoTime() - startNanos;
+                done.complete(report);
+            }
+        }
+
+        void completed(VnfAppliance appliance, Outcome outcome, Throwable error) {
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            if (error instanceof TimeoutException) {
+                report.record(appliance, Outcome.TIMED_OUT, "Warm-up timed out");
+            } else if (error != null) {
+                report.record(appliance, Outcome.FAILED, String.valueOf(error.getMessage()));
+            } else {
+                report.record(appliance, outcome, null);
+            }
+            synchronized (this) {
+                inFlight--;
+            }
+            report.elapsedNanos = System.nanoTime() - startNanos;
+            if (progressListener != null) {
+                progressListener.onProgress(report);
+            }
+            launch();
+        }
+    }
+
+    /**
+     * Blocking steps for one appliance, on the executor
+     */
+    private Outcome warm(VnfAppliance appliance) {
+        VnfDictionary dictionary = dictionaryManager.getDictionary(appliance.getTemplateId(),
+                                                                   appliance.getNetworkId());
+        if (dictionary == null) {
+            throw new IllegalStateException("No dictionary for appliance " + appliance.getId());
+        }
+        appliance.setDictionary(dictionary);
+
+        if (tokenGenerator != null && dictionary.getServices() != null) {
+            for (ServiceDefinition service : dictionary.getServices().values()) {
+                for (OperationDefinition op : service.getOperations().values()) {
+                    if (op.getRef() != null) {
+                        tokenGenerator.generateToken(appliance, op.getRef(), tokenExpirySeconds);
+                    }
+                }
+            }
+        }
+
+        if (openConnections && !brokerClient.isReachable(appliance)) {
+            return Outcome.UNREACHABLE;
+        }
+        return Outcome.READY;
+    }
+
+    /**
+     * Progress and result of a warm-up
+     */
+    public static final class WarmupReport {
+        private final int total;
+        private final EnumMap<Outcome, Integer> outcomes = new EnumMap<>(Outcome.class);
+        private final List<VnfAppliance> warmed = new ArrayList<>();
+        private final Map<Long, String> errors = new LinkedHashMap<>();
+        private int completed;
+        volatile long elapsedNanos;
+
+        WarmupReport(int total) {
+            this.total = total;
+        }
+
+        synchronized void record(VnfAppliance appliance, Outcome outcome, String error) {
+            completed++;
+            outcomes.merge(outcome, 1, Integer::sum);
+            if (outcome == Outcome.READY || outcome == Outcome.UNREACHABLE) {
+                warmed.add(appliance);
+            }
+            if (error != null && appliance.getId() != null) {
+                errors.put(appliance.getId(), error);
+            }
+        }
+
+        public int getTotal() { return total; }
+        public synchronized int getCompleted() { return completed; }
+        public synchronized int getCount(Outcome outcome) { return outcomes.getOrDefault(outcome, 0); }
+        public long getElapsedMillis() { return TimeUnit.NANOSECONDS.toMillis(elapsedNanos); }
+
+        /**
+         * Share of appliances done, 0..1
+         */
+        public synchronized double getFraction() {
+            return total == 0 ? 1 : (double) completed / total;
+        }
+
+        /**
+         * Appliances with their dictionary attached, e.g. to schedule health checks
+         */
+        public synchronized List<VnfAppliance> getWarmedAppliances() { return new ArrayList<>(warmed); }
+
+        /**
+         * Failure or timeout message by appliance id
+         */
+        public synchronized Map<Long, String> getErrors() { return new LinkedHashMap<>(errors); }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT,
+                "%d/%d appliances warmed (%d ready, %d unreachable, %d failed, %d timed out, %d skipped) " +
+                "in %d ms",
+                completed, total, getCount(Outcome.READY), getCount(Outcome.UNREACHABLE),
+                getCount(Outcome.FAILED), getCount(Outcome.TIMED_OUT), getCount(Outcome.SKIPPED),
+                getElapsedMillis());
+        }
+    }
+}
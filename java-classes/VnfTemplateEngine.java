@@ -0,0 +1,513 @@
+// =====================================================
+// VNF Template Engine - Compiled Placeholder Templates
+// Package: org.apache.cloudstack.network.vnf
+// =====================================================
+// Dictionary endpoints, bodies and headers are compiled once when the
+// dictionary is parsed. Rendering then walks a pre-split segment plan
+// (literal chunks + variable slots) instead of re-scanning the template.
+
+package org.apache.cloudstack.network.vnf;
+
+import java.util.*;
+
+/**
+ * A template pre-split into literal chunks and variable slots.
+ *
+ * For a template with N placeholders the plan holds N + 1 literals and N
+ * variable names: literal[0] var[0] literal[1] var[1] ... literal[N].
+ * Each slot also records where it sits in the literal text (inside quotes,
+ * in the query string), so escaping can depend on it.
+ * Instances are immutable and safe to share between threads.
+ */
+public final class CompiledTemplate {
+
+    /** Slot is inside a '...' string of the literal text */
+    public static final int IN_SINGLE_QUOTES = 1;
+    /** Slot is inside a "..." string of the literal text */
+    public static final int IN_DOUBLE_QUOTES = 2;
+    /** Slot follows a '?' of the literal text (URL query string) */
+    public static final int IN_QUERY = 4;
+
+    private static final String[] NO_VARIABLES = new String[0];
+    private static final int[] NO_CONTEXTS = new int[0];
+
+    private final String source;
+    private final String[] literals;
+    private final String[] variables;
+    private final int[] contexts;
+    private final int literalLength;
+
+    private CompiledTemplate(String source, String[] literals, String[] variables) {
+        this.source = source;
+        this.literals = literals;
+        this.variables = variables;
+        this.contexts = variables.length == 0 ? NO_CONTEXTS : slotContexts(literals, variables.length);
+
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Compile a template string. Returns null for a null template.
+     * An unterminated "${" is kept as literal text.
+     */
+    public static CompiledTemplate compile(String template) {
+        if (template == null) {
+            return null;
+        }
+
+        List<String> literals = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+
+        int pos = 0;
+        int literalStart = 0;
+        while (true) {
+            int open = template.indexOf("${", pos);
+            if (open < 0) {
+                break;
+            }
+            int close = template.indexOf('}', open + 2);
+            if (close < 0) {
+                break;
+            }
+            int nested = template.indexOf("${", open + 2);
+            if (nested >= 0 && nested < close) {
+                // "${ ... ${name}": the first "${" is literal text
+                pos = nested;
+                continue;
+            }
+            if (close == open + 2) {
+                // "${}" has no name, keep it literal
+                pos = close + 1;
+                continue;
+            }
+            literals.add(template.substring(literalStart, open));
+            variables.add(template.substring(open + 2, close));
+            literalStart = close + 1;
+            pos = literalStart;
+        }
+        literals.add(template.substring(literalStart));
+
+        return new CompiledTemplate(
+            template,
+            literals.toArray(new String[0]),
+            variables.isEmpty() ? NO_VARIABLES : variables.toArray(new String[0])
+        );
+    }
+
+    /**
+     * Quote and query state at each slot, from the literal text before it
+     */
+    private static int[] slotContexts(String[] literals, int slots) {
+        int[] contexts = new int[slots];
+        char quote = 0;
+        boolean query = false;
+        for (int i = 0; i < slots; i++) {
+            String literal = literals[i];
+            for (int j = 0; j < literal.length(); j++) {
+                char c = literal.charAt(j);
+                if (c == '\\' && quote != '\'') {
+                    j++;
+                } else if (quote == 0 && (c == '\'' || c == '"')) {
+                    quote = c;
+                } else if (c == quote) {
+                    quote = 0;
+                } else if (c == '?' && quote == 0) {
+                    query = true;
+                }
+            }
+            contexts[i] = (quote == '\'' ? IN_SINGLE_QUOTES : quote == '"' ? IN_DOUBLE_QUOTES : 0) |
+                          (query ? IN_QUERY : 0);
+        }
+        return contexts;
+    }
+
+    /**
+     * Append the rendered template to the given builder.
+     * Missing variables render as an empty string.
+     */
+    public void renderTo(StringBuilder out, TemplateContext context, TemplateEscaping escaping) {
+        renderTo(out, context, escaping, 0);
+    }
+
+    /**
+     * Same, for a template rendered into a slot of another one (bulk item
+     * fragments): the outer slot's context applies to every value
+     */
+    public void renderTo(StringBuilder out, TemplateContext context, TemplateEscaping escaping,
+                         int outerContext) {
+        out.append(literals[0]);
+        for (int i = 0; i < variables.length; i++) {
+            Object value = context.get(variables[i]);
+            if (value instanceof Raw) {
+                out.append(((Raw) value).text);
+            } else if (value != null) {
+                escaping.appendEscaped(out, value.toString(), outerContext | contexts[i]);
+            }
+            out.append(literals[i + 1]);
+        }
+    }
+
+    /**
+     * Render the template using a per-thread reusable builder
+     */
+    public String render(TemplateContext context, TemplateEscaping escaping) {
+        if (variables.length == 0) {
+            return source;
+        }
+        StringBuilder out = RenderBuffer.acquire(literalLength + 16 * variables.length);
+        renderTo(out, context, escaping);
+        return out.toString();
+    }
+
+    public String render(TemplateContext context) {
+        return render(context, TemplateEscaping.NONE);
+    }
+
+    public boolean hasVariables() { return variables.length > 0; }
+
+    /**
+     * Variable names in template order (may contain duplicates)
+     */
+    public List<String> getVariables() { return Collections.unmodifiableList(Arrays.asList(variables)); }
+
+    /**
+     * Context flags of the first slot of a variable, 0 if it has none
+     */
+    public int contextOf(String variable) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(variable)) {
+                return contexts[i];
+            }
+        }
+        return 0;
+    }
+
+    public String getSource() { return source; }
+
+    @Override
+    public String toString() { return source; }
+
+    /**
+     * Pre-rendered text that is written verbatim, bypassing escaping
+     * (e.g. the joined item fragments of a bulk operation)
+     */
+    public static final class Raw {
+        private final String text;
+
+        private Raw(String text) {
+            this.text = text;
+        }
+
+        public static Raw of(String text) {
+            return new Raw(text);
+        }
+
+        @Override
+        public String toString() { return text; }
+    }
+}
+
+/**
+ * Escaping applied to variable values as they are written into a template.
+ * Literal template text is never escaped.
+ */
+public enum TemplateEscaping {
+
+    /** Value is written verbatim */
+    NONE {
+        @Override
+        public void appendEscaped(StringBuilder out, String value) {
+            out.append(value);
+        }
+    },
+
+    /** Value is written as the content of a JSON string literal */
+    JSON {
+        @Override
+        public void appendEscaped(StringBuilder out, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':  out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\t': out.append("\\t"); break;
+                    case '\b': out.append("\\b"); break;
+                    case '\f': out.append("\\f"); break;
+                    default:
+                        if (c < 0x20) {
+                            out.append("\\u00");
+                            out.append(HEX[c >> 4]);
+                            out.append(HEX[c & 0xF]);
+                        } else {
+                            out.append(c);
+                        }
+                }
+            }
+        }
+    },
+
+    /** Value is written as XML character data or an attribute value */
+    XML {
+        @Override
+        public void appendEscaped(StringBuilder out, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '<':  out.append("&lt;"); break;
+                    case '>':  out.append("&gt;"); break;
+                    case '&':  out.append("&amp;"); break;
+                    case '"':  out.append("&quot;"); break;
+                    case '\'': out.append("&apos;"); break;
+                    default:   out.append(c);
+                }
+            }
+        }
+    },
+
+    /**
+     * Value is written into a CLI command line. Line breaks are dropped so a
+     * value can never start a new command. What else is escaped depends on
+     * the quoting around the slot, so the shell hands the device exactly the
+     * value:
+     * - "...": only " \ $ ` are backslash-escaped (the shell removes those
+     *   backslashes; any other one would be stored)
+     * - '...': nothing is special but the quote itself, written as '\''
+     * - unquoted: metacharacters and whitespace are backslash-escaped
+     */
+    CLI {
+        @Override
+        public void appendEscaped(StringBuilder out, String value) {
+            appendEscaped(out, value, 0);
+        }
+
+        @Override
+        public void appendEscaped(StringBuilder out, String value, int context) {
+            boolean doubleQuoted = (context & CompiledTemplate.IN_DOUBLE_QUOTES) != 0;
+            boolean singleQuoted = (context & CompiledTemplate.IN_SINGLE_QUOTES) != 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\n' || c == '\r') {
+                    continue;
+                }
+                if (singleQuoted) {
+                    if (c == '\'') {
+                        out.append("'\\''");
+                    } else {
+                        out.append(c);
+                    }
+                } else if (doubleQuoted) {
+                    if (c == '"' || c == '\\' || c == '$' || c == '`') {
+                        out.append('\\');
+                    }
+                    out.append(c);
+                } else {
+                    if (SHELL_SPECIAL.indexOf(c) >= 0 || Character.isWhitespace(c)) {
+                        out.append('\\');
+                    }
+                    out.append(c);
+                }
+            }
+        }
+    },
+
+    /**
+     * Value is an application/x-www-form-urlencoded field value
+     */
+    FORM {
+        @Override
+        public void appendEscaped(StringBuilder out, String value) {
+            appendUrlEncoded(out, value);
+        }
+
+        @Override
+        public TemplateEscaping fragmentEscaping(int context) {
+            return NONE;
+        }
+    },
+
+    /**
+     * Value is XML character data inside a form field value (PAN-OS
+     * "&element=<entry>..."): XML-escaped, then URL-encoded
+     */
+    XML_FORM {
+        @Override
+        public void appendEscaped(StringBuilder out, String value) {
+            StringBuilder xml = new StringBuilder(value.length() + 16);
+            XML.appendEscaped(xml, value);
+            appendUrlEncoded(out, xml.toString());
+        }
+
+        @Override
+        public TemplateEscaping fragmentEscaping(int context) {
+            return XML;
+        }
+    },
+
+    /**
+     * Value is written into a URL: URL-encoded in the query string (xpath=,
+     * filters), verbatim in the path as before
+     */
+    URL {
+        @Override
+        public void appendEscaped(StringBuilder out, String value) {
+            appendUrlEncoded(out, value);
+        }
+
+        @Override
+        public void appendEscaped(StringBuilder out, String value, int context) {
+            if ((context & CompiledTemplate.IN_QUERY) != 0) {
+                appendUrlEncoded(out, value);
+            } else {
+                out.append(value);
+            }
+        }
+
+        @Override
+        public TemplateEscaping fragmentEscaping(int context) {
+            return (context & CompiledTemplate.IN_QUERY) != 0 ? NONE : null;
+        }
+    };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String SHELL_SPECIAL = "\"'\\$`;|&<>()*?#~!{}[]";
+
+    public abstract void appendEscaped(StringBuilder out, String value);
+
+    /**
+     * Escape for a slot with the given CompiledTemplate context flags; only
+     * escapings that depend on the slot's surroundings override this
+     */
+    public void appendEscaped(StringBuilder out, String value, int context) {
+        appendEscaped(out, value);
+    }
+
+    /**
+     * For slots whose whole text is URL-encoded (form field and query
+     * values), the escaping of the values inside a fragment rendered into
+     * the slot; the fragment, literal text included, is then encoded with
+     * appendFragment. Null where literal template text goes in as is.
+     */
+    public TemplateEscaping fragmentEscaping(int context) {
+        return null;
+    }
+
+    /**
+     * URL-encode a fragment rendered with fragmentEscaping()
+     */
+    public static void appendFragment(StringBuilder out, CharSequence fragment) {
+        appendUrlEncoded(out, fragment.toString());
+    }
+
+    /**
+     * Percent-encode as in a form body or query value; space is %20, which
+     * both decode, rather than '+', which paths do not
+     */
+    private static void appendUrlEncoded(StringBuilder out, String value) {
+        byte[] bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '-' || c == '_' || c == '.' || c == '~') {
+                out.append((char) c);
+            } else {
+                out.append('%').append(HEX_UPPER[c >> 4]).append(HEX_UPPER[c & 0xF]);
+            }
+        }
+    }
+
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Pick the escaping for an operation body from its method and Content-Type
+     */
+    public static TemplateEscaping forBody(String method, Map<String, String> headers, String body) {
+        if (method != null && isCliMethod(method)) {
+            return CLI;
+        }
+
+        String contentType = null;
+        if (headers != null) {
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                if (h.getKey().equalsIgnoreCase("Content-Type")) {
+                    contentType = h.getValue().toLowerCase();
+                    break;
+                }
+            }
+        }
+
+        String trimmed = body != null ? body.trim() : "";
+        if (contentType != null) {
+            if (contentType.contains("json")) {
+                return JSON;
+            }
+            if (contentType.contains("x-www-form-urlencoded")) {
+                // PAN-OS style: form fields carrying XML elements
+                return trimmed.contains("=<") || trimmed.contains("element=") ? XML_FORM : FORM;
+            }
+            if (contentType.contains("xml")) {
+                return XML;
+            }
+        }
+
+        if (trimmed.startsWith("{") || trimmed.startsWith("[")) {
+            return JSON;
+        }
+        if (trimmed.startsWith("&element=")) {
+            return XML_FORM;
+        }
+        if (trimmed.startsWith("<")) {
+            return XML;
+        }
+        return NONE;
+    }
+
+    /**
+     * Pick the escaping for an operation endpoint (URL or CLI command)
+     */
+    public static TemplateEscaping forEndpoint(String method, String endpoint) {
+        if (method != null && isCliMethod(method)) {
+            return CLI;
+        }
+        if (endpoint != null && endpoint.contains("?")) {
+            // Query values such as xpath=...[@name='${externalId}']
+            return URL;
+        }
+        return NONE;
+    }
+
+    private static boolean isCliMethod(String method) {
+        return method.equalsIgnoreCase("SSH") || method.equalsIgnoreCase("CLI");
+    }
+}
+
+/**
+ * Per-thread reusable render buffer
+ */
+final class RenderBuffer {
+
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER =
+        ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    private RenderBuffer() {
+    }
+
+    static StringBuilder acquire(int expectedLength) {
+        StringBuilder sb = BUFFER.get();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            // Don't pin a huge buffer to the thread after one large render
+            sb = new StringBuilder(Math.max(1024, expectedLength));
+            BUFFER.set(sb);
+        }
+        sb.setLength(0);
+        sb.ensureCapacity(expectedLength);
+        return sb;
+    }
+}
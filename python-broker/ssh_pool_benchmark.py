@@ -0,0 +1,168 @@
+#!/usr/bin/env python3
+"""
+SSH Session Pool Benchmark
+==========================
+Compares rule-apply latency of execute_ssh_command with a fresh SSH
+connection per command against pooled sessions.
+
+Against a device (e.g. a VyOS lab VM):
+  ./ssh_pool_benchmark.py 192.0.2.10 --user vyos --password vyos \\
+      --command "show configuration commands | match firewall" --iterations 50
+
+Without a device, --simulate replaces the SSH connection with one that
+sleeps for the given handshake and command times:
+  ./ssh_pool_benchmark.py --simulate --handshake-ms 250 --command-ms 20
+"""
+
+import argparse
+import statistics
+import sys
+import time
+from concurrent.futures import ThreadPoolExecutor
+
+import vnf_broker
+
+
+class SimulatedStream:
+    def __init__(self, text=''):
+        self._text = text
+
+    def read(self):
+        return self._text.encode('utf-8')
+
+
+class SimulatedChannel:
+    """Stands in for paramiko.Channel: command cost per exec"""
+
+    def __init__(self, command_ms):
+        self._command_ms = command_ms
+
+    def settimeout(self, timeout):
+        pass
+
+    def exec_command(self, command):
+        time.sleep(self._command_ms / 1000.0)
+
+    def makefile(self, mode):
+        return SimulatedStream('ok\n')
+
+    def makefile_stderr(self, mode):
+        return SimulatedStream()
+
+    def recv_exit_status(self):
+        return 0
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, *exc):
+        return False
+
+
+class SimulatedTransport:
+    def __init__(self, command_ms):
+        self._command_ms = command_ms
+
+    def is_active(self):
+        return True
+
+    def is_authenticated(self):
+        return True
+
+    def set_keepalive(self, interval):
+        pass
+
+    def open_session(self, timeout=None):
+        return SimulatedChannel(self._command_ms)
+
+
+class SimulatedClient:
+    """Stands in for paramiko.SSHClient: connect cost up front, command cost per exec"""
+
+    def __init__(self, handshake_ms, command_ms):
+        time.sleep(handshake_ms / 1000.0)
+        self._transport = SimulatedTransport(command_ms)
+
+    def get_transport(self):
+        return self._transport
+
+    def close(self):
+        pass
+
+
+def percentile(samples, pct):
+    ordered = sorted(samples)
+    index = min(len(ordered) - 1, int(round(pct / 100.0 * (len(ordered) - 1))))
+    return ordered[index]
+
+
+def run(label, args):
+    """Run the workload once; returns per-command latencies in ms"""
+    latencies = []
+
+    def one(_):
+        start = time.perf_counter()
+        result = vnf_broker.execute_ssh_command(
+            args.target, args.port, args.user, args.password, args.command)
+        elapsed = (time.perf_counter() - start) * 1000.0
+        if not result['success']:
+            raise RuntimeError(f"{label}: command failed: {result.get('error') or result.get('stderr')}")
+        return elapsed
+
+    started = time.perf_counter()
+    if args.concurrency == 1:
+        latencies = [one(i) for i in range(args.iterations)]
+    else:
+        with ThreadPoolExecutor(max_workers=args.concurrency) as pool:
+            latencies = list(pool.map(one, range(args.iterations)))
+    wall = time.perf_counter() - started
+
+    print(f"{label:<10} n={len(latencies):<5} "
+          f"mean={statistics.mean(latencies):8.1f}ms "
+          f"p50={percentile(latencies, 50):8.1f}ms "
+          f"p95={percentile(latencies, 95):8.1f}ms "
+          f"p99={percentile(latencies, 99):8.1f}ms "
+          f"throughput={len(latencies) / wall:7.1f} cmd/s")
+    return latencies
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__,
+                                     formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('target', nargs='?', default='198.51.100.1', help='VNF management IP')
+    parser.add_argument('--port', type=int, default=22)
+    parser.add_argument('--user', default='vyos')
+    parser.add_argument('--password', default=None)
+    parser.add_argument('--command', default='show version')
+    parser.add_argument('--iterations', type=int, default=50)
+    parser.add_argument('--concurrency', type=int, default=1,
+                        help='parallel callers (pool caps sessions at SSH_POOL_MAX_PER_TARGET)')
+    parser.add_argument('--warmup', type=int, default=3, help='untimed commands per mode')
+    parser.add_argument('--simulate', action='store_true', help='no device; use simulated sessions')
+    parser.add_argument('--handshake-ms', type=float, default=250.0)
+    parser.add_argument('--command-ms', type=float, default=20.0)
+    args = parser.parse_args()
+
+    if args.simulate:
+        def connect(target_ip, port, username, password):
+            return SimulatedClient(args.handshake_ms, args.command_ms)
+        vnf_broker.open_ssh_client = connect
+        vnf_broker._ssh_pool = vnf_broker.SSHSessionPool(
+            max_per_target=vnf_broker.CONFIG['SSH_POOL_MAX_PER_TARGET'], connect=connect)
+
+    results = {}
+    for label, pooled in (('fresh', False), ('pooled', True)):
+        vnf_broker.CONFIG['SSH_POOL_ENABLED'] = pooled
+        for _ in range(args.warmup):
+            vnf_broker.execute_ssh_command(args.target, args.port, args.user, args.password, args.command)
+        results[label] = run(label, args)
+
+    speedup = statistics.mean(results['fresh']) / statistics.mean(results['pooled'])
+    print(f"pooled sessions: {speedup:.1f}x lower mean latency "
+          f"({vnf_broker.get_ssh_pool().stats})")
+    vnf_broker.get_ssh_pool().close_all()
+    return 0
+
+
+if __name__ == '__main__':
+    sys.exit(main())
@@ -8,8 +8,9 @@ CloudStack management server and VNF appliances.
 Features:
 - mTLS authentication with management server
 - JWT authorization for requests
-- HTTP/HTTPS proxying to VNF devices
-- SSH/CLI command execution
+- HTTP/HTTPS proxying to VNF devices over kept-alive connection pools
+- Persistent, resumable TLS connections from the management server
+- SSH/CLI command execution over pooled, health-checked sessions
 - Request/response logging for audit
 
 Installation on VR:
@@ -24,13 +25,19 @@ import os
 import sys
 import json
 import time
+import hashlib
 import logging
 import subprocess
+import ssl
+import threading
+from contextlib import contextmanager
 from datetime import datetime, timedelta
 from typing import Dict, Any, Optional
 
 from flask import Flask, request, jsonify
+from werkzeug.serving import WSGIRequestHandler
 import requests
+from requests.adapters import HTTPAdapter
 import paramiko
 import jwt
 from cryptography import x509
@@ -52,17 +59,35 @@ CONFIG = {
     'LOG_FILE': '/var/log/vnf-broker/broker.log',
     'REQUEST_TIMEOUT': 30,
     'SSH_KEY_PATH': '/etc/vnf-broker/ssh_key',
+    # SSH session pool (CLI-driven VNFs such as VyOS)
+    'SSH_POOL_ENABLED': True,
+    'SSH_POOL_MAX_PER_TARGET': 2,     # concurrent sessions per appliance
+    'SSH_POOL_IDLE_TIMEOUT': 300,     # seconds before an idle session is closed
+    'SSH_POOL_MAX_LIFETIME': 3600,    # seconds before a session is recycled
+    'SSH_KEEPALIVE_INTERVAL': 30,     # transport keepalive (seconds)
+    # Kept-alive HTTP connections to HTTP-driven VNFs
+    'HTTP_POOL_MAX_PER_TARGET': 5,    # pooled connections per appliance
+    # Management server link
+    'MTLS_ENABLED': False,            # opt-in: require a client certificate signed by CA_CERT_PATH
+    'KEEP_ALIVE_ENABLED': True,       # HTTP/1.1 persistent connections
     'DEBUG': False
 }
 
 # Setup logging
+def _log_handlers():
+    """Console always; file when the log directory is usable"""
+    handlers = [logging.StreamHandler()]
+    try:
+        os.makedirs(os.path.dirname(CONFIG['LOG_FILE']), exist_ok=True)
+        handlers.insert(0, logging.FileHandler(CONFIG['LOG_FILE']))
+    except OSError:
+        pass
+    return handlers
+
 logging.basicConfig(
     level=logging.INFO,
     format='%(asctime)s - %(name)s - %(levelname)s - %(message)s',
-    handlers=[
-        logging.FileHandler(CONFIG['LOG_FILE']),
-        logging.StreamHandler()
-    ]
+    handlers=_log_handlers()
 )
 logger = logging.getLogger('vnf-broker')
 
@@ -114,12 +139,30 @@ def check_ip_allowed(ip: str, allowed_list: list) -> bool:
         return True
     return ip in allowed_list
 
+_http_sessions: Dict[str, requests.Session] = {}
+_http_sessions_lock = threading.Lock()
+
+def get_http_session(base_url: str) -> requests.Session:
+    """
+    Session with a kept-alive connection pool for one VNF endpoint
+    """
+    with _http_sessions_lock:
+        session = _http_sessions.get(base_url)
+        if session is None:
+            size = CONFIG['HTTP_POOL_MAX_PER_TARGET']
+            session = requests.Session()
+            session.mount(base_url, HTTPAdapter(pool_connections=1, pool_maxsize=size, pool_block=True))
+            _http_sessions[base_url] = session
+        return session
+
 def proxy_http_request(target_ip: str, method: str, uri: str, 
-                       headers: Dict, body: Optional[str]) -> Dict:
+                       headers: Dict, body: Optional[str],
+                       scheme: str = 'https', port: Optional[int] = None) -> Dict:
     """
-    Proxy HTTP/HTTPS request to VNF device
+    Proxy HTTP/HTTPS request to VNF device over a pooled connection
     """
-    url = f"https://{target_ip}{uri}"
+    base_url = f"{scheme}://{target_ip}:{port}" if port else f"{scheme}://{target_ip}"
+    url = f"{base_url}{uri}"
     
     # Remove problematic headers
     headers_copy = headers.copy()
@@ -129,7 +172,7 @@ def proxy_http_request(target_ip: str, method: str, uri: str,
     start_time = time.time()
     
     try:
-        response = requests.request(
+        response = get_http_session(base_url).request(
             method=method,
             url=url,
             headers=headers_copy,
@@ -165,63 +208,282 @@ def proxy_http_request(target_ip: str, method: str, uri: str,
             'duration_ms': int((time.time() - start_time) * 1000)
         }
 
+def open_ssh_client(target_ip: str, port: int, username: str,
+                    password: Optional[str]) -> paramiko.SSHClient:
+    """
+    Connect and authenticate to a VNF device (key first, then password)
+    """
+    client = paramiko.SSHClient()
+    client.set_missing_host_key_policy(paramiko.AutoAddPolicy())
+    
+    try:
+        if os.path.exists(CONFIG['SSH_KEY_PATH']):
+            client.connect(
+                target_ip,
+                port=port,
+                username=username,
+                key_filename=CONFIG['SSH_KEY_PATH'],
+                timeout=CONFIG['REQUEST_TIMEOUT']
+            )
+        else:
+            client.connect(
+                target_ip,
+                port=port,
+                username=username,
+                password=password,
+                timeout=CONFIG['REQUEST_TIMEOUT']
+            )
+    except paramiko.AuthenticationException:
+        if password:
+            client.connect(
+                target_ip,
+                port=port,
+                username=username,
+                password=password,
+                timeout=CONFIG['REQUEST_TIMEOUT']
+            )
+        else:
+            client.close()
+            raise
+    
+    transport = client.get_transport()
+    if transport is not None and CONFIG['SSH_KEEPALIVE_INTERVAL']:
+        transport.set_keepalive(CONFIG['SSH_KEEPALIVE_INTERVAL'])
+    return client
+
+
+class PooledSession:
+    """An authenticated SSH client plus pool bookkeeping"""
+    
+    def __init__(self, client):
+        self.client = client
+        self.created = time.monotonic()
+        self.last_used = self.created
+    
+    def is_healthy(self, max_lifetime: float) -> bool:
+        if time.monotonic() - self.created > max_lifetime:
+            return False
+        transport = self.client.get_transport()
+        return transport is not None and transport.is_active() and transport.is_authenticated()
+    
+    def close(self):
+        try:
+            self.client.close()
+        except Exception:
+            pass
+
+
+class SSHSessionPool:
+    """
+    Reusable SSH sessions per appliance.
+    
+    Sessions are keyed by (target, port, username, credential fingerprint) so
+    a request never rides a session authenticated with other credentials.
+    At most max_per_target sessions per key exist at once (checked out or
+    idle); further callers wait up to acquire_timeout. Sessions are health
+    checked on checkout, recycled after max_lifetime and closed after
+    idle_timeout without use.
+    """
+    
+    def __init__(self, max_per_target: int = 2, idle_timeout: float = 300,
+                 max_lifetime: float = 3600, acquire_timeout: float = 30,
+                 connect=None):
+        self.max_per_target = max_per_target
+        self.idle_timeout = idle_timeout
+        self.max_lifetime = max_lifetime
+        self.acquire_timeout = acquire_timeout
+        self._connect = connect or open_ssh_client
+        self._lock = threading.Lock()
+        self._idle = {}       # key -> [PooledSession], most recently used last
+        self._slots = {}      # key -> BoundedSemaphore(max_per_target)
+        self._reaper = None
+        self.stats = {'created': 0, 'reused': 0, 'evicted': 0, 'discarded': 0}
+    
+    @staticmethod
+    def _key(target_ip, port, username, password):
+        secret = hashlib.sha256((password or '').encode('utf-8')).hexdigest()[:16]
+        return (target_ip, int(port), username, secret)
+    
+    @contextmanager
+    def session(self, target_ip: str, port: int, username: str, password: Optional[str]):
+        """
+        Check out a session; yields a PooledSession. Raise inside the block
+        to have the session discarded instead of returned.
+        """
+        key = self._key(target_ip, port, username, password)
+        with self._lock:
+            slots = self._slots.setdefault(key, threading.BoundedSemaphore(self.max_per_target))
+        
+        if not slots.acquire(timeout=self.acquire_timeout):
+            raise TimeoutError(f"No SSH session available for {target_ip} "
+                               f"({self.max_per_target} in use)")
+        pooled = None
+        try:
+            pooled = self._checkout(key)
+            if pooled is None:
+                pooled = PooledSession(self._connect(target_ip, port, username, password))
+                with self._lock:
+                    self.stats['created'] += 1
+            yield pooled
+        except BaseException:
+            if pooled is not None:
+                pooled.close()
+                with self._lock:
+                    self.stats['discarded'] += 1
+                pooled = None
+            raise
+        finally:
+            if pooled is not None:
+                pooled.last_used = time.monotonic()
+                with self._lock:
+                    self._idle.setdefault(key, []).append(pooled)
+            slots.release()
+            self._ensure_reaper()
+    
+    def _checkout(self, key):
+        while True:
+            with self._lock:
+                idle = self._idle.get(key)
+                if not idle:
+                    return None
+                pooled = idle.pop()
+            if pooled.is_healthy(self.max_lifetime):
+                with self._lock:
+                    self.stats['reused'] += 1
+                return pooled
+            pooled.close()
+            with self._lock:
+                self.stats['discarded'] += 1
+    
+    def evict_idle(self):
+        """Close sessions unused for longer than idle_timeout"""
+        now = time.monotonic()
+        expired = []
+        with self._lock:
+            for key, idle in list(self._idle.items()):
+                keep = [p for p in idle if now - p.last_used <= self.idle_timeout]
+                expired.extend(p for p in idle if now - p.last_used > self.idle_timeout)
+                if keep:
+                    self._idle[key] = keep
+                else:
+                    del self._idle[key]
+            self.stats['evicted'] += len(expired)
+        for pooled in expired:
+            pooled.close()
+    
+    def close_all(self):
+        with self._lock:
+            sessions = [p for idle in self._idle.values() for p in idle]
+            self._idle.clear()
+        for pooled in sessions:
+            pooled.close()
+    
+    def idle_count(self) -> int:
+        with self._lock:
+            return sum(len(idle) for idle in self._idle.values())
+    
+    def _ensure_reaper(self):
+        if self._reaper is not None:
+            return
+        with self._lock:
+            if self._reaper is not None:
+                return
+            self._reaper = threading.Thread(target=self._reap, name='ssh-pool-reaper', daemon=True)
+            self._reaper.start()
+    
+    def _reap(self):
+        interval = max(1.0, min(60.0, self.idle_timeout / 2))
+        while True:
+            time.sleep(interval)
+            try:
+                self.evict_idle()
+            except Exception:
+                logger.exception("SSH pool eviction failed")
+
+
+_ssh_pool = None
+_ssh_pool_lock = threading.Lock()
+
+def get_ssh_pool() -> SSHSessionPool:
+    """Broker-wide pool, created from CONFIG on first use"""
+    global _ssh_pool
+    if _ssh_pool is None:
+        with _ssh_pool_lock:
+            if _ssh_pool is None:
+                _ssh_pool = SSHSessionPool(
+                    max_per_target=CONFIG['SSH_POOL_MAX_PER_TARGET'],
+                    idle_timeout=CONFIG['SSH_POOL_IDLE_TIMEOUT'],
+                    max_lifetime=CONFIG['SSH_POOL_MAX_LIFETIME'],
+                    acquire_timeout=CONFIG['REQUEST_TIMEOUT']
+                )
+    return _ssh_pool
+
+def open_ssh_channel(client) -> paramiko.Channel:
+    """Open a channel on an open session; nothing is sent to the device yet"""
+    transport = client.get_transport()
+    if transport is None or not transport.is_active():
+        raise paramiko.SSHException("SSH session is not active")
+    channel = transport.open_session(timeout=CONFIG['REQUEST_TIMEOUT'])
+    channel.settimeout(CONFIG['REQUEST_TIMEOUT'])
+    return channel
+
+def run_ssh_command(channel, command: str) -> Dict:
+    """Run one command on an opened channel"""
+    with channel:
+        channel.exec_command(command)
+        stdout = channel.makefile('rb')
+        stderr = channel.makefile_stderr('rb')
+        exit_code = channel.recv_exit_status()
+        return {
+            'exit_code': exit_code,
+            'stdout': stdout.read().decode('utf-8'),
+            'stderr': stderr.read().decode('utf-8')
+        }
+
 def execute_ssh_command(target_ip: str, port: int, username: str, 
                         password: Optional[str], command: str) -> Dict:
     """
     Execute command on VNF device via SSH
+    
+    With SSH_POOL_ENABLED the command runs on a pooled session; a session
+    that fails to open a channel (e.g. the device dropped it) is discarded
+    and the attempt is repeated once on a fresh connection. Once the
+    command has been sent it is never resent: a CLI commit that already
+    ran must not run twice, so any later failure is returned to the caller.
     """
     start_time = time.time()
     
     try:
-        client = paramiko.SSHClient()
-        client.set_missing_host_key_policy(paramiko.AutoAddPolicy())
-        
-        # Attempt key-based auth first, then password
-        try:
-            if os.path.exists(CONFIG['SSH_KEY_PATH']):
-                client.connect(
-                    target_ip,
-                    port=port,
-                    username=username,
-                    key_filename=CONFIG['SSH_KEY_PATH'],
-                    timeout=CONFIG['REQUEST_TIMEOUT']
-                )
-            else:
-                client.connect(
-                    target_ip,
-                    port=port,
-                    username=username,
-                    password=password,
-                    timeout=CONFIG['REQUEST_TIMEOUT']
-                )
-        except paramiko.AuthenticationException:
-            if password:
-                client.connect(
-                    target_ip,
-                    port=port,
-                    username=username,
-                    password=password,
-                    timeout=CONFIG['REQUEST_TIMEOUT']
-                )
-            else:
-                raise
-        
-        # Execute command
-        stdin, stdout, stderr = client.exec_command(command)
-        exit_code = stdout.channel.recv_exit_status()
-        
-        stdout_text = stdout.read().decode('utf-8')
-        stderr_text = stderr.read().decode('utf-8')
-        
-        client.close()
+        if CONFIG['SSH_POOL_ENABLED']:
+            pool = get_ssh_pool()
+            attempts = 2
+            for attempt in range(attempts):
+                sent = False
+                try:
+                    with pool.session(target_ip, port, username, password) as pooled:
+                        channel = open_ssh_channel(pooled.client)
+                        sent = True
+                        output = run_ssh_command(channel, command)
+                    break
+                except (paramiko.SSHException, EOFError, OSError) as e:
+                    if (sent or isinstance(e, (paramiko.AuthenticationException, TimeoutError)) or
+                            attempt == attempts - 1):
+                        raise
+                    logger.info(f"Stale SSH session to {target_ip}, reconnecting: {e}")
+        else:
+            client = open_ssh_client(target_ip, port, username, password)
+            try:
+                output = run_ssh_command(open_ssh_channel(client), command)
+            finally:
+                client.close()
         
         duration_ms = int((time.time() - start_time) * 1000)
         
         return {
-            'success': exit_code == 0,
-            'status_code': exit_code,
-            'stdout': stdout_text,
-            'stderr': stderr_text,
+            'success': output['exit_code'] == 0,
+            'status_code': output['exit_code'],
+            'stdout': output['stdout'],
+            'stderr': output['stderr'],
             'duration_ms': duration_ms
         }
         
@@ -240,7 +502,9 @@ def health_check():
     return jsonify({
         'status': 'healthy',
         'service': 'vnf-broker',
-        'timestamp': datetime.now().isoformat()
+        'timestamp': datetime.now().isoformat(),
+        'ssh_pool': dict(get_ssh_pool().stats, idle=get_ssh_pool().idle_count())
+                    if CONFIG['SSH_POOL_ENABLED'] else None
     })
 
 @app.route('/vnfproxy', methods=['POST'])
@@ -320,8 +584,10 @@ def vnf_proxy():
         uri = req_data.get('uri', '/')
         headers = req_data.get('headers', {})
         body = req_data.get('body')
+        port = req_data.get('port')
         
-        result = proxy_http_request(target_ip, method, uri, headers, body)
+        result = proxy_http_request(target_ip, method, uri, headers, body,
+                                    scheme=protocol.lower(), port=port)
         
     elif protocol == 'SSH':
         command = req_data.get('command')
@@ -401,25 +667,51 @@ def generate_self_signed_cert():
     
     logger.info("Self-signed certificate generated")
 
+def create_ssl_context() -> ssl.SSLContext:
+    """
+    Server TLS context for the management server link.
+    
+    TLS 1.3 session tickets (and the TLS 1.2 session cache) stay enabled so
+    the management server can resume sessions instead of repeating the
+    full handshake on every new connection.
+    
+    Client certificates are only required when MTLS_ENABLED is set in
+    config.json; otherwise clients are accepted as before.
+    
+    Werkzeug does not speak HTTP/2, so ALPN offers http/1.1 only; the
+    management server multiplexes over kept-alive HTTP/1.1 connections.
+    """
+    context = ssl.SSLContext(ssl.PROTOCOL_TLS_SERVER)
+    context.minimum_version = ssl.TLSVersion.TLSv1_2
+    context.load_cert_chain(CONFIG['TLS_CERT_PATH'], CONFIG['TLS_KEY_PATH'])
+    if CONFIG['MTLS_ENABLED']:
+        context.load_verify_locations(CONFIG['CA_CERT_PATH'])
+        context.verify_mode = ssl.CERT_REQUIRED
+    context.options &= ~ssl.OP_NO_TICKET
+    context.set_alpn_protocols(['http/1.1'])
+    return context
+
 def main():
     """Main entry point"""
     # Load configuration
     load_config()
     
-    # Setup logging directory
-    os.makedirs(os.path.dirname(CONFIG['LOG_FILE']), exist_ok=True)
-    
     # Generate cert if needed
     generate_self_signed_cert()
     
     logger.info(f"Starting VNF Broker on port {CONFIG['BROKER_PORT']}")
     logger.info(f"JWT authentication: {'enabled' if CONFIG['JWT_SECRET'] else 'DISABLED'}")
     
+    # Persistent connections: the management server pools and reuses them
+    if CONFIG['KEEP_ALIVE_ENABLED']:
+        WSGIRequestHandler.protocol_version = 'HTTP/1.1'
+    
     # Run Flask with TLS
     app.run(
         host=CONFIG['BROKER_HOST'],
         port=CONFIG['BROKER_PORT'],
-        ssl_context=(CONFIG['TLS_CERT_PATH'], CONFIG['TLS_KEY_PATH']),
+        ssl_context=create_ssl_context(),
+        threaded=True,
         debug=CONFIG['DEBUG']
     )
 
@@ -7,11 +7,31 @@
 package org.apache.cloudstack.network.vnf.test;
 
 import org.apache.cloudstack.network.vnf.*;
+import org.apache.cloudstack.network.vnf.impl.*;
 import org.junit.jupiter.api.*;
 import org.mockito.*;
+import com.cloud.network.Network;
+import com.cloud.network.rules.FirewallRule;
+import com.cloud.network.rules.PortForwardingRule;
+import com.cloud.utils.net.Ip;
+import com.cloud.vm.VirtualMachine;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
 /**
  * Test suite for VNF Dictionary Parser
  */
@@ -231,6 +251,3949 @@ public class VnfTemplateRendererTest {
         String fullyRendered = "Protocol: tcp, Port: 80";
         assertFalse(VnfTemplateRenderer.hasUnresolvedPlaceholders(fullyRendered));
     }
+    
+    @Test
+    @DisplayName("Compiled template splits literals and variables")
+    void testCompiledTemplateSegments() {
+        CompiledTemplate compiled = CompiledTemplate.compile("/rule/${externalId}?vdom=${vdom}");
+        
+        assertEquals(List.of("externalId", "vdom"), compiled.getVariables());
+        
+        TemplateContext context = new TemplateContext();
+        context.set("externalId", 42);
+        context.set("vdom", "root");
+        
+        assertEquals("/rule/42?vdom=root", compiled.render(context));
+    }
+    
+    @Test
+    @DisplayName("Unterminated placeholder is kept as literal text")
+    void testUnterminatedPlaceholder() {
+        CompiledTemplate compiled = CompiledTemplate.compile("cost: ${ and ${}");
+        
+        assertFalse(compiled.hasVariables());
+        assertEquals("cost: ${ and ${}", compiled.render(new TemplateContext()));
+    }
+    
+    @Test
+    @DisplayName("JSON escaping of values in body templates")
+    void testJsonEscaping() {
+        String template = "{\"descr\": \"${description}\"}";
+        
+        TemplateContext context = new TemplateContext();
+        context.set("description", "web \"tier\"\nrule");
+        
+        String result = VnfTemplateRenderer.renderJson(template, context);
+        
+        assertEquals("{\"descr\": \"web \\\"tier\\\"\\nrule\"}", result);
+    }
+    
+    @Test
+    @DisplayName("XML escaping of values in PAN-OS xpath")
+    void testXmlEscaping() {
+        CompiledTemplate compiled = CompiledTemplate.compile("entry[@name='${externalId}']");
+        
+        TemplateContext context = new TemplateContext();
+        context.set("externalId", "a'<b>");
+        
+        assertEquals("entry[@name='a&apos;&lt;b&gt;']",
+            compiled.render(context, TemplateEscaping.XML));
+    }
+    
+    @Test
+    @DisplayName("CLI escaping cannot inject a new command")
+    void testCliEscaping() {
+        CompiledTemplate compiled = CompiledTemplate.compile(
+            "set firewall name WAN_LOCAL rule ${ruleId} description \"${descr}\"");
+        
+        TemplateContext context = new TemplateContext();
+        context.set("ruleId", 10);
+        context.set("descr", "x\"\ndelete firewall");
+        
+        assertEquals("set firewall name WAN_LOCAL rule 10 description \"x\\\"delete firewall\"",
+            compiled.render(context, TemplateEscaping.CLI));
+    }
+    
+    @Test
+    @DisplayName("CLI escaping adds no backslashes inside single or double quotes")
+    void testCliQuotedEscaping() {
+        CompiledTemplate compiled = CompiledTemplate.compile(
+            "set rule ${ruleId} description \"${descr}\" tag '${tag}' name ${name}");
+        
+        TemplateContext context = new TemplateContext();
+        context.set("ruleId", 10);
+        context.set("descr", "a & b = it's; ok");
+        context.set("tag", "it's a & b");
+        context.set("name", "a b;c");
+        
+        assertEquals("set rule 10 description \"a & b = it's; ok\" tag 'it'\\''s a & b' name a\\ b\\;c",
+            compiled.render(context, TemplateEscaping.CLI));
+    }
+    
+    @Test
+    @DisplayName("Query and form values are URL-encoded, not XML-escaped")
+    void testUrlEscaping() {
+        TemplateContext context = new TemplateContext();
+        context.set("externalId", "a&b=c d'e");
+        
+        assertEquals(TemplateEscaping.URL, TemplateEscaping.forEndpoint("GET", "/?xpath=x"));
+        assertEquals("/rules/a&b=c d'e?xpath=entry[@name='a%26b%3Dc%20d%27e']",
+            CompiledTemplate.compile("/rules/${externalId}?xpath=entry[@name='${externalId}']")
+                .render(context, TemplateEscaping.URL));
+        
+        assertEquals(TemplateEscaping.FORM, TemplateEscaping.forBody("POST",
+            Map.of("Content-Type", "application/x-www-form-urlencoded"), "descr=${externalId}"));
+        assertEquals("descr=a%26b%3Dc%20d%27e",
+            CompiledTemplate.compile("descr=${externalId}").render(context, TemplateEscaping.FORM));
+        
+        assertEquals(TemplateEscaping.XML_FORM, TemplateEscaping.forBody("POST",
+            Map.of("Content-Type", "application/x-www-form-urlencoded"), "&element=<d>${externalId}</d>"));
+        assertEquals("&element=<d>a%26amp%3Bb%3Dc%20d%26apos%3Be</d>",
+            CompiledTemplate.compile("&element=<d>${externalId}</d>").render(context, TemplateEscaping.XML_FORM));
+    }
+    
+    @Test
+    @DisplayName("Parser compiles operation templates with context-aware escaping")
+    void testParserCompilesTemplates() throws Exception {
+        VnfDictionary dict = new VnfDictionaryParserImpl()
+            .parseDictionary(VnfTestData.samplePfSenseDictionary());
+        
+        OperationDefinition create = dict.getService("Firewall").getOperation("create");
+        assertNotNull(create.getCompiledBody());
+        assertEquals(TemplateEscaping.JSON, create.getBodyEscaping());
+        
+        TemplateContext context = new TemplateContext();
+        context.set("protocol", "tcp");
+        context.set("sourceCidr", "10.0.0.0/24");
+        
+        assertEquals("{\"protocol\": \"tcp\", \"src\": \"10.0.0.0/24\"}",
+            create.renderBody(context));
+    }
+}
+
+/**
+ * Test suite for Dictionary Cache
+ */
+@DisplayName("Dictionary Cache Tests")
+public class VnfDictionaryCacheTest {
+    
+    private VnfDictionaryParserImpl parser;
+    private int parseCalls;
+    
+    @BeforeEach
+    void setUp() {
+        parser = new VnfDictionaryParserImpl();
+        parseCalls = 0;
+    }
+    
+    private VnfDictionary countingParse(String yaml) throws DictionaryParseException {
+        parseCalls++;
+        return parser.parseDictionary(yaml);
+    }
+    
+    private VnfDictionary row(String uuid, String yaml) {
+        VnfDictionary row = new VnfDictionary();
+        row.setUuid(uuid);
+        row.setYamlContent(yaml);
+        return row;
+    }
+    
+    @Test
+    @DisplayName("Identical YAML for different networks is parsed once")
+    void testSharedParse() throws Exception {
+        VnfDictionaryCache cache = new VnfDictionaryCache(16);
+        String yaml = VnfTestData.samplePfSenseDictionary();
+        
+        VnfDictionary a = cache.put(1L, 100L, row("uuid-a", yaml), this::countingParse);
+        VnfDictionary b = cache.put(1L, 101L, row("uuid-b", yaml), this::countingParse);
+        
+        assertEquals(1, parseCalls);
+        assertEquals(1, cache.getParseCount());
+        assertEquals(1, cache.getSharedParseCount());
+        assertEquals("uuid-a", a.getUuid());
+        assertEquals("uuid-b", b.getUuid());
+        assertSame(a.getService("Firewall"), b.getService("Firewall"));
+    }
+    
+    @Test
+    @DisplayName("Hit and miss counters")
+    void testHitMissCounters() throws Exception {
+        VnfDictionaryCache cache = new VnfDictionaryCache(16);
+        
+        assertNull(cache.get(1L, null));
+        cache.put(1L, null, row("uuid-a", VnfTestData.samplePfSenseDictionary()), this::countingParse);
+        assertNotNull(cache.get(1L, null));
+        
+        // Prefetch checks are not lookups
+        assertTrue(cache.contains(1L, null));
+        assertFalse(cache.contains(2L, null));
+        
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+    
+    @Test
+    @DisplayName("Network override invalidates every key for that network")
+    void testInvalidateNetwork() throws Exception {
+        VnfDictionaryCache cache = new VnfDictionaryCache(16);
+        String yaml = VnfTestData.samplePfSenseDictionary();
+        cache.put(1L, 100L, row("uuid-a", yaml), this::countingParse);
+        cache.put(2L, 100L, row("uuid-b", yaml), this::countingParse);
+        cache.put(1L, 101L, row("uuid-c", yaml), this::countingParse);
+        
+        cache.invalidate(null, 100L);
+        
+        assertNull(cache.get(1L, 100L));
+        assertNull(cache.get(2L, 100L));
+        assertNotNull(cache.get(1L, 101L));
+    }
+    
+    @Test
+    @DisplayName("Least recently used entry is evicted when full")
+    void testEviction() throws Exception {
+        VnfDictionaryCache cache = new VnfDictionaryCache(2);
+        String yaml = VnfTestData.samplePfSenseDictionary();
+        cache.put(1L, null, row("uuid-1", yaml), this::countingParse);
+        cache.put(2L, null, row("uuid-2", yaml), this::countingParse);
+        cache.get(1L, null);
+        cache.put(3L, null, row("uuid-3", yaml), this::countingParse);
+        
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(1L, null));
+        assertNull(cache.get(2L, null));
+    }
+    
+    @Test
+    @DisplayName("A load that raced an invalidation is returned but not cached")
+    void testStalePutAfterInvalidate() throws Exception {
+        VnfDictionaryCache cache = new VnfDictionaryCache(16);
+        String yaml = VnfTestData.samplePfSenseDictionary();
+        
+        long loadedAt = cache.generation();
+        // storeDictionary commits a new row and invalidates while the old one is being parsed
+        cache.invalidate(1L, null);
+        VnfDictionary old = cache.put(1L, null, row("uuid-old", yaml), loadedAt, this::countingParse);
+        
+        assertEquals("uuid-old", old.getUuid());
+        assertNull(cache.get(1L, null));
+        assertEquals(1, cache.getStalePutCount());
+        
+        cache.put(1L, null, row("uuid-new", yaml), cache.generation(), this::countingParse);
+        assertEquals("uuid-new", cache.get(1L, null).getUuid());
+    }
+    
+    @Test
+    @DisplayName("Database operations require a DAO")
+    void testNoDao() {
+        assertThrows(UnsupportedOperationException.class, () -> parser.getDictionary(1L, null));
+    }
+}
+
+/**
+ * Test suite for Response Parser
+ */
+@DisplayName("Response Parser Tests")
+public class VnfResponseParserTest {
+    
+    private VnfDictionary dict;
+    private VnfResponseParser responseParser;
+    
+    @BeforeEach
+    void setUp() throws Exception {
+        dict = new VnfDictionaryParserImpl().parseDictionary(VnfTestData.samplePfSenseDictionary());
+        responseParser = new VnfResponseParserImpl();
+    }
+    
+    private VnfResponse response(int status, String body) {
+        VnfResponse response = new VnfResponse();
+        response.setStatusCode(status);
+        response.setBody(body);
+        return response;
+    }
+    
+    @Test
+    @DisplayName("Compile and evaluate JSONPath expressions")
+    void testJsonPathEvaluate() {
+        JsonElement doc = JsonParser.parseString(
+            "{\"results\": {\"mappedip\": [{\"range\": \"10.1.1.5\"}], \"local-port\": 8080}}");
+        
+        assertEquals("10.1.1.5",
+            JsonPath.toValue(JsonPath.compile("$.results.mappedip[0].range").evaluate(doc)));
+        assertEquals(8080L,
+            JsonPath.toValue(JsonPath.compile("$.results['local-port']").evaluate(doc)));
+        assertNull(JsonPath.compile("$.results.missing.id").evaluate(doc));
+    }
+    
+    @Test
+    @DisplayName("Reject unsupported JSONPath syntax")
+    void testJsonPathRejectsUnsupported() {
+        assertThrows(IllegalArgumentException.class, () -> JsonPath.compile("data.id"));
+        assertThrows(IllegalArgumentException.class, () -> JsonPath.compile("$.data[*]"));
+        assertThrows(IllegalArgumentException.class, () -> JsonPath.compile("$..id"));
+    }
+    
+    @Test
+    @DisplayName("Dictionary with invalid response path fails to parse")
+    void testInvalidPathFailsParse() {
+        String yaml = """
+            version: "1.0"
+            services:
+              Firewall:
+                list:
+                  method: GET
+                  endpoint: /rules
+                  responseMapping:
+                    listPath: data[*]
+            """;
+        
+        assertThrows(DictionaryParseException.class, () -> {
+            new VnfDictionaryParserImpl().parseDictionary(yaml);
+        });
+    }
+    
+    @Test
+    @DisplayName("Item paths sharing a prefix are extracted in one walk")
+    void testFieldExtractorSharedPrefix() {
+        Map<String, String> paths = new LinkedHashMap<>();
+        paths.put("idPath", "$.id");
+        paths.put("srcPath", "$.source.address");
+        paths.put("srcPortPath", "$.source.port");
+        JsonFieldExtractor extractor = JsonFieldExtractor.compile(paths);
+        
+        Object[] values = extractor.extract(JsonParser.parseString(
+            "{\"id\": 7, \"source\": {\"address\": \"10.0.0.0/8\", \"port\": 22}}"));
+        
+        assertArrayEquals(new String[] {"id", "src", "srcPort"}, extractor.getFields());
+        assertEquals(7L, values[0]);
+        assertEquals("10.0.0.0/8", values[1]);
+        assertEquals(22L, values[2]);
+    }
+    
+    @Test
+    @DisplayName("Extract external ID from create response")
+    void testExtractExternalId() {
+        VnfResponse response = response(201, "{\"data\": {\"id\": 42}}");
+        
+        assertEquals("42", responseParser.extractExternalId(response, dict, "Firewall.create"));
+        assertTrue(responseParser.isSuccess(response, dict, "Firewall.create"));
+    }
+    
+    @Test
+    @DisplayName("Parse list response into device rules")
+    void testParseListResponse() {
+        VnfResponse response = response(200,
+            "{\"data\": [{\"id\": 1, \"src\": \"10.0.0.0/24\"}, {\"id\": 2, \"src\": \"any\"}]}");
+        
+        List<VnfDeviceRule> rules = responseParser.parseListResponse(response, dict, "Firewall");
+        
+        assertEquals(2, rules.size());
+        assertEquals("1", rules.get(0).getExternalId());
+        assertEquals("Firewall", rules.get(1).getServiceName());
+    }
+    
+    @Test
+    @DisplayName("Non-JSON list response yields no rules")
+    void testNonJsonListResponse() {
+        VnfResponse response = response(200, "<response status=\"success\"/>");
+        
+        assertTrue(responseParser.parseListResponse(response, dict, "Firewall").isEmpty());
+    }
+}
+
+/**
+ * Test suite for streaming and paginated list responses
+ */
+@DisplayName("Streaming List Response Tests")
+public class VnfStreamingListTest {
+    
+    private static final String PAGED_DICTIONARY = """
+        version: "1.0"
+        access:
+          protocol: https
+          port: 443
+        services:
+          Firewall:
+            list:
+              method: GET
+              endpoint: /rules
+              pagination:
+                type: offset
+                pageSize: 2
+              responseMapping:
+                listPath: $.data
+                item:
+                  idPath: $.id
+                  srcPath: $.src
+          NAT:
+            list:
+              method: GET
+              endpoint: /nat?vdom=root
+              pagination:
+                type: cursor
+                nextCursorPath: $.meta.next
+              responseMapping:
+                listPath: $.items
+        """;
+    
+    private VnfDictionary dict;
+    private VnfResponseParserImpl responseParser;
+    
+    @BeforeEach
+    void setUp() throws Exception {
+        dict = new VnfDictionaryParserImpl().parseDictionary(PAGED_DICTIONARY);
+        responseParser = new VnfResponseParserImpl();
+    }
+    
+    private static VnfResponse response(String body) {
+        VnfResponse response = new VnfResponse();
+        response.setStatusCode(200);
+        response.setBodyStream(new java.io.ByteArrayInputStream(
+            body.getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+        return response;
+    }
+    
+    private static List<String> ids(Iterator<VnfDeviceRule> it) {
+        List<String> ids = new ArrayList<>();
+        it.forEachRemaining(r -> ids.add(r.getExternalId()));
+        return ids;
+    }
+    
+    @Test
+    @DisplayName("Stream rules from response body, skipping unmapped members")
+    void testStreamListResponse() {
+        VnfResponse response = response(
+            "{\"status\": \"ok\", \"data\": [" +
+            "{\"id\": 1, \"src\": \"10.0.0.0/24\", \"extra\": {\"deep\": [1, 2]}}," +
+            "{\"src\": \"any\", \"id\": 2}]}");
+        
+        try (VnfDeviceRuleIterator it = responseParser.iterateListResponse(response, dict, "Firewall")) {
+            VnfDeviceRule first = it.next();
+            assertEquals("1", first.getExternalId());
+            assertEquals("10.0.0.0/24", first.getProperties().get("src"));
+            assertFalse(first.getProperties().containsKey("extra"));
+            assertEquals("2", it.next().getExternalId());
+            assertFalse(it.hasNext());
+        }
+    }
+    
+    @Test
+    @DisplayName("Success pattern is checked on a streamed body, which can still be iterated")
+    void testSuccessPatternOnStream() throws Exception {
+        VnfDictionary patterned = new VnfDictionaryParserImpl().parseDictionary(
+            PAGED_DICTIONARY.replace("      endpoint: /rules\n",
+                                     "      endpoint: /rules\n      successPattern: \"ok\"\n"));
+        VnfResponse response = response("{\"status\": \"ok\", \"data\": [{\"id\": 1}]}");
+        
+        assertTrue(responseParser.isSuccess(response, patterned, "Firewall.list"));
+        try (VnfDeviceRuleIterator it = responseParser.iterateListResponse(response, patterned, "Firewall")) {
+            assertEquals(List.of("1"), ids(it));
+        }
+        assertFalse(responseParser.isSuccess(response("{\"status\": \"error\"}"), patterned, "Firewall.list"));
+    }
+    
+    @Test
+    @DisplayName("Cursor after the list is captured")
+    void testCursorAfterList() throws Exception {
+        JsonListStream stream = new JsonListStream(
+            new java.io.StringReader("{\"items\": [{\"id\": 1}], \"meta\": {\"next\": \"abc\"}}"),
+            JsonPath.compile("$.items"), JsonPath.compile("$.meta.next"));
+        
+        assertTrue(stream.nextItem());
+        stream.reader().skipValue();
+        assertFalse(stream.nextItem());
+        assertEquals("abc", stream.getCaptured(0));
+    }
+    
+    @Test
+    @DisplayName("Offset pagination fetches pages until a short page")
+    void testOffsetPagination() {
+        List<String> uris = new ArrayList<>();
+        Map<Integer, String> pages = Map.of(
+            0, "{\"data\": [{\"id\": 1}, {\"id\": 2}]}",
+            2, "{\"data\": [{\"id\": 3}, {\"id\": 4}]}",
+            4, "{\"data\": [{\"id\": 5}]}");
+        
+        VnfRequest listRequest = new VnfRequest();
+        listRequest.setUri("/rules");
+        
+        VnfPagedListIterator it = new VnfPagedListIterator(responseParser, dict, "Firewall", listRequest,
+            req -> {
+                uris.add(req.getUri());
+                int offset = Integer.parseInt(req.getUri().replaceAll(".*offset=", ""));
+                return response(pages.get(offset));
+            });
+        
+        assertEquals(List.of("1", "2", "3", "4", "5"), ids(it));
+        assertEquals(List.of("/rules?limit=2&offset=0", "/rules?limit=2&offset=2",
+                             "/rules?limit=2&offset=4"), uris);
+        assertEquals(3, it.getPageCount());
+    }
+    
+    @Test
+    @DisplayName("Parsers without paging support list a single page")
+    void testDefaultSinglePage() throws Exception {
+        VnfResponseParser plain = new VnfResponseParser() {
+            public String extractExternalId(VnfResponse response, VnfDictionary dictionary, String operation) {
+                return null;
+            }
+            public List<VnfDeviceRule> parseListResponse(VnfResponse response, VnfDictionary dictionary,
+                                                         String serviceName) {
+                return responseParser.parseListResponse(response, dictionary, serviceName);
+            }
+            public boolean isSuccess(VnfResponse response, VnfDictionary dictionary, String operation) {
+                return true;
+            }
+            public String extractErrorMessage(VnfResponse response) {
+                return null;
+            }
+        };
+        List<String> uris = new ArrayList<>();
+        VnfRequest listRequest = new VnfRequest();
+        listRequest.setUri("/rules");
+        
+        try (VnfDeviceRuleIterator it = plain.iterateList(dict, "Firewall", listRequest, req -> {
+                uris.add(req.getUri());
+                return response("{\"data\": [{\"id\": 1}, {\"id\": 2}]}");
+            })) {
+            assertEquals(List.of("1", "2"), ids(it));
+        }
+        assertEquals(List.of("/rules"), uris);
+    }
+    
+    @Test
+    @DisplayName("Device ignoring paging parameters is fetched once")
+    void testPagingIgnored() {
+        VnfRequest listRequest = new VnfRequest();
+        listRequest.setUri("/rules");
+        
+        VnfPagedListIterator it = new VnfPagedListIterator(responseParser, dict, "Firewall", listRequest,
+            req -> response("{\"data\": [{\"id\": 1}, {\"id\": 2}, {\"id\": 3}]}"));
+        
+        assertEquals(List.of("1", "2", "3"), ids(it));
+        assertEquals(1, it.getPageCount());
+    }
+    
+    @Test
+    @DisplayName("Device capping the page size below pageSize is paged to the end")
+    void testDevicePageCap() {
+        List<String> uris = new ArrayList<>();
+        Map<Integer, String> pages = Map.of(
+            0, "{\"data\": [{\"id\": 1}]}",
+            1, "{\"data\": [{\"id\": 2}]}",
+            2, "{\"data\": []}");
+        
+        VnfRequest listRequest = new VnfRequest();
+        listRequest.setUri("/rules");
+        
+        VnfPagedListIterator it = new VnfPagedListIterator(responseParser, dict, "Firewall", listRequest,
+            req -> {
+                uris.add(req.getUri());
+                return response(pages.get(Integer.parseInt(req.getUri().replaceAll(".*offset=", ""))));
+            });
+        
+        assertEquals(List.of("1", "2"), ids(it));
+        assertEquals(List.of("/rules?limit=2&offset=0", "/rules?limit=2&offset=1",
+                             "/rules?limit=2&offset=2"), uris);
+        assertEquals(3, it.getPageCount());
+    }
+    
+    @Test
+    @DisplayName("Listing past MAX_PAGES fails instead of returning a partial list")
+    void testMaxPagesExceeded() {
+        VnfRequest listRequest = new VnfRequest();
+        listRequest.setUri("/rules");
+        
+        VnfPagedListIterator it = new VnfPagedListIterator(responseParser, dict, "Firewall", listRequest,
+            req -> response("{\"data\": [{\"id\": 1}, {\"id\": 2}]}"));
+        
+        assertThrows(VnfListIterationException.class, () -> ids(it));
+        assertEquals(VnfPagedListIterator.MAX_PAGES, it.getPageCount());
+    }
+    
+    @Test
+    @DisplayName("Cursor pagination follows nextCursorPath")
+    void testCursorPagination() {
+        VnfRequest listRequest = new VnfRequest();
+        listRequest.setUri("/nat?vdom=root");
+        
+        VnfPagedListIterator it = new VnfPagedListIterator(responseParser, dict, "NAT", listRequest,
+            req -> req.getUri().contains("cursor=c1")
+                ? response("{\"items\": [{\"id\": \"b\"}], \"meta\": {}}")
+                : response("{\"meta\": {\"next\": \"c1\"}, \"items\": [{\"id\": \"a\"}]}"));
+        
+        assertEquals(List.of("a", "b"), ids(it));
+        assertEquals(2, it.getPageCount());
+    }
+    
+    @Test
+    @DisplayName("Malformed stream surfaces as VnfListIterationException")
+    void testMalformedStream() {
+        VnfResponse response = response("{\"data\": [{\"id\": 1}, {\"id\": ");
+        
+        VnfDeviceRuleIterator it = responseParser.iterateListResponse(response, dict, "Firewall");
+        assertEquals("1", it.next().getExternalId());
+        assertThrows(VnfListIterationException.class, it::hasNext);
+    }
+}
+
+/**
+ * Test suite for single-rule and bulk request building
+ */
+@DisplayName("Request Builder Tests")
+public class VnfRequestBuilderTest {
+    
+    private static final String BULK_DICTIONARY = """
+        version: "1.0"
+        access:
+          protocol: https
+          port: 443
+          basePath: /api/v1
+        services:
+          Firewall:
+            create:
+              method: POST
+              endpoint: /firewall/rule
+              headers:
+                Content-Type: application/json
+              body: '{"src": "${sourceCidr}", "descr": "rule ${ruleId}"}'
+            bulkCreate:
+              method: POST
+              endpoint: /firewall/rules
+              headers:
+                Content-Type: application/json
+              maxItems: 2
+              itemTemplate: '{"src": "${sourceCidr}", "descr": "rule ${ruleId}"}'
+              body: '[${items}]'
+              responseMapping:
+                successCode: 200
+                listPath: $.data
+            delete:
+              method: DELETE
+              endpoint: /firewall/rule/${externalId}
+            bulkDelete:
+              method: POST
+              endpoint: /rules?xpath=entry[${items}]
+              itemSeparator: " or "
+              itemTemplate: "@name='${externalId}'"
+          NAT:
+            create:
+              method: POST
+              endpoint: /nat
+              body: '{"dst": "${publicIp}", "target": "${privateIp}:${privatePort}"}'
+        """;
+    
+    private VnfDictionaryParserImpl parser;
+    private VnfDictionary dict;
+    private VnfRuleLookup lookup;
+    private VnfRequestBuilder builder;
+    
+    @BeforeEach
+    void setUp() throws Exception {
+        parser = new VnfDictionaryParserImpl();
+        dict = parser.parseDictionary(BULK_DICTIONARY);
+        lookup = mock(VnfRuleLookup.class);
+        builder = new VnfRequestBuilderImpl(lookup);
+    }
+    
+    private static FirewallRule firewallRule(long id, String cidr) {
+        FirewallRule rule = mock(FirewallRule.class);
+        when(rule.getId()).thenReturn(id);
+        when(rule.getSourceCidrList()).thenReturn(List.of(cidr));
+        return rule;
+    }
+    
+    @Test
+    @DisplayName("Single rule request renders endpoint under basePath")
+    void testBuildFirewallRequest() throws Exception {
+        VnfRequest request = builder.buildFirewallRequest(
+            dict, FirewallRuleOperation.CREATE, firewallRule(7, "10.0.0.0/24"));
+        
+        assertEquals("POST", request.getMethod());
+        assertEquals("/api/v1/firewall/rule", request.getUri());
+        assertEquals("{\"src\": \"10.0.0.0/24\", \"descr\": \"rule 7\"}", request.getBody());
+        assertEquals("application/json", request.getHeaders().get("Content-Type"));
+    }
+    
+    @Test
+    @DisplayName("Bulk create joins item fragments and splits at maxItems")
+    void testBulkCreate() throws Exception {
+        List<VnfBatchRequest> requests = builder.buildFirewallRequests(dict, FirewallRuleOperation.CREATE,
+            List.of(firewallRule(1, "10.0.0.1/32"), firewallRule(2, "a\"b"), firewallRule(3, "10.0.0.3/32")));
+        
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(0).isBulk());
+        assertEquals("Firewall.bulkCreate", requests.get(0).getOperation());
+        assertEquals(List.of(1L, 2L), requests.get(0).getRuleIds());
+        assertEquals("/api/v1/firewall/rules", requests.get(0).getRequest().getUri());
+        assertEquals("[{\"src\": \"10.0.0.1/32\", \"descr\": \"rule 1\"}," +
+                     "{\"src\": \"a\\\"b\", \"descr\": \"rule 2\"}]",
+                     requests.get(0).getRequest().getBody());
+        assertEquals(List.of(3L), requests.get(1).getRuleIds());
+    }
+    
+    @Test
+    @DisplayName("Bulk delete selects every external ID in the endpoint")
+    void testBulkDelete() throws Exception {
+        when(lookup.findExternalId("Firewall", 0L, 1L)).thenReturn("r1");
+        when(lookup.findExternalId("Firewall", 0L, 2L)).thenReturn("r'2");
+        
+        List<VnfBatchRequest> requests = builder.buildFirewallRequests(dict, FirewallRuleOperation.DELETE,
+            List.of(firewallRule(1, "any"), firewallRule(2, "any")));
+        
+        assertEquals(1, requests.size());
+        // Item template and separator are part of the query value too
+        assertEquals("/api/v1/rules?xpath=entry[%40name%3D%27r1%27%20or%20%40name%3D%27r%272%27]",
+                     requests.get(0).getRequest().getUri());
+    }
+    
+    @Test
+    @DisplayName("Bulk items in a form field are URL-encoded as a whole")
+    void testBulkFormBody() throws Exception {
+        VnfDictionary form = parser.parseDictionary("""
+            version: "1.0"
+            access:
+              protocol: https
+            services:
+              Firewall:
+                bulkCreate:
+                  method: POST
+                  endpoint: /rules
+                  headers:
+                    Content-Type: application/x-www-form-urlencoded
+                  itemSeparator: ""
+                  itemTemplate: <entry name="R${ruleId}"><d>${sourceCidr}</d></entry>
+                  body: "&element=${items}"
+            """);
+        
+        List<VnfBatchRequest> requests = builder.buildFirewallRequests(form, FirewallRuleOperation.CREATE,
+            List.of(firewallRule(1, "10.0.0.1/32"), firewallRule(2, "a&b")));
+        
+        assertEquals("&element=%3Centry%20name%3D%22R1%22%3E%3Cd%3E10.0.0.1%2F32%3C%2Fd%3E%3C%2Fentry%3E" +
+                     "%3Centry%20name%3D%22R2%22%3E%3Cd%3Ea%26amp%3Bb%3C%2Fd%3E%3C%2Fentry%3E",
+                     requests.get(0).getRequest().getBody());
+    }
+    
+    @Test
+    @DisplayName("Missing external ID is rejected instead of addressing the collection")
+    void testMissingExternalId() {
+        assertThrows(RequestBuildException.class, () ->
+            builder.buildFirewallRequest(dict, FirewallRuleOperation.DELETE, firewallRule(1, "any")));
+        assertThrows(RequestBuildException.class, () ->
+            builder.buildFirewallRequests(dict, FirewallRuleOperation.DELETE,
+                List.of(firewallRule(1, "any"), firewallRule(2, "any"))));
+    }
+    
+    @Test
+    @DisplayName("Services without a bulk operation fall back to per-rule requests")
+    void testFallbackToPerRule() throws Exception {
+        PortForwardingRule rule = mock(PortForwardingRule.class);
+        when(rule.getId()).thenReturn(5L);
+        when(rule.getSourceIpAddressId()).thenReturn(9L);
+        when(rule.getDestinationIpAddress()).thenReturn(new Ip("10.1.1.5"));
+        when(rule.getDestinationPortStart()).thenReturn(8080);
+        when(lookup.findPublicIp(9L)).thenReturn("203.0.113.9");
+        
+        List<VnfBatchRequest> requests = builder.buildNatRequests(dict, NatOperation.CREATE, List.of(rule, rule));
+        
+        assertEquals(2, requests.size());
+        assertFalse(requests.get(0).isBulk());
+        assertEquals("NAT.create", requests.get(0).getOperation());
+        assertEquals("{\"dst\": \"203.0.113.9\", \"target\": \"10.1.1.5:8080\"}",
+                     requests.get(1).getRequest().getBody());
+    }
+    
+    @Test
+    @DisplayName("External IDs of a bulk create are extracted in payload order")
+    void testExtractBulkExternalIds() {
+        VnfResponse response = new VnfResponse();
+        response.setStatusCode(200);
+        response.setBody("{\"data\": [{\"id\": 11}, {\"id\": 12}]}");
+        
+        List<String> ids = new VnfResponseParserImpl()
+            .extractExternalIds(response, dict, "Firewall.bulkCreate");
+        
+        assertEquals(List.of("11", "12"), ids);
+    }
+    
+    @Test
+    @DisplayName("Bulk operation without ${items} fails validation")
+    void testBulkValidation() throws Exception {
+        VnfDictionary invalid = parser.parseDictionary("""
+            version: "1.0"
+            access:
+              protocol: https
+            services:
+              Firewall:
+                bulkCreate:
+                  method: POST
+                  endpoint: /rules
+                  itemTemplate: '{"id": "${ruleId}"}'
+                  body: '[]'
+            """);
+        
+        DictionaryValidationResult result = parser.validateDictionary(invalid);
+        
+        assertFalse(result.isValid());
+        assertTrue(result.getErrors().get(0).contains("${items}"));
+    }
+}
+
+/**
+ * Test suite for the asynchronous per-appliance pipeline
+ */
+@DisplayName("Pipelined Broker Client Tests")
+public class VnfPipelinedBrokerClientTest {
+    
+    private ExecutorService executor;
+    
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+    
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Blocking delegate that records calls and can hold one appliance
+     */
+    private static class RecordingClient implements VnfBrokerClient {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final CountDownLatch slowGate = new CountDownLatch(1);
+        volatile String slowIp;
+        
+        @Override
+        public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) {
+            int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            try {
+                if (appliance.getManagementIp().equals(slowIp)) {
+                    slowGate.await(5, TimeUnit.SECONDS);
+                } else {
+                    Thread.sleep(request.getUri().hashCode() & 3);
+                }
+                calls.add(appliance.getManagementIp() + " " + request.getUri());
+                VnfResponse response = new VnfResponse();
+                response.setStatusCode(200);
+                return response;
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+        
+        @Override
+        public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries) {
+            return sendRequest(appliance, request);
+        }
+        
+        @Override
+        public boolean isReachable(VnfAppliance appliance) { return true; }
+        
+        @Override
+        public BrokerType getBrokerType() { return BrokerType.VIRTUAL_ROUTER; }
+    }
+    
+    private static VnfAppliance appliance(long id, String ip) {
+        VnfAppliance appliance = new VnfAppliance();
+        appliance.setId(id);
+        appliance.setManagementIp(ip);
+        return appliance;
+    }
+    
+    private static VnfRequest request(String method, String uri) {
+        VnfRequest request = new VnfRequest();
+        request.setMethod(method);
+        request.setUri(uri);
+        return request;
+    }
+    
+    @Test
+    @DisplayName("Writes to one appliance complete in submission order")
+    void testWritesKeepOrder() throws Exception {
+        RecordingClient delegate = new RecordingClient();
+        VnfPipelinedBrokerClient client = new VnfPipelinedBrokerClient(delegate, executor);
+        VnfAppliance vnf = appliance(1, "10.0.0.1");
+        
+        List<CompletableFuture<VnfResponse>> futures = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(client.sendRequestAsync(vnf, request("POST", "/rule/" + i)));
+            expected.add("10.0.0.1 /rule/" + i);
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        
+        assertEquals(expected, delegate.calls);
+        assertEquals(1, delegate.maxInFlight.get());
+        assertEquals(0, client.getPendingCount(vnf));
+    }
+    
+    @Test
+    @DisplayName("Reads overlap up to the pipeline depth")
+    void testReadsPipeline() throws Exception {
+        RecordingClient delegate = new RecordingClient();
+        VnfPipelinedBrokerClient client = new VnfPipelinedBrokerClient(delegate, executor, 2);
+        VnfAppliance vnf = appliance(1, "10.0.0.1");
+        
+        List<CompletableFuture<VnfResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(client.sendRequestAsync(vnf, request("GET", "/list/" + i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        
+        assertEquals(20, delegate.calls.size());
+        assertTrue(delegate.maxInFlight.get() <= 2);
+    }
+    
+    @Test
+    @DisplayName("A slow appliance does not hold up the others")
+    void testSlowApplianceIsolated() throws Exception {
+        RecordingClient delegate = new RecordingClient();
+        delegate.slowIp = "10.0.0.99";
+        VnfPipelinedBrokerClient client = new VnfPipelinedBrokerClient(delegate, executor, 1);
+        
+        VnfAppliance slow = appliance(99, "10.0.0.99");
+        CompletableFuture<VnfResponse> stuck = client.sendRequestAsync(slow, request("POST", "/a"));
+        client.sendRequestAsync(slow, request("POST", "/b"));
+        
+        List<CompletableFuture<VnfResponse>> others = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            others.add(client.sendRequestAsync(appliance(i, "10.0.1." + i), request("POST", "/x")));
+        }
+        CompletableFuture.allOf(others.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        
+        assertFalse(stuck.isDone());
+        assertEquals(2, client.getPendingCount(slow));
+        delegate.slowGate.countDown();
+        assertEquals(200, stuck.get(5, TimeUnit.SECONDS).getStatusCode());
+    }
+    
+    @Test
+    @DisplayName("Retriable failures are retried inside the request's slot")
+    void testRetry() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        RecordingClient delegate = new RecordingClient() {
+            @Override
+            public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+                if (request.getUri().equals("/flaky") && attempts.incrementAndGet() < 3) {
+                    return CompletableFuture.failedFuture(new CommunicationException("timeout", true));
+                }
+                return CompletableFuture.completedFuture(sendRequest(appliance, request));
+            }
+        };
+        VnfPipelinedBrokerClient client = new VnfPipelinedBrokerClient(delegate, executor);
+        client.setRetryPolicy(1, 2.0, 10, Set.of(503));
+        VnfAppliance vnf = appliance(1, "10.0.0.1");
+        
+        VnfRequest flakyRequest = request("PUT", "/flaky");
+        flakyRequest.setIdempotent(true);
+        CompletableFuture<VnfResponse> flaky = client.sendRequestWithRetryAsync(vnf, flakyRequest, 3);
+        CompletableFuture<VnfResponse> next = client.sendRequestAsync(vnf, request("POST", "/next"));
+        next.get(5, TimeUnit.SECONDS);
+        
+        assertTrue(flaky.isDone());
+        assertEquals(3, attempts.get());
+        assertEquals(List.of("10.0.0.1 /flaky", "10.0.0.1 /next"), delegate.calls);
+    }
+    
+    @Test
+    @DisplayName("Writes not declared idempotent are sent once")
+    void testWriteNotRetried() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        RecordingClient delegate = new RecordingClient() {
+            @Override
+            public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+                attempts.incrementAndGet();
+                return CompletableFuture.failedFuture(new CommunicationException("timeout", true));
+            }
+        };
+        VnfPipelinedBrokerClient client = new VnfPipelinedBrokerClient(delegate, executor);
+        client.setRetryPolicy(1, 2.0, 10, Set.of(503));
+        
+        CompletableFuture<VnfResponse> create =
+            client.sendRequestWithRetryAsync(appliance(1, "10.0.0.1"), request("POST", "/rule"), 3);
+        
+        ExecutionException e = assertThrows(ExecutionException.class, () -> create.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof CommunicationException);
+        assertEquals(1, attempts.get());
+    }
+    
+    @Test
+    @DisplayName("Blocking send rethrows the CommunicationException")
+    void testBlockingSendFailure() {
+        RecordingClient delegate = new RecordingClient() {
+            @Override
+            public CompletableFuture<VnfResponse> sendRequestAsync(VnfAppliance appliance, VnfRequest request) {
+                return CompletableFuture.failedFuture(new CommunicationException("refused", false));
+            }
+        };
+        VnfPipelinedBrokerClient client = new VnfPipelinedBrokerClient(delegate, executor);
+        
+        assertThrows(CommunicationException.class, () ->
+            client.sendRequestWithRetry(appliance(1, "10.0.0.1"), request("GET", "/"), 3));
+    }
+    
+    @Test
+    @DisplayName("A full appliance queue fails fast with a retriable error")
+    void testQueueLimit() throws Exception {
+        RecordingClient delegate = new RecordingClient();
+        delegate.slowIp = "10.0.0.9";
+        VnfPipelinedBrokerClient client = new VnfPipelinedBrokerClient(delegate, executor, 1);
+        client.setLimits(1, 5);
+        VnfAppliance slow = appliance(9, "10.0.0.9");
+        
+        CompletableFuture<VnfResponse> inFlight = client.sendRequestAsync(slow, request("POST", "/a"));
+        CompletableFuture<VnfResponse> queued = client.sendRequestAsync(slow, request("POST", "/b"));
+        CompletableFuture<VnfResponse> refused = client.sendRequestAsync(slow, request("POST", "/c"));
+        
+        ExecutionException e = assertThrows(ExecutionException.class, () -> refused.get(1, TimeUnit.SECONDS));
+        assertTrue(((CommunicationException) e.getCause()).isRetriable());
+        delegate.slowGate.countDown();
+        inFlight.get(5, TimeUnit.SECONDS);
+        queued.get(5, TimeUnit.SECONDS);
+        assertFalse(delegate.calls.contains("10.0.0.9 /c"));
+    }
+    
+    @Test
+    @DisplayName("Blocking calls time out and withdraw a request that was not sent")
+    void testBlockingTimeout() throws Exception {
+        RecordingClient delegate = new RecordingClient();
+        delegate.slowIp = "10.0.0.9";
+        VnfPipelinedBrokerClient client = new VnfPipelinedBrokerClient(delegate, executor, 1);
+        VnfAppliance slow = appliance(9, "10.0.0.9");
+        VnfRequest write = request("POST", "/b");
+        write.setTimeoutSeconds(1);
+        
+        CompletableFuture<VnfResponse> inFlight = client.sendRequestAsync(slow, request("POST", "/a"));
+        CommunicationException e = assertThrows(CommunicationException.class, () ->
+            client.sendRequest(slow, write));
+        
+        assertTrue(e.isRetriable());
+        delegate.slowGate.countDown();
+        inFlight.get(5, TimeUnit.SECONDS);
+        assertEquals(0, client.getPendingCount(slow));
+        assertFalse(delegate.calls.contains("10.0.0.9 /b"));
+    }
+}
+
+/**
+ * Test suite for configuration transactions
+ */
+@DisplayName("Configuration Transaction Tests")
+public class VnfTransactionTest {
+    
+    private static final String SCRIPT_DICTIONARY = """
+        version: "1.0"
+        access:
+          protocol: ssh
+          port: 22
+        services:
+          Firewall:
+            create:
+              method: SSH
+              endpoint: |
+                set firewall rule ${ruleId} source address ${sourceCidr}
+              successPattern: "Saving"
+            list:
+              method: SSH
+              endpoint: show firewall
+          System:
+            begin:
+              method: SSH
+              endpoint: configure
+            commit:
+              method: SSH
+              endpoint: |
+                commit
+                save
+              successPattern: "Saving"
+        transaction:
+          mode: script
+          begin: System.begin
+          commit: System.commit
+        """;
+    
+    private static final String REQUESTS_DICTIONARY = """
+        version: "1.0"
+        access:
+          protocol: https
+          port: 443
+        services:
+          Firewall:
+            create:
+              method: POST
+              endpoint: /rules/${ruleId}
+          System:
+            commit:
+              method: POST
+              endpoint: /commit
+            revert:
+              method: POST
+              endpoint: /revert
+        transaction:
+          mode: requests
+          commit: System.commit
+          rollback: System.revert
+        """;
+    
+    private VnfDictionaryParserImpl parser;
+    private VnfRequestBuilder builder;
+    private VnfAppliance appliance;
+    
+    @BeforeEach
+    void setUp() {
+        parser = new VnfDictionaryParserImpl();
+        builder = new VnfRequestBuilderImpl(mock(VnfRuleLookup.class));
+        appliance = new VnfAppliance();
+        appliance.setId(1L);
+        appliance.setManagementIp("10.0.0.1");
+    }
+    
+    private static List<FirewallRule> rules(int count) {
+        List<FirewallRule> rules = new ArrayList<>();
+        for (long id = 1; id <= count; id++) {
+            FirewallRule rule = mock(FirewallRule.class);
+            when(rule.getId()).thenReturn(id);
+            when(rule.getSourceCidrList()).thenReturn(List.of("10.0.0." + id + "/32"));
+            rules.add(rule);
+        }
+        return rules;
+    }
+    
+    /**
+     * Records every request; fails the one whose URI matches failUri
+     */
+    private static class ScriptedClient implements VnfBrokerClient {
+        final List<String> uris = new ArrayList<>();
+        final int successCode;
+        String failUri;
+        
+        ScriptedClient(int successCode) {
+            this.successCode = successCode;
+        }
+        
+        @Override
+        public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) {
+            uris.add(request.getUri());
+            VnfResponse response = new VnfResponse();
+            response.setStatusCode(request.getUri().equals(failUri) ? 500 : successCode);
+            response.setBody("Saving configuration to '/config/config.boot'...");
+            return response;
+        }
+        
+        @Override
+        public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries) {
+            return sendRequest(appliance, request);
+        }
+        
+        @Override
+        public boolean isReachable(VnfAppliance appliance) { return true; }
+        
+        @Override
+        public BrokerType getBrokerType() { return BrokerType.DIRECT; }
+    }
+    
+    @Test
+    @DisplayName("Standalone CLI operation is wrapped in begin and commit")
+    void testStandaloneWrapping() throws Exception {
+        VnfDictionary dict = parser.parseDictionary(SCRIPT_DICTIONARY);
+        
+        VnfRequest request = builder.buildFirewallRequest(dict, FirewallRuleOperation.CREATE, rules(1).get(0));
+        
+        assertEquals("configure &&\nset firewall rule 1 source address 10.0.0.1/32 &&\ncommit &&\nsave",
+                     request.getUri());
+        assertNull(request.getCommitRequest());
+    }
+    
+    @Test
+    @DisplayName("Standalone request operation carries the commit")
+    void testStandaloneCommitRequest() throws Exception {
+        VnfDictionary dict = parser.parseDictionary(REQUESTS_DICTIONARY);
+        
+        VnfRequest request = builder.buildFirewallRequest(dict, FirewallRuleOperation.CREATE, rules(1).get(0));
+        assertEquals("/commit", request.getCommitRequest().getUri());
+        
+        ScriptedClient client = new ScriptedClient(200);
+        VnfTransactionResult result = client.sendCommitted(appliance, request, dict, new VnfResponseParserImpl());
+        assertTrue(result.isCommitted());
+        assertEquals(List.of("/rules/1", "/commit"), client.uris);
+        
+        ScriptedClient failing = new ScriptedClient(200);
+        failing.failUri = "/rules/1";
+        result = failing.sendCommitted(appliance, request, dict, new VnfResponseParserImpl());
+        assertFalse(result.isCommitted());
+        assertEquals(List.of("/rules/1"), failing.uris);
+    }
+    
+    @Test
+    @DisplayName("Script transactions cannot declare a rollback")
+    void testScriptRollbackRejected() {
+        assertThrows(DictionaryParseException.class, () ->
+            parser.parseDictionary(SCRIPT_DICTIONARY.replace("commit: System.commit",
+                                                             "commit: System.commit\n  rollback: System.begin")));
+    }
+    
+    @Test
+    @DisplayName("Script transaction sends all staged commands under one commit")
+    void testScriptTransaction() throws Exception {
+        VnfDictionary dict = parser.parseDictionary(SCRIPT_DICTIONARY);
+        VnfTransaction tx = builder.beginTransaction(dict);
+        tx.stageFirewallRules(FirewallRuleOperation.CREATE, rules(200));
+        
+        ScriptedClient client = new ScriptedClient(0);
+        VnfTransactionResult result = client.executeTransaction(appliance, tx, new VnfResponseParserImpl());
+        
+        assertTrue(result.isCommitted());
+        assertEquals(1, client.uris.size());
+        String script = client.uris.get(0);
+        assertTrue(script.startsWith("configure &&\nset firewall rule 1 "));
+        assertTrue(script.endsWith("set firewall rule 200 source address 10.0.0.200/32 &&\ncommit &&\nsave"));
+        assertEquals(1, script.split("\ncommit &&\n", -1).length - 1);
+        assertEquals(script.split("\n").length - 1, script.split(" &&\n", -1).length - 1);
+        assertEquals(200, result.getSteps().get(0).getRuleIds().size());
+    }
+    
+    @Test
+    @DisplayName("Request transaction commits once after every staged request")
+    void testRequestsTransaction() throws Exception {
+        VnfDictionary dict = parser.parseDictionary(REQUESTS_DICTIONARY);
+        VnfTransaction tx = builder.beginTransaction(dict);
+        tx.stageFirewallRules(FirewallRuleOperation.CREATE, rules(3));
+        
+        ScriptedClient client = new ScriptedClient(200);
+        VnfTransactionResult result = client.executeTransaction(appliance, tx, new VnfResponseParserImpl());
+        
+        assertTrue(result.isCommitted());
+        assertEquals(List.of("/rules/1", "/rules/2", "/rules/3", "/commit"), client.uris);
+    }
+    
+    @Test
+    @DisplayName("A failed step stops the transaction and rolls back")
+    void testRollbackOnFailure() throws Exception {
+        VnfDictionary dict = parser.parseDictionary(REQUESTS_DICTIONARY);
+        VnfTransaction tx = builder.beginTransaction(dict);
+        tx.stageFirewallRules(FirewallRuleOperation.CREATE, rules(3));
+        
+        ScriptedClient client = new ScriptedClient(200);
+        client.failUri = "/rules/2";
+        VnfTransactionResult result = client.executeTransaction(appliance, tx, new VnfResponseParserImpl());
+        
+        assertFalse(result.isCommitted());
+        assertTrue(result.isRolledBack());
+        assertEquals("Firewall.create", result.getFailedOperation());
+        assertEquals(List.of("/rules/1", "/rules/2", "/revert"), client.uris);
+    }
+    
+    @Test
+    @DisplayName("Pipelined client runs a transaction as one ordered unit")
+    void testPipelinedTransaction() throws Exception {
+        VnfDictionary dict = parser.parseDictionary(REQUESTS_DICTIONARY);
+        VnfTransaction tx = builder.beginTransaction(dict);
+        tx.stageFirewallRules(FirewallRuleOperation.CREATE, rules(2));
+        
+        ScriptedClient delegate = new ScriptedClient(200);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            VnfPipelinedBrokerClient client = new VnfPipelinedBrokerClient(delegate, executor);
+            VnfRequest other = new VnfRequest();
+            other.setMethod("POST");
+            other.setUri("/other");
+            
+            CompletableFuture<VnfTransactionResult> result =
+                client.executeTransactionAsync(appliance, tx, new VnfResponseParserImpl());
+            client.sendRequestAsync(appliance, other).get(5, TimeUnit.SECONDS);
+            
+            assertTrue(result.get(5, TimeUnit.SECONDS).isCommitted());
+            assertEquals(List.of("/rules/1", "/rules/2", "/commit", "/other"), delegate.uris);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    @DisplayName("Unknown transaction operation fails the parse")
+    void testUnknownTransactionOperation() {
+        assertThrows(DictionaryParseException.class, () ->
+            parser.parseDictionary(REQUESTS_DICTIONARY.replace("System.revert", "System.undo")));
+    }
+}
+
+/**
+ * Test suite for the pooled HTTP transport and broker client
+ */
+@DisplayName("HTTP Broker Client Tests")
+public class VnfHttpBrokerClientTest {
+    
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private VnfHttpTransport transport;
+    private VnfAppliance appliance;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        transport = new VnfHttpTransport(null, null, 2, 60, 5, true);
+        appliance = new VnfAppliance();
+        appliance.setId(7L);
+        appliance.setManagementIp("127.0.0.1");
+    }
+    
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+    
+    private void respond(String path, int status, String body) {
+        server.createContext(path, exchange -> {
+            String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            received.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getRawPath() +
+                         Optional.ofNullable(exchange.getRequestURI().getRawQuery()).map(q -> "?" + q).orElse("") +
+                         " " + exchange.getRequestHeaders().getFirst("Authorization") + " " + requestBody);
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+    }
+    
+    private VnfRequest request(String method, String uri) {
+        VnfRequest request = new VnfRequest();
+        request.setProtocol("http");
+        request.setPort(server.getAddress().getPort());
+        request.setMethod(method);
+        request.setUri(uri);
+        return request;
+    }
+    
+    @Test
+    @DisplayName("DIRECT requests reach the appliance with dictionary endpoints encoded")
+    void testDirectRequest() throws Exception {
+        respond("/api", 201, "{\"id\": 5}");
+        VnfHttpBrokerClient client = VnfHttpBrokerClient.direct(transport, 5);
+        
+        VnfRequest request = request("POST", "/api/?xpath=entry[@name='r 1']");
+        request.setHeaders(Map.of("Content-Type", "application/json", "Host", "ignored"));
+        request.setBody("{\"a\": 1}");
+        VnfResponse response = client.sendRequest(appliance, request);
+        
+        assertEquals(201, response.getStatusCode());
+        assertEquals("{\"id\": 5}", response.getBody());
+        assertEquals("POST /api/?xpath=entry%5B@name='r%201'%5D null {\"a\": 1}", received.get(0));
+    }
+    
+    @Test
+    @DisplayName("DIRECT list reads return the body as a stream, errors as text")
+    void testDirectListStreams() throws Exception {
+        respond("/rules", 200, "{\"data\": [{\"id\": 1}]}");
+        respond("/missing", 404, "no such rule");
+        VnfHttpBrokerClient client = VnfHttpBrokerClient.direct(transport, 5);
+        
+        VnfRequest list = request("GET", "/rules");
+        list.setOperation("Firewall.list");
+        VnfResponse response = client.sendRequest(appliance, list);
+        assertNotNull(response.getBodyStream());
+        assertNull(response.getBody());
+        assertEquals("{\"data\": [{\"id\": 1}]}", response.bufferBody());
+        
+        VnfRequest missing = request("GET", "/missing");
+        missing.setOperation("Firewall.list");
+        VnfResponse error = client.sendRequest(appliance, missing);
+        assertNull(error.getBodyStream());
+        assertEquals("no such rule", error.getBody());
+    }
+    
+    @Test
+    @DisplayName("Requests beyond the pool size wait for a free slot")
+    void testPoolLimit() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        server.createContext("/slow", exchange -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        VnfHttpBrokerClient client = VnfHttpBrokerClient.direct(transport, 5);
+        
+        List<CompletableFuture<VnfResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(client.sendRequestAsync(appliance, request("GET", "/slow")));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        
+        assertTrue(maxInFlight.get() <= 2);
+        assertEquals(1, transport.getPoolCount());
+        assertEquals(6L, (long) transport.getStats().get("requests"));
+        assertTrue(transport.getStats().get("waits") > 0);
+    }
+    
+    @Test
+    @DisplayName("A pool is only removed once no request holds or waits for a slot")
+    void testRemoveKeepsBusyPool() throws Exception {
+        CountDownLatch arrived = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        server.createContext("/held", exchange -> {
+            arrived.countDown();
+            try {
+                finish.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        HttpRequest held = HttpRequest.newBuilder(
+            URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/held")).build();
+        
+        CompletableFuture<HttpResponse<String>> inFlight = transport.send("a", held);
+        assertTrue(arrived.await(10, TimeUnit.SECONDS));
+        transport.remove("a");
+        assertEquals(1, transport.getPoolCount());
+        
+        finish.countDown();
+        assertEquals(200, inFlight.get(10, TimeUnit.SECONDS).statusCode());
+        transport.remove("a");
+        assertEquals(0, transport.getPoolCount());
+        assertEquals(1L, (long) transport.getStats().get("poolsEvicted"));
+    }
+    
+    @Test
+    @DisplayName("Broker requests are wrapped in the /vnfproxy envelope")
+    void testBrokerEnvelope() throws Exception {
+        respond("/vnfproxy", 200,
+            "{\"success\": true, \"status_code\": 0, \"stdout\": \"Saving configuration\", \"duration_ms\": 12}");
+        VnfHttpBrokerClient client = new VnfHttpBrokerClient(transport, BrokerType.VIRTUAL_ROUTER,
+            a -> "127.0.0.1", "http", server.getAddress().getPort(), 5);
+        
+        AccessConfig access = new AccessConfig();
+        access.setAuthType(AuthType.SSH_PASSWORD);
+        access.setUsernameRef("SSH_USER");
+        access.setPasswordRef("SSH_PASSWORD");
+        VnfDictionary dictionary = new VnfDictionary();
+        dictionary.setAccessConfig(access);
+        appliance.setDictionary(dictionary);
+        client.setCredentialResolver((a, ref) -> "SSH_USER".equals(ref) ? "vyos" : "secret");
+        
+        VnfRequest request = new VnfRequest();
+        request.setProtocol("ssh");
+        request.setMethod("SSH");
+        request.setPort(22);
+        request.setUri("configure\nset firewall rule 1\ncommit");
+        request.setJwtToken("token");
+        VnfResponse response = client.sendRequest(appliance, request);
+        
+        assertEquals(0, response.getStatusCode());
+        assertEquals("Saving configuration", response.getBody());
+        assertEquals(12, response.getDurationMs());
+        String sent = received.get(0);
+        assertTrue(sent.startsWith("POST /vnfproxy Bearer token "));
+        JsonObject envelope = JsonParser.parseString(sent.substring("POST /vnfproxy Bearer token ".length()))
+            .getAsJsonObject();
+        assertEquals("127.0.0.1", envelope.get("target").getAsString());
+        assertEquals("SSH", envelope.get("protocol").getAsString());
+        assertEquals("configure\nset firewall rule 1\ncommit", envelope.get("command").getAsString());
+        assertEquals(22, envelope.get("ssh_port").getAsInt());
+        assertEquals("vyos", envelope.get("ssh_username").getAsString());
+        assertEquals("secret", envelope.get("ssh_password").getAsString());
+        
+        client.setCredentialResolver((a, ref) -> null);
+        CommunicationException noLogin = assertThrows(CommunicationException.class, () ->
+            client.sendRequest(appliance, request));
+        assertFalse(noLogin.isRetriable());
+    }
+    
+    @Test
+    @DisplayName("Broker rejections are not retried; unreachable endpoints are")
+    void testFailureClassification() {
+        respond("/vnfproxy", 403, "{\"error\": \"Forbidden\"}");
+        VnfHttpBrokerClient client = new VnfHttpBrokerClient(transport, BrokerType.VIRTUAL_ROUTER,
+            a -> "127.0.0.1", "http", server.getAddress().getPort(), 5);
+        
+        CommunicationException rejected = assertThrows(CommunicationException.class, () ->
+            client.sendRequest(appliance, request("GET", "/")));
+        assertFalse(rejected.isRetriable());
+        
+        VnfHttpBrokerClient nowhere = new VnfHttpBrokerClient(transport, BrokerType.VIRTUAL_ROUTER,
+            a -> null, "http", 1, 5);
+        CommunicationException missing = assertThrows(CommunicationException.class, () ->
+            nowhere.sendRequest(appliance, request("GET", "/")));
+        assertTrue(missing.isRetriable());
+    }
+}
+
+/**
+ * Test suite for the device I/O executor
+ */
+@DisplayName("I/O Executor Tests")
+public class VnfIoExecutorTest {
+    
+    private static VnfAppliance appliance(long id) {
+        VnfAppliance appliance = new VnfAppliance();
+        appliance.setId(id);
+        return appliance;
+    }
+    
+    private static int maxInFlight(VnfIoExecutor io, List<VnfAppliance> targets) throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (VnfAppliance target : targets) {
+            futures.add(io.submit(target, () -> {
+                max.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                Thread.sleep(20);
+                return inFlight.decrementAndGet();
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        return max.get();
+    }
+    
+    @Test
+    @DisplayName("Calls to one appliance are bounded per appliance")
+    void testPerApplianceLimit() throws Exception {
+        try (VnfIoExecutor io = new VnfIoExecutor(VnfIoExecutor.Mode.VIRTUAL, 8, 100, 100, 2)) {
+            List<VnfAppliance> targets = Collections.nCopies(10, appliance(1));
+            
+            assertTrue(maxInFlight(io, targets) <= 2);
+            assertTrue(io.getStats().get("applianceWaits") > 0);
+            assertEquals(0, io.getActiveCount());
+        }
+    }
+    
+    @Test
+    @DisplayName("Calls across appliances are bounded globally")
+    void testGlobalLimit() throws Exception {
+        try (VnfIoExecutor io = new VnfIoExecutor(VnfIoExecutor.Mode.PLATFORM, 8, 100, 3, 2)) {
+            List<VnfAppliance> targets = new ArrayList<>();
+            for (long id = 0; id < 10; id++) {
+                targets.add(appliance(id));
+            }
+            
+            assertTrue(maxInFlight(io, targets) <= 3);
+            assertEquals(10L, (long) io.getStats().get("completed"));
+        }
+    }
+    
+    @Test
+    @DisplayName("Removing an appliance in use keeps its limit")
+    void testRemoveApplianceInUse() throws Exception {
+        try (VnfIoExecutor io = new VnfIoExecutor(VnfIoExecutor.Mode.PLATFORM, 4, 10, 10, 1)) {
+            VnfAppliance target = appliance(1);
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Object> holder = io.submit(target, () -> {
+                started.countDown();
+                return release.await(5, TimeUnit.SECONDS);
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            
+            io.removeAppliance(target);
+            AtomicBoolean ran = new AtomicBoolean();
+            CompletableFuture<Object> next = io.submit(target, () -> ran.getAndSet(true));
+            Thread.sleep(100);
+            
+            // Still waits for the permit held by the first call
+            assertFalse(ran.get());
+            release.countDown();
+            holder.get(5, TimeUnit.SECONDS);
+            next.get(5, TimeUnit.SECONDS);
+            assertTrue(ran.get());
+        }
+    }
+    
+    @Test
+    @DisplayName("Virtual mode is used when the runtime supports it")
+    void testVirtualMode() {
+        try (VnfIoExecutor io = new VnfIoExecutor(VnfIoExecutor.parseMode("virtual"), 2, 10, 10, 1)) {
+            VnfIoExecutor.Mode expected = Runtime.version().feature() >= 21 ?
+                VnfIoExecutor.Mode.VIRTUAL : VnfIoExecutor.Mode.PLATFORM;
+            assertEquals(expected, io.getMode());
+        }
+        assertThrows(IllegalArgumentException.class, () -> VnfIoExecutor.parseMode("green"));
+    }
+    
+    @Test
+    @DisplayName("Bounded client passes broker failures through")
+    void testBoundedClientFailure() throws Exception {
+        VnfBrokerClient delegate = mock(VnfBrokerClient.class);
+        VnfAppliance target = appliance(1);
+        VnfRequest request = new VnfRequest();
+        when(delegate.sendRequest(target, request)).thenThrow(new CommunicationException("refused", true));
+        
+        try (VnfIoExecutor io = new VnfIoExecutor(VnfIoExecutor.Mode.VIRTUAL, 2, 10, 10, 1)) {
+            VnfBoundedBrokerClient client = new VnfBoundedBrokerClient(delegate, io);
+            
+            CommunicationException blocking = assertThrows(CommunicationException.class, () ->
+                client.sendRequest(target, request));
+            assertTrue(blocking.isRetriable());
+            ExecutionException async = assertThrows(ExecutionException.class, () ->
+                client.sendRequestAsync(target, request).get(5, TimeUnit.SECONDS));
+            assertTrue(async.getCause() instanceof CommunicationException);
+        }
+    }
+}
+
+/**
+ * Test suite for the circuit breaker and adaptive concurrency limit
+ */
+@DisplayName("Guarded Broker Client Tests")
+public class VnfGuardedBrokerClientTest {
+    
+    /**
+     * Answers with the next scripted status (default 200); a status of -1
+     * throws a retriable CommunicationException
+     */
+    private static class ScriptedDevice implements VnfBrokerClient {
+        final Deque<Integer> statuses = new ConcurrentLinkedDeque<>();
+        final AtomicInteger calls = new AtomicInteger();
+        volatile CountDownLatch gate;
+        
+        @Override
+        public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+            calls.incrementAndGet();
+            try {
+                if (gate != null) {
+                    gate.await(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                throw new CommunicationException("interrupted", false);
+            }
+            Integer status = statuses.poll();
+            if (status != null && status == -1) {
+                throw new CommunicationException("Connection refused", true);
+            }
+            VnfResponse response = new VnfResponse();
+            response.setStatusCode(status != null ? status : 200);
+            return response;
+        }
+        
+        @Override
+        public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+                throws CommunicationException {
+            return sendRequest(appliance, request);
+        }
+        
+        @Override
+        public boolean isReachable(VnfAppliance appliance) { return true; }
+        
+        @Override
+        public BrokerType getBrokerType() { return BrokerType.DIRECT; }
+    }
+    
+    private ExecutorService executor;
+    private VnfAppliance appliance;
+    
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newCachedThreadPool();
+        appliance = new VnfAppliance();
+        appliance.setId(7L);
+    }
+    
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+    
+    private VnfGuardedBrokerClient guarded(ScriptedDevice device) {
+        VnfGuardedBrokerClient client = new VnfGuardedBrokerClient(device, executor);
+        client.setRetryPolicy(1, 1.0, 1, VnfPipelinedBrokerClient.DEFAULT_RETRY_STATUS_CODES);
+        return client;
+    }
+    
+    @Test
+    @DisplayName("Circuit opens after consecutive failures and closes after a good trial")
+    void testCircuitBreaker() throws Exception {
+        ScriptedDevice device = new ScriptedDevice();
+        VnfGuardedBrokerClient client = guarded(device);
+        client.setCircuitBreaker(true, 3, 100);
+        List<VnfGuardedBrokerClient.State> transitions = new CopyOnWriteArrayList<>();
+        AtomicInteger unhealthy = new AtomicInteger();
+        client.setListener(new VnfGuardedBrokerClient.Listener() {
+            public void onStateChange(VnfAppliance a, VnfGuardedBrokerClient.State from,
+                                      VnfGuardedBrokerClient.State to) { transitions.add(to); }
+            public void onErrorThreshold(VnfAppliance a, int failures) { unhealthy.incrementAndGet(); }
+        }, 2);
+        VnfRequest request = VnfTestData.mockHttpRequest();
+        request.setIdempotent(true);
+        
+        // 503, refused, 503: retries exhausted, third failure opens the circuit
+        device.statuses.addAll(List.of(503, -1, 503));
+        VnfResponse last = client.sendRequestWithRetry(appliance, request, 2);
+        assertEquals(503, last.getStatusCode());
+        assertEquals(VnfGuardedBrokerClient.State.OPEN, client.getState(appliance));
+        assertEquals(1, unhealthy.get());
+        
+        // Open: fails fast without touching the device, and is not retried
+        CommunicationException open = assertThrows(CommunicationException.class,
+            () -> client.sendRequestWithRetry(appliance, request, 5));
+        assertFalse(open.isRetriable());
+        assertEquals(3, device.calls.get());
+        
+        Thread.sleep(150);
+        assertEquals(200, client.sendRequest(appliance, request).getStatusCode());
+        assertEquals(VnfGuardedBrokerClient.State.CLOSED, client.getState(appliance));
+        assertEquals(List.of(VnfGuardedBrokerClient.State.OPEN, VnfGuardedBrokerClient.State.HALF_OPEN,
+                             VnfGuardedBrokerClient.State.CLOSED), transitions);
+        
+        // Non-retriable errors say nothing about health
+        device.statuses.addAll(List.of(400, 400, 400, 400));
+        for (int i = 0; i < 4; i++) {
+            client.sendRequest(appliance, request);
+        }
+        assertEquals(VnfGuardedBrokerClient.State.CLOSED, client.getState(appliance));
+    }
+    
+    @Test
+    @DisplayName("Only the trial request decides a half-open circuit")
+    void testTrialDecidesHalfOpen() throws Exception {
+        Map<String, CountDownLatch> gates = Map.of("/early", new CountDownLatch(1), "/trial", new CountDownLatch(1));
+        AtomicInteger arrived = new AtomicInteger();
+        ScriptedDevice device = new ScriptedDevice() {
+            @Override
+            public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+                arrived.incrementAndGet();
+                CountDownLatch gate = gates.get(request.getUri());
+                if (gate != null) {
+                    try {
+                        gate.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new CommunicationException("interrupted", false);
+                    }
+                }
+                return super.sendRequest(appliance, request);
+            }
+        };
+        VnfGuardedBrokerClient client = guarded(device);
+        client.setCircuitBreaker(true, 1, 100);
+        client.setAdaptiveLimit(false, 4, 1, 8, 0.5, 5000);
+        VnfRequest request = VnfTestData.mockHttpRequest();
+        
+        // Admitted while closed, still in flight when the circuit opens
+        CompletableFuture<VnfResponse> early = CompletableFuture.supplyAsync(() -> {
+            try {
+                return client.sendRequest(appliance, request.withUri("/early"));
+            } catch (CommunicationException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+        while (arrived.get() < 1) {
+            Thread.sleep(5);
+        }
+        device.statuses.add(-1);
+        assertThrows(CommunicationException.class, () -> client.sendRequest(appliance, request));
+        assertEquals(VnfGuardedBrokerClient.State.OPEN, client.getState(appliance));
+        
+        Thread.sleep(150);
+        CompletableFuture<VnfResponse> trial = CompletableFuture.supplyAsync(() -> {
+            try {
+                return client.sendRequest(appliance, request.withUri("/trial"));
+            } catch (CommunicationException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+        while (arrived.get() < 3) {
+            Thread.sleep(5);
+        }
+        assertEquals(VnfGuardedBrokerClient.State.HALF_OPEN, client.getState(appliance));
+        
+        // The early success neither closes the circuit nor frees the trial slot
+        gates.get("/early").countDown();
+        assertEquals(200, early.get(5, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(VnfGuardedBrokerClient.State.HALF_OPEN, client.getState(appliance));
+        assertThrows(CommunicationException.class, () -> client.sendRequest(appliance, request));
+        
+        device.statuses.add(-1);
+        gates.get("/trial").countDown();
+        assertThrows(ExecutionException.class, () -> trial.get(5, TimeUnit.SECONDS));
+        assertEquals(VnfGuardedBrokerClient.State.OPEN, client.getState(appliance));
+    }
+    
+    @Test
+    @DisplayName("Concurrency limit grows on success, halves on overload and sheds excess")
+    void testAdaptiveLimit() throws Exception {
+        ScriptedDevice device = new ScriptedDevice();
+        VnfGuardedBrokerClient client = guarded(device);
+        client.setAdaptiveLimit(true, 4, 1, 8, 0.5, 5000);
+        VnfRequest request = VnfTestData.mockHttpRequest();
+        
+        for (int i = 0; i < 40; i++) {
+            client.sendRequest(appliance, request);
+        }
+        assertEquals(8, client.getLimit(appliance));
+        
+        device.statuses.addAll(List.of(429, 503));
+        client.sendRequest(appliance, request);
+        client.sendRequest(appliance, request);
+        assertEquals(2, client.getLimit(appliance));
+        
+        // Requests beyond the limit are rejected as retriable instead of queued
+        device.gate = new CountDownLatch(1);
+        List<CompletableFuture<VnfResponse>> inFlight = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            inFlight.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return client.sendRequest(appliance, request);
+                } catch (CommunicationException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        while (device.calls.get() < 44) {
+            Thread.sleep(5);
+        }
+        ExecutionException shed = assertThrows(ExecutionException.class,
+            () -> client.sendRequestAsync(appliance, request).get(5, TimeUnit.SECONDS));
+        assertTrue(((CommunicationException) shed.getCause()).isRetriable());
+        device.gate.countDown();
+        for (CompletableFuture<VnfResponse> call : inFlight) {
+            assertEquals(200, call.get(5, TimeUnit.SECONDS).getStatusCode());
+        }
+        assertEquals(1L, (long) client.getStats().get("rejectedLimit"));
+        assertEquals(2L, (long) client.getStats().get("limitDecreases"));
+    }
+}
+
+/**
+ * Test suite for token-bucket rate limiting
+ */
+@DisplayName("Rate Limited Broker Client Tests")
+public class VnfRateLimitedBrokerClientTest {
+    
+    private static class CountingDevice implements VnfBrokerClient {
+        final AtomicInteger calls = new AtomicInteger();
+        
+        @Override
+        public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) {
+            calls.incrementAndGet();
+            return VnfTestData.mockSuccessResponse();
+        }
+        
+        @Override
+        public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries) {
+            return sendRequest(appliance, request);
+        }
+        
+        @Override
+        public boolean isReachable(VnfAppliance appliance) { return true; }
+        
+        @Override
+        public BrokerType getBrokerType() { return BrokerType.DIRECT; }
+    }
+    
+    private static VnfAppliance appliance(long id, long accountId, VnfDictionary dictionary) {
+        VnfAppliance appliance = new VnfAppliance();
+        appliance.setId(id);
+        appliance.setAccountId(accountId);
+        appliance.setDictionary(dictionary);
+        return appliance;
+    }
+    
+    @Test
+    @DisplayName("Token bucket grants the burst exactly once under contention")
+    void testTokenBucketIsExactUnderContention() throws Exception {
+        VnfRateLimitedBrokerClient.TokenBucket bucket = new VnfRateLimitedBrokerClient.TokenBucket(1, 100);
+        AtomicInteger granted = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                workers.add(pool.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        if (bucket.tryAcquire()) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(100, granted.get());
+        assertEquals(0, bucket.available());
+        
+        // 600/min = one token per 100 ms: a bounded wait is granted, a longer one refused
+        VnfRateLimitedBrokerClient.TokenBucket fast = new VnfRateLimitedBrokerClient.TokenBucket(600, 1);
+        assertEquals(0, fast.reserve(1, 0));
+        long wait = fast.reserve(1, TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(50) && wait <= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(-1, fast.reserve(1, TimeUnit.MILLISECONDS.toNanos(150)));
+    }
+    
+    @Test
+    @DisplayName("Vendor limit from the dictionary, appliance override and tenant bucket")
+    void testLimitsPerVendorApplianceAndTenant() throws Exception {
+        VnfDictionary pfsense = new VnfDictionaryParserImpl().parseDictionary("""
+            version: "1.0"
+            access:
+              protocol: https
+              port: 443
+              rateLimit:
+                perMinute: 30
+                burst: 2
+            services:
+              Firewall:
+                list:
+                  method: GET
+                  endpoint: /rules
+            """);
+        assertEquals(30, pfsense.getAccessConfig().getRateLimitPerMinute());
+        
+        CountingDevice device = new CountingDevice();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            VnfRateLimitedBrokerClient client = new VnfRateLimitedBrokerClient(device, executor, 600, 10, 0);
+            client.setTenantLimit(600, 3);
+            VnfRequest request = VnfTestData.mockHttpRequest();
+            
+            // Vendor burst of 2 applies, fails fast as retriable
+            VnfAppliance first = appliance(1, 100, pfsense);
+            client.sendRequest(first, request);
+            client.sendRequest(first, request);
+            CommunicationException limited = assertThrows(CommunicationException.class,
+                () -> client.sendRequest(first, request));
+            assertTrue(limited.isRetriable());
+            
+            // Override raises this appliance's burst; the tenant bucket (3) still caps the account
+            VnfAppliance second = appliance(2, 100, pfsense);
+            second.setRateLimitBurst(5);
+            client.sendRequest(second, request);
+            ExecutionException tenant = assertThrows(ExecutionException.class,
+                () -> client.sendRequestAsync(second, request).get(5, TimeUnit.SECONDS));
+            assertTrue(tenant.getCause().getMessage().contains("account 100"));
+            
+            // Another account is unaffected
+            client.sendRequest(appliance(3, 200, pfsense), request);
+            assertEquals(4, device.calls.get());
+            assertEquals(2L, (long) client.getStats().get("rejected"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    @DisplayName("Async requests wait for their token without holding a thread")
+    void testBoundedWaitAsync() throws Exception {
+        CountingDevice device = new CountingDevice();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            VnfRateLimitedBrokerClient client = new VnfRateLimitedBrokerClient(device, executor, 600, 1, 500);
+            VnfAppliance target = appliance(1, 1, null);
+            VnfRequest request = VnfTestData.mockHttpRequest();
+            
+            long start = System.nanoTime();
+            List<CompletableFuture<VnfResponse>> calls = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                calls.add(client.sendRequestAsync(target, request));
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100, "submission does not block");
+            for (CompletableFuture<VnfResponse> call : calls) {
+                assertEquals(200, call.get(5, TimeUnit.SECONDS).getStatusCode());
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+            assertEquals(2L, (long) client.getStats().get("delayed"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
+
+/**
+ * Test suite for broker token signing and caching
+ */
+@DisplayName("JWT Token Generator Tests")
+public class VnfJwtTokenGeneratorTest {
+    
+    private static final byte[] SECRET = "test-secret".getBytes(StandardCharsets.UTF_8);
+    
+    private static VnfAppliance appliance(long id, String managementIp) {
+        VnfAppliance appliance = new VnfAppliance();
+        appliance.setId(id);
+        appliance.setManagementIp(managementIp);
+        return appliance;
+    }
+    
+    private static JsonObject claims(String token) {
+        String payload = token.split("\\.")[1];
+        return JsonParser.parseString(new String(Base64.getUrlDecoder().decode(payload),
+            StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+    
+    @Test
+    @DisplayName("Signed tokens carry the broker claims and validate")
+    void testSignAndValidate() throws Exception {
+        VnfTestClock clock = new VnfTestClock();
+        VnfJwtTokenGenerator generator = new VnfJwtTokenGenerator(SECRET, "HS256", "cloudstack-mgmt", clock);
+        
+        String token = generator.generateToken(appliance(7, "10.1.1.1"), "Firewall.create", 300);
+        JsonObject claims = claims(token);
+        assertEquals("10.1.1.1", claims.get("allowed_target").getAsString());
+        assertEquals("Firewall.create", claims.get("op").getAsString());
+        assertEquals(300L, claims.get("exp").getAsLong() - claims.get("iat").getAsLong());
+        assertTrue(generator.validateToken(token));
+        
+        // Signatures agree across threads using their own Mac clones
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                tokens.add(pool.submit(() -> generator.generateToken(appliance(7, "10.1.1.1"), "Firewall.create", 300)));
+            }
+            for (Future<String> other : tokens) {
+                assertEquals(token, other.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        
+        assertFalse(generator.validateToken(token.substring(0, token.length() - 2) + "AA"));
+        assertFalse(new VnfJwtTokenGenerator("other".getBytes(StandardCharsets.UTF_8), "HS256",
+            "cloudstack-mgmt", clock).validateToken(token));
+        clock.millis += 301_000;
+        assertFalse(generator.validateToken(token));
+        assertThrows(IllegalArgumentException.class,
+            () -> new VnfJwtTokenGenerator(SECRET, "RS256", "cloudstack-mgmt"));
+    }
+    
+    @Test
+    @DisplayName("Tokens are reused per scope until the refresh margin")
+    void testTokenReuse() throws Exception {
+        VnfTestClock clock = new VnfTestClock();
+        VnfJwtTokenGenerator signer = new VnfJwtTokenGenerator(SECRET, "HS256", "cloudstack-mgmt", clock);
+        VnfCachingJwtTokenGenerator cache = new VnfCachingJwtTokenGenerator(signer, 30, 100, clock);
+        VnfAppliance fw = appliance(1, "10.1.1.1");
+        
+        String token = cache.generateToken(fw, "Firewall.create", 300);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(token, cache.generateToken(fw, "Firewall.create", 300));
+        }
+        assertNotEquals(token, cache.generateToken(fw, "Firewall.delete", 300));
+        assertNotEquals(token, cache.generateToken(appliance(2, "10.1.1.2"), "Firewall.create", 300));
+        
+        // Still reused just before the margin, re-signed inside it
+        clock.millis += 269_000;
+        assertEquals(token, cache.generateToken(fw, "Firewall.create", 300));
+        clock.millis += 2_000;
+        String refreshed = cache.generateToken(fw, "Firewall.create", 300);
+        assertNotEquals(token, refreshed);
+        assertTrue(cache.validateToken(refreshed));
+        
+        // A new management IP gets a token bound to it
+        fw.setManagementIp("10.9.9.9");
+        assertEquals("10.9.9.9", claims(cache.generateToken(fw, "Firewall.create", 300))
+            .get("allowed_target").getAsString());
+        
+        Map<String, Long> stats = cache.getStats();
+        assertEquals(51L, (long) stats.get("reused"));
+        assertEquals(5L, (long) stats.get("issued"));
+        assertEquals(1L, (long) stats.get("refreshed"));
+        assertEquals(signer.getStats().get("signed"), stats.get("issued"));
+        
+        cache.removeAppliance(fw);
+        assertEquals(1L, (long) cache.getStats().get("entries"));
+    }
+    
+    @Test
+    @DisplayName("Short lifetimes and a full cache still hand out valid tokens")
+    void testShortLifetimeAndCapacity() throws Exception {
+        VnfTestClock clock = new VnfTestClock();
+        VnfJwtTokenGenerator signer = new VnfJwtTokenGenerator(SECRET, "HS256", "cloudstack-mgmt", clock);
+        VnfCachingJwtTokenGenerator cache = new VnfCachingJwtTokenGenerator(signer, 30, 2, clock);
+        
+        // 10 s tokens: the 30 s margin shrinks to 5 s
+        String token = cache.generateToken(appliance(1, "10.1.1.1"), "System.health", 10);
+        clock.millis += 4_000;
+        assertEquals(token, cache.generateToken(appliance(1, "10.1.1.1"), "System.health", 10));
+        clock.millis += 2_000;
+        assertNotEquals(token, cache.generateToken(appliance(1, "10.1.1.1"), "System.health", 10));
+        
+        cache.generateToken(appliance(2, "10.1.1.2"), "System.health", 10);
+        String uncached = cache.generateToken(appliance(3, "10.1.1.3"), "System.health", 10);
+        assertTrue(cache.validateToken(uncached));
+        assertEquals(1L, (long) cache.getStats().get("uncached"));
+        assertEquals(2L, (long) cache.getStats().get("entries"));
+        
+        // Once the cached tokens expire they make room again
+        clock.millis += 11_000;
+        cache.generateToken(appliance(3, "10.1.1.3"), "System.health", 10);
+        assertEquals(1L, (long) cache.getStats().get("entries"));
+    }
+}
+
+/**
+ * Test suite for the health check scheduler
+ */
+@DisplayName("Health Scheduler Tests")
+public class VnfHealthSchedulerTest {
+    
+    private static class ProbedDevice implements VnfBrokerClient {
+        final Map<Long, List<Long>> probes = new ConcurrentHashMap<>();
+        final Set<Long> down = ConcurrentHashMap.newKeySet();
+        final VnfTestClock clock;
+        
+        ProbedDevice(VnfTestClock clock) { this.clock = clock; }
+        
+        @Override
+        public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public boolean isReachable(VnfAppliance appliance) {
+            probes.computeIfAbsent(appliance.getId(), id -> new CopyOnWriteArrayList<>()).add(clock.millis);
+            return !down.contains(appliance.getId());
+        }
+        
+        @Override
+        public BrokerType getBrokerType() { return BrokerType.DIRECT; }
+    }
+    
+    private static class RecordingDao implements VnfApplianceHealthDao {
+        final List<List<VnfHealthUpdate>> batches = new CopyOnWriteArrayList<>();
+        final Map<Long, VnfHealthUpdate> rows = new ConcurrentHashMap<>();
+        volatile boolean failing;
+        
+        @Override
+        public void updateHealth(List<VnfHealthUpdate> updates) {
+            if (failing) {
+                throw new IllegalStateException("database down");
+            }
+            batches.add(List.copyOf(updates));
+            for (VnfHealthUpdate update : updates) {
+                rows.merge(update.getApplianceId(), update, (old, latest) -> latest.getLastContact() != null ? latest :
+                    new VnfHealthUpdate(latest.getApplianceId(), latest.getHealthStatus(), old.getLastContact()));
+            }
+        }
+    }
+    
+    private static VnfAppliance appliance(long id) {
+        VnfAppliance appliance = new VnfAppliance();
+        appliance.setId(id);
+        appliance.setManagementIp("10.0." + (id / 256) + "." + (id % 256));
+        appliance.setHealthStatus(HealthStatus.UNKNOWN);
+        return appliance;
+    }
+    
+    private static void advance(VnfTestClock clock, VnfHealthScheduler scheduler, long millis, long step) {
+        for (long t = 0; t < millis; t += step) {
+            clock.millis += step;
+            scheduler.tick();
+        }
+    }
+    
+    @Test
+    @DisplayName("Probes are spread over the interval instead of bursting")
+    void testProbesAreSpread() throws Exception {
+        VnfTestClock clock = new VnfTestClock();
+        ProbedDevice device = new ProbedDevice(clock);
+        VnfHealthScheduler scheduler = new VnfHealthScheduler(device, new RecordingDao(), Runnable::run,
+            60_000, 3, 10_000, clock);
+        scheduler.setWheel(100, 10);
+        long start = clock.millis;
+        for (long id = 1; id <= 1000; id++) {
+            scheduler.schedule(appliance(id));
+        }
+        
+        advance(clock, scheduler, 60_000, 100);
+        assertEquals(1000, device.probes.size());
+        int[] perSecond = new int[61];
+        for (List<Long> times : device.probes.values()) {
+            assertTrue(times.get(0) - start <= 60_000);
+            perSecond[(int) ((times.get(0) - start) / 1000)]++;
+        }
+        // About 17 a second; a burst would put them all in one
+        assertTrue(Arrays.stream(perSecond).max().getAsInt() < 60, Arrays.toString(perSecond));
+        
+        // Next probes follow one interval later, within the jitter
+        advance(clock, scheduler, 70_000, 100);
+        for (List<Long> times : device.probes.values()) {
+            long gap = times.get(1) - times.get(0);
+            assertTrue(gap >= 53_900 && gap <= 66_100, "gap " + gap);
+        }
+        
+        scheduler.unschedule(appliance(1));
+        int before = device.probes.get(1L).size();
+        advance(clock, scheduler, 70_000, 100);
+        assertEquals(before, device.probes.get(1L).size());
+        assertEquals(999L, (long) scheduler.getStats().get("appliances"));
+    }
+    
+    @Test
+    @DisplayName("Failure threshold in memory, health changes written in batches")
+    void testThresholdAndBatchedPersistence() throws Exception {
+        VnfTestClock clock = new VnfTestClock();
+        ProbedDevice device = new ProbedDevice(clock);
+        RecordingDao dao = new RecordingDao();
+        VnfHealthScheduler scheduler = new VnfHealthScheduler(device, dao, Runnable::run, 1000, 3, 500, clock);
+        scheduler.setWheel(10, 0);
+        scheduler.setPersistence(4, 60_000);
+        List<VnfAppliance> fleet = new ArrayList<>();
+        for (long id = 1; id <= 10; id++) {
+            fleet.add(appliance(id));
+            scheduler.schedule(fleet.get(fleet.size() - 1));
+        }
+        device.down.add(3L);
+        
+        // Two failures stay below the threshold
+        advance(clock, scheduler, 2000, 10);
+        assertEquals(HealthStatus.UNKNOWN, fleet.get(2).getHealthStatus());
+        assertEquals(HealthStatus.HEALTHY, fleet.get(0).getHealthStatus());
+        advance(clock, scheduler, 1000, 10);
+        assertEquals(HealthStatus.UNHEALTHY, fleet.get(2).getHealthStatus());
+        
+        // Written as batches fill, long before the flush interval
+        assertFalse(dao.batches.isEmpty());
+        int written = 0;
+        for (List<VnfHealthUpdate> batch : dao.batches) {
+            assertTrue(batch.size() <= 4, "batch of " + batch.size());
+            written += batch.size();
+        }
+        assertTrue(written >= 2 * dao.batches.size(), written + " rows in " + dao.batches.size() + " batches");
+        
+        // A failed write is kept and retried
+        dao.failing = true;
+        device.down.add(5L);
+        advance(clock, scheduler, 3000, 10);
+        assertTrue(scheduler.getStats().get("writeErrors") > 0);
+        dao.failing = false;
+        scheduler.stop();
+        assertEquals(0L, (long) scheduler.getStats().get("pending"));
+        
+        assertEquals(HealthStatus.UNHEALTHY, dao.rows.get(3L).getHealthStatus());
+        assertNull(dao.rows.get(3L).getLastContact());
+        assertEquals(HealthStatus.UNHEALTHY, dao.rows.get(5L).getHealthStatus());
+        assertNotNull(dao.rows.get(5L).getLastContact());
+        assertEquals(HealthStatus.HEALTHY, dao.rows.get(1L).getHealthStatus());
+        assertEquals(fleet.get(0).getLastContact(), dao.rows.get(1L).getLastContact());
+        
+        long rows = scheduler.getStats().get("rowsWritten");
+        assertTrue(rows < scheduler.getStats().get("probed"), rows + " rows");
+    }
+    
+    @Test
+    @DisplayName("A timed-out probe fails at once but is not restarted until the call returns")
+    void testTimedOutProbeStaysRunning() throws Exception {
+        VnfTestClock clock = new VnfTestClock();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        ProbedDevice device = new ProbedDevice(clock) {
+            @Override
+            public boolean isReachable(VnfAppliance appliance) {
+                calls.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            VnfHealthScheduler scheduler = new VnfHealthScheduler(device, new RecordingDao(), executor,
+                100, 1, 50, clock);
+            scheduler.setWheel(10, 0);
+            VnfAppliance appliance = appliance(1);
+            scheduler.schedule(appliance);
+            
+            advance(clock, scheduler, 100, 10);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (appliance.getHealthStatus() != HealthStatus.UNHEALTHY && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(HealthStatus.UNHEALTHY, appliance.getHealthStatus());
+            assertEquals(1L, (long) scheduler.getStats().get("timedOut"));
+            assertEquals(1, calls.get());
+            
+            // Still blocked in isReachable: later rounds are skipped
+            advance(clock, scheduler, 300, 10);
+            assertEquals(1, calls.get());
+            assertTrue(scheduler.getStats().get("skipped") > 0);
+            
+            // The late success is not recorded; the next round probes again
+            release.countDown();
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (calls.get() == 1 && System.nanoTime() < deadline) {
+                advance(clock, scheduler, 10, 10);
+                Thread.sleep(5);
+            }
+            assertEquals(2, calls.get());
+            assertEquals(1L, (long) scheduler.getStats().get("failed"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
+
+/**
+ * Test suite for the asynchronous broker audit pipeline
+ */
+@DisplayName("Audit Writer Tests")
+public class VnfAuditWriterTest {
+    
+    private static class StuckDao implements VnfBrokerAuditDao {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<VnfAuditRecord> rows = new CopyOnWriteArrayList<>();
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        
+        @Override
+        public void insertBatch(List<VnfAuditRecord> records) {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batchSizes.add(records.size());
+            rows.addAll(records);
+        }
+    }
+    
+    private static VnfAuditRecord record(long id, boolean success) {
+        Date now = new Date();
+        return new VnfAuditRecord(id, "Firewall.create", "POST", "/api/firewall/rules", now, now,
+                                  success ? 200 : 500, success, success ? null : "HTTP 500", 5);
+    }
+    
+    @Test
+    @DisplayName("Submitting never waits on a slow database")
+    void testDropOldestDoesNotBlock() throws Exception {
+        StuckDao dao = new StuckDao();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            VnfAuditWriter writer = new VnfAuditWriter(dao, executor, 100, 10, 50,
+                VnfAuditWriter.OverflowPolicy.DROP_OLDEST);
+            writer.start();
+            
+            long start = System.nanoTime();
+            for (long i = 0; i < 1000; i++) {
+                writer.submit(record(i, true));
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+            assertEquals(100L, (long) writer.getStats().get("queued"));
+            
+            dao.release.countDown();
+            assertTrue(writer.close(5000));
+            Map<String, Long> stats = writer.getStats();
+            assertEquals(1000L, (long) stats.get("submitted"));
+            assertEquals(1000L, stats.get("written") + stats.get("dropped"));
+            // The newest records survive
+            assertEquals(999L, (long) dao.rows.get(dao.rows.size() - 1).getApplianceId());
+            for (int size : dao.batchSizes) {
+                assertTrue(size <= 10);
+            }
+            assertFalse(writer.submit(record(0, true)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    @DisplayName("BLOCK waits a bounded time, SAMPLE keeps every failure")
+    void testBlockAndSamplePolicies() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            StuckDao blockingDao = new StuckDao();
+            VnfAuditWriter blocking = new VnfAuditWriter(blockingDao, executor, 4, 2, 1000,
+                VnfAuditWriter.OverflowPolicy.BLOCK);
+            blocking.setBlockMillis(30);
+            for (long i = 0; i < 4; i++) {
+                assertTrue(blocking.submit(record(i, true)));
+            }
+            long start = System.nanoTime();
+            assertFalse(blocking.submit(record(4, true)));
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(waited >= 25 && waited < 1000, "waited " + waited);
+            assertEquals(1L, (long) blocking.getStats().get("dropped"));
+            blockingDao.release.countDown();
+            assertTrue(blocking.close(5000));
+            assertEquals(4, blockingDao.rows.size());
+            
+            StuckDao sampledDao = new StuckDao();
+            VnfAuditWriter sampled = new VnfAuditWriter(sampledDao, executor, 100, 100, 1000,
+                VnfAuditWriter.OverflowPolicy.SAMPLE);
+            sampled.setSampleRate(10);
+            for (long i = 0; i < 300; i++) {
+                sampled.submit(record(i, i % 30 != 0));
+            }
+            sampledDao.release.countDown();
+            assertTrue(sampled.close(5000));
+            long failures = sampledDao.rows.stream().filter(r -> !r.isSuccess()).count();
+            assertEquals(10L, failures);
+            assertTrue(sampled.getStats().get("sampledOut") > 0);
+            assertEquals(300L, sampled.getStats().get("written") + sampled.getStats().get("sampledOut") +
+                               sampled.getStats().get("dropped"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    @DisplayName("Audited client records one row per call off the request path")
+    void testAuditedClient() throws Exception {
+        StuckDao dao = new StuckDao();
+        dao.release.countDown();
+        VnfAuditWriter writer = new VnfAuditWriter(dao, Runnable::run, 16, 4, 1000,
+            VnfAuditWriter.OverflowPolicy.DROP_OLDEST);
+        VnfBrokerClient device = new VnfBrokerClient() {
+            @Override
+            public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+                if (request.getUri().contains("fail")) {
+                    throw new CommunicationException("Connection refused", true);
+                }
+                return VnfTestData.mockSuccessResponse();
+            }
+            
+            @Override
+            public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+                    throws CommunicationException {
+                return sendRequest(appliance, request);
+            }
+            
+            @Override
+            public boolean isReachable(VnfAppliance appliance) { return true; }
+            
+            @Override
+            public BrokerType getBrokerType() { return BrokerType.DIRECT; }
+        };
+        VnfAuditedBrokerClient client = new VnfAuditedBrokerClient(device, writer);
+        VnfAppliance appliance = new VnfAppliance();
+        appliance.setId(42L);
+        
+        VnfRequest request = VnfTestData.mockHttpRequest();
+        request.setOperation("Firewall.create");
+        client.sendRequest(appliance, request);
+        assertThrows(CommunicationException.class,
+            () -> client.sendRequest(appliance, request.withUri("/api/fail")));
+        client.sendRequestAsync(appliance, request).get(5, TimeUnit.SECONDS);
+        assertTrue(client.isReachable(appliance));
+        
+        assertTrue(writer.close(5000));
+        assertEquals(3, dao.rows.size());
+        VnfAuditRecord failed = dao.rows.get(1);
+        assertEquals(42L, (long) failed.getApplianceId());
+        assertEquals("Firewall.create", failed.getOperation());
+        assertEquals("/api/fail", failed.getEndpoint());
+        assertFalse(failed.isSuccess());
+        assertEquals("Connection refused", failed.getErrorMessage());
+        assertTrue(dao.rows.get(0).isSuccess());
+        assertEquals(200, dao.rows.get(2).getStatusCode());
+    }
+    
+    @Test
+    @DisplayName("Long text is cut to the column widths, a failed batch is retried row by row")
+    void testTruncationAndRowFallback() throws Exception {
+        List<VnfAuditRecord> rows = new CopyOnWriteArrayList<>();
+        VnfBrokerAuditDao dao = records -> {
+            for (VnfAuditRecord record : records) {
+                if (record.getApplianceId() == 3L) {
+                    throw new IllegalStateException("constraint violation");
+                }
+            }
+            rows.addAll(records);
+        };
+        VnfAuditWriter writer = new VnfAuditWriter(dao, Runnable::run, 16, 5, 1000,
+            VnfAuditWriter.OverflowPolicy.DROP_OLDEST);
+        String uri = "/api/?xpath=" + "x".repeat(2000);
+        Date now = new Date();
+        for (long i = 1; i <= 5; i++) {
+            writer.submit(new VnfAuditRecord(i, "Firewall.list", "GET", uri, now, now, 500, false,
+                                             "e".repeat(30_000), 5));
+        }
+        
+        assertTrue(writer.close(5000));
+        assertEquals(4, rows.size());
+        assertEquals(VnfAuditRecord.MAX_ENDPOINT_LENGTH, rows.get(0).getEndpoint().length());
+        assertEquals(VnfAuditRecord.MAX_ERROR_MESSAGE_LENGTH, rows.get(0).getErrorMessage().length());
+        Map<String, Long> stats = writer.getStats();
+        assertEquals(4L, (long) stats.get("written"));
+        assertEquals(1L, (long) stats.get("lost"));
+    }
+}
+
+/**
+ * Test suite for latency histograms and metrics output
+ */
+@DisplayName("Metrics Registry Tests")
+public class VnfMetricsRegistryTest {
+    
+    private static VnfAppliance appliance(long id, String vendor) {
+        VnfDictionary dictionary = new VnfDictionary();
+        dictionary.setVendor(vendor);
+        VnfAppliance appliance = new VnfAppliance();
+        appliance.setId(id);
+        appliance.setDictionary(dictionary);
+        return appliance;
+    }
+    
+    @Test
+    @DisplayName("Histogram percentiles stay within the bucket error")
+    void testHistogramAccuracy() throws Exception {
+        VnfMetricsRegistry.Histogram histogram = new VnfMetricsRegistry.Histogram();
+        for (long v = 1; v <= 10_000; v++) {
+            histogram.record(v * 100);   // 100 us .. 1 s
+        }
+        long[] snapshot = histogram.snapshot();
+        long p50 = VnfMetricsRegistry.Histogram.percentile(snapshot, 0.50, histogram.getMax());
+        long p99 = VnfMetricsRegistry.Histogram.percentile(snapshot, 0.99, histogram.getMax());
+        assertTrue(Math.abs(p50 - 500_000) <= 500_000 * 0.0625, "p50 " + p50);
+        assertTrue(Math.abs(p99 - 990_000) <= 990_000 * 0.0625, "p99 " + p99);
+        assertEquals(1_000_000L, histogram.getMax());
+        assertEquals(1_000_000L, VnfMetricsRegistry.Histogram.percentile(snapshot, 1.0, histogram.getMax()));
+        
+        // Concurrent writers lose nothing
+        VnfMetricsRegistry.Histogram shared = new VnfMetricsRegistry.Histogram();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                writers.add(pool.submit(() -> {
+                    for (int i = 0; i < 25_000; i++) {
+                        shared.record(i);
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(100_000L, Arrays.stream(shared.snapshot()).sum());
+        assertEquals(24_999L, shared.getMax());
+    }
+    
+    @Test
+    @DisplayName("Metered client feeds getVnfHealth and the Prometheus text")
+    void testHealthMetricsAndPrometheus() throws Exception {
+        VnfMetricsRegistry registry = new VnfMetricsRegistry();
+        VnfBrokerClient device = new VnfBrokerClient() {
+            @Override
+            public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) throws CommunicationException {
+                if (request.getUri().contains("busy")) {
+                    throw new CommunicationException("HTTP 503", true);
+                }
+                VnfResponse response = new VnfResponse();
+                response.setStatusCode(request.getUri().contains("bad") ? 400 : 200);
+                return response;
+            }
+            
+            @Override
+            public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries)
+                    throws CommunicationException {
+                return sendRequest(appliance, request);
+            }
+            
+            @Override
+            public boolean isReachable(VnfAppliance appliance) { return true; }
+            
+            @Override
+            public BrokerType getBrokerType() { return BrokerType.DIRECT; }
+        };
+        VnfMeteredBrokerClient client = new VnfMeteredBrokerClient(device, registry);
+        VnfAppliance pfsense = appliance(1, "Netgate");
+        
+        VnfRequest create = VnfTestData.mockHttpRequest();
+        create.setOperation("Firewall.create");
+        for (int i = 0; i < 8; i++) {
+            client.sendRequest(pfsense, create);
+        }
+        client.sendRequest(pfsense, create.withUri("/api/bad"));
+        assertThrows(CommunicationException.class, () -> client.sendRequest(pfsense, create.withUri("/api/busy")));
+        VnfRequest list = VnfTestData.mockHttpRequest();
+        list.setOperation("Firewall.list");
+        client.sendRequestAsync(pfsense, list).get(5, TimeUnit.SECONDS);
+        
+        VnfConnectivityResult probe = new VnfConnectivityResult();
+        probe.setReachable(true);
+        probe.setLatencyMs(42);
+        registry.recordConnectivity(pfsense, probe);
+        registry.record(appliance(2, "Fortinet"), "Firewall.create", 1500, VnfMetricsRegistry.Outcome.SUCCESS);
+        
+        Map<String, Object> metrics = registry.healthMetrics(1);
+        assertEquals(10L, metrics.get("successfuloperations"));
+        assertEquals(1L, metrics.get("failedoperations"));
+        assertEquals(1L, metrics.get("retriedoperations"));
+        assertTrue((Double) metrics.get("maxlatencyms") >= 42.0);
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> operations = (List<Map<String, Object>>) metrics.get("operations");
+        assertEquals(List.of("Firewall.create", "Firewall.list", "connectivity"),
+            operations.stream().map(op -> op.get("operation")).toList());
+        assertEquals(42.0, (Double) operations.get(2).get("p50latencyms"), 0.001);
+        
+        assertEquals(1L, registry.vendorSummary("Fortinet").getCount());
+        assertEquals(1.5, registry.vendorSummary("Fortinet").getP99Ms(), 0.1);
+        
+        StringBuilder text = new StringBuilder();
+        registry.writePrometheus(text);
+        String out = text.toString();
+        assertTrue(out.contains("# TYPE vnf_request_duration_seconds summary"));
+        assertTrue(out.contains("vnf_request_duration_seconds{appliance=\"1\",vendor=\"Netgate\"," +
+                                "operation=\"connectivity\",quantile=\"0.5\"} 0.042"));
+        assertTrue(out.contains("vnf_requests_total{appliance=\"1\",vendor=\"Netgate\"," +
+                                "operation=\"Firewall.create\",outcome=\"retry\"} 1"));
+        assertTrue(out.contains("vnf_request_duration_seconds_count{appliance=\"2\",vendor=\"Fortinet\"," +
+                                "operation=\"Firewall.create\"} 1"));
+        
+        registry.removeAppliance(pfsense);
+        assertTrue(registry.summaries(1).isEmpty());
+        assertEquals(1, registry.summaries(2).size());
+    }
+}
+
+/**
+ * Test suite for the frozen, indexed dictionary form
+ */
+@DisplayName("Compiled Dictionary Tests")
+public class VnfCompiledDictionaryTest {
+    
+    private static final String YAML = """
+        version: "1.0"
+        access:
+          protocol: ssh
+          port: 22
+        services:
+          Firewall:
+            create:
+              method: SSH
+              endpoint: "set firewall rule ${ruleId} source ${sourceCidr}"
+            delete:
+              method: SSH
+              endpoint: "delete firewall rule ${externalId}"
+            purge:
+              method: SSH
+              endpoint: "purge firewall ${zone}"
+          System:
+            begin:
+              method: SSH
+              endpoint: configure
+            commit:
+              method: SSH
+              endpoint: commit
+        transaction:
+          mode: script
+          begin: System.begin
+          commit: System.commit
+        """;
+    
+    private VnfDictionaryParserImpl parser;
+    
+    @BeforeEach
+    void setUp() {
+        parser = new VnfDictionaryParserImpl();
+    }
+    
+    @Test
+    @DisplayName("Well-known and custom operations resolve to the same definitions")
+    void testIndexedLookup() throws Exception {
+        VnfDictionary dictionary = parser.parseDictionary(YAML);
+        
+        assertTrue(dictionary.isFrozen());
+        ServiceDefinition firewall = dictionary.getService("Firewall");
+        assertSame(firewall, dictionary.getService(DictionaryService.FIREWALL));
+        assertSame(firewall.getOperation("create"), firewall.getOperation(DictionaryOperation.CREATE));
+        assertSame(firewall.getOperation("create"), dictionary.getOperation("Firewall", "create"));
+        assertSame(firewall.getOperation("create"), dictionary.getOperation("Firewall.create"));
+        assertSame(firewall.getOperation("purge"), dictionary.getOperation("Firewall.purge"));
+        assertEquals("Firewall.create", firewall.getOperation("create").getRef());
+        
+        assertNull(dictionary.getService(DictionaryService.NAT));
+        assertNull(firewall.getOperation(DictionaryOperation.LIST));
+        assertNull(dictionary.getOperation("Firewall.list"));
+        assertNull(dictionary.getOperation("Firewall"));
+    }
+    
+    @Test
+    @DisplayName("Parsed dictionaries cannot be modified")
+    void testFrozen() throws Exception {
+        VnfDictionary dictionary = parser.parseDictionary(YAML);
+        
+        assertThrows(UnsupportedOperationException.class,
+                     () -> dictionary.getServices().remove("Firewall"));
+        assertThrows(UnsupportedOperationException.class,
+                     () -> dictionary.getService("Firewall").getOperations().clear());
+        assertThrows(IllegalStateException.class, () -> dictionary.setServices(new HashMap<>()));
+        assertThrows(IllegalStateException.class, () -> dictionary.setAccessConfig(new AccessConfig()));
+        
+        OperationDefinition create = dictionary.getOperation("Firewall.create");
+        assertThrows(IllegalStateException.class, () -> create.setEndpoint("/other"));
+        assertThrows(IllegalStateException.class, () -> create.setMethod("DELETE"));
+        assertThrows(IllegalStateException.class, create::compileTemplates);
+        assertThrows(IllegalStateException.class, () -> dictionary.getService("Firewall").setName("Other"));
+        assertThrows(IllegalStateException.class, () -> dictionary.getAccessConfig().setPort(8443));
+    }
+    
+    @Test
+    @DisplayName("Validating a hand-built operation leaves it uncompiled")
+    void testValidationDoesNotCompile() {
+        OperationDefinition op = new OperationDefinition();
+        op.setMethod("POST");
+        op.setEndpoint("/rules/${ruleId}");
+        op.setBody("{\"zone\": \"${zone}\"}");
+        ServiceDefinition service = new ServiceDefinition();
+        service.setOperations(new HashMap<>(Map.of("create", op)));
+        VnfDictionary dictionary = new VnfDictionary();
+        dictionary.setSchemaVersion("1.0");
+        dictionary.setServices(new HashMap<>(Map.of("Firewall", service)));
+        
+        DictionaryValidationResult result = parser.validateDictionary(dictionary);
+        
+        assertTrue(result.getWarnings().stream().anyMatch(w -> w.contains("${zone}")));
+        assertNull(op.getCompiledEndpoint());
+    }
+    
+    @Test
+    @DisplayName("Placeholders are collected at compile time")
+    void testPlaceholders() throws Exception {
+        VnfDictionary dictionary = parser.parseDictionary(YAML);
+        
+        assertEquals(Set.of("ruleId", "sourceCidr"),
+                     dictionary.getOperation("Firewall.create").getPlaceholders());
+        assertTrue(dictionary.getOperation("System.commit").getPlaceholders().isEmpty());
+    }
+    
+    @Test
+    @DisplayName("Validation of a frozen dictionary runs once")
+    void testValidationMemoized() throws Exception {
+        VnfDictionary dictionary = parser.parseDictionary(YAML);
+        
+        DictionaryValidationResult first = parser.validateDictionary(dictionary);
+        DictionaryValidationResult second = parser.validateDictionary(dictionary);
+        
+        assertSame(first, second);
+        assertTrue(first.isValid());
+        assertTrue(first.getWarnings().stream().anyMatch(w -> w.contains("${zone}")));
+        assertThrows(UnsupportedOperationException.class, () -> first.addError("late"));
+    }
+    
+    @Test
+    @DisplayName("Dictionaries sharing a parse share its compiled form")
+    void testSharedStructure() throws Exception {
+        VnfDictionary parsed = parser.parseDictionary(YAML);
+        VnfDictionary row = new VnfDictionary();
+        row.setUuid("row-1");
+        row.shareParsedStructure(parsed);
+        
+        assertTrue(row.isFrozen());
+        assertSame(parsed.getOperation("Firewall.delete"), row.getOperation("Firewall", "delete"));
+        assertSame(parsed.getService(DictionaryService.SYSTEM), row.getService(DictionaryService.SYSTEM));
+    }
+}
+
+/**
+ * Test suite for binary dictionary snapshots
+ */
+@DisplayName("Dictionary Snapshot Tests")
+public class VnfDictionarySnapshotTest {
+    
+    private static final String YAML = """
+        version: "1.0"
+        vendor: "Acme"
+        product: "Edge"
+        access:
+          protocol: https
+          port: 8443
+          basePath: /api
+          authType: token
+          tokenRef: API_TOKEN
+          tokenHeader: X-Auth
+          rateLimit:
+            perMinute: 120
+            burst: 10
+        services:
+          Firewall:
+            create:
+              method: POST
+              endpoint: /rules
+              headers:
+                X-Rule: "${ruleId}"
+              body: '{"src": "${sourceCidr}", "proto": "${protocol}"}'
+              responseMapping:
+                successCode: 201
+                idPath: $.data.id
+            bulkCreate:
+              method: POST
+              endpoint: /rules/bulk
+              itemTemplate: '{"src": "${sourceCidr}"}'
+              itemSeparator: ";"
+              maxItems: 50
+              body: '[${items}]'
+            list:
+              method: GET
+              endpoint: /rules
+              responseMapping:
+                listPath: $.data
+                item:
+                  idPath: $.uuid
+              pagination:
+                type: cursor
+                pageSize: 100
+                nextCursorPath: $.next
+          System:
+            commit:
+              method: POST
+              endpoint: /commit
+            version:
+              method: GET
+              endpoint: /version
+        transaction:
+          commit: System.commit
+        revision:
+          operation: System.version
+          header: ETag
+        """;
+    
+    private VnfDictionaryParserImpl parser;
+    private String hash;
+    
+    @BeforeEach
+    void setUp() {
+        parser = new VnfDictionaryParserImpl();
+        hash = VnfDictionaryCache.contentHash(YAML);
+    }
+    
+    @Test
+    @DisplayName("A snapshot rebuilds the parsed dictionary")
+    void testRoundTrip() throws Exception {
+        VnfDictionary parsed = parser.parseDictionary(YAML);
+        VnfDictionary restored = VnfDictionarySnapshot.read(VnfDictionarySnapshot.write(parsed, hash), hash);
+        
+        assertNotNull(restored);
+        assertTrue(restored.isFrozen());
+        assertEquals("Acme", restored.getVendor());
+        assertEquals("/api", restored.getAccessConfig().getBasePath());
+        assertEquals(AuthType.TOKEN, restored.getAccessConfig().getAuthType());
+        assertEquals("X-Auth", restored.getAccessConfig().getTokenHeader());
+        assertEquals(120, restored.getAccessConfig().getRateLimitPerMinute());
+        assertEquals(parsed.getServices().keySet(), restored.getServices().keySet());
+        
+        TemplateContext context = new TemplateContext();
+        context.set("ruleId", 7L);
+        context.set("sourceCidr", "10.0.0.0/8");
+        context.set("protocol", "tcp");
+        OperationDefinition before = parsed.getOperation("Firewall.create");
+        OperationDefinition after = restored.getOperation("Firewall.create");
+        assertEquals(before.renderBody(context), after.renderBody(context));
+        assertEquals(before.renderHeaders(context), after.renderHeaders(context));
+        assertEquals(before.getPlaceholders(), after.getPlaceholders());
+        assertEquals("$.data.id", after.getResponseMapping().getCompiledIdPath().getSource());
+        
+        OperationDefinition bulk = restored.getService(DictionaryService.FIREWALL)
+                                           .getOperation(DictionaryOperation.BULK_CREATE);
+        assertTrue(bulk.isBulk());
+        assertEquals(50, bulk.getMaxItems());
+        assertEquals(";", bulk.getItemSeparator());
+        
+        PaginationConfig pagination = restored.getOperation("Firewall.list").getPagination();
+        assertEquals(PaginationConfig.Type.CURSOR, pagination.getType());
+        assertEquals("$.next", pagination.getNextCursorPath().getSource());
+        assertEquals("System.commit", restored.getTransaction().getCommitOperation());
+        assertEquals("ETag", restored.getRevision().getHeader());
+        
+        assertEquals(parser.validateDictionary(parsed).getWarnings(),
+                     parser.validateDictionary(restored).getWarnings());
+    }
+    
+    @Test
+    @DisplayName("Stale, foreign or corrupt snapshots read as null")
+    void testRejected() throws Exception {
+        byte[] snapshot = VnfDictionarySnapshot.write(parser.parseDictionary(YAML), hash);
+        
+        assertEquals(VnfDictionarySnapshot.FORMAT_VERSION, VnfDictionarySnapshot.formatVersion(snapshot));
+        assertNull(VnfDictionarySnapshot.read(null, hash));
+        assertNull(VnfDictionarySnapshot.read(snapshot, VnfDictionaryCache.contentHash(YAML + "# edited\n")));
+        
+        byte[] otherVersion = snapshot.clone();
+        otherVersion[5]++;
+        assertNull(VnfDictionarySnapshot.read(otherVersion, hash));
+        
+        byte[] corrupt = snapshot.clone();
+        corrupt[snapshot.length / 2] ^= 0x5A;
+        assertNull(VnfDictionarySnapshot.read(corrupt, hash));
+        
+        assertNull(VnfDictionarySnapshot.read(Arrays.copyOf(snapshot, snapshot.length - 3), hash));
+    }
+    
+    @Test
+    @DisplayName("Stored dictionaries load from the snapshot, stale ones from YAML")
+    void testStoreAndLoad() throws Exception {
+        VnfTestDictionaryDao dao = new VnfTestDictionaryDao();
+        VnfDictionaryParserImpl store = new VnfDictionaryParserImpl(dao, new VnfDictionaryCache());
+        VnfDictionary row = new VnfDictionary();
+        row.setUuid("dict-1");
+        row.setYamlContent(YAML);
+        store.storeDictionary(row, 5L, null);
+        assertNotNull(dao.rows.get("dict-1").getCompiledSnapshot());
+        
+        // Restarted management server
+        VnfDictionaryParserImpl restarted = new VnfDictionaryParserImpl(dao, new VnfDictionaryCache());
+        VnfDictionary loaded = restarted.getDictionary(5L, null);
+        assertEquals("dict-1", loaded.getUuid());
+        assertNotNull(loaded.getOperation("Firewall", "create"));
+        assertEquals(1, restarted.getSnapshotLoadCount());
+        assertEquals(0, restarted.getSnapshotFallbackCount());
+        
+        // Snapshot written by another format version
+        dao.rows.get("dict-1").getCompiledSnapshot()[5]++;
+        VnfDictionaryParserImpl upgraded = new VnfDictionaryParserImpl(dao, new VnfDictionaryCache());
+        assertNotNull(upgraded.getDictionary(5L, null).getOperation("Firewall", "create"));
+        assertEquals(1, upgraded.getSnapshotFallbackCount());
+        assertEquals(1, dao.snapshotUpdates);
+        assertEquals(VnfDictionarySnapshot.FORMAT_VERSION,
+                     VnfDictionarySnapshot.formatVersion(dao.rows.get("dict-1").getCompiledSnapshot()));
+    }
+    
+    @Test
+    @DisplayName("Storing an edited cached view snapshots the new YAML and leaves the view alone")
+    void testStoreEditedCachedView() throws Exception {
+        VnfTestDictionaryDao dao = new VnfTestDictionaryDao();
+        VnfDictionaryParserImpl store = new VnfDictionaryParserImpl(dao, new VnfDictionaryCache());
+        VnfDictionary row = new VnfDictionary();
+        row.setUuid("dict-1");
+        row.setYamlContent(YAML);
+        store.storeDictionary(row, 5L, null);
+        
+        VnfDictionary cached = store.getDictionary(5L, null);
+        byte[] cachedSnapshot = cached.getCompiledSnapshot();
+        cached.setYamlContent(YAML.replace("endpoint: /rules/bulk", "endpoint: /rules/batch"));
+        store.storeDictionary(cached, 5L, null);
+        
+        assertSame(cachedSnapshot, cached.getCompiledSnapshot());
+        VnfDictionaryParserImpl restarted = new VnfDictionaryParserImpl(dao, new VnfDictionaryCache());
+        assertEquals("/rules/batch",
+                     restarted.getDictionary(5L, null).getOperation("Firewall", "bulkCreate").getEndpoint());
+        assertEquals(1, restarted.getSnapshotLoadCount());
+    }
+}
+
+/**
+ * Test suite for the startup warm-up
+ */
+@DisplayName("Startup Warm-up Tests")
+public class VnfStartupWarmupTest {
+    
+    private static class ProbedBroker implements VnfBrokerClient {
+        final Set<Long> down = ConcurrentHashMap.newKeySet();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger probes = new AtomicInteger();
+        volatile CountDownLatch hold;
+        
+        @Override
+        public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public boolean isReachable(VnfAppliance appliance) {
+            int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            probes.incrementAndGet();
+            try {
+                CountDownLatch latch = hold;
+                if (latch != null) {
+                    latch.await(5, TimeUnit.SECONDS);
+                } else {
+                    Thread.sleep(2);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return !down.contains(appliance.getId());
+        }
+        
+        @Override
+        public BrokerType getBrokerType() { return BrokerType.DIRECT; }
+    }
+    
+    private VnfDictionaryParserImpl dictionaries;
+    private ProbedBroker broker;
+    private ExecutorService executor;
+    
+    @BeforeEach
+    void setUp() throws Exception {
+        VnfTestDictionaryDao dao = new VnfTestDictionaryDao();
+        dictionaries = new VnfDictionaryParserImpl(dao, new VnfDictionaryCache());
+        VnfDictionary row = new VnfDictionary();
+        row.setUuid("dict-1");
+        row.setYamlContent(VnfTestData.samplePfSenseDictionary());
+        dictionaries.storeDictionary(row, 7L, null);
+        broker = new ProbedBroker();
+        executor = Executors.newFixedThreadPool(16);
+    }
+    
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+    
+    private static List<VnfAppliance> appliances(int count, long templateId) {
+        List<VnfAppliance> appliances = new ArrayList<>();
+        for (long id = 1; id <= count; id++) {
+            VnfAppliance appliance = new VnfAppliance();
+            appliance.setId(id);
+            appliance.setTemplateId(templateId);
+            appliance.setNetworkId(1000 + id);
+            appliance.setManagementIp("10.0.0." + id);
+            appliance.setState(VnfState.RUNNING);
+            appliances.add(appliance);
+        }
+        return appliances;
+    }
+    
+    @Test
+    @DisplayName("Running appliances get their dictionary and a connection within the budget")
+    void testWarmup() throws Exception {
+        List<VnfAppliance> fleet = appliances(40, 7L);
+        VnfTestApplianceDao appliances = new VnfTestApplianceDao(fleet);
+        broker.down.add(3L);
+        VnfStartupWarmup warmup = new VnfStartupWarmup(appliances, dictionaries, broker, executor, 4, 10_000);
+        List<Integer> progress = new CopyOnWriteArrayList<>();
+        warmup.setProgressListener(report -> progress.add(report.getCompleted()));
+        
+        assertNull(warmup.getProgress());
+        VnfStartupWarmup.WarmupReport report = warmup.start().get(10, TimeUnit.SECONDS);
+        
+        assertTrue(warmup.isComplete());
+        assertSame(warmup.start().get(), report);
+        assertEquals(List.of(VnfState.RUNNING), appliances.listedStates);
+        assertEquals(40, report.getCompleted());
+        assertEquals(39, report.getCount(VnfStartupWarmup.Outcome.READY));
+        assertEquals(1, report.getCount(VnfStartupWarmup.Outcome.UNREACHABLE));
+        assertEquals(40, report.getWarmedAppliances().size());
+        assertEquals(40, progress.size());
+        assertEquals(1.0, report.getFraction());
+        assertTrue(broker.maxInFlight.get() <= 4, "max in flight " + broker.maxInFlight.get());
+        for (VnfAppliance appliance : fleet) {
+            assertNotNull(appliance.getDictionary());
+        }
+        // One dictionary row: at most one load per concurrent first miss
+        assertTrue(dictionaries.getSnapshotLoadCount() <= 4);
+        assertEquals(0, dictionaries.getSnapshotFallbackCount());
+    }
+    
+    @Test
+    @DisplayName("Tokens are pre-signed for each dictionary operation")
+    void testTokens() throws Exception {
+        Map<String, Integer> signed = new ConcurrentHashMap<>();
+        JwtTokenGenerator tokens = new JwtTokenGenerator() {
+            @Override
+            public String generateToken(VnfAppliance appliance, String operation, int expirySeconds) {
+                signed.merge(operation, 1, Integer::sum);
+                return "token";
+            }
+            
+            @Override
+            public boolean validateToken(String token) { return true; }
+        };
+        VnfStartupWarmup warmup = new VnfStartupWarmup(new VnfTestApplianceDao(appliances(2, 7L)),
+                                                       dictionaries, broker, executor, 2, 10_000);
+        warmup.setTokenGenerator(tokens, 300);
+        warmup.setOpenConnections(false);
+        
+        VnfStartupWarmup.WarmupReport report = warmup.start().get(10, TimeUnit.SECONDS);
+        
+        assertEquals(2, report.getCount(VnfStartupWarmup.Outcome.READY));
+        assertEquals(Map.of("Firewall.create", 2, "Firewall.delete", 2, "Firewall.list", 2), signed);
+        assertEquals(0, broker.probes.get());
+    }
+    
+    @Test
+    @DisplayName("Missing dictionaries fail, the timeout skips the rest")
+    void testFailuresAndTimeout() throws Exception {
+        List<VnfAppliance> fleet = appliances(2, 99L);
+        VnfStartupWarmup missing = new VnfStartupWarmup(new VnfTestApplianceDao(fleet), dictionaries, broker,
+                                                        executor, 2, 10_000);
+        VnfStartupWarmup.WarmupReport failed = missing.start().get(10, TimeUnit.SECONDS);
+        assertEquals(2, failed.getCount(VnfStartupWarmup.Outcome.FAILED));
+        assertTrue(failed.getErrors().get(1L).contains("No dictionary"));
+        assertTrue(failed.getWarmedAppliances().isEmpty());
+        
+        broker.hold = new CountDownLatch(1);
+        VnfStartupWarmup stuck = new VnfStartupWarmup(new VnfTestApplianceDao(appliances(3, 7L)),
+                                                      dictionaries, broker, executor, 1, 200);
+        VnfStartupWarmup.WarmupReport report = stuck.start().get(10, TimeUnit.SECONDS);
+        broker.hold.countDown();
+        
+        assertEquals(3, report.getCompleted());
+        assertEquals(1, report.getCount(VnfStartupWarmup.Outcome.TIMED_OUT));
+        assertEquals(2, report.getCount(VnfStartupWarmup.Outcome.SKIPPED));
+    }
+    
+    @Test
+    @DisplayName("An empty fleet completes at once")
+    void testEmpty() throws Exception {
+        VnfStartupWarmup warmup = new VnfStartupWarmup(new VnfTestApplianceDao(List.of()), dictionaries,
+                                                       broker, executor, 4, 1_000);
+        assertEquals(0, warmup.start().get(1, TimeUnit.SECONDS).getTotal());
+        assertTrue(warmup.isComplete());
+    }
+}
+
+/**
+ * Test suite for the external ID index
+ */
+@DisplayName("External ID Index Tests")
+public class VnfExternalIdIndexTest {
+    
+    /**
+     * firewall_rules as the inventory and the database lookup see it
+     */
+    private static class RuleTable implements VnfRuleInventory, VnfRuleLookup {
+        final Map<Long, String> externalIds = new ConcurrentHashMap<>();
+        final AtomicInteger inventoryQueries = new AtomicInteger();
+        final AtomicInteger lookupQueries = new AtomicInteger();
+        
+        @Override
+        public List<VnfRuleRecord> findRules(String serviceName, long networkId) {
+            inventoryQueries.incrementAndGet();
+            List<VnfRuleRecord> rules = new ArrayList<>();
+            externalIds.forEach((ruleId, externalId) -> {
+                if (ruleId / 1000 == networkId) {
+                    rules.add(new VnfRuleRecord(ruleId, externalId, null, null));
+                }
+            });
+            return rules;
+        }
+        
+        @Override
+        public void storeFingerprint(String serviceName, long ruleId, String fingerprint) {
+        }
+        
+        @Override
+        public String findExternalId(String serviceName, long ruleId) {
+            lookupQueries.incrementAndGet();
+            return externalIds.get(ruleId);
+        }
+        
+        @Override
+        public String findPublicIp(long ipAddressId) {
+            return null;
+        }
+    }
+    
+    private RuleTable table;
+    private VnfExternalIdIndex index;
+    
+    @BeforeEach
+    void setUp() {
+        table = new RuleTable();
+        // Rule ids 1000-1499 on network 1, 2000-2009 on network 2
+        for (long id = 1000; id < 1500; id++) {
+            table.externalIds.put(id, "fw-" + id);
+        }
+        for (long id = 2000; id < 2010; id++) {
+            table.externalIds.put(id, "fw-" + id);
+        }
+        index = new VnfExternalIdIndex(table, table);
+    }
+    
+    @Test
+    @DisplayName("A partition loads once and then answers without queries")
+    void testLazyLoad() {
+        assertEquals(0, index.getPartitionCount());
+        for (long id = 1000; id < 1500; id++) {
+            assertEquals("fw-" + id, index.findExternalId("Firewall", 1L, id));
+        }
+        assertEquals(1, table.inventoryQueries.get());
+        assertEquals(0, table.lookupQueries.get());
+        assertEquals(500L, index.getHitCount());
+        assertEquals(500, index.size());
+        
+        assertEquals("fw-2003", index.findExternalId("Firewall", 2L, 2003L));
+        assertEquals(2, index.getPartitionCount());
+        assertEquals(2L, index.getLoadCount());
+    }
+    
+    @Test
+    @DisplayName("Creates and deletes keep a loaded partition in step with the table")
+    void testUpdates() {
+        index.findExternalId("Firewall", 1L, 1000L);
+        
+        table.externalIds.put(1500L, "fw-new");
+        index.recordCreated("Firewall", 1L, 1500L, "fw-new");
+        for (long id = 1000; id < 1250; id++) {
+            table.externalIds.remove(id);
+            index.recordDeleted("Firewall", 1L, id);
+        }
+        assertEquals(251, index.size());
+        
+        assertEquals("fw-new", index.findExternalId("Firewall", 1L, 1500L));
+        for (long id = 1250; id < 1500; id++) {
+            assertEquals("fw-" + id, index.findExternalId("Firewall", 1L, id));
+        }
+        assertEquals(0, table.lookupQueries.get());
+        
+        // Deleted rules are not in the index; the database has nothing either
+        assertNull(index.findExternalId("Firewall", 1L, 1100L));
+        assertEquals(1, table.lookupQueries.get());
+        assertEquals(1, table.inventoryQueries.get());
+    }
+    
+    @Test
+    @DisplayName("Rules the index has not seen are resolved from the database and kept")
+    void testMissAndInvalidate() {
+        index.findExternalId("Firewall", 1L, 1000L);
+        
+        // Created by another management server
+        table.externalIds.put(1600L, "fw-other");
+        assertEquals("fw-other", index.findExternalId("Firewall", 1L, 1600L));
+        assertEquals("fw-other", index.findExternalId("Firewall", 1L, 1600L));
+        assertEquals(1, table.lookupQueries.get());
+        assertEquals(1L, index.getMissCount());
+        
+        // Re-applied elsewhere with a new device object
+        table.externalIds.put(1001L, "fw-reapplied");
+        assertEquals("fw-1001", index.findExternalId("Firewall", 1L, 1001L));
+        index.invalidate(1L);
+        assertEquals("fw-reapplied", index.findExternalId("Firewall", 1L, 1001L));
+        assertEquals(2, table.inventoryQueries.get());
+        
+        index.refresh("Firewall", 1L, List.of(new VnfRuleRecord(1001L, "fw-refreshed", null, null)), index.mark());
+        assertEquals("fw-refreshed", index.findExternalId("Firewall", 1L, 1001L));
+        assertEquals(1, index.size());
+    }
+    
+    @Test
+    @DisplayName("Rows read before a recorded update do not replace the partition")
+    void testStaleRefresh() {
+        index.findExternalId("Firewall", 1L, 1000L);
+        
+        // The reconciler reads its rows, then a rule is created before it refreshes
+        long mark = index.mark();
+        List<VnfRuleRecord> read = List.of(new VnfRuleRecord(1000L, "fw-1000", null, null));
+        index.recordCreated("Firewall", 1L, 1700L, "fw-new");
+        index.refresh("Firewall", 1L, read, mark);
+        assertEquals("fw-new", index.findExternalId("Firewall", 1L, 1700L));
+        assertEquals(1L, index.getStaleRefreshCount());
+        
+        index.invalidate(1L);
+        index.refresh("Firewall", 1L, read, mark);
+        assertEquals(2L, index.getStaleRefreshCount());
+        
+        index.refresh("Firewall", 1L, read, index.mark());
+        assertEquals(1, index.size());
+        assertEquals(0, table.lookupQueries.get());
+    }
+    
+    @Test
+    @DisplayName("A partition past its max age reloads from the database")
+    void testMaxAge() {
+        VnfTestClock clock = new VnfTestClock();
+        index = new VnfExternalIdIndex(table, table, 60, clock);
+        assertEquals("fw-1001", index.findExternalId("Firewall", 1L, 1001L));
+        
+        // Re-applied by another management server
+        table.externalIds.put(1001L, "fw-reapplied");
+        clock.millis += 59_000;
+        assertEquals("fw-1001", index.findExternalId("Firewall", 1L, 1001L));
+        assertEquals(1, table.inventoryQueries.get());
+        
+        clock.millis += 1_000;
+        assertEquals("fw-reapplied", index.findExternalId("Firewall", 1L, 1001L));
+        assertEquals(2, table.inventoryQueries.get());
+        assertEquals(2L, index.getLoadCount());
+    }
+    
+    @Test
+    @DisplayName("Delete requests take ${externalId} from the index")
+    void testBuilderUsesIndex() throws Exception {
+        VnfDictionary dict = new VnfDictionaryParserImpl().parseDictionary(VnfTestData.samplePfSenseDictionary());
+        VnfRequestBuilder builder = new VnfRequestBuilderImpl(index);
+        FirewallRule rule = mock(FirewallRule.class);
+        when(rule.getId()).thenReturn(2004L);
+        when(rule.getNetworkId()).thenReturn(2L);
+        
+        VnfRequest request = builder.buildFirewallRequest(dict, FirewallRuleOperation.DELETE, rule);
+        
+        assertTrue(request.getUri().contains("fw-2004"), request.getUri());
+        assertEquals(0, table.lookupQueries.get());
+        assertEquals(1, table.inventoryQueries.get());
+    }
+}
+
+/**
+ * Test suite for the batch loader
+ */
+@DisplayName("Batch Loader Tests")
+public class VnfBatchLoaderTest {
+    
+    /**
+     * networks and vm_instance by id; counts queries
+     */
+    private static class Associations implements VnfApplianceAssociationDao {
+        final AtomicInteger queries = new AtomicInteger();
+        
+        @Override
+        public Map<Long, Network> findNetworks(Collection<Long> networkIds) {
+            queries.incrementAndGet();
+            Map<Long, Network> networks = new HashMap<>();
+            for (Long id : networkIds) {
+                Network network = mock(Network.class);
+                when(network.getId()).thenReturn(id);
+                networks.put(id, network);
+            }
+            return networks;
+        }
+        
+        @Override
+        public Map<Long, VirtualMachine> findVirtualMachines(Collection<Long> vmIds) {
+            queries.incrementAndGet();
+            Map<Long, VirtualMachine> vms = new HashMap<>();
+            for (Long id : vmIds) {
+                VirtualMachine vm = mock(VirtualMachine.class);
+                when(vm.getId()).thenReturn(id);
+                vms.put(id, vm);
+            }
+            return vms;
+        }
+    }
+    
+    private VnfTestDictionaryDao dictionaryDao;
+    private VnfDictionaryParserImpl dictionaries;
+    private VnfTestApplianceDao appliances;
+    private Associations associations;
+    private VnfBatchLoader loader;
+    
+    @BeforeEach
+    void setUp() throws Exception {
+        dictionaryDao = new VnfTestDictionaryDao();
+        dictionaries = new VnfDictionaryParserImpl(dictionaryDao, new VnfDictionaryCache());
+        VnfDictionary template = new VnfDictionary();
+        template.setUuid("dict-template");
+        template.setYamlContent(VnfTestData.samplePfSenseDictionary());
+        dictionaries.storeDictionary(template, 7L, null);
+        VnfDictionary override = new VnfDictionary();
+        override.setUuid("dict-override");
+        override.setYamlContent(VnfTestData.samplePfSenseDictionary() + "\n# override\n");
+        dictionaries.storeDictionary(override, null, 1005L);
+        
+        List<VnfAppliance> rows = new ArrayList<>();
+        for (long id = 1; id <= 30; id++) {
+            VnfAppliance appliance = new VnfAppliance();
+            appliance.setId(id);
+            appliance.setNetworkId(1000 + id);
+            appliance.setTemplateId(7L);
+            appliance.setVmInstanceId(500 + id);
+            appliance.setState(id % 3 == 0 ? VnfState.STOPPED : VnfState.RUNNING);
+            rows.add(appliance);
+        }
+        appliances = new VnfTestApplianceDao(rows);
+        associations = new Associations();
+        loader = new VnfBatchLoader(appliances, dictionaries, new VnfRuleInventory() {
+            @Override
+            public List<VnfRuleRecord> findRules(String serviceName, long networkId) {
+                throw new AssertionError("per-network rule query");
+            }
+            
+            @Override
+            public void storeFingerprint(String serviceName, long ruleId, String fingerprint) {
+            }
+        });
+        loader.setAssociationDao(associations);
+    }
+    
+    @Test
+    @DisplayName("A page of appliances comes with its associations in a few queries")
+    void testListAppliances() {
+        List<VnfAppliance> page = loader.listAppliances(null, VnfState.RUNNING, 0, 20);
+        
+        assertEquals(20, page.size());
+        assertEquals(1, appliances.queries.get());
+        assertEquals(1, dictionaryDao.queries.get(), "one findActive for the page");
+        assertEquals(2, associations.queries.get(), "networks and VMs");
+        for (VnfAppliance appliance : page) {
+            assertNotNull(appliance.getDictionary());
+            assertEquals(appliance.getNetworkId().longValue(), appliance.getNetwork().getId());
+            assertEquals(appliance.getVmInstanceId().longValue(), appliance.getVmInstance().getId());
+        }
+        
+        // Network override before the template dictionary, as in getDictionary
+        VnfAppliance overridden = page.stream().filter(a -> a.getId() == 5L).findFirst().orElseThrow();
+        assertEquals("dict-override", overridden.getDictionary().getUuid());
+        assertEquals("dict-template", page.get(0).getDictionary().getUuid());
+        
+        // Attached associations and cached dictionaries are not loaded again
+        loader.attach(page);
+        assertEquals(1, dictionaryDao.queries.get());
+        assertEquals(2, associations.queries.get());
+    }
+    
+    @Test
+    @DisplayName("Appliances of many networks load in one query")
+    void testLoadByNetworks() {
+        List<VnfAppliance> loaded = loader.loadByNetworks(List.of(1001L, 1002L, 1003L, 9999L));
+        
+        assertEquals(3, loaded.size());
+        assertEquals(1, appliances.queries.get());
+        assertTrue(loaded.stream().allMatch(a -> a.getDictionary() != null && a.getNetwork() != null));
+        assertTrue(loader.loadByNetworks(List.of()).isEmpty());
+        assertEquals(1, appliances.queries.get());
+    }
+}
+
+/**
+ * Test suite for the fleet reconciler
+ */
+@DisplayName("Fleet Reconciler Tests")
+public class VnfFleetReconcilerTest {
+    
+    private static final String LIST_DICTIONARY = """
+        version: "1.0"
+        access:
+          protocol: https
+          port: 443
+        services:
+          Firewall:
+            list:
+              method: GET
+              endpoint: /rules
+              responseMapping:
+                listPath: $.data
+                item:
+                  idPath: $.id
+          NAT:
+            list:
+              method: GET
+              endpoint: /nat
+              responseMapping:
+                listPath: $.data
+                item:
+                  idPath: $.id
+        """;
+    
+    private VnfDictionary dict;
+    private ExecutorService executor;
+    
+    @BeforeEach
+    void setUp() throws Exception {
+        dict = new VnfDictionaryParserImpl().parseDictionary(LIST_DICTIONARY);
+        executor = Executors.newCachedThreadPool();
+    }
+    
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Device with fixed rule lists; records calls in flight
+     */
+    private static class FakeDevices implements VnfBrokerClient {
+        final Map<String, String> lists = new HashMap<>();
+        final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger maxCalls = new AtomicInteger();
+        final AtomicInteger maxAppliances = new AtomicInteger();
+        final CountDownLatch hang = new CountDownLatch(1);
+        final List<String> uris = Collections.synchronizedList(new ArrayList<>());
+        volatile long hangingAppliance = -1;
+        
+        @Override
+        public VnfResponse sendRequest(VnfAppliance appliance, VnfRequest request) {
+            uris.add(request.getUri());
+            inFlight.add(appliance.getId());
+            maxAppliances.accumulateAndGet(inFlight.size(), Math::max);
+            maxCalls.accumulateAndGet(calls.incrementAndGet(), Math::max);
+            try {
+                if (appliance.getId() == hangingAppliance) {
+                    hang.await(5, TimeUnit.SECONDS);
+                }
+                Thread.sleep(20);
+                VnfResponse response = new VnfResponse();
+                response.setStatusCode(200);
+                response.setBody(lists.getOrDefault(request.getUri(), "{\"data\": []}"));
+                return response;
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                calls.decrementAndGet();
+                inFlight.remove(appliance.getId());
+            }
+        }
+        
+        @Override
+        public VnfResponse sendRequestWithRetry(VnfAppliance appliance, VnfRequest request, int maxRetries) {
+            return sendRequest(appliance, request);
+        }
+        
+        @Override
+        public boolean isReachable(VnfAppliance appliance) { return true; }
+        
+        @Override
+        public BrokerType getBrokerType() { return BrokerType.DIRECT; }
+    }
+    
+    /**
+     * Rules by service; records the fingerprints stored back
+     */
+    private static class FakeInventory implements VnfRuleInventory {
+        final Map<String, List<VnfRuleRecord>> rules = new HashMap<>();
+        final Map<Long, String> stored = new ConcurrentHashMap<>();
+        final AtomicInteger queries = new AtomicInteger();
+        final AtomicInteger batchQueries = new AtomicInteger();
+        
+        void add(String service, long ruleId, String externalId, String fingerprint, Map<String, Object> fields) {
+            rules.computeIfAbsent(service, k -> new ArrayList<>())
+                .add(new VnfRuleRecord(ruleId, externalId, fingerprint, () -> fields));
+        }
+        
+        @Override
+        public List<VnfRuleRecord> findRules(String serviceName, long networkId) {
+            queries.incrementAndGet();
+            return copies(serviceName);
+        }
+        
+        @Override
+        public Map<Long, List<VnfRuleRecord>> findRules(String serviceName, Collection<Long> networkIds) {
+            batchQueries.incrementAndGet();
+            Map<Long, List<VnfRuleRecord>> byNetwork = new HashMap<>();
+            for (Long networkId : networkIds) {
+                byNetwork.put(networkId, copies(serviceName));
+            }
+            return byNetwork;
+        }
+        
+        private List<VnfRuleRecord> copies(String serviceName) {
+            List<VnfRuleRecord> copies = new ArrayList<>();
+            for (VnfRuleRecord rule : rules.getOrDefault(serviceName, List.of())) {
+                copies.add(new VnfRuleRecord(rule.getRuleId(), rule.getExternalId(),
+                    stored.getOrDefault(rule.getRuleId(), rule.getFingerprint()), rule::getFields));
+            }
+            return copies;
+        }
+        
+        @Override
+        public void storeFingerprint(String serviceName, long ruleId, String fingerprint) {
+            stored.put(ruleId, fingerprint);
+        }
+    }
+    
+    private static Map<String, Object> firewall(String protocol, List<String> cidrs, String ports) {
+        return Map.of("protocol", protocol, "sourceCidr", cidrs, "ports", ports, "action", "allow");
+    }
+    
+    private VnfAppliance appliance(long id) {
+        VnfAppliance appliance = new VnfAppliance();
+        appliance.setId(id);
+        appliance.setNetworkId(100 + id);
+        appliance.setDictionary(dict);
+        return appliance;
+    }
+    
+    private VnfFleetReconciler reconciler(FakeDevices devices, VnfRuleInventory inventory,
+                                          int batchSize, long timeoutMillis) {
+        return new VnfFleetReconciler(devices, new VnfRequestBuilderImpl(mock(VnfRuleLookup.class)),
+            new VnfResponseParserImpl(), inventory, executor, batchSize, timeoutMillis);
+    }
+    
+    @Test
+    @DisplayName("Missing and unknown rules are reported per service")
+    void testDriftDetection() throws Exception {
+        FakeDevices devices = new FakeDevices();
+        devices.lists.put("/rules", "{\"data\": [{\"id\": \"a\"}, {\"id\": \"b\"}, {\"id\": \"x\"}]}");
+        devices.lists.put("/nat", "{\"data\": [{\"id\": \"n1\"}]}");
+        FakeInventory inventory = new FakeInventory();
+        inventory.add("Firewall", 1L, "a", null, Map.of());
+        inventory.add("Firewall", 2L, "b", null, Map.of());
+        inventory.add("Firewall", 3L, "c", null, Map.of());
+        inventory.add("NAT", 7L, "n1", null, Map.of());
+        
+        VnfReconciliationResult result = reconciler(devices, inventory, 10, 5000)
+            .reconcile(appliance(1), true).get(5, TimeUnit.SECONDS);
+        
+        assertTrue(result.isSuccess());
+        assertTrue(result.isDriftDetected());
+        assertEquals(4, result.getRulesChecked());
+        assertEquals(1, result.getMissingRules());
+        assertEquals(1, result.getExtraRules());
+        assertEquals(2, devices.maxCalls.get(), "list calls of one appliance run in parallel");
+        assertTrue(result.getActions().stream()
+            .allMatch(a -> a.getActionType() == ReconciliationAction.ActionType.FLAGGED));
+    }
+    
+    @Test
+    @DisplayName("Sweep bounds appliances in flight and reports progress")
+    void testBoundedSweep() {
+        FakeDevices devices = new FakeDevices();
+        VnfFleetReconciler reconciler = reconciler(devices, new FakeInventory(), 3, 10000);
+        AtomicInteger progressCalls = new AtomicInteger();
+        reconciler.setProgressListener(progress -> progressCalls.incrementAndGet());
+        
+        List<VnfAppliance> fleet = new ArrayList<>();
+        for (long id = 0; id < 20; id++) {
+            fleet.add(appliance(id));
+        }
+        VnfFleetReconciler.SweepReport report = reconciler.reconcileAll(fleet, true);
+        
+        assertEquals(20, report.getCompleted());
+        assertEquals(20, report.getCount(VnfFleetReconciler.Outcome.RECONCILED));
+        assertEquals(20, progressCalls.get());
+        assertTrue(devices.maxAppliances.get() <= 3);
+        assertTrue(report.getAppliancesPerSecond() > 0);
+    }
+    
+    @Test
+    @DisplayName("Appliances still running at the sweep timeout are reported")
+    void testSweepTimeout() {
+        FakeDevices devices = new FakeDevices();
+        devices.hangingAppliance = 0;
+        VnfFleetReconciler reconciler = reconciler(devices, new FakeInventory(), 4, 300);
+        
+        VnfFleetReconciler.SweepReport report = reconciler.reconcileAll(
+            List.of(appliance(0), appliance(1), appliance(2)), true);
+        devices.hang.countDown();
+        
+        assertEquals(3, report.getCompleted());
+        assertEquals(1, report.getCount(VnfFleetReconciler.Outcome.TIMED_OUT));
+        assertEquals(2, report.getCount(VnfFleetReconciler.Outcome.RECONCILED));
+        assertFalse(report.getResults().get(0L).isSuccess());
+    }
+    
+    @Test
+    @DisplayName("A sweep with a batch loader queries rules and dictionaries per chunk")
+    void testBatchPrefetch() throws Exception {
+        VnfTestDictionaryDao dictionaryDao = new VnfTestDictionaryDao();
+        VnfDictionaryParserImpl dictionaries = new VnfDictionaryParserImpl(dictionaryDao, new VnfDictionaryCache());
+        VnfDictionary row = new VnfDictionary();
+        row.setUuid("dict-7");
+        row.setYamlContent(LIST_DICTIONARY);
+        dictionaries.storeDictionary(row, 7L, null);
+        
+        FakeDevices devices = new FakeDevices();
+        devices.lists.put("/rules", "{\"data\": [{\"id\": \"a\"}]}");
+        FakeInventory inventory = new FakeInventory();
+        inventory.add("Firewall", 1L, "a", null, Map.of());
+        
+        List<VnfAppliance> fleet = new ArrayList<>();
+        for (long id = 0; id < 10; id++) {
+            VnfAppliance appliance = appliance(id);
+            appliance.setDictionary(null);
+            appliance.setTemplateId(7L);
+            fleet.add(appliance);
+        }
+        VnfBatchLoader loader = new VnfBatchLoader(new VnfTestApplianceDao(fleet), dictionaries, inventory);
+        VnfFleetReconciler reconciler = reconciler(devices, inventory, 4, 10000);
+        reconciler.setBatchLoader(loader);
+        
+        VnfFleetReconciler.SweepReport report = reconciler.reconcileAll(fleet, true);
+        
+        assertEquals(10, report.getCount(VnfFleetReconciler.Outcome.RECONCILED));
+        assertFalse(report.getResults().get(3L).isDriftDetected());
+        assertEquals(3L, loader.getBatchCount());
+        assertEquals(0, inventory.queries.get(), "no rule query per appliance");
+        assertEquals(6, inventory.batchQueries.get(), "one per service and chunk");
+        assertEquals(3, dictionaryDao.queries.get(), "one findActive per chunk");
+        assertTrue(fleet.stream().allMatch(a -> a.getDictionary() != null));
+    }
+    
+    @Test
+    @DisplayName("Equivalent rules get the same fingerprint on both sides")
+    void testFingerprintNormalization() {
+        VnfRuleFingerprint.FieldSet fields = VnfRuleFingerprint.fieldSet("Firewall",
+            List.of("id", "proto", "src", "dstport", "action"));
+        
+        VnfDeviceRule device = new VnfDeviceRule();
+        device.setProperty("proto", "6");
+        device.setProperty("src", "10.1.1.0/24, 192.168.5.9");
+        device.setProperty("dstport", "80:80");
+        device.setProperty("action", "pass");
+        
+        String expected = fields.of(firewall("TCP", List.of("192.168.5.9/32", "10.1.1.77/24"), "80"));
+        assertEquals(expected, fields.of(device));
+        assertTrue(fields.accepts(expected));
+        assertNotEquals(expected, fields.of(firewall("tcp", List.of("10.1.1.0/24"), "80")));
+        assertNotEquals(expected, fields.of(firewall("tcp", List.of("10.1.1.0/24", "192.168.5.9"), "443")));
+        
+        // ICMP ignores ports, empty CIDRs mean any, the full range is any port
+        assertEquals(fields.of(firewall("icmp", List.of(), "")), fields.of(firewall("1", List.of("0.0.0.0/0"), "8")));
+        assertEquals(fields.of(firewall("udp", List.of(), "1-65535")), fields.of(firewall("17", List.of(), "any")));
+        
+        // A fingerprint over fewer device fields is not accepted
+        VnfRuleFingerprint.FieldSet fewer = VnfRuleFingerprint.fieldSet("Firewall", List.of("id", "proto", "src"));
+        assertFalse(fewer.accepts(expected));
+        assertNull(VnfRuleFingerprint.fieldSet("Firewall", List.of("id")));
+    }
+    
+    @Test
+    @DisplayName("Mappings without a port, CIDR or address field get no fingerprint")
+    void testNonDiscriminatingFieldSet() throws Exception {
+        // Item mapping of the shipped FortiGate Firewall.list
+        VnfDictionary fortigate = new VnfDictionaryParserImpl().parseDictionary("""
+            version: "1.0"
+            access:
+              protocol: https
+            services:
+              Firewall:
+                list:
+                  method: GET
+                  endpoint: /cmdb/firewall/policy
+                  responseMapping:
+                    listPath: $.results
+                    item:
+                      idPath: $.policyid
+                      namePath: $.name
+                      actionPath: $.action
+            """);
+        assertNull(VnfRuleFingerprint.fieldSet(fortigate, "Firewall"));
+        assertNull(VnfRuleFingerprint.fieldSet("Firewall", List.of("id", "proto", "action")));
+        assertNull(VnfRuleFingerprint.fieldSet("LoadBalancer", List.of("id", "algorithm")));
+        assertNotNull(VnfRuleFingerprint.fieldSet("Firewall", List.of("id", "action", "dstport")));
+    }
+    
+    @Test
+    @DisplayName("Drift is a hash join on external IDs and fingerprints")
+    void testFingerprintDrift() throws Exception {
+        VnfDictionary fingerprinted = new VnfDictionaryParserImpl().parseDictionary(
+            LIST_DICTIONARY.replace("idPath: $.id\n  NAT:",
+                "idPath: $.id\n          protoPath: $.proto\n          srcPath: $.src\n" +
+                "          dstportPath: $.port\n  NAT:"));
+        FakeDevices devices = new FakeDevices();
+        devices.lists.put("/rules", """
+            {"data": [
+              {"id": "a", "proto": "tcp", "src": "10.0.0.0/8", "port": "22"},
+              {"id": "b", "proto": "tcp", "src": "10.0.0.0/8", "port": "8443"},
+              {"id": "z", "proto": "udp", "src": "0.0.0.0/0", "port": "53"},
+              {"id": "y", "proto": "udp", "src": "0.0.0.0/0", "port": "123"}
+            ]}""");
+        FakeInventory inventory = new FakeInventory();
+        inventory.add("Firewall", 1L, "a", null, firewall("tcp", List.of("10.1.2.3/8"), "22"));
+        inventory.add("Firewall", 2L, "b", null, firewall("tcp", List.of("10.0.0.0/8"), "443"));
+        inventory.add("Firewall", 3L, null, "1:stale", firewall("udp", List.of(), "53"));
+        
+        VnfFleetReconciler reconciler = reconciler(devices, inventory, 10, 5000);
+        VnfAppliance appliance = appliance(1);
+        appliance.setDictionary(fingerprinted);
+        VnfReconciliationResult result = reconciler.reconcile(appliance, true).get(5, TimeUnit.SECONDS);
+        
+        assertEquals(4, result.getRulesChecked());
+        assertEquals(1, result.getMissingRules(), "rule 2 was changed on the device");
+        assertEquals(1, result.getExtraRules(), "y is unknown; z matches rule 3 by content");
+        assertTrue(result.getActions().stream().anyMatch(a ->
+            a.getRuleId().equals("2") && a.getDescription().equals("Rule changed on device")));
+        assertEquals(3L, reconciler.getFingerprintsComputed());
+        assertEquals(3, inventory.stored.size());
+        
+        reconciler.reconcile(appliance, true).get(5, TimeUnit.SECONDS);
+        assertEquals(3L, reconciler.getFingerprintsComputed(), "stored fingerprints are reused");
+    }
+    
+    @Test
+    @DisplayName("Devices whose revision and rules match the last clean run are not listed")
+    void testRevisionSkipsUnchangedDevices() throws Exception {
+        VnfDictionary revisioned = new VnfDictionaryParserImpl().parseDictionary(LIST_DICTIONARY + """
+              System:
+                revision:
+                  method: GET
+                  endpoint: /revision
+            revision:
+              operation: System.revision
+              path: $.config.revision
+            """);
+        FakeDevices devices = new FakeDevices();
+        devices.lists.put("/revision", "{\"config\": {\"revision\": 41}}");
+        devices.lists.put("/rules", "{\"data\": [{\"id\": \"a\"}]}");
+        FakeInventory inventory = new FakeInventory();
+        inventory.add("Firewall", 1L, "a", null, Map.of());
+        Map<Long, VnfRevisionMark> clean = new ConcurrentHashMap<>();
+        
+        VnfFleetReconciler reconciler = reconciler(devices, inventory, 10, 5000);
+        reconciler.setHistory(clean::get);
+        VnfAppliance appliance = appliance(1);
+        appliance.setDictionary(revisioned);
+        
+        VnfReconciliationResult first = reconciler.reconcile(appliance, true).get(5, TimeUnit.SECONDS);
+        assertFalse(first.isUnchanged());
+        assertFalse(first.isDriftDetected());
+        assertEquals("41", first.getDeviceRevision());
+        assertTrue(devices.uris.contains("/rules"));
+        clean.put(1L, new VnfRevisionMark(first.getDeviceRevision(), first.getRulesDigest()));
+        
+        devices.uris.clear();
+        VnfFleetReconciler.SweepReport quiet = reconciler.reconcileAll(List.of(appliance), true);
+        assertEquals(1, quiet.getCount(VnfFleetReconciler.Outcome.UNCHANGED));
+        assertEquals(List.of("/revision"), devices.uris, "only the revision probe is sent");
+        
+        // A new CloudStack rule changes the digest even if the device did not change
+        inventory.add("Firewall", 2L, null, null, Map.of());
+        devices.uris.clear();
+        VnfReconciliationResult added = reconciler.reconcile(appliance, true).get(5, TimeUnit.SECONDS);
+        assertFalse(added.isUnchanged());
+        assertEquals(1, added.getMissingRules());
+        assertTrue(devices.uris.contains("/rules"));
+        
+        // A failed probe falls back to listing
+        devices.lists.put("/revision", "{}");
+        VnfReconciliationResult unknown = reconciler.reconcile(appliance, true).get(5, TimeUnit.SECONDS);
+        assertFalse(unknown.isUnchanged());
+        assertNull(unknown.getDeviceRevision());
+        assertEquals(1L, reconciler.getRevisionsUnchanged());
+        
+        assertThrows(DictionaryParseException.class, () -> new VnfDictionaryParserImpl().parseDictionary(
+            LIST_DICTIONARY + "revision:\n  operation: Firewall.list\n  path: $.r\n  header: ETag\n"));
+    }
+}
+
+/**
+ * Clock the test advances by hand
+ */
+public class VnfTestClock extends Clock {
+    public volatile long millis = 1_700_000_000_000L;
+    
+    @Override
+    public ZoneId getZone() { return ZoneOffset.UTC; }
+    
+    @Override
+    public Clock withZone(ZoneId zone) { return this; }
+    
+    @Override
+    public Instant instant() { return Instant.ofEpochMilli(millis); }
+}
+
+/**
+ * vnf_dictionaries rows kept in memory, a fresh copy per read like the DAO
+ */
+public class VnfTestDictionaryDao implements VnfDictionaryDao {
+    final Map<String, VnfDictionary> rows = new ConcurrentHashMap<>();
+    final AtomicInteger queries = new AtomicInteger();
+    int snapshotUpdates;
+    
+    @Override
+    public VnfDictionary findByTemplateId(long templateId) {
+        queries.incrementAndGet();
+        return rows.values().stream().filter(r -> Long.valueOf(templateId).equals(r.getTemplateId()))
+                   .findFirst().map(VnfTestDictionaryDao::copy).orElse(null);
+    }
+    
+    @Override
+    public VnfDictionary findByNetworkId(long networkId) {
+        queries.incrementAndGet();
+        return rows.values().stream().filter(r -> Long.valueOf(networkId).equals(r.getNetworkId()))
+                   .findFirst().map(VnfTestDictionaryDao::copy).orElse(null);
+    }
+    
+    @Override
+    public VnfDictionary findByUuid(String uuid) {
+        VnfDictionary row = rows.get(uuid);
+        return row != null ? copy(row) : null;
+    }
+    
+    @Override
+    public List<VnfDictionary> findActive(Collection<Long> templateIds, Collection<Long> networkIds) {
+        queries.incrementAndGet();
+        List<VnfDictionary> found = new ArrayList<>();
+        for (VnfDictionary row : rows.values()) {
+            if (templateIds.contains(row.getTemplateId()) || networkIds.contains(row.getNetworkId())) {
+                found.add(copy(row));
+            }
+        }
+        return found;
+    }
+    
+    @Override
+    public VnfDictionary persist(VnfDictionary dictionary) {
+        rows.put(dictionary.getUuid(), copy(dictionary));
+        return dictionary;
+    }
+    
+    @Override
+    public boolean remove(String uuid) {
+        return rows.remove(uuid) != null;
+    }
+    
+    @Override
+    public synchronized void updateCompiledSnapshot(String uuid, byte[] snapshot) {
+        snapshotUpdates++;
+        rows.get(uuid).setCompiledSnapshot(snapshot);
+    }
+    
+    private static VnfDictionary copy(VnfDictionary source) {
+        VnfDictionary row = new VnfDictionary();
+        row.setUuid(source.getUuid());
+        row.setTemplateId(source.getTemplateId());
+        row.setNetworkId(source.getNetworkId());
+        row.setYamlContent(source.getYamlContent());
+        row.setCompiledSnapshot(source.getCompiledSnapshot());
+        return row;
+    }
+}
+
+/**
+ * vnf_appliances rows kept in memory; associations are not loaded
+ */
+public class VnfTestApplianceDao implements VnfApplianceDao {
+    final List<VnfAppliance> rows;
+    final List<VnfState> listedStates = new CopyOnWriteArrayList<>();
+    final AtomicInteger queries = new AtomicInteger();
+    
+    VnfTestApplianceDao(List<VnfAppliance> rows) {
+        this.rows = new CopyOnWriteArrayList<>(rows);
+    }
+    
+    @Override
+    public List<VnfAppliance> listByState(VnfState state) {
+        queries.incrementAndGet();
+        listedStates.add(state);
+        List<VnfAppliance> found = new ArrayList<>();
+        for (VnfAppliance row : rows) {
+            if (row.getState() == state) {
+                found.add(row);
+            }
+        }
+        return found;
+    }
+    
+    @Override
+    public List<VnfAppliance> listByNetworkIds(Collection<Long> networkIds) {
+        queries.incrementAndGet();
+        List<VnfAppliance> found = new ArrayList<>();
+        for (VnfAppliance row : rows) {
+            if (networkIds.contains(row.getNetworkId())) {
+                found.add(row);
+            }
+        }
+        return found;
+    }
+    
+    @Override
+    public List<VnfAppliance> search(Long networkId, VnfState state, long offset, long limit) {
+        queries.incrementAndGet();
+        return rows.stream()
+            .filter(row -> networkId == null || networkId.equals(row.getNetworkId()))
+            .filter(row -> state == null || row.getState() == state)
+            .skip(offset).limit(limit)
+            .toList();
+    }
 }
 
 /**
@@ -406,14 +4369,15 @@ public class VnfPerformanceTests {
     @Timeout(value = 50, unit = TimeUnit.MILLISECONDS)
     void testTemplateRenderPerformance() {
         String template = "{\"proto\": \"${proto}\", \"port\": ${port}, \"src\": \"${src}\"}";
+        CompiledTemplate compiled = CompiledTemplate.compile(template);
         TemplateContext context = new TemplateContext();
         context.set("proto", "tcp");
         context.set("port", 80);
         context.set("src", "10.0.0.0/24");
         
-        // Should render 1000 times in < 50ms
-        for (int i = 0; i < 1000; i++) {
-            VnfTemplateRenderer.render(template, context);
+        // Compiled once, should render 10000 times in < 50ms
+        for (int i = 0; i < 10000; i++) {
+            compiled.render(context, TemplateEscaping.JSON);
         }
     }
 }